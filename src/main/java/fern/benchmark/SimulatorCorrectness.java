@@ -45,9 +45,11 @@ public SimulatorCorrectness(Network net, double moment, String... speciesNames)
 
     obs = new AmountAtMomentObserver[simulators.length];
     for (int i = 0; i < obs.length; i++) {
-      obs[i] = new AmountAtMomentObserver(simulators[i], moment, speciesNames);
-      simulators[i].addObserver(obs[i]);
-      obs[i].setLabelFormat("%l - %a");
+      if (simulators[i] != null) {
+        obs[i] = new AmountAtMomentObserver(simulators[i], moment, speciesNames);
+        simulators[i].addObserver(obs[i]);
+        obs[i].setLabelFormat("%l - %a");
+      }
     }
 
     gnuplot = new GnuPlot();
@@ -103,7 +105,7 @@ private double[][][] calcHistoDistances() {
     for (int i = 0; i < re.length; i++) {
       for (int j = 0; j < re[i].length; j++) {
         for (int s = 0; s < speciesNames.length; s++) {
-          re[i][j][s] = NumberTools
+          re[i][j][s] = obs[i] == null || obs[j] == null ? Double.NaN : NumberTools
               .calculateHistogramDistance(obs[i].getHistogram(s), obs[j].getHistogram(s));
         }
       }
@@ -30,9 +30,11 @@ public SimulatorFireTypes(Network net, double time) {
 
     obs = new FireTypeObserver[simulators.length];
     for (int i = 0; i < obs.length; i++) {
-      obs[i] = new FireTypeObserver(simulators[i]);
-      simulators[i].addObserver(obs[i]);
-      obs[i].setLabelFormat("%a");
+      if (simulators[i] != null) {
+        obs[i] = new FireTypeObserver(simulators[i]);
+        simulators[i].addObserver(obs[i]);
+        obs[i].setLabelFormat("%a");
+      }
     }
     gnuplotRandom = new GnuPlot();
 
@@ -47,8 +49,10 @@ public void present() {
     super.present();
 
     for (int i = 0; i < obs.length; i++) {
-      obs[i].toGnuplot(gnuplotRandom);
-      System.out.println(obs[i].toString());
+      if (simulators[i] != null) {
+        obs[i].toGnuplot(gnuplotRandom);
+        System.out.println(obs[i].toString());
+      }
     }
 
     gnuplotRandom.setVisible(true);
@@ -7,12 +7,18 @@
 import fern.simulation.algorithm.GillespieEnhanced;
 import fern.simulation.algorithm.GillespieSimple;
 import fern.simulation.algorithm.HybridMaximalTimeStep;
+import fern.simulation.algorithm.HybridODESimulator;
+import fern.simulation.algorithm.LogarithmicDirectMethod;
+import fern.simulation.algorithm.PartialPropensityDirectMethod;
+import fern.simulation.algorithm.RejectionBasedSimulator;
+import fern.simulation.algorithm.SortingDirectMethod;
 import fern.simulation.algorithm.TauLeapingAbsoluteBoundSimulator;
 import fern.simulation.algorithm.TauLeapingRelativeBoundSimulator;
 import fern.simulation.algorithm.TauLeapingSpeciesPopulationBoundSimulator;
 import fern.simulation.controller.SimulationController;
 import fern.simulation.observer.Observer;
 import fern.tools.NumberTools;
+import java.util.function.Function;
 
 /**
  * Measures the performance of the different simulation algorithms for a given network. This is the
@@ -44,7 +50,9 @@ public abstract class SimulatorPerformance extends Benchmark {
   private int[] indices;
 
   /**
-   * Registers the six built-in simulators for the performance benchmarks.
+   * Registers the built-in simulators for the performance benchmarks. Simulators that do not
+   * support the network (e.g. the ones that need mass action kinetics for an SBML network) are
+   * <code>null</code>, like simulators removed by the caller.
    *
    * @param net the network to benchmark
    * @see GillespieSimple
@@ -53,6 +61,7 @@ public abstract class SimulatorPerformance extends Benchmark {
    * @see TauLeapingAbsoluteBoundSimulator
    * @see TauLeapingRelativeBoundSimulator
    * @see TauLeapingSpeciesPopulationBoundSimulator
+   * @see HybridODESimulator
    */
   public SimulatorPerformance(Network net) {
     simulators = new Simulator[]{
@@ -63,12 +72,17 @@ public SimulatorPerformance(Network net) {
         new TauLeapingRelativeBoundSimulator(net),
         new TauLeapingSpeciesPopulationBoundSimulator(net),
         new HybridMaximalTimeStep(net),
-        new CompositionRejection(net)
+        new CompositionRejection(net),
+        new LogarithmicDirectMethod(net),
+        new SortingDirectMethod(net),
+        createIfSupported(RejectionBasedSimulator::new, net),
+        createIfSupported(PartialPropensityDirectMethod::new, net),
+        createIfSupported(HybridODESimulator::new, net)
     };
 
     simulatorNames = new String[simulators.length];
     for (int i = 0; i < simulatorNames.length; i++) {
-      simulatorNames[i] = simulators[i].getName();
+      simulatorNames[i] = simulators[i] != null ? simulators[i].getName() : "not supported";
     }
 
     indices = new int[simulators.length];
@@ -77,6 +91,21 @@ public SimulatorPerformance(Network net) {
     }
   }
 
+  /**
+   * Creates a simulator that does not support every network.
+   *
+   * @param creator the constructor of the simulator
+   * @param net     the network to benchmark
+   * @return the simulator or <code>null</code> if it rejects the network
+   */
+  private static Simulator createIfSupported(Function<Network, Simulator> creator, Network net) {
+    try {
+      return creator.apply(net);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
   /**
    * Performs one benchmark for each of the six simulators. To minimize effects that could
    * compromise time benchmarks like caching, the order of the simulators is randomized each time.
@@ -34,9 +34,11 @@ public SimulatorRandomNumbers(Network net, double time) {
 
     obs = new RandomNumberGeneratorCallObserver[simulators.length];
     for (int i = 0; i < obs.length; i++) {
-      obs[i] = new RandomNumberGeneratorCallObserver(simulators[i]);
-      simulators[i].addObserver(obs[i]);
-      obs[i].setLabelFormat("%a");
+      if (simulators[i] != null) {
+        obs[i] = new RandomNumberGeneratorCallObserver(simulators[i]);
+        simulators[i].addObserver(obs[i]);
+        obs[i].setLabelFormat("%a");
+      }
     }
     gnuplotRandom = new GnuPlot();
 
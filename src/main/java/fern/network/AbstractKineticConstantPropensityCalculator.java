@@ -16,16 +16,51 @@
  * therefore the method {@code calculatePartialDerivative}) so the use of this procedures is
  * only possible when the network's {@code PropensityCalculator} is a
  * {@code AbstractKineticConstantPropensityCalculator}.
+ * <p>
+ * The reactant multiplicities are computed once in the constructor and stored in flat arrays.
+ * Reactions of order zero, one and two (the vast majority in most networks) are calculated without
+ * any loop. The factors that transform the deterministic rate constants for a volume are cached
+ * per reaction and computed again when the volume changes, while the constants themselves are
+ * taken from {@link #getConstant(int)} on each call, since they may change during a simulation.
  *
  * @author Florian Erhard
  */
 public abstract class AbstractKineticConstantPropensityCalculator implements
 KineticConstantPropensityCalculator, PartialDerivativePropensityCalculator {
 
-  //	private Map<Integer,Integer>[] reactantHistos = null;
-  private int[][] reactantHistosKeys = null;
-  private int[][] reactantHistosVals = null;
+  private static final int ZEROTH_ORDER = 0;
+  private static final int FIRST_ORDER = 1;
+  private static final int SECOND_ORDER = 2;
+  private static final int DIMERIZATION = 3;
+  private static final int HIGHER_ORDER = 4;
+
   private int[][] reactants;
+  // the distinct reactant species of reaction i and their multiplicities are stored at
+  // reactantOffsets[i] to reactantOffsets[i+1]-1
+  private int[] reactantOffsets;
+  private int[] reactantSpecies;
+  private int[] reactantMultiplicity;
+  private int[] reactionType;
+  // the product of the faculties of the reactant multiplicities of each reaction
+  private double[] multiplicityFaculty;
+  private volatile VolumeDivisors volumeDivisors;
+
+  /**
+   * The powers of a volume that deterministic rate constants are divided by.
+   */
+  private static class VolumeDivisors {
+
+    private final double volume;
+    private final double[] divisors;
+
+    VolumeDivisors(double volume, int[][] reactants) {
+      this.volume = volume;
+      divisors = new double[reactants.length];
+      for (int i = 0; i < divisors.length; i++) {
+        divisors[i] = Math.pow(volume, reactants[i].length - 1);
+      }
+    }
+  }
 
   /**
    * Creates a {@code AbstractKineticConstantPropensityCalculator} by an array of adjacency
@@ -34,25 +69,84 @@ public abstract class AbstractKineticConstantPropensityCalculator implements
    *
    * @param reactants array of adjacency arrays
    */
-  @SuppressWarnings("unchecked")
   public AbstractKineticConstantPropensityCalculator(int[][] reactants) {
-    reactantHistosKeys = new int[reactants.length][];
-    reactantHistosVals = new int[reactants.length][];
+    reactantOffsets = new int[reactants.length + 1];
+    reactionType = new int[reactants.length];
 
+    Map<Integer, Integer>[] reactantHistos = createReactantHistograms(reactants);
     for (int i = 0; i < reactants.length; i++) {
-      Map<Integer, Integer> reactantHisto = NumberTools.createHistogramAsMap(reactants[i]);
-      reactantHistosKeys[i] = new int[reactantHisto.size()];
-      reactantHistosVals[i] = new int[reactantHisto.size()];
-      int index = 0;
-      for (int r : reactantHisto.keySet()) {
-        reactantHistosKeys[i][index] = r;
-        reactantHistosVals[i][index] = reactantHisto.get(r);
+      reactantOffsets[i + 1] = reactantOffsets[i] + reactantHistos[i].size();
+    }
+    reactantSpecies = new int[reactantOffsets[reactants.length]];
+    reactantMultiplicity = new int[reactantSpecies.length];
+    multiplicityFaculty = new double[reactants.length];
+
+    for (int i = 0; i < reactants.length; i++) {
+      int index = reactantOffsets[i];
+      int faculty = 1;
+      for (int r : reactantHistos[i].keySet()) {
+        reactantSpecies[index] = r;
+        reactantMultiplicity[index] = reactantHistos[i].get(r);
+        faculty *= NumberTools.faculty(reactantMultiplicity[index]);
         index++;
       }
+      multiplicityFaculty[i] = faculty;
+      reactionType[i] = getReactionType(i);
     }
     this.reactants = reactants;
   }
 
+  @SuppressWarnings("unchecked")
+  private static Map<Integer, Integer>[] createReactantHistograms(int[][] reactants) {
+    Map<Integer, Integer>[] re = new Map[reactants.length];
+    for (int i = 0; i < reactants.length; i++) {
+      re[i] = NumberTools.createHistogramAsMap(reactants[i]);
+    }
+    return re;
+  }
+
+  private int getReactionType(int reaction) {
+    int first = reactantOffsets[reaction];
+    switch (reactantOffsets[reaction + 1] - first) {
+    case 0:
+      return ZEROTH_ORDER;
+    case 1:
+      if (reactantMultiplicity[first] == 1) {
+        return FIRST_ORDER;
+      }
+      return reactantMultiplicity[first] == 2 ? DIMERIZATION : HIGHER_ORDER;
+    case 2:
+      if (reactantMultiplicity[first] == 1 && reactantMultiplicity[first + 1] == 1) {
+        return SECOND_ORDER;
+      }
+      return HIGHER_ORDER;
+    default:
+      return HIGHER_ORDER;
+    }
+  }
+
+  /**
+   * Gets the specific reaction probability rate constant of the given reaction, which is
+   * transformed from the deterministic rate constant like in {@link
+   * #getConstantFromDeterministicRateConstant(double, int, double)} if the volume is positive.
+   *
+   * @param reaction the index of the reaction
+   * @param volume   the volume of the reaction space or 0
+   * @return the specific reaction probability rate constant
+   */
+  private double getSpecificConstant(int reaction, double volume) {
+    double re = getConstant(reaction);
+    if (volume > 0) {
+      VolumeDivisors cache = volumeDivisors;
+      if (cache == null || cache.volume != volume) {
+        cache = new VolumeDivisors(volume, reactants);
+        volumeDivisors = cache;
+      }
+      re = re / cache.divisors[reaction] * multiplicityFaculty[reaction];
+    }
+    return re;
+  }
+
   /**
    * Calculates the propensity for {@code reaction} by the formula h*c, where c is the kinetic
    * constant for {@code reaction} and h is the number of distinct molecular reactant
@@ -67,19 +161,35 @@ public AbstractKineticConstantPropensityCalculator(int[][] reactants) {
    */
   @Override
   public double calculatePropensity(int reaction, AmountManager amount, Simulator sim) {
-    double re = getConstant(reaction);
-    double volume = sim.getVolume();
-    if (volume > 0) {
-      re = getConstantFromDeterministicRateConstant(re, reaction, volume);
+    double re = getSpecificConstant(reaction, sim.getVolume());
+    int first = reactantOffsets[reaction];
+    switch (reactionType[reaction]) {
+    case ZEROTH_ORDER:
+      break;
+    case FIRST_ORDER:
+      re *= (double) amount.getAmount(reactantSpecies[first]);
+      break;
+    case SECOND_ORDER:
+      re *= (double) amount.getAmount(reactantSpecies[first]);
+      re *= (double) amount.getAmount(reactantSpecies[first + 1]);
+      break;
+    case DIMERIZATION: {
+      double x = amount.getAmount(reactantSpecies[first]);
+      re *= x;
+      re *= x - 1;
+      re /= 2;
+      break;
     }
-    for (int i = 0; i < reactantHistosKeys[reaction].length;
-        i++) { //int r : reactantHistos[reaction].keySet()) {
-      int freq = reactantHistosVals[reaction][i];
-      int r = reactantHistosKeys[reaction][i];
-      for (int f = 0; f < freq; f++) {
-        re *= ((double) amount.getAmount(r) - f);
+    default:
+      for (int i = first; i < reactantOffsets[reaction + 1]; i++) {
+        int freq = reactantMultiplicity[i];
+        int r = reactantSpecies[i];
+        for (int f = 0; f < freq; f++) {
+          re *= ((double) amount.getAmount(r) - f);
+        }
+        re /= NumberTools.faculty(freq);
       }
-      re /= NumberTools.faculty(freq);
+      break;
     }
     if (re < 0) {
       throw new RuntimeException("Propensity < 0");
@@ -87,6 +197,51 @@ public double calculatePropensity(int reaction, AmountManager amount, Simulator
     return Math.abs(re);
   }
 
+  /**
+   * Calculates the propensity for {@code reaction} like {@link #calculatePropensity(int,
+   * AmountManager, Simulator)}, but for continuous amounts of the species, e.g. for species that
+   * are integrated as ordinary differential equations. Since the amounts may be less than the
+   * reactant multiplicities, negative values are returned as zero.
+   *
+   * @param reaction the index of the reaction
+   * @param amount   the amounts of all species
+   * @param volume   the volume of the reaction space or 0
+   * @return the propensity for the reaction
+   */
+  public double calculatePropensity(int reaction, double[] amount, double volume) {
+    double re = getSpecificConstant(reaction, volume);
+    int first = reactantOffsets[reaction];
+    switch (reactionType[reaction]) {
+    case ZEROTH_ORDER:
+      break;
+    case FIRST_ORDER:
+      re *= amount[reactantSpecies[first]];
+      break;
+    case SECOND_ORDER:
+      re *= amount[reactantSpecies[first]];
+      re *= amount[reactantSpecies[first + 1]];
+      break;
+    case DIMERIZATION: {
+      double x = amount[reactantSpecies[first]];
+      re *= x;
+      re *= x - 1;
+      re /= 2;
+      break;
+    }
+    default:
+      for (int i = first; i < reactantOffsets[reaction + 1]; i++) {
+        int freq = reactantMultiplicity[i];
+        int r = reactantSpecies[i];
+        for (int f = 0; f < freq; f++) {
+          re *= amount[r] - f;
+        }
+        re /= NumberTools.faculty(freq);
+      }
+      break;
+    }
+    return re > 0 ? re : 0;
+  }
+
 
   /**
    * Calculates partial differentials of the propensity functions for the tau leaping methods. If a
@@ -109,15 +264,11 @@ public double calculatePartialDerivative(int reaction, AmountManager amount, int
     //			return 0;
     int histoIndex = -1;
 
-    double re = getConstant(reaction);
-    if (volume > 0) {
-      re = getConstantFromDeterministicRateConstant(re, reaction, volume);
-    }
+    double re = getSpecificConstant(reaction, volume);
 
-    for (int i = 0; i < reactantHistosKeys[reaction].length;
-        i++) { //int r : reactantHistos[reaction].keySet()) {
-      int freq = reactantHistosVals[reaction][i];
-      int r = reactantHistosKeys[reaction][i];
+    for (int i = reactantOffsets[reaction]; i < reactantOffsets[reaction + 1]; i++) {
+      int freq = reactantMultiplicity[i];
+      int r = reactantSpecies[i];
       if (speciesIndex == r) {
         histoIndex = i;
       } else {
@@ -129,7 +280,7 @@ public double calculatePartialDerivative(int reaction, AmountManager amount, int
     }
 
     double x = amount.getAmount(speciesIndex);
-    switch (reactantHistosVals[reaction][histoIndex]) {
+    switch (reactantMultiplicity[histoIndex]) {
     case 1:
       re *= 1;
       break;
@@ -174,10 +325,8 @@ public double calculatePartialDerivative(int reaction, AmountManager amount, int
   @Override
   public double getConstantFromDeterministicRateConstant(double k, int reaction, double V) {
     double re = k / Math.pow(V, reactants[reaction].length - 1);
-    for (int i = 0; i < reactantHistosKeys[reaction].length;
-        i++) { //int r : reactantHistos[reaction].keySet()) {
-      int freq = reactantHistosVals[reaction][i];
-      re *= NumberTools.faculty(freq);
+    for (int i = reactantOffsets[reaction]; i < reactantOffsets[reaction + 1]; i++) {
+      re *= NumberTools.faculty(reactantMultiplicity[i]);
     }
     return re;
   }
@@ -7,7 +7,7 @@
  *
  * @author erhard
  */
-public class DefaultAmountManager implements AmountManager {
+public class DefaultAmountManager implements AmountManager, Cloneable {
 
   private Network net;
   private long[] amount;
@@ -98,4 +98,24 @@ public void rollback() {
     System.arraycopy(save, 0, amount, 0, amount.length);
   }
 
+  /**
+   * Creates a copy of this amount manager for the same network. The copy has its own amount
+   * arrays, so it can be used by another {@link Simulator} concurrently.
+   *
+   * @return the copy
+   */
+  @Override
+  public DefaultAmountManager clone() {
+    try {
+      DefaultAmountManager re = (DefaultAmountManager) super.clone();
+      if (amount != null) {
+        re.amount = amount.clone();
+        re.save = save.clone();
+      }
+      return re;
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
 }
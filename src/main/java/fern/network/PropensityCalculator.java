@@ -22,4 +22,38 @@ public interface PropensityCalculator {
    * @return actual propensity of the reaction
    */
   double calculatePropensity(int reaction, AmountManager amount, Simulator sim);
+
+  /**
+   * Calculates the propensities for the reactions <code>reactions[from]</code> to <code>
+   * reactions[to-1]</code> and stores them at the reactions' indices in <code>a</code>. This is
+   * e.g. used to recalculate the propensities of all dependent reactions (see {@link
+   * fern.simulation.algorithm.DependencyGraph#getTargets()}) in one call.
+   *
+   * @param reactions indices of the reactions
+   * @param from      first position in <code>reactions</code>
+   * @param to        position after the last one in <code>reactions</code>
+   * @param amount    AmountManager
+   * @param sim       Simulator
+   * @param a         array of propensities indexed by reaction
+   */
+  default void calculatePropensities(int[] reactions, int from, int to, AmountManager amount,
+      Simulator sim, double[] a) {
+    for (int k = from; k < to; k++) {
+      a[reactions[k]] = calculatePropensity(reactions[k], amount, sim);
+    }
+  }
+
+  /**
+   * Calculates the propensities for all given reactions and stores them at the reactions' indices
+   * in <code>a</code>.
+   *
+   * @param reactions indices of the reactions
+   * @param amount    AmountManager
+   * @param sim       Simulator
+   * @param a         array of propensities indexed by reaction
+   */
+  default void calculatePropensities(int[] reactions, AmountManager amount, Simulator sim,
+      double[] a) {
+    calculatePropensities(reactions, 0, reactions.length, amount, sim, a);
+  }
 }
@@ -0,0 +1,472 @@
+package fern.network.sbml;
+
+import fern.network.AmountManager;
+import fern.simulation.Simulator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.sbml.jsbml.ASTNode;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.FunctionDefinition;
+import org.sbml.jsbml.KineticLaw;
+import org.sbml.jsbml.LocalParameter;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Species;
+import org.sbml.jsbml.util.Maths;
+import org.simulator.sbml.SBMLinterpreter;
+
+/**
+ * Kinetic law of a reaction compiled into a flat array of instructions for a stack machine.
+ * Evaluating it needs neither virtual calls nor the time stamps of the {@link MathTree}. Species
+ * amounts are read directly from the {@link AmountManager}, parameters and compartment sizes from
+ * the state array of the {@link SBMLinterpreter}, local parameters are constants.
+ * <p>
+ * Only arithmetic (including calls of function definitions, which are inlined) and the functions
+ * exp, ln, log, root, abs, floor and ceiling can be compiled. {@link #compile(SBMLinterpreter,
+ * KineticLaw)} returns null for other constructs, which have to be evaluated by a {@link
+ * MathTree}. The functions are evaluated like in {@link
+ * org.simulator.sbml.astnode.ASTNodeInterpreter}, so the results are the same as the ones of the
+ * {@link MathTree}, except that the arguments of a function definition always shadow model symbols
+ * of the same name.
+ * <p>
+ * Each thread evaluates on its own stack, so a compiled kinetic law can be evaluated concurrently.
+ *
+ * @see SBMLPropensityCalculator
+ */
+public class CompiledKineticLaw {
+
+  private static final int CONST = 0;
+  private static final int AMOUNT = 1;
+  private static final int AMOUNT_PER_SIZE = 2;
+  private static final int AMOUNT_TIMES_SIZE = 3;
+  private static final int VALUE = 4;
+  private static final int TIME = 5;
+  private static final int PLUS = 6;
+  private static final int MINUS = 7;
+  private static final int TIMES = 8;
+  private static final int DIVIDE = 9;
+  private static final int NEGATE = 10;
+  private static final int POWER = 11;
+  private static final int POWER_INTEGER = 12;
+  private static final int EXP = 13;
+  private static final int LN = 14;
+  private static final int LOG10 = 15;
+  private static final int LOG = 16;
+  private static final int SQRT = 17;
+  private static final int ROOT = 18;
+  private static final int ABS = 19;
+  private static final int FLOOR = 20;
+  private static final int CEILING = 21;
+
+  private SBMLinterpreter interpreter;
+  private int[] code;
+  private double[] constants;
+  private ThreadLocal<double[]> stacks;
+
+  private CompiledKineticLaw(SBMLinterpreter interpreter, int[] code, double[] constants,
+      int maxDepth) {
+    this.interpreter = interpreter;
+    this.code = code;
+    this.constants = constants;
+    this.stacks = ThreadLocal.withInitial(() -> new double[maxDepth]);
+  }
+
+  /**
+   * Compiles the given kinetic law.
+   *
+   * @param interpreter the interpreter of the model
+   * @param kineticLaw  the kinetic law
+   * @return the compiled kinetic law or null, if it contains constructs that cannot be compiled
+   */
+  public static CompiledKineticLaw compile(SBMLinterpreter interpreter, KineticLaw kineticLaw) {
+    if (kineticLaw == null || !kineticLaw.isSetMath()) {
+      return null;
+    }
+    Compiler compiler = new Compiler(interpreter, kineticLaw);
+    if (!compiler.compile(kineticLaw.getMath(), new HashMap<>())) {
+      return null;
+    }
+    return compiler.create();
+  }
+
+  /**
+   * Evaluates the kinetic law.
+   *
+   * @param amount AmountManager
+   * @param sim    Simulator
+   * @return value of the kinetic law
+   */
+  public double calculate(AmountManager amount, Simulator sim) {
+    double[] y = interpreter.getY();
+    double[] stack = stacks.get();
+    int[] code = this.code;
+    int top = -1;
+    int pc = 0;
+    while (pc < code.length) {
+      switch (code[pc++]) {
+        case CONST:
+          stack[++top] = constants[code[pc++]];
+          break;
+        case AMOUNT:
+          stack[++top] = amount.getAmount(code[pc++]);
+          break;
+        case AMOUNT_PER_SIZE: {
+          double value = amount.getAmount(code[pc++]);
+          double size = y[code[pc++]];
+          stack[++top] = size == 0 ? value : value / size;
+          break;
+        }
+        case AMOUNT_TIMES_SIZE: {
+          double value = amount.getAmount(code[pc++]);
+          double size = y[code[pc++]];
+          stack[++top] = size == 0 ? value : value * size;
+          break;
+        }
+        case VALUE:
+          stack[++top] = y[code[pc++]];
+          break;
+        case TIME:
+          stack[++top] = sim.getTime();
+          break;
+        case PLUS: {
+          int n = code[pc++];
+          int first = top - n + 1;
+          double value = 0;
+          for (int i = first; i <= top; i++) {
+            value += stack[i];
+          }
+          top = first;
+          stack[top] = value;
+          break;
+        }
+        case MINUS: {
+          int n = code[pc++];
+          int first = top - n + 1;
+          double value = stack[first];
+          for (int i = first + 1; i <= top; i++) {
+            value -= stack[i];
+          }
+          top = first;
+          stack[top] = value;
+          break;
+        }
+        case TIMES: {
+          int n = code[pc++];
+          int first = top - n + 1;
+          double value = 1;
+          for (int i = first; i <= top; i++) {
+            value *= stack[i];
+          }
+          top = first;
+          stack[top] = value;
+          break;
+        }
+        case DIVIDE:
+          top--;
+          stack[top] = stack[top] / stack[top + 1];
+          break;
+        case NEGATE:
+          stack[top] = -stack[top];
+          break;
+        case POWER:
+        case POWER_INTEGER:
+          top--;
+          stack[top] = power(stack[top], stack[top + 1], code[pc - 1] == POWER_INTEGER);
+          break;
+        case EXP:
+          stack[top] = Math.exp(stack[top]);
+          break;
+        case LN:
+          stack[top] = Maths.ln(stack[top]);
+          break;
+        case LOG10:
+          stack[top] = Math.log10(stack[top]);
+          break;
+        case LOG:
+          top--;
+          stack[top] = Maths.log(stack[top + 1], stack[top]);
+          break;
+        case SQRT:
+          stack[top] = Math.sqrt(stack[top]);
+          break;
+        case ROOT:
+          top--;
+          stack[top] = Maths.root(stack[top + 1], stack[top]);
+          break;
+        case ABS:
+          stack[top] = Math.abs(stack[top]);
+          break;
+        case FLOOR:
+          stack[top] = Math.floor(stack[top]);
+          break;
+        case CEILING:
+          stack[top] = Math.ceil(stack[top]);
+          break;
+        default:
+          throw new IllegalStateException("Unknown instruction " + code[pc - 1]);
+      }
+    }
+    return stack[0];
+  }
+
+  /**
+   * Same as {@link org.simulator.sbml.astnode.ASTNodeInterpreter#pow}.
+   */
+  private static double power(double l, double r, boolean integerExponent) {
+    if (r == 2) {
+      return l * l;
+    } else if (r == 3) {
+      return l * l * l;
+    }
+    if ((l < 0) && !integerExponent) {
+      double sign = Math.pow(-1, r);
+      if (Double.isNaN(sign)) {
+        sign = -1;
+      }
+      return Math.pow(-l, r) * sign;
+    } else {
+      return Math.pow(l, r);
+    }
+  }
+
+  /**
+   * Gets the number of instructions (including their operands).
+   *
+   * @return length of the code
+   */
+  public int getCodeLength() {
+    return code.length;
+  }
+
+  /**
+   * Translates an {@link ASTNode} into instructions in postfix order.
+   */
+  private static class Compiler {
+
+    private SBMLinterpreter interpreter;
+    private Model model;
+    private KineticLaw kineticLaw;
+    private int[] code = new int[16];
+    private int length = 0;
+    private double[] constants = new double[4];
+    private int numConstants = 0;
+    private int depth = 0;
+    private int maxDepth = 0;
+    private int functionDepth = 0;
+
+    Compiler(SBMLinterpreter interpreter, KineticLaw kineticLaw) {
+      this.interpreter = interpreter;
+      this.model = interpreter.getModel();
+      this.kineticLaw = kineticLaw;
+    }
+
+    CompiledKineticLaw create() {
+      return new CompiledKineticLaw(interpreter, Arrays.copyOf(code, length),
+          Arrays.copyOf(constants, numConstants), Math.max(1, maxDepth));
+    }
+
+    /**
+     * Appends the instructions for the given node, names of function arguments are replaced by the
+     * given nodes.
+     *
+     * @return false if the node cannot be compiled
+     */
+    boolean compile(ASTNode node, Map<String, ASTNode> arguments) {
+      switch (node.getType()) {
+        case INTEGER:
+          return constant(node.getInteger());
+        case REAL:
+          return constant(node.getReal());
+        case REAL_E:
+          return constant(node.getMantissa() * Math.pow(10, node.getExponent()));
+        case RATIONAL:
+          return constant(node.getNumerator() / ((double) node.getDenominator()));
+        case CONSTANT_PI:
+          return constant(Math.PI);
+        case CONSTANT_E:
+          return constant(Math.E);
+        case NAME_TIME:
+          emit(TIME);
+          return push();
+        case NAME:
+          if (arguments.containsKey(node.getName())) {
+            return compile(arguments.get(node.getName()), new HashMap<>());
+          }
+          return name(node);
+        case FUNCTION:
+          return function(node, arguments);
+        case PLUS:
+          return nary(node, arguments, PLUS, 0d);
+        case TIMES:
+          return nary(node, arguments, TIMES, 1d);
+        case MINUS:
+          if (node.getChildCount() == 1) {
+            return unary(node, arguments, NEGATE);
+          }
+          return nary(node, arguments, MINUS, 0d);
+        case DIVIDE:
+          return node.getChildCount() == 2 && binary(node, arguments, DIVIDE);
+        case POWER:
+        case FUNCTION_POWER:
+          if (node.getChildCount() != 2) {
+            return false;
+          }
+          ASTNode exponent = node.getRightChild();
+          boolean integer = exponent.getType() == ASTNode.Type.INTEGER
+              || (exponent.getType() == ASTNode.Type.REAL
+              && exponent.getReal() == (int) exponent.getReal());
+          return binary(node, arguments, integer ? POWER_INTEGER : POWER);
+        case FUNCTION_EXP:
+          return unary(node, arguments, EXP);
+        case FUNCTION_LN:
+          return unary(node, arguments, LN);
+        case FUNCTION_LOG:
+          if (node.getChildCount() == 1) {
+            return unary(node, arguments, LOG10);
+          }
+          return node.getChildCount() == 2 && binary(node, arguments, LOG);
+        case FUNCTION_ROOT:
+          if (node.getChildCount() == 1) {
+            return unary(node, arguments, SQRT);
+          }
+          if (node.getChildCount() == 2 && node.getLeftChild().isNumber()
+              && node.getLeftChild().getReal() == 2) {
+            return compile(node.getRightChild(), arguments) && unaryInstruction(SQRT);
+          }
+          return node.getChildCount() == 2 && binary(node, arguments, ROOT);
+        case FUNCTION_ABS:
+          return unary(node, arguments, ABS);
+        case FUNCTION_FLOOR:
+          return unary(node, arguments, FLOOR);
+        case FUNCTION_CEILING:
+          return unary(node, arguments, CEILING);
+        default:
+          return false;
+      }
+    }
+
+    private boolean name(ASTNode node) {
+      String id = node.getName();
+      LocalParameter local = kineticLaw.getLocalParameter(id);
+      if (local != null) {
+        return constant(local.getValue());
+      }
+      Map<String, Integer> symbolHash = interpreter.getSymbolHash();
+      Species species = model.getSpecies(id);
+      if (species != null) {
+        int position = symbolHash.get(id);
+        int index = position - model.getCompartmentCount();
+        Compartment c = species.getCompartmentInstance();
+        boolean zeroSpatialDimensions = c == null || c.getSpatialDimensions() <= 0;
+        boolean isAmount = interpreter.isAmount(position);
+        if (!zeroSpatialDimensions && isAmount && !species.getHasOnlySubstanceUnits()) {
+          emit(AMOUNT_PER_SIZE, index, symbolHash.get(species.getCompartment()));
+        } else if (!zeroSpatialDimensions && !isAmount && species.getHasOnlySubstanceUnits()) {
+          emit(AMOUNT_TIMES_SIZE, index, symbolHash.get(species.getCompartment()));
+        } else {
+          emit(AMOUNT, index);
+        }
+        return push();
+      }
+      if ((model.getParameter(id) != null || model.getCompartment(id) != null)
+          && symbolHash.containsKey(id)) {
+        emit(VALUE, symbolHash.get(id));
+        return push();
+      }
+      return false;
+    }
+
+    private boolean function(ASTNode node, Map<String, ASTNode> arguments) {
+      FunctionDefinition definition = model.getFunctionDefinition(node.getName());
+      // the recursion depth guards against (invalid) recursive definitions
+      if (definition == null || !definition.isSetMath() || functionDepth > 16) {
+        return false;
+      }
+      ASTNode lambda = definition.getMath();
+      if (lambda.getType() != ASTNode.Type.LAMBDA
+          || lambda.getChildCount() - 1 != node.getChildCount()) {
+        return false;
+      }
+      // the arguments are evaluated in the scope of the caller, hence they are substituted first
+      Map<String, ASTNode> inner = new HashMap<>();
+      for (int i = 0; i < node.getChildCount(); i++) {
+        inner.put(lambda.getChild(i).getName(), substitute(node.getChild(i), arguments));
+      }
+      functionDepth++;
+      boolean re = compile(lambda.getChild(lambda.getChildCount() - 1), inner);
+      functionDepth--;
+      return re;
+    }
+
+    private ASTNode substitute(ASTNode node, Map<String, ASTNode> arguments) {
+      if (node.getType() == ASTNode.Type.NAME && arguments.containsKey(node.getName())) {
+        return arguments.get(node.getName());
+      }
+      if (node.getChildCount() == 0 || arguments.isEmpty()) {
+        return node;
+      }
+      ASTNode re = node.clone();
+      for (int i = 0; i < re.getChildCount(); i++) {
+        re.replaceChild(i, substitute(node.getChild(i), arguments));
+      }
+      return re;
+    }
+
+    private boolean nary(ASTNode node, Map<String, ASTNode> arguments, int instruction,
+        double empty) {
+      if (node.getChildCount() == 0) {
+        return constant(empty);
+      }
+      for (ASTNode child : node.getChildren()) {
+        if (!compile(child, arguments)) {
+          return false;
+        }
+      }
+      emit(instruction, node.getChildCount());
+      depth -= node.getChildCount() - 1;
+      return true;
+    }
+
+    private boolean binary(ASTNode node, Map<String, ASTNode> arguments, int instruction) {
+      if (!compile(node.getLeftChild(), arguments) || !compile(node.getRightChild(), arguments)) {
+        return false;
+      }
+      emit(instruction);
+      depth--;
+      return true;
+    }
+
+    private boolean unary(ASTNode node, Map<String, ASTNode> arguments, int instruction) {
+      return node.getChildCount() == 1 && compile(node.getChild(0), arguments)
+          && unaryInstruction(instruction);
+    }
+
+    private boolean unaryInstruction(int instruction) {
+      emit(instruction);
+      return true;
+    }
+
+    private boolean constant(double value) {
+      if (numConstants == constants.length) {
+        constants = Arrays.copyOf(constants, 2 * constants.length);
+      }
+      constants[numConstants] = value;
+      emit(CONST, numConstants++);
+      return push();
+    }
+
+    private boolean push() {
+      maxDepth = Math.max(maxDepth, ++depth);
+      return true;
+    }
+
+    private void emit(int... instruction) {
+      if (length + instruction.length > code.length) {
+        code = Arrays.copyOf(code, 2 * (length + instruction.length));
+      }
+      System.arraycopy(instruction, 0, code, length, instruction.length);
+      length += instruction.length;
+    }
+  }
+
+}
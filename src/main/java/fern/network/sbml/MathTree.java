@@ -73,14 +73,19 @@ public ASTNode getCopiedAST() {
   }
 
   /**
-   * Evaluate the MathTree.
+   * Evaluate the MathTree. The amounts of a {@link SBMLAmountManager} are only copied into the
+   * interpreter if it is not yet synchronized with it, other amount managers are copied completely.
    *
    * @param amount AmountManager
    * @param sim    Simulator
    * @return value of the expression
    */
   public double calculate(AmountManager amount, Simulator sim) {
-    sbmlInterpreter.updateSpeciesConcentration(amount);
+    if (amount instanceof SBMLAmountManager) {
+      ((SBMLAmountManager) amount).synchronize(sbmlInterpreter);
+    } else {
+      sbmlInterpreter.updateSpeciesConcentration(amount);
+    }
     sbmlInterpreter.setCurrentTime(sim.getTime());
     return ((ASTNodeValue) copiedAST.getUserObject(TEMP_VALUE)).compileDouble(sim.getTime(), 0d);
   }
@@ -0,0 +1,89 @@
+package fern.network.sbml;
+
+import fern.network.DefaultAmountManager;
+import org.simulator.sbml.SBMLinterpreter;
+
+/**
+ * Amount manager of a {@link SBMLNetwork}. The kinetic laws are evaluated by the network's {@link
+ * SBMLinterpreter}, which reads the species amounts from its own array. Instead of copying all
+ * amounts before each evaluation, this amount manager reports each change to the interpreter, so
+ * firing a reaction only updates its reactants and products.
+ * <p>
+ * Only one amount manager at a time is synchronized with the interpreter (see {@link
+ * SBMLinterpreter#setSynchronizedAmountManager(fern.network.AmountManager)}). A copy of this amount
+ * manager takes over the synchronization when one of its amounts is evaluated.
+ *
+ * @see MathTree#calculate(fern.network.AmountManager, fern.simulation.Simulator)
+ */
+public class SBMLAmountManager extends DefaultAmountManager {
+
+  private SBMLNetwork net;
+  private SBMLinterpreter interpreter;
+
+  /**
+   * Creates the amount manager for the given network.
+   *
+   * @param net the network
+   */
+  public SBMLAmountManager(SBMLNetwork net) {
+    super(net);
+    this.net = net;
+    this.interpreter = net.getSbmlInterpreter();
+  }
+
+  /**
+   * Makes sure that the amounts of the given interpreter are the amounts of this amount manager.
+   * If this amount manager is already synchronized with it, nothing has to be done.
+   *
+   * @param interpreter the interpreter
+   */
+  public void synchronize(SBMLinterpreter interpreter) {
+    if (interpreter != this.interpreter) {
+      interpreter.updateSpeciesConcentration(this);
+    } else if (interpreter.getSynchronizedAmountManager() != this) {
+      interpreter.setSynchronizedAmountManager(this);
+    }
+  }
+
+  /**
+   * Gets whether the interpreter of the network is synchronized with this amount manager.
+   *
+   * @return whether the changes are reported to the interpreter
+   */
+  public boolean isSynchronized() {
+    return interpreter.getSynchronizedAmountManager() == this;
+  }
+
+  @Override
+  public void performReaction(int reaction, int times) {
+    try {
+      super.performReaction(reaction, times);
+    } finally {
+      if (isSynchronized()) {
+        for (int s : net.getReactants(reaction)) {
+          interpreter.updateSpeciesConcentration(this, s);
+        }
+        for (int s : net.getProducts(reaction)) {
+          interpreter.updateSpeciesConcentration(this, s);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void setAmount(int species, long amount) {
+    super.setAmount(species, amount);
+    if (isSynchronized()) {
+      interpreter.updateSpeciesConcentration(this, species);
+    }
+  }
+
+  @Override
+  public void rollback() {
+    super.rollback();
+    if (isSynchronized()) {
+      interpreter.setSynchronizedAmountManager(this);
+    }
+  }
+
+}
@@ -78,6 +78,11 @@ public void activateReaction(int mu, double tau, FireType fireType,
       int times) {
   }
 
+  @Override
+  public boolean isActivateReactionNeeded() {
+    return isActivateReactionOverridden(SBMLEventHandlerObserver.class);
+  }
+
   @Override
   public void finished() {
   }
@@ -91,6 +96,11 @@ public void started() {
   public void step() {
   }
 
+  @Override
+  public boolean isStepNeeded() {
+    return isStepOverridden(SBMLEventHandlerObserver.class);
+  }
+
   @Override
   public boolean trigger() {
     boolean triggered = trigger.calculate(net.getAmountManager(), getSimulator()) != 0;
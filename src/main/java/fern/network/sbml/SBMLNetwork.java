@@ -8,7 +8,6 @@
 
 import fern.network.AbstractNetworkImpl;
 import fern.network.AnnotationManagerImpl;
-import fern.network.DefaultAmountManager;
 import fern.network.FeatureNotSupportedException;
 import fern.simulation.Simulator;
 import java.io.File;
@@ -32,6 +31,10 @@
  * When you want to use a sbml model with events included, you have to call
  * <code>registerEvents</code>, since the event handling is treated by {@link
  * SBMLEventHandlerObserver}s which need to be attached to the {@link Simulator}.
+ * <p>
+ * The kinetic laws are compiled into {@link CompiledKineticLaw}s where possible, unless this is
+ * switched off when the network is created, e.g. to compare the results with the interpreted
+ * {@link MathTree}s.
  *
  * @author Florian Erhard
  */
@@ -46,6 +49,7 @@ public class SBMLNetwork extends AbstractNetworkImpl {
 
   private long[] initialAmount = null;
   private Collection<SBMLEventHandlerObserver> events = null;
+  private boolean compileKineticLaws = true;
 
   /**
    * Creates a network from a sbmlfile. If the file contains features not supported by FERN, an
@@ -69,7 +73,23 @@ public SBMLNetwork(File file)
    */
   public SBMLNetwork(File file, boolean ignoreExceptions)
       throws FeatureNotSupportedException, IOException, XMLStreamException, ModelOverdeterminedException {
+    this(file, ignoreExceptions, true);
+  }
+
+  /**
+   * Creates a network from a sbml file. If the file contains features not supported by FERN,
+   * depending on ignoreExceptions they will be ignored or a exception is thrown. If
+   * compileKineticLaws is false, all kinetic laws are evaluated by their {@link MathTree}s.
+   *
+   * @param file               SBML file
+   * @param ignoreExceptions   wheter or not exceptions should be thrown
+   * @param compileKineticLaws whether or not the kinetic laws should be compiled
+   * @throws FeatureNotSupportedException
+   */
+  public SBMLNetwork(File file, boolean ignoreExceptions, boolean compileKineticLaws)
+      throws FeatureNotSupportedException, IOException, XMLStreamException, ModelOverdeterminedException {
     super(file.toString());
+    this.compileKineticLaws = compileKineticLaws;
 
     document = new SBMLReader().readSBML(file.toString());
 
@@ -208,12 +228,12 @@ public Model getSBMLModel() {
 
   @Override
   protected void createAmountManager() {
-    amountManager = new DefaultAmountManager(this);
+    amountManager = new SBMLAmountManager(this);
   }
 
   @Override
   protected void createPropensityCalculator() throws ModelOverdeterminedException {
-    propensitiyCalculator = new SBMLPropensityCalculator(sbmlInterpreter);
+    propensitiyCalculator = new SBMLPropensityCalculator(sbmlInterpreter, compileKineticLaws);
   }
 
   /**
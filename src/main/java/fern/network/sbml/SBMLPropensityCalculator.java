@@ -21,20 +21,37 @@
  * Propensity calculator which is used for {@link SBMLNetwork}s. The propensities are calculated by
  * using a {@link MathTree} derived by the MathML representation of the kinetic law for each
  * reaction.
+ * <p>
+ * If enabled, each kinetic law is additionally compiled into a {@link CompiledKineticLaw}, which
+ * is evaluated much faster. Kinetic laws that cannot be compiled are still evaluated by their
+ * {@link MathTree}.
  *
  * @author Florian Erhard
  */
 public class SBMLPropensityCalculator implements ComplexDependenciesPropensityCalculator {
 
   private MathTree[] propensities;
+  private CompiledKineticLaw[] compiled;
   private Map<String, Double> globalParameter;
 
   /**
-   * Creates the {@link MathTree}s and parses the parameters.
+   * Creates the {@link MathTree}s and {@link CompiledKineticLaw}s and parses the parameters.
    *
    * @param interpreter instance of the SBMLinterpreter
    */
   public SBMLPropensityCalculator(SBMLinterpreter interpreter) throws ModelOverdeterminedException {
+    this(interpreter, true);
+  }
+
+  /**
+   * Creates the {@link MathTree}s and parses the parameters. If <code>compile</code> is true, the
+   * kinetic laws are compiled where possible.
+   *
+   * @param interpreter instance of the SBMLinterpreter
+   * @param compile     whether to compile the kinetic laws
+   */
+  public SBMLPropensityCalculator(SBMLinterpreter interpreter, boolean compile)
+      throws ModelOverdeterminedException {
 
     Model model = interpreter.getModel();
     globalParameter = new HashMap<>();
@@ -46,6 +63,7 @@ public SBMLPropensityCalculator(SBMLinterpreter interpreter) throws ModelOverdet
     }
 
     propensities = new MathTree[model.getNumReactions()];
+    compiled = new CompiledKineticLaw[model.getNumReactions()];
 
     for (int i = 0; i < model.getNumReactions(); i++) {
       Map<String, Double> localParameter = new HashMap<>();
@@ -55,6 +73,9 @@ public SBMLPropensityCalculator(SBMLinterpreter interpreter) throws ModelOverdet
             reaction.getKineticLaw().getLocalParameter(j).getValue());
       }
       propensities[i] = new MathTree(interpreter, reaction.getKineticLaw().getMath());
+      if (compile) {
+        compiled[i] = CompiledKineticLaw.compile(interpreter, reaction.getKineticLaw());
+      }
     }
   }
 
@@ -68,7 +89,8 @@ public Map<String, Double> getGlobalParameters() {
   }
 
   public double calculatePropensity(int reaction, AmountManager amount, Simulator sim) {
-    double re = propensities[reaction].calculate(amount, sim);
+    double re = compiled[reaction] != null ? compiled[reaction].calculate(amount, sim)
+        : propensities[reaction].calculate(amount, sim);
     if (re < 0) {
       throw new RuntimeException(
           "The propensity of reaction " + sim.getNet().getReactionName(reaction) + " is negative");
@@ -81,6 +103,17 @@ public List<Integer> getKineticLawSpecies(int reaction) {
   }
 
 
+  /**
+   * Gets whether the kinetic law of the given reaction is evaluated by a {@link
+   * CompiledKineticLaw}.
+   *
+   * @param reaction index of the reaction
+   * @return whether the kinetic law is compiled
+   */
+  public boolean isCompiled(int reaction) {
+    return compiled[reaction] != null;
+  }
+
   /**
    * Gets the internal representation of the sbml kinetic law.
    *
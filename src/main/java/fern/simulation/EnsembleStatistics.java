@@ -0,0 +1,259 @@
+package fern.simulation;
+
+import fern.tools.QuantileSketch;
+
+/**
+ * Streaming statistics over the replicates of a {@link SimulationEnsemble}. For each recorded
+ * interval and each observed entity, the mean and the variance (by Welford's algorithm) and a
+ * {@link QuantileSketch} are updated whenever a replicate passes the interval. No trajectory is
+ * stored, so the memory needed does not depend on the number of replicates. Statistics computed on
+ * different threads are combined by {@link #merge(EnsembleStatistics)}.
+ * <p>
+ * For reference see Tony F. Chan, Gene H. Golub and Randall J. LeVeque, Updating Formulae and a
+ * Pairwise Algorithm for Computing Sample Variances, Technical Report STAN-CS-79-773 (1979)
+ *
+ * @see SimulationEnsemble
+ */
+public class EnsembleStatistics {
+
+  private double interval;
+  private String[] entityName;
+  private double quantileAccuracy;
+
+  private int numIntervals = 0;
+  private long numReplicates = 0;
+  private long[] count = new long[0];
+  private double[][] mean;
+  private double[][] m2;
+  private QuantileSketch[][] sketch;
+
+  /**
+   * Creates empty statistics for the given interval and entities.
+   *
+   * @param interval         the interval between two recordings
+   * @param entityName       the names of the entities
+   * @param quantileAccuracy the relative accuracy of the quantiles
+   */
+  public EnsembleStatistics(double interval, String[] entityName, double quantileAccuracy) {
+    this.interval = interval;
+    this.entityName = entityName;
+    this.quantileAccuracy = quantileAccuracy;
+    mean = new double[entityName.length][0];
+    m2 = new double[entityName.length][0];
+    sketch = new QuantileSketch[entityName.length][0];
+  }
+
+  /**
+   * Adds the values of one replicate at the given interval.
+   *
+   * @param index  index of the interval
+   * @param values value of each entity
+   */
+  void add(int index, double[] values) {
+    ensureIntervals(index + 1);
+    long n = ++count[index];
+    for (int e = 0; e < values.length; e++) {
+      double delta = values[e] - mean[e][index];
+      mean[e][index] += delta / n;
+      m2[e][index] += delta * (values[e] - mean[e][index]);
+      sketch[e][index].add(values[e]);
+    }
+  }
+
+  /**
+   * Tells that one more replicate has finished.
+   */
+  void replicateFinished() {
+    numReplicates++;
+  }
+
+  /**
+   * Adds the statistics of another set of replicates to this one.
+   *
+   * @param other the other statistics
+   */
+  public void merge(EnsembleStatistics other) {
+    if (other.entityName.length != entityName.length || other.interval != interval) {
+      throw new IllegalArgumentException("Statistics of different observations cannot be merged!");
+    }
+    ensureIntervals(other.numIntervals);
+    for (int i = 0; i < other.numIntervals; i++) {
+      long na = count[i];
+      long nb = other.count[i];
+      if (nb == 0) {
+        continue;
+      }
+      long n = na + nb;
+      for (int e = 0; e < entityName.length; e++) {
+        double delta = other.mean[e][i] - mean[e][i];
+        mean[e][i] += delta * nb / n;
+        m2[e][i] += other.m2[e][i] + delta * delta * ((double) na * nb / n);
+        sketch[e][i].merge(other.sketch[e][i]);
+      }
+      count[i] = n;
+    }
+    numReplicates += other.numReplicates;
+  }
+
+  /**
+   * Gets the number of recorded intervals.
+   *
+   * @return number of intervals
+   */
+  public int getNumIntervals() {
+    return numIntervals;
+  }
+
+  /**
+   * Gets the number of replicates these statistics are computed from.
+   *
+   * @return number of replicates
+   */
+  public long getNumReplicates() {
+    return numReplicates;
+  }
+
+  /**
+   * Gets the moment in time of the given interval.
+   *
+   * @param index index of the interval
+   * @return time of the interval
+   */
+  public double getTime(int index) {
+    return index * interval;
+  }
+
+  /**
+   * Gets the number of replicates that have reached the given interval.
+   *
+   * @param index index of the interval
+   * @return number of replicates
+   */
+  public long getCount(int index) {
+    return count[index];
+  }
+
+  /**
+   * Gets the mean value of an entity at the given interval.
+   *
+   * @param entity index of the entity
+   * @param index  index of the interval
+   * @return mean value
+   */
+  public double getMean(int entity, int index) {
+    return count[index] == 0 ? Double.NaN : mean[entity][index];
+  }
+
+  /**
+   * Gets the (unbiased) sample variance of an entity at the given interval.
+   *
+   * @param entity index of the entity
+   * @param index  index of the interval
+   * @return variance
+   */
+  public double getVariance(int entity, int index) {
+    return count[index] < 2 ? Double.NaN : m2[entity][index] / (count[index] - 1);
+  }
+
+  /**
+   * Gets the standard deviation of an entity at the given interval.
+   *
+   * @param entity index of the entity
+   * @param index  index of the interval
+   * @return standard deviation
+   */
+  public double getStandardDeviation(int entity, int index) {
+    return Math.sqrt(getVariance(entity, index));
+  }
+
+  /**
+   * Gets the quantile of the values of an entity at the given interval.
+   *
+   * @param entity index of the entity
+   * @param index  index of the interval
+   * @param q      the quantile (0 &le; q &le; 1)
+   * @return value at the quantile
+   * @see QuantileSketch#getQuantile(double)
+   */
+  public double getQuantile(int entity, int index, double q) {
+    return sketch[entity][index].getQuantile(q);
+  }
+
+  /**
+   * Gets the mean values in the same layout as {@link
+   * fern.simulation.observer.IntervalObserver#getAvgLog()}: the first row contains the times, each
+   * further row the means of one entity.
+   *
+   * @return mean values as double array [entity index + 1][interval]
+   */
+  public double[][] getMeanLog() {
+    double[][] re = new double[entityName.length + 1][numIntervals];
+    for (int i = 0; i < numIntervals; i++) {
+      re[0][i] = getTime(i);
+      for (int e = 0; e < entityName.length; e++) {
+        re[e + 1][i] = getMean(e, i);
+      }
+    }
+    return re;
+  }
+
+  /**
+   * Gets the names of the observed entities.
+   *
+   * @return names of the entities
+   */
+  public String[] getEntityNames() {
+    return entityName;
+  }
+
+  /**
+   * Gets the interval between two recordings.
+   *
+   * @return the interval
+   */
+  public double getInterval() {
+    return interval;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    if (numIntervals > 0) {
+      for (int e = 0; e < entityName.length; e++) {
+        sb.append(entityName[e] + ": " + getMean(e, numIntervals - 1) + " +- "
+            + getStandardDeviation(e, numIntervals - 1) + "\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  private void ensureIntervals(int n) {
+    if (n <= numIntervals) {
+      return;
+    }
+    if (n > count.length) {
+      int capacity = Math.max(n, 2 * count.length);
+      long[] nCount = new long[capacity];
+      System.arraycopy(count, 0, nCount, 0, count.length);
+      count = nCount;
+      for (int e = 0; e < entityName.length; e++) {
+        double[] nMean = new double[capacity];
+        double[] nM2 = new double[capacity];
+        QuantileSketch[] nSketch = new QuantileSketch[capacity];
+        System.arraycopy(mean[e], 0, nMean, 0, mean[e].length);
+        System.arraycopy(m2[e], 0, nM2, 0, m2[e].length);
+        System.arraycopy(sketch[e], 0, nSketch, 0, sketch[e].length);
+        mean[e] = nMean;
+        m2[e] = nM2;
+        sketch[e] = nSketch;
+      }
+    }
+    for (int i = numIntervals; i < n; i++) {
+      for (int e = 0; e < entityName.length; e++) {
+        sketch[e][i] = new QuantileSketch(quantileAccuracy);
+      }
+    }
+    numIntervals = n;
+  }
+
+}
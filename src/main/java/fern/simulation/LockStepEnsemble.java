@@ -0,0 +1,593 @@
+package fern.simulation;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import fern.network.AbstractKineticConstantPropensityCalculator;
+import fern.network.Network;
+import fern.simulation.algorithm.GillespieEnhanced;
+import fern.tools.NetworkTools;
+import fern.tools.NumberTools;
+import fern.tools.Stochastics;
+
+/**
+ * Runs many replicates of the enhanced Direct method on one small network in lock-step. Instead
+ * of one {@link Simulator} with its own amount manager, propensities and observers per replicate,
+ * the state of all replicates is stored as structure of arrays: the amount of species <i>s</i> of
+ * replicate <i>n</i> at <code>amount[s*N+n]</code> and its propensity of reaction <i>j</i> at
+ * <code>a[j*N+n]</code>. Each step advances every replicate by one reaction, and the propensities,
+ * their partial sums and the amount updates are done in loops over the replicates without
+ * branches, which the JIT compiler can vectorize. The replicates are run in blocks of {@link
+ * #getBlockSize()} lanes, so that the state of a block stays in the cache, and replicates that have
+ * finished are swapped behind the running ones, so the loops only cover the running replicates.
+ * <p>
+ * Each replicate draws its random numbers from the stream given by the root seed and its index
+ * (see {@link Stochastics#Stochastics(long, long)}) and the arithmetic is done in the same order
+ * as in {@link GillespieEnhanced}, so replicate <i>n</i> yields exactly the same trajectory as a
+ * <code>GillespieEnhanced</code> with {@link Simulator#setStochasticSeed(long, long)} called with
+ * the root seed and <i>n</i>, started with a {@link fern.simulation.controller.DefaultController}.
+ * The statistics returned by {@link #run(double, double, int...)} are the ones of a {@link
+ * SimulationEnsemble} up to rounding (the values are added in a different order).
+ * <p>
+ * All propensities are recalculated after each step, so this only pays off for networks with few
+ * reactions (up to about 50). Only networks with an {@link
+ * AbstractKineticConstantPropensityCalculator} can be simulated.
+ *
+ * @see GillespieEnhanced
+ * @see SimulationEnsemble
+ */
+public class LockStepEnsemble {
+
+  private static final int ZEROTH_ORDER = 0;
+  private static final int FIRST_ORDER = 1;
+  private static final int SECOND_ORDER = 2;
+  private static final int DIMERIZATION = 3;
+  private static final int HIGHER_ORDER = 4;
+
+  private Network net;
+  private AbstractKineticConstantPropensityCalculator calculator;
+  private int numReplicates;
+  private int numSpecies;
+  private int numReactions;
+
+  private long rootSeed = Stochastics.getInstance().getSeed();
+  private double volume = 0;
+  private double quantileAccuracy = 0.01;
+  private int blockSize = 128;
+
+  // the distinct reactants of reaction j and their multiplicities are stored at
+  // reactantOffsets[j] to reactantOffsets[j+1]-1
+  private int[] reactionType;
+  private int[] reactantOffsets;
+  private int[] reactantSpecies;
+  private int[] reactantMultiplicity;
+  // net change of species s by reaction j at v[s*numReactions+j] for each changed species s
+  private long[] v;
+  private int[] changedSpecies;
+  private double[] c;
+
+  // state of the replicate in lane l of the actual block (see class comment), N is the number of
+  // lanes
+  private int N;
+  private long[] amount;
+  private double[] a;
+  private double[] partialSum;
+  private double[] t;
+  private double[] theta;
+  private int[] thetaIndex;
+  private Stochastics[] stochastics;
+  private int[] replicateOfLane;
+  private int numActive;
+
+  // amounts and times of the finished replicates
+  private long[] finalAmount;
+  private double[] finalTime;
+
+  // buffers of a step
+  private double[] aSum;
+  private double[] tau;
+  private double[] test;
+  private int[] mu;
+  private double[] values;
+
+  /**
+   * Creates the ensemble.
+   *
+   * @param net           the network to simulate
+   * @param numReplicates the number of replicates
+   */
+  public LockStepEnsemble(Network net, int numReplicates) {
+    if (!(net.getPropensityCalculator() instanceof AbstractKineticConstantPropensityCalculator)) {
+      throw new IllegalArgumentException(
+          "The lock-step ensemble needs mass action kinetics "
+              + "(AbstractKineticConstantPropensityCalculator)!");
+    }
+    if (numReplicates < 1) {
+      throw new IllegalArgumentException("At least one replicate has to be simulated!");
+    }
+    this.net = net;
+    this.numReplicates = numReplicates;
+    calculator = (AbstractKineticConstantPropensityCalculator) net.getPropensityCalculator();
+    numSpecies = net.getNumSpecies();
+    numReactions = net.getNumReactions();
+    createReactionTables();
+    finalAmount = new long[numReplicates * numSpecies];
+    finalTime = new double[numReplicates];
+  }
+
+  private void createReactionTables() {
+    reactionType = new int[numReactions];
+    reactantOffsets = new int[numReactions + 1];
+    @SuppressWarnings("unchecked")
+    Map<Integer, Integer>[] histos = new Map[numReactions];
+    for (int j = 0; j < numReactions; j++) {
+      histos[j] = NumberTools.createHistogramAsMap(net.getReactants(j));
+      reactantOffsets[j + 1] = reactantOffsets[j] + histos[j].size();
+    }
+    reactantSpecies = new int[reactantOffsets[numReactions]];
+    reactantMultiplicity = new int[reactantSpecies.length];
+    for (int j = 0; j < numReactions; j++) {
+      int index = reactantOffsets[j];
+      for (int r : histos[j].keySet()) {
+        reactantSpecies[index] = r;
+        reactantMultiplicity[index++] = histos[j].get(r);
+      }
+      reactionType[j] = getReactionType(j);
+    }
+
+    v = new long[numSpecies * numReactions];
+    boolean[] changed = new boolean[numSpecies];
+    for (int j = 0; j < numReactions; j++) {
+      for (int p : net.getProducts(j)) {
+        v[p * numReactions + j]++;
+      }
+      for (int r : net.getReactants(j)) {
+        v[r * numReactions + j]--;
+      }
+    }
+    int numChanged = 0;
+    for (int s = 0; s < numSpecies; s++) {
+      // boundary species are not changed by the amount manager
+      if (net.getAnnotationManager().containsSpeciesAnnotation(s, "BoundaryCondition")) {
+        Arrays.fill(v, s * numReactions, (s + 1) * numReactions, 0);
+      }
+      for (int j = 0; j < numReactions && !changed[s]; j++) {
+        changed[s] = v[s * numReactions + j] != 0;
+      }
+      if (changed[s]) {
+        numChanged++;
+      }
+    }
+    changedSpecies = new int[numChanged];
+    for (int s = 0, i = 0; s < numSpecies; s++) {
+      if (changed[s]) {
+        changedSpecies[i++] = s;
+      }
+    }
+  }
+
+  private int getReactionType(int reaction) {
+    int first = reactantOffsets[reaction];
+    switch (reactantOffsets[reaction + 1] - first) {
+    case 0:
+      return ZEROTH_ORDER;
+    case 1:
+      if (reactantMultiplicity[first] == 1) {
+        return FIRST_ORDER;
+      }
+      return reactantMultiplicity[first] == 2 ? DIMERIZATION : HIGHER_ORDER;
+    case 2:
+      if (reactantMultiplicity[first] == 1 && reactantMultiplicity[first + 1] == 1) {
+        return SECOND_ORDER;
+      }
+      return HIGHER_ORDER;
+    default:
+      return HIGHER_ORDER;
+    }
+  }
+
+  /**
+   * Runs each replicate until its time reaches the given time. Afterwards the amounts of each
+   * replicate can be retrieved by {@link #getAmount(int, int)}.
+   *
+   * @param time the time to simulate
+   */
+  public void start(double time) {
+    simulate(time, 0, new int[0], null);
+  }
+
+  /**
+   * Runs each replicate until its time reaches the given time and observes the amounts of the
+   * given species repeatedly after the given interval (like {@link SimulationEnsemble#run(double,
+   * int...)}).
+   *
+   * @param time     the time to simulate
+   * @param interval the interval
+   * @param species  species indices
+   * @return statistics over all replicates
+   */
+  public EnsembleStatistics run(double time, double interval, int... species) {
+    if (species.length == 0) {
+      throw new IllegalArgumentException("At least one species has to be specified!");
+    }
+    if (!(interval > 0)) {
+      throw new IllegalArgumentException("The interval has to be positive!");
+    }
+    EnsembleStatistics stats = new EnsembleStatistics(interval,
+        NetworkTools.getSpeciesNames(net, species), quantileAccuracy);
+    simulate(time, interval, species, stats);
+    return stats;
+  }
+
+  /**
+   * Runs each replicate until its time reaches the given time and observes the amounts of the
+   * given species repeatedly after the given interval.
+   *
+   * @param time        the time to simulate
+   * @param interval    the interval
+   * @param speciesName species names
+   * @return statistics over all replicates
+   */
+  public EnsembleStatistics run(double time, double interval, String... speciesName) {
+    return run(time, interval, NetworkTools.getSpeciesIndices(net, speciesName));
+  }
+
+  private void simulate(double time, double interval, int[] species, EnsembleStatistics stats) {
+    c = new double[numReactions];
+    for (int j = 0; j < numReactions; j++) {
+      c[j] = calculator.getConstant(j);
+      if (volume > 0) {
+        c[j] = calculator.getConstantFromDeterministicRateConstant(c[j], j, volume);
+      }
+    }
+    values = new double[species.length];
+    allocateLanes(Math.min(blockSize, numReplicates));
+    for (int from = 0; from < numReplicates; from += N) {
+      simulateBlock(from, Math.min(from + N, numReplicates), time, interval, species, stats);
+    }
+  }
+
+  private void allocateLanes(int numLanes) {
+    if (amount != null && N == numLanes) {
+      return;
+    }
+    N = numLanes;
+    amount = new long[numSpecies * N];
+    a = new double[numReactions * N];
+    partialSum = new double[numReactions * N];
+    t = new double[N];
+    theta = new double[N];
+    thetaIndex = new int[N];
+    stochastics = new Stochastics[N];
+    replicateOfLane = new int[N];
+    aSum = new double[N];
+    tau = new double[N];
+    test = new double[N];
+    mu = new int[N];
+  }
+
+  private void simulateBlock(int from, int to, double time, double interval, int[] species,
+      EnsembleStatistics stats) {
+    numActive = to - from;
+    for (int s = 0; s < numSpecies; s++) {
+      Arrays.fill(amount, s * N, s * N + numActive, net.getInitialAmount(s));
+    }
+    for (int l = 0; l < numActive; l++) {
+      replicateOfLane[l] = from + l;
+      stochastics[l] = new Stochastics(rootSeed, from + l);
+    }
+    Arrays.fill(t, 0);
+    Arrays.fill(theta, 0);
+    Arrays.fill(thetaIndex, 0);
+    calculatePropensities(numActive);
+    if (!(time > 0)) {
+      for (int l = numActive - 1; l >= 0; l--) {
+        finish(l, stats);
+      }
+    }
+
+    while (numActive > 0) {
+      int m = numActive;
+
+      // time steps (the sums of the propensities are computed along with them)
+      for (int l = 0; l < m; l++) {
+        tau[l] = (1 / aSum[l]) * Math.log(1 / stochastics[l].getUnif());
+      }
+
+      // observations and random numbers for the reaction selection
+      for (int l = m - 1; l >= 0; l--) {
+        if (Double.isInfinite(tau[l])) {
+          t[l] += tau[l];
+          if (stats != null) {
+            observe(l, species, stats);
+          }
+          finish(l, stats);
+          continue;
+        }
+        if (stats != null) {
+          while (t[l] <= theta[l] && t[l] + tau[l] > theta[l]) {
+            observe(l, species, stats);
+            theta[l] += interval;
+          }
+        }
+        test[l] = stochastics[l].getUnif() * aSum[l];
+      }
+      m = numActive;
+
+      // reaction selection on the partial sums
+      for (int l = 0; l < m; l++) {
+        double tl = test[l];
+        int j = 0;
+        while (j < numReactions && partialSum[j * N + l] < tl) {
+          j++;
+        }
+        if (j == numReactions) {
+          throw new RuntimeException("No reaction could be selected!");
+        }
+        mu[l] = j;
+      }
+
+      // amount updates
+      for (int s : changedSpecies) {
+        int base = s * N;
+        int row = s * numReactions;
+        for (int l = 0; l < m; l++) {
+          amount[base + l] += v[row + mu[l]];
+        }
+      }
+      calculatePropensities(m);
+
+      for (int l = m - 1; l >= 0; l--) {
+        t[l] += tau[l];
+        if (!(t[l] < time)) {
+          finish(l, stats);
+        }
+      }
+    }
+  }
+
+  /**
+   * Calculates the propensities of the first <code>m</code> lanes in the same way as {@link
+   * AbstractKineticConstantPropensityCalculator} and their partial sums (in the same order as
+   * {@link GillespieEnhanced}).
+   */
+  private void calculatePropensities(int m) {
+    Arrays.fill(aSum, 0, m, 0);
+    for (int j = 0; j < numReactions; j++) {
+      int base = j * N;
+      int first = reactantOffsets[j];
+      double cj = c[j];
+      switch (reactionType[j]) {
+      case ZEROTH_ORDER:
+        Arrays.fill(a, base, base + m, cj);
+        for (int l = 0; l < m; l++) {
+          aSum[l] += cj;
+          partialSum[base + l] = aSum[l];
+        }
+        break;
+      case FIRST_ORDER: {
+        int x = reactantSpecies[first] * N;
+        for (int l = 0; l < m; l++) {
+          a[base + l] = cj * (double) amount[x + l];
+          aSum[l] += a[base + l];
+          partialSum[base + l] = aSum[l];
+        }
+        break;
+      }
+      case SECOND_ORDER: {
+        int x = reactantSpecies[first] * N;
+        int y = reactantSpecies[first + 1] * N;
+        for (int l = 0; l < m; l++) {
+          a[base + l] = cj * (double) amount[x + l] * (double) amount[y + l];
+          aSum[l] += a[base + l];
+          partialSum[base + l] = aSum[l];
+        }
+        break;
+      }
+      case DIMERIZATION: {
+        int x = reactantSpecies[first] * N;
+        for (int l = 0; l < m; l++) {
+          double xl = amount[x + l];
+          a[base + l] = cj * xl * (xl - 1) / 2;
+          aSum[l] += a[base + l];
+          partialSum[base + l] = aSum[l];
+        }
+        break;
+      }
+      default:
+        for (int l = 0; l < m; l++) {
+          double re = cj;
+          for (int i = first; i < reactantOffsets[j + 1]; i++) {
+            int freq = reactantMultiplicity[i];
+            long x = amount[reactantSpecies[i] * N + l];
+            for (int f = 0; f < freq; f++) {
+              re *= ((double) x - f);
+            }
+            re /= NumberTools.faculty(freq);
+          }
+          a[base + l] = Math.abs(re);
+          aSum[l] += a[base + l];
+          partialSum[base + l] = aSum[l];
+        }
+        break;
+      }
+    }
+  }
+
+  private void observe(int lane, int[] species, EnsembleStatistics stats) {
+    for (int i = 0; i < species.length; i++) {
+      values[i] = amount[species[i] * N + lane];
+    }
+    stats.add(thetaIndex[lane]++, values);
+  }
+
+  /**
+   * Stores the result of the replicate in the given lane and removes it from the running ones by
+   * swapping it with the last running lane. Lanes behind the given one must not be running.
+   */
+  private void finish(int lane, EnsembleStatistics stats) {
+    if (stats != null) {
+      stats.replicateFinished();
+    }
+    int replicate = replicateOfLane[lane];
+    for (int s = 0; s < numSpecies; s++) {
+      finalAmount[replicate * numSpecies + s] = amount[s * N + lane];
+    }
+    finalTime[replicate] = t[lane];
+
+    int last = --numActive;
+    if (lane == last) {
+      return;
+    }
+    for (int s = 0; s < numSpecies; s++) {
+      swap(amount, s * N + lane, s * N + last);
+    }
+    for (int j = 0; j < numReactions; j++) {
+      swap(a, j * N + lane, j * N + last);
+      swap(partialSum, j * N + lane, j * N + last);
+    }
+    swap(t, lane, last);
+    swap(theta, lane, last);
+    swap(thetaIndex, lane, last);
+    swap(aSum, lane, last);
+    swap(tau, lane, last);
+    swap(test, lane, last);
+    swap(replicateOfLane, lane, last);
+    Stochastics st = stochastics[lane];
+    stochastics[lane] = stochastics[last];
+    stochastics[last] = st;
+  }
+
+  private static void swap(long[] x, int i, int k) {
+    long tmp = x[i];
+    x[i] = x[k];
+    x[k] = tmp;
+  }
+
+  private static void swap(double[] x, int i, int k) {
+    double tmp = x[i];
+    x[i] = x[k];
+    x[k] = tmp;
+  }
+
+  private static void swap(int[] x, int i, int k) {
+    int tmp = x[i];
+    x[i] = x[k];
+    x[k] = tmp;
+  }
+
+  /**
+   * Gets the amount of a species of a replicate after the last run.
+   *
+   * @param replicate the index of the replicate
+   * @param species   the index of the species
+   * @return the amount
+   */
+  public long getAmount(int replicate, int species) {
+    return finalAmount[replicate * numSpecies + species];
+  }
+
+  /**
+   * Gets the time of a replicate after the last run, i.e. the time of its last reaction.
+   *
+   * @param replicate the index of the replicate
+   * @return the time
+   */
+  public double getTime(int replicate) {
+    return finalTime[replicate];
+  }
+
+  /**
+   * Gets the network.
+   *
+   * @return the network
+   */
+  public Network getNet() {
+    return net;
+  }
+
+  /**
+   * Gets the number of replicates.
+   *
+   * @return number of replicates
+   */
+  public int getNumReplicates() {
+    return numReplicates;
+  }
+
+  /**
+   * Gets the seed from which the random streams of the replicates are derived. The default is the
+   * seed of the {@link Stochastics} singleton at creation time.
+   *
+   * @return the root seed
+   */
+  public long getRootSeed() {
+    return rootSeed;
+  }
+
+  /**
+   * Sets the seed from which the random streams of the replicates are derived.
+   *
+   * @param rootSeed the root seed
+   */
+  public void setRootSeed(long rootSeed) {
+    this.rootSeed = rootSeed;
+  }
+
+  /**
+   * Gets the volume of the reaction network (see {@link Simulator#getVolume()}).
+   *
+   * @return volume
+   */
+  public double getVolume() {
+    return volume;
+  }
+
+  /**
+   * Sets the volume of the reaction network (see {@link Simulator#setVolume(double)}).
+   *
+   * @param volume the volume
+   */
+  public void setVolume(double volume) {
+    this.volume = volume;
+  }
+
+  /**
+   * Gets the number of replicates that are run in lock-step. The blocks are run one after another,
+   * so the state of a block should fit into the cache. The default value is 128.
+   *
+   * @return the block size
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Sets the number of replicates that are run in lock-step. The blocks are run one after another,
+   * so the state of a block should fit into the cache. The default value is 128.
+   *
+   * @param blockSize the block size
+   */
+  public void setBlockSize(int blockSize) {
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+  /**
+   * Gets the relative accuracy of the computed quantiles. The default value is 0.01.
+   *
+   * @return the relative accuracy
+   */
+  public double getQuantileAccuracy() {
+    return quantileAccuracy;
+  }
+
+  /**
+   * Sets the relative accuracy of the computed quantiles. The default value is 0.01.
+   *
+   * @param quantileAccuracy the relative accuracy
+   */
+  public void setQuantileAccuracy(double quantileAccuracy) {
+    this.quantileAccuracy = quantileAccuracy;
+  }
+
+}
@@ -0,0 +1,21 @@
+package fern.simulation;
+
+/**
+ * Function delegate that measures how far a simulation has progressed towards a rare event, e.g.
+ * the amount of a species that is high in only one of two stable states. It is used by {@link
+ * WeightedEnsemble} to bin the trajectories.
+ *
+ * @see WeightedEnsemble
+ */
+public interface ProgressCoordinate {
+
+  /**
+   * Gets the progress of the actual state of the given simulator. It should only depend on the
+   * amounts of the species (see {@link Simulator#getAmount(int)}).
+   *
+   * @param sim the simulator
+   * @return the progress
+   */
+  double getProgress(Simulator sim);
+
+}
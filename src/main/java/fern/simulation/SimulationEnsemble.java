@@ -0,0 +1,321 @@
+package fern.simulation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import fern.network.AbstractKineticConstantPropensityCalculator;
+import fern.network.AmountManager;
+import fern.network.DefaultAmountManager;
+import fern.network.Network;
+import fern.network.modification.ModifierNetwork;
+import fern.simulation.Simulator.FireType;
+import fern.simulation.controller.SimulationController;
+import fern.simulation.observer.Observer;
+import fern.tools.NetworkTools;
+import fern.tools.Stochastics;
+
+/**
+ * Runs many replicates of a stochastic simulation and computes statistics of the species amounts
+ * after certain intervals. The replicates are distributed in batches over a {@link ForkJoinPool}.
+ * Each batch gets its own view of the network with a copy of the {@link AmountManager} and its own
+ * {@link Simulator} (created by the given {@link SimulatorFactory}), hence its own propensities.
+ * The amounts of each replicate are directly added to {@link EnsembleStatistics}, which are merged
+ * when the batches are joined, so no trajectory is stored.
+ * <p>
+ * Replicate <i>i</i> draws its random numbers from the stream given by the root seed and <i>i</i>
+ * (see {@link Stochastics#Stochastics(long, long)}). Since the batches do not depend on the number
+ * of threads, the same root seed always yields the same statistics.
+ * <p>
+ * Only networks whose {@link fern.network.PropensityCalculator} is an {@link
+ * AbstractKineticConstantPropensityCalculator} are simulated concurrently. Other calculators (e.g.
+ * the one of a {@link fern.network.sbml.SBMLNetwork}) may share state between simulators and their
+ * replicates are therefore run one after another in the calling thread. The {@link
+ * SimulationController} is shared by all simulators and must not keep state of a simulation.
+ *
+ * @see EnsembleStatistics
+ */
+public class SimulationEnsemble {
+
+  private Network net;
+  private SimulatorFactory factory;
+  private SimulationController controller;
+  private int numReplicates;
+
+  private long rootSeed = Stochastics.getInstance().getSeed();
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  private int batchSize = 16;
+  private double quantileAccuracy = 0.01;
+  private boolean interpolateTheta = false;
+
+  /**
+   * Creates the ensemble.
+   *
+   * @param net           the network to simulate
+   * @param factory       creates a simulator for each batch of replicates
+   * @param controller    the controller for each replicate
+   * @param numReplicates the number of replicates
+   */
+  public SimulationEnsemble(Network net, SimulatorFactory factory,
+      SimulationController controller, int numReplicates) {
+    this.net = net;
+    this.factory = factory;
+    this.controller = controller;
+    this.numReplicates = numReplicates;
+  }
+
+  /**
+   * Runs the replicates and observes the amounts of the given species repeatedly after the given
+   * interval.
+   *
+   * @param interval the interval
+   * @param species  species indices
+   * @return statistics over all replicates
+   */
+  public EnsembleStatistics run(double interval, int... species) {
+    if (species.length == 0) {
+      throw new IllegalArgumentException("At least one species has to be specified!");
+    }
+    ReplicateTask task = new ReplicateTask(interval, species, 0, numReplicates);
+    if (isParallel()) {
+      return pool.invoke(task);
+    } else {
+      return task.runReplicates();
+    }
+  }
+
+  /**
+   * Runs the replicates and observes the amounts of the given species repeatedly after the given
+   * interval.
+   *
+   * @param interval    the interval
+   * @param speciesName species names
+   * @return statistics over all replicates
+   */
+  public EnsembleStatistics run(double interval, String... speciesName) {
+    return run(interval, NetworkTools.getSpeciesIndices(net, speciesName));
+  }
+
+  /**
+   * Gets whether the replicates are run concurrently, which depends on the network's propensity
+   * calculator.
+   *
+   * @return whether the replicates are run concurrently
+   */
+  public boolean isParallel() {
+    return net.getPropensityCalculator() instanceof AbstractKineticConstantPropensityCalculator;
+  }
+
+  /**
+   * Gets the seed from which the random streams of the replicates are derived. The default is the
+   * seed of the {@link Stochastics} singleton at creation time.
+   *
+   * @return the root seed
+   */
+  public long getRootSeed() {
+    return rootSeed;
+  }
+
+  /**
+   * Sets the seed from which the random streams of the replicates are derived.
+   *
+   * @param rootSeed the root seed
+   */
+  public void setRootSeed(long rootSeed) {
+    this.rootSeed = rootSeed;
+  }
+
+  /**
+   * Sets the pool in which the replicates are run. The default is the common pool.
+   *
+   * @param pool the pool
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Gets the number of replicates, that are run one after another by one simulator. The default
+   * value is 16.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the number of replicates, that are run one after another by one simulator. The default
+   * value is 16.
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Gets the relative accuracy of the computed quantiles. The default value is 0.01.
+   *
+   * @return the relative accuracy
+   */
+  public double getQuantileAccuracy() {
+    return quantileAccuracy;
+  }
+
+  /**
+   * Sets the relative accuracy of the computed quantiles. The default value is 0.01.
+   *
+   * @param quantileAccuracy the relative accuracy
+   */
+  public void setQuantileAccuracy(double quantileAccuracy) {
+    this.quantileAccuracy = quantileAccuracy;
+  }
+
+  /**
+   * Sets whether the amounts are interpolated at the intervals (see {@link
+   * Simulator#setInterpolateTheta(boolean)}).
+   *
+   * @param interpolateTheta whether to interpolate
+   */
+  public void setInterpolateTheta(boolean interpolateTheta) {
+    this.interpolateTheta = interpolateTheta;
+  }
+
+  /**
+   * Gets the number of replicates.
+   *
+   * @return number of replicates
+   */
+  public int getNumReplicates() {
+    return numReplicates;
+  }
+
+  /**
+   * Splits the replicates into batches and runs each batch by its own simulator.
+   */
+  private class ReplicateTask extends RecursiveTask<EnsembleStatistics> {
+
+    private static final long serialVersionUID = 1L;
+
+    private double interval;
+    private int[] species;
+    private int from;
+    private int to;
+
+    public ReplicateTask(double interval, int[] species, int from, int to) {
+      this.interval = interval;
+      this.species = species;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected EnsembleStatistics compute() {
+      if (to - from <= batchSize) {
+        return runReplicates();
+      }
+      int mid = from + (((to - from) / batchSize + 1) / 2) * batchSize;
+      ReplicateTask left = new ReplicateTask(interval, species, from, mid);
+      ReplicateTask right = new ReplicateTask(interval, species, mid, to);
+      right.fork();
+      EnsembleStatistics re = left.compute();
+      re.merge(right.join());
+      return re;
+    }
+
+    EnsembleStatistics runReplicates() {
+      Simulator sim = factory.createSimulator(new ReplicateNetwork(net));
+      sim.setInterpolateTheta(interpolateTheta);
+      EnsembleStatistics stats = new EnsembleStatistics(interval,
+          NetworkTools.getSpeciesNames(net, species), quantileAccuracy);
+      sim.addObserver(new StatisticsObserver(sim, interval, species, stats));
+      for (int r = from; r < to; r++) {
+        sim.setStochasticSeed(rootSeed, r);
+        sim.start(controller);
+        stats.replicateFinished();
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * View of the network with its own {@link AmountManager}.
+   */
+  private static class ReplicateNetwork extends ModifierNetwork {
+
+    private AmountManager amountManager;
+
+    public ReplicateNetwork(Network originalNet) {
+      super(originalNet);
+      if (originalNet.getAmountManager() instanceof DefaultAmountManager) {
+        amountManager = ((DefaultAmountManager) originalNet.getAmountManager()).clone();
+      } else {
+        amountManager = new DefaultAmountManager(this);
+      }
+    }
+
+    @Override
+    public AmountManager getAmountManager() {
+      return amountManager;
+    }
+  }
+
+  /**
+   * Adds the amounts at each interval to the statistics.
+   */
+  private static class StatisticsObserver extends Observer {
+
+    private double interval;
+    private int[] species;
+    private EnsembleStatistics stats;
+    private double[] values;
+    private int index;
+
+    public StatisticsObserver(Simulator sim, double interval, int[] species,
+        EnsembleStatistics stats) {
+      super(sim);
+      this.interval = interval;
+      this.species = species;
+      this.stats = stats;
+      values = new double[species.length];
+    }
+
+    @Override
+    public void started() {
+      index = 0;
+      setTheta(0);
+    }
+
+    @Override
+    public void theta(double theta) {
+      for (int i = 0; i < species.length; i++) {
+        values[i] = getSimulator().getAmount(species[i]);
+      }
+      stats.add(index++, values);
+      setTheta(theta + interval);
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public boolean isStepNeeded() {
+      return false;
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+    }
+
+    @Override
+    public boolean isActivateReactionNeeded() {
+      return false;
+    }
+  }
+
+}
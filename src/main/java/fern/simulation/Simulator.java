@@ -6,9 +6,23 @@
  */
 package fern.simulation;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import fern.network.AmountManager;
 import fern.network.Network;
@@ -16,8 +30,10 @@
 import fern.simulation.controller.DefaultController;
 import fern.simulation.controller.SimulationController;
 import fern.simulation.observer.Observer;
+import fern.simulation.observer.ReactionRecordBuffer;
 import fern.simulation.observer.TriggerObserver;
 import fern.tools.NumberTools;
+import fern.tools.SplittableRandomEngine;
 import fern.tools.Stochastics;
 
 
@@ -37,11 +53,20 @@
  * If an extending class sticks to these conventions, it can take full benefit of the observer
  * system: One or more {@link Observer} can be registered at a simulator and observe certain aspects
  * of the simulation (see the {@link Observer}s javadoc for more information).
+ * <p>
+ * The state of a simulation can be saved to a checkpoint between two calls of {@link
+ * #run(SimulationController)} (see {@link #saveCheckpoint(File)}) and restored later by a new
+ * simulator for the same network (see {@link #loadCheckpoint(File)}). Extending classes keep the
+ * state of their algorithm in the checkpoint by overriding {@link #writeState(ObjectOutput)} and
+ * {@link #readState(ObjectInput)}.
  *
  * @author Florian Erhard
  */
 public abstract class Simulator {
 
+  private static final int CHECKPOINT_MAGIC = 0x4645524D;
+  private static final int CHECKPOINT_VERSION = 3;
+
   private double volume = 0;
 
 
@@ -49,10 +74,14 @@ public abstract class Simulator {
   private AmountManager amountManager;
   private PropensityCalculator propensityCalculator;
   private Observer[] observer;
+  private Observer[] reactionObservers;
+  private Observer[] stepObservers;
+  private TriggerObserver[] triggerObservers;
+  private ReactionRecordBuffer reactionRecords = null;
   private DefaultController timeController = null;
-  private ThetaQueue thetaQueue = null;
+  private ThetaQueue thetaQueue;
   private boolean interpolateTheta = false;
-  private DelayedThetaInvocationParameters interpolationParameters = null;
+  private DelayedThetaInvocationParameters interpolationParameters;
 
 
   /**
@@ -66,7 +95,9 @@ public abstract class Simulator {
   protected double[] a;
 
   /**
-   * Contains a shortcut to the {@link Stochastics} framework.
+   * Contains a shortcut to the {@link Stochastics} framework. By default this is the singleton
+   * object, but each simulator can be given its own random stream (see {@link
+   * #setStochastics(Stochastics)}).
    */
   protected Stochastics stochastics = Stochastics.getInstance();
 
@@ -80,7 +111,10 @@ public Simulator(Network net) {
     this.amountManager = net.getAmountManager();
     this.propensityCalculator = net.getPropensityCalculator();
     observer = new Observer[0];
+    updateObserverDispatch();
     a = new double[net.getNumReactions()];
+    thetaQueue = new ThetaQueue();
+    interpolationParameters = new DelayedThetaInvocationParameters(net.getNumSpecies());
   }
 
   /**
@@ -113,6 +147,7 @@ public void start(SimulationController control) {
    * Initializes this simulator for the first run (or a further run starting from time 0).
    */
   public void preRun() {
+    updateObserverDispatch();
     initialize();
 
     for (int o = 0; o < observer.length; o++) {
@@ -129,23 +164,26 @@ public void preRun() {
   public void run(SimulationController control) {
     while (control.goOn(this)) {
 
-      for (Observer o : observer) {
-        if (o instanceof TriggerObserver) {
-          ((TriggerObserver) o).trigger();
-        }
+      if (triggerObservers.length > 0 || stepObservers.length > 0) {
+        flushReactionRecords();
+      }
+
+      for (int o = 0; o < triggerObservers.length; o++) {
+        triggerObservers[o].trigger();
       }
 
-      for (int o = 0; o < observer.length; o++) {
-        observer[o].step();
+      for (int o = 0; o < stepObservers.length; o++) {
+        stepObservers[o].step();
       }
 
       performStep(control);
 
-      if (interpolationParameters != null) {
-        for (Observer o : interpolationParameters.observers) {
-          o.theta(interpolationParameters.interpolationTheta);
+      if (interpolationParameters.pending) {
+        flushReactionRecords();
+        for (int o = 0; o < interpolationParameters.numObservers; o++) {
+          interpolationParameters.observers[o].theta(interpolationParameters.interpolationTheta);
         }
-        interpolationParameters = null;
+        interpolationParameters.pending = false;
       }
 
     }
@@ -155,12 +193,186 @@ public void run(SimulationController control) {
    * Finalizes a simulation, i.e. call it, when this simulation will not be continued.
    */
   public void postRun() {
+    flushReactionRecords();
     for (int o = 0; o < observer.length; o++) {
       observer[o].finished();
       observer[o].print();
     }
   }
 
+  /**
+   * Continues a simulation that has been restored by {@link #loadCheckpoint(File)}. Basically calls
+   * {@link #run(SimulationController)} and {@link #postRun()}, but not {@link #preRun()}, which
+   * would reset the simulator and the observers.
+   *
+   * @param control the <code>SimulationController</code>
+   */
+  public void resume(SimulationController control) {
+    run(control);
+    postRun();
+  }
+
+  /**
+   * Saves the state of the simulation to a file. It contains the time, the amounts, the
+   * propensities, the state of the random number generators, the registered thetas, the state of
+   * the observers and the state of the algorithm (see {@link #writeState(ObjectOutput)}). Call it
+   * between two calls of {@link #run(SimulationController)}, i.e. not from within an observer.
+   *
+   * @param file the file
+   * @throws IOException if the checkpoint could not be written
+   * @see #loadCheckpoint(File)
+   */
+  public void saveCheckpoint(File file) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      saveCheckpoint(out);
+    }
+  }
+
+  /**
+   * Saves the state of the simulation to a stream. The stream is not closed.
+   *
+   * @param out the stream
+   * @throws IOException if the checkpoint could not be written
+   * @see #saveCheckpoint(File)
+   */
+  public void saveCheckpoint(OutputStream out) throws IOException {
+    flushReactionRecords();
+
+    ObjectOutputStream o = new ObjectOutputStream(out);
+    o.writeInt(CHECKPOINT_MAGIC);
+    o.writeInt(CHECKPOINT_VERSION);
+    o.writeUTF(getClass().getName());
+    o.writeInt(net.getNumSpecies());
+    o.writeInt(net.getNumReactions());
+    o.writeInt(observer.length);
+    for (Observer obs : observer) {
+      o.writeUTF(obs.getClass().getName());
+    }
+
+    o.writeDouble(volume);
+    o.writeDouble(t);
+    for (int i = 0; i < net.getNumSpecies(); i++) {
+      o.writeLong(amountManager.getAmount(i));
+    }
+    for (double propensity : a) {
+      o.writeDouble(propensity);
+    }
+    stochastics.writeState(o);
+    thetaQueue.writeState(o, observer);
+    for (Observer obs : observer) {
+      obs.writeState(o);
+    }
+    writeState(o);
+    o.flush();
+  }
+
+  /**
+   * Restores the state of a simulation from a file written by {@link #saveCheckpoint(File)}. This
+   * simulator has to be of the same class and for the same network as the saved one, and the same
+   * kinds of observers have to be added in the same order. The simulation can then be continued
+   * by {@link #resume(SimulationController)} and yields exactly the same results as the saved
+   * simulation would have.
+   * <p>
+   * If the simulator uses the shared {@link Stochastics} singleton, it gets its own {@link
+   * Stochastics} object for the restored random streams. To fork several replicates from one
+   * pre-equilibrated state, load the checkpoint into one simulator per replicate and give each its
+   * own random stream by {@link #setStochasticSeed(long, long)} before resuming.
+   * <p>
+   * Only the classes written by the simulators and observers of this framework are deserialized,
+   * so loading a manipulated checkpoint cannot instantiate arbitrary classes.
+   *
+   * @param file the file
+   * @throws IOException if the checkpoint could not be read or does not match this simulator
+   */
+  public void loadCheckpoint(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      loadCheckpoint(in);
+    }
+  }
+
+  /**
+   * Restores the state of a simulation from a stream. The stream is not closed.
+   *
+   * @param in the stream
+   * @throws IOException if the checkpoint could not be read or does not match this simulator
+   * @see #loadCheckpoint(File)
+   */
+  public void loadCheckpoint(InputStream in) throws IOException {
+    ObjectInputStream o = new CheckpointInputStream(in);
+    if (o.readInt() != CHECKPOINT_MAGIC || o.readInt() != CHECKPOINT_VERSION) {
+      throw new IOException("No checkpoint of a simulation!");
+    }
+    String name = o.readUTF();
+    if (!name.equals(getClass().getName())) {
+      throw new IOException("The checkpoint has been saved by " + name + "!");
+    }
+    if (o.readInt() != net.getNumSpecies() || o.readInt() != net.getNumReactions()) {
+      throw new IOException("The checkpoint has been saved for another network!");
+    }
+    int numObservers = o.readInt();
+    boolean sameObservers = numObservers == observer.length;
+    for (int i = 0; i < numObservers; i++) {
+      name = o.readUTF();
+      sameObservers &= i < observer.length && name.equals(observer[i].getClass().getName());
+    }
+    if (!sameObservers) {
+      throw new IOException("The checkpoint has been saved with other observers!");
+    }
+
+    try {
+      setVolume(o.readDouble());
+      updateObserverDispatch();
+      initialize();
+
+      t = o.readDouble();
+      for (int i = 0; i < net.getNumSpecies(); i++) {
+        amountManager.setAmount(i, o.readLong());
+      }
+      for (int i = 0; i < a.length; i++) {
+        a[i] = o.readDouble();
+      }
+      if (stochastics == Stochastics.getInstance()) {
+        stochastics = new Stochastics(0);
+      }
+      stochastics.readState(o);
+      thetaQueue.readState(o, observer);
+      for (Observer obs : observer) {
+        obs.readState(o);
+      }
+      readState(o);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("The checkpoint contains unknown classes!", e);
+    }
+  }
+
+  /**
+   * Writes the state of the algorithm to a checkpoint (see {@link #saveCheckpoint(File)}). Time,
+   * amounts, propensities and random number generators are already saved by this class, so
+   * extending classes just have to write the data structures that cannot be derived from them
+   * exactly. Besides primitives, only arrays of primitives, boxed numbers, hash maps and the random
+   * number generators of colt can be read back. By default, nothing is written.
+   *
+   * @param out the output
+   * @throws IOException if the state could not be written
+   */
+  protected void writeState(ObjectOutput out) throws IOException {
+  }
+
+  /**
+   * Reads the state written by {@link #writeState(ObjectOutput)} when a checkpoint is loaded. It
+   * is called after {@link #initialize()} and after time, amounts, propensities and random number
+   * generators have been restored. By default, {@link #reinitialize()} is called, so the
+   * algorithm rebuilds its data structures from the restored amounts. This yields a correct
+   * continuation, but not necessarily exactly the same results as the saved simulation.
+   *
+   * @param in the input
+   * @throws IOException            if the state could not be read
+   * @throws ClassNotFoundException if the state contains unknown classes
+   */
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    reinitialize();
+  }
+
   /**
    * Fires a reaction. It calls the observer and the {@link AmountManager}
    *
@@ -169,8 +381,15 @@ public void postRun() {
    * @param fireType type of the firing
    */
   protected void fireReaction(int mu, double t, FireType fireType) {
-    for (int o = 0; o < observer.length; o++) {
-      observer[o].activateReaction(mu, t, fireType, 1);
+    if (reactionRecords == null) {
+      for (int o = 0; o < reactionObservers.length; o++) {
+        reactionObservers[o].activateReaction(mu, t, fireType, 1);
+      }
+    } else if (reactionObservers.length > 0) {
+      reactionRecords.add(mu, t, fireType, 1);
+      if (reactionRecords.isFull()) {
+        flushReactionRecords();
+      }
     }
     // change the amount of the reactants
     if (!Double.isInfinite(t)) {
@@ -188,15 +407,37 @@ protected void fireReaction(int mu, double t, FireType fireType) {
    * @param fireType type of the firings
    */
   protected void fireReaction(int mu, double t_start, double t_end, int times, FireType fireType) {
-    for (int o = 0; o < observer.length; o++) {
-      observer[o].activateReaction(mu, t, fireType, times);
-    }
+    notifyReaction(mu, t_start, t_end, times, fireType);
     // change the amount of the reactants
     if (!Double.isInfinite(t)) {
       amountManager.performReaction(mu, times);
     }
   }
 
+  /**
+   * Tells the observers that a reaction has fired without calling the {@link AmountManager}, e.g.
+   * for reactions whose changes of the amounts are integrated continuously.
+   *
+   * @param mu       reaction that has fired
+   * @param t_start  start of the firings
+   * @param t_end    end of the firings
+   * @param times    number of firings
+   * @param fireType type of the firings
+   */
+  protected void notifyReaction(int mu, double t_start, double t_end, int times,
+      FireType fireType) {
+    if (reactionRecords == null) {
+      for (int o = 0; o < reactionObservers.length; o++) {
+        reactionObservers[o].activateReaction(mu, t, fireType, times);
+      }
+    } else if (reactionObservers.length > 0) {
+      reactionRecords.add(mu, t, fireType, times);
+      if (reactionRecords.isFull()) {
+        flushReactionRecords();
+      }
+    }
+  }
+
   /**
    * Gets called when the simulator reaches the special time <code>theta</code>. It invokes {@link
    * Observer#theta(double)} of the appropriate observer.
@@ -211,36 +452,40 @@ protected void thetaEvent() {
 //			if (theta==observer[o].getTheta())
 //				observer[o].theta(theta);
 
+    flushReactionRecords();
+
     double theta = getNextThetaEvent();
-    LinkedList<Observer> obs = thetaQueue.getNextObserversAndRemove();
+    int numObs = thetaQueue.removeNext();
 
     double t_save = t;
     t = theta;
     boolean fired = false;
-    for (Observer o : observer) {
-      if (o instanceof TriggerObserver) {
-        fired |= ((TriggerObserver) o).trigger();
-      }
+    for (int o = 0; o < triggerObservers.length; o++) {
+      fired |= triggerObservers[o].trigger();
     }
     if (!fired) {
       t = t_save;
     }
 
     if (interpolateTheta) {
-      long[] beforeThetaAmounts = new long[net.getNumSpecies()];
+      DelayedThetaInvocationParameters p = interpolationParameters;
       for (int i = 0; i < net.getNumSpecies(); i++) {
-        beforeThetaAmounts[i] = amountManager.getAmount(i);
+        p.beforeThetaAmounts[i] = amountManager.getAmount(i);
+      }
+      if (p.observers.length < numObs) {
+        p.observers = new Observer[numObs];
       }
-      interpolationParameters = new DelayedThetaInvocationParameters(
-          getTime(),
-          beforeThetaAmounts,
-          theta,
-          obs
-      );
+      for (int o = 0; o < numObs; o++) {
+        p.observers[o] = thetaQueue.getNextObserver(o);
+      }
+      p.numObservers = numObs;
+      p.beforeTheta = getTime();
+      p.interpolationTheta = theta;
+      p.pending = true;
 
     } else {
-      for (Observer o : obs) {
-        o.theta(theta);
+      for (int o = 0; o < numObs; o++) {
+        thetaQueue.getNextObserver(o).theta(theta);
       }
 
     }
@@ -254,7 +499,8 @@ protected void thetaEvent() {
   public void initialize() {
     t = 0;
     amountManager.resetAmount();
-    thetaQueue = new ThetaQueue();
+    thetaQueue.clear();
+    interpolationParameters.pending = false;
 
     initializePropensities();
   }
@@ -343,7 +589,7 @@ protected AmountManager getAmountManager() {
    * @see AmountManager#getAmount(int)
    */
   public double getAmount(int species) {
-    if (interpolateTheta && interpolationParameters != null) {
+    if (interpolateTheta && interpolationParameters.pending) {
       return NumberTools.interpolateLinear(interpolationParameters.interpolationTheta,
           interpolationParameters.beforeTheta, getTime(),
           (int) interpolationParameters.beforeThetaAmounts[species],
@@ -396,16 +642,122 @@ public Observer addObserver(Observer observer) {
     System.arraycopy(this.observer, 0, n, 0, this.observer.length);
     n[n.length - 1] = observer;
     this.observer = n;
+    updateObserverDispatch();
     return observer;
   }
 
   /**
-   * Sets the seed for a particular model.
+   * Sorts the observers into the ones that need {@link Observer#activateReaction(int, double,
+   * FireType, int)}, {@link Observer#step()} and {@link TriggerObserver#trigger()}, so the
+   * simulator does not call empty methods for each step.
+   */
+  private void updateObserverDispatch() {
+    int numReaction = 0;
+    int numStep = 0;
+    int numTrigger = 0;
+    for (Observer o : observer) {
+      numReaction += o.isActivateReactionNeeded() ? 1 : 0;
+      numStep += o.isStepNeeded() ? 1 : 0;
+      numTrigger += o instanceof TriggerObserver ? 1 : 0;
+    }
+    reactionObservers = new Observer[numReaction];
+    stepObservers = new Observer[numStep];
+    triggerObservers = new TriggerObserver[numTrigger];
+    numReaction = numStep = numTrigger = 0;
+    for (Observer o : observer) {
+      if (o.isActivateReactionNeeded()) {
+        reactionObservers[numReaction++] = o;
+      }
+      if (o.isStepNeeded()) {
+        stepObservers[numStep++] = o;
+      }
+      if (o instanceof TriggerObserver) {
+        triggerObservers[numTrigger++] = (TriggerObserver) o;
+      }
+    }
+  }
+
+  /**
+   * Passes the buffered firings to the observers (if batched dispatch is enabled).
+   */
+  private void flushReactionRecords() {
+    if (reactionRecords != null && reactionRecords.size() > 0) {
+      for (int o = 0; o < reactionObservers.length; o++) {
+        reactionObservers[o].activateReactions(reactionRecords);
+      }
+      reactionRecords.clear();
+    }
+  }
+
+  /**
+   * Gets the number of firings that are buffered before they are passed to the observers. If it is
+   * 0, each firing is passed directly.
+   *
+   * @return the batch size
+   * @see #setObserverBatchSize(int)
+   */
+  public int getObserverBatchSize() {
+    return reactionRecords == null ? 0 : reactionRecords.getCapacity();
+  }
+
+  /**
+   * Sets the number of firings that are buffered before they are passed to the observers by {@link
+   * Observer#activateReactions(ReactionRecordBuffer)}. The buffer is also flushed whenever the
+   * observers have to be up to date, i.e. before steps if any observer needs {@link
+   * Observer#step()} or is a {@link TriggerObserver}, before theta events and when the simulation
+   * has finished. Hence, the observers are informed about a firing after it has been performed
+   * (but with the correct time). If it is 0 (the default), each firing is passed directly.
    *
-   * @param seed
+   * @param batchSize the number of buffered firings or 0
+   */
+  public void setObserverBatchSize(int batchSize) {
+    if (batchSize < 0) {
+      throw new IllegalArgumentException("The batch size must not be negative!");
+    }
+    flushReactionRecords();
+    reactionRecords = batchSize == 0 ? null : new ReactionRecordBuffer(batchSize);
+  }
+
+  /**
+   * Sets the seed for a particular model. The simulator gets its own {@link Stochastics} object
+   * with the given seed, hence other simulators are not affected.
+   *
+   * @param seed the seed
    */
   public void setStochasticSeed(long seed) {
-    stochastics.setSeed(seed);
+    stochastics = new Stochastics(seed);
+  }
+
+  /**
+   * Sets the random stream of this simulator to the one of the given replicate of an ensemble. This
+   * makes it possible to run many replicates concurrently and still get the same results for a
+   * given root seed.
+   *
+   * @param rootSeed  the seed of the ensemble
+   * @param replicate the index of the replicate
+   * @see Stochastics#Stochastics(long, long)
+   */
+  public void setStochasticSeed(long rootSeed, long replicate) {
+    stochastics = new Stochastics(rootSeed, replicate);
+  }
+
+  /**
+   * Gets the {@link Stochastics} object this simulator draws its random numbers from.
+   *
+   * @return the <code>Stochastics</code> object
+   */
+  public Stochastics getStochastics() {
+    return stochastics;
+  }
+
+  /**
+   * Sets the {@link Stochastics} object this simulator draws its random numbers from. Simulators
+   * that run concurrently must not share one.
+   *
+   * @param stochastics the <code>Stochastics</code> object
+   */
+  public void setStochastics(Stochastics stochastics) {
+    this.stochastics = stochastics;
   }
 
 
@@ -464,57 +816,236 @@ public enum FireType {
   }
 
 
+  /**
+   * Keeps the parameters of a theta invocation that is delayed until the end of the step for the
+   * interpolation. The buffers are reused, so a theta event does not allocate memory.
+   */
   private static class DelayedThetaInvocationParameters {
 
+    public boolean pending = false;
     public double beforeTheta = -1;
-    public long[] beforeThetaAmounts = null;
+    public long[] beforeThetaAmounts;
     public double interpolationTheta = 0;
-    public LinkedList<Observer> observers;
+    public Observer[] observers = new Observer[4];
+    public int numObservers = 0;
 
-    public DelayedThetaInvocationParameters(double beforeTheta, long[] beforeThetaAmounts,
-        double interpolationTheta, LinkedList<Observer> observers) {
-      this.beforeTheta = beforeTheta;
-      this.beforeThetaAmounts = beforeThetaAmounts;
-      this.interpolationTheta = interpolationTheta;
-      this.observers = observers;
+    public DelayedThetaInvocationParameters(int numSpecies) {
+      beforeThetaAmounts = new long[numSpecies];
     }
   }
 
   /**
-   * Manages the registered thetas
+   * Manages the registered thetas in a binary min-heap of (theta, observer id) pairs stored in
+   * primitive arrays. Pairs with equal thetas are ordered by their registration, so the observers
+   * of one theta are invoked in the order they have registered it.
    *
    * @author Florian Erhard
    */
   private static class ThetaQueue {
 
-    private Map<Double, LinkedList<Observer>> thetas;
-    private double nextTheta = Double.POSITIVE_INFINITY;
+    private double[] thetas = new double[16];
+    private int[] ids = new int[16];
+    private long[] sequence = new long[16];
+    private int size = 0;
+    private long numPushed = 0;
+
+    // observer ids are their indices in this array
+    private Observer[] observers = new Observer[4];
+    private int numObservers = 0;
+
+    private Observer[] next = new Observer[4];
+    private int numNext = 0;
 
-    public ThetaQueue() {
-      thetas = new HashMap<>();
+    public void clear() {
+      size = 0;
+      numPushed = 0;
+      numNext = 0;
     }
 
     public void pushTheta(double theta, Observer obs) {
-      if (!thetas.containsKey(theta)) {
-        thetas.put(theta, new LinkedList<>());
+      if (size == thetas.length) {
+        thetas = Arrays.copyOf(thetas, 2 * size);
+        ids = Arrays.copyOf(ids, 2 * size);
+        sequence = Arrays.copyOf(sequence, 2 * size);
       }
-      thetas.get(theta).add(obs);
-      nextTheta = Math.min(nextTheta, theta);
+      int id = getId(obs);
+      long seq = numPushed++;
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!less(theta, seq, thetas[parent], sequence[parent])) {
+          break;
+        }
+        thetas[i] = thetas[parent];
+        ids[i] = ids[parent];
+        sequence[i] = sequence[parent];
+        i = parent;
+      }
+      thetas[i] = theta;
+      ids[i] = id;
+      sequence[i] = seq;
     }
 
     public double getNextTheta() {
-      return nextTheta;
+      return size == 0 ? Double.POSITIVE_INFINITY : thetas[0];
+    }
+
+    /**
+     * Removes all pairs with the next theta. Their observers can then be obtained by {@link
+     * #getNextObserver(int)}. If no theta is registered, there are no observers.
+     *
+     * @return the number of observers of the next theta
+     */
+    public int removeNext() {
+      numNext = 0;
+      if (size == 0) {
+        return 0;
+      }
+      double theta = thetas[0];
+      while (size > 0 && thetas[0] == theta) {
+        if (numNext == next.length) {
+          next = Arrays.copyOf(next, 2 * numNext);
+        }
+        next[numNext++] = observers[ids[0]];
+        removeTop();
+      }
+      return numNext;
+    }
+
+    public Observer getNextObserver(int index) {
+      return next[index];
     }
 
-    public LinkedList<Observer> getNextObserversAndRemove() {
-      LinkedList<Observer> re = thetas.remove(nextTheta);
-      nextTheta = Double.POSITIVE_INFINITY;
-      for (Double t : thetas.keySet()) {
-        nextTheta = Math.min(nextTheta, t);
+    /**
+     * Writes the registered thetas in heap order. Observers are identified by their index in the
+     * given array.
+     */
+    public void writeState(ObjectOutput out, Observer[] simulatorObservers) throws IOException {
+      out.writeLong(numPushed);
+      out.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        int index = -1;
+        for (int o = 0; o < simulatorObservers.length && index < 0; o++) {
+          if (simulatorObservers[o] == observers[ids[i]]) {
+            index = o;
+          }
+        }
+        if (index < 0) {
+          throw new IOException("A theta is registered by an observer not added to the simulator!");
+        }
+        out.writeDouble(thetas[i]);
+        out.writeInt(index);
+        out.writeLong(sequence[i]);
+      }
+    }
+
+    public void readState(ObjectInput in, Observer[] simulatorObservers) throws IOException {
+      clear();
+      numPushed = in.readLong();
+      int n = in.readInt();
+      if (thetas.length < n) {
+        thetas = new double[n];
+        ids = new int[n];
+        sequence = new long[n];
+      }
+      for (int i = 0; i < n; i++) {
+        thetas[i] = in.readDouble();
+        ids[i] = getId(simulatorObservers[in.readInt()]);
+        sequence[i] = in.readLong();
+      }
+      size = n;
+    }
+
+    private void removeTop() {
+      size--;
+      double theta = thetas[size];
+      int id = ids[size];
+      long seq = sequence[size];
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        int right = child + 1;
+        if (right < size && less(thetas[right], sequence[right], thetas[child], sequence[child])) {
+          child = right;
+        }
+        if (!less(thetas[child], sequence[child], theta, seq)) {
+          break;
+        }
+        thetas[i] = thetas[child];
+        ids[i] = ids[child];
+        sequence[i] = sequence[child];
+        i = child;
       }
-      return re;
+      thetas[i] = theta;
+      ids[i] = id;
+      sequence[i] = seq;
+    }
+
+    private static boolean less(double theta1, long seq1, double theta2, long seq2) {
+      return theta1 < theta2 || (theta1 == theta2 && seq1 < seq2);
+    }
+
+    private int getId(Observer obs) {
+      for (int i = 0; i < numObservers; i++) {
+        if (observers[i] == obs) {
+          return i;
+        }
+      }
+      if (numObservers == observers.length) {
+        observers = Arrays.copyOf(observers, 2 * numObservers);
+      }
+      observers[numObservers] = obs;
+      return numObservers++;
     }
   }
 
+  /**
+   * Object stream for reading checkpoints. Only arrays of primitives, boxed numbers, hash maps and
+   * the random number generators of colt and {@link SplittableRandomEngine} can be deserialized.
+   * Any other class is rejected before an object of it is created.
+   */
+  private static class CheckpointInputStream extends ObjectInputStream {
+
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+        Number.class.getName(), Boolean.class.getName(), Integer.class.getName(),
+        Long.class.getName(), Double.class.getName(), "java.util.HashMap",
+        "cern.colt.PersistentObject", SplittableRandomEngine.class.getName()));
+
+    private static final String ALLOWED_PACKAGE = "cern.jet.random.";
+
+    public CheckpointInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException {
+      String name = desc.getName();
+      int dimensions = 0;
+      while (name.charAt(dimensions) == '[') {
+        dimensions++;
+      }
+      String component = name.substring(dimensions);
+      boolean allowed;
+      if (dimensions > 0 && component.length() == 1) {
+        allowed = true;
+      } else {
+        if (dimensions > 0) {
+          component = component.substring(1, component.length() - 1);
+        }
+        allowed = ALLOWED_CLASSES.contains(component) || component.startsWith(ALLOWED_PACKAGE);
+      }
+      if (!allowed) {
+        throw new InvalidClassException(name, "Class not allowed in a checkpoint!");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("Proxy classes are not allowed in a checkpoint!");
+    }
+  }
 
 }
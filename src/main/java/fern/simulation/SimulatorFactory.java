@@ -0,0 +1,23 @@
+package fern.simulation;
+
+import fern.network.Network;
+
+/**
+ * Function delegate that creates a {@link Simulator} for a given {@link Network}. It is used
+ * whenever more than one simulator of the same kind is needed, e.g. to run the replicates of a
+ * {@link SimulationEnsemble} on different threads. Observers that have to be registered at each
+ * simulator can be added here as well.
+ *
+ * @see SimulationEnsemble
+ */
+public interface SimulatorFactory {
+
+  /**
+   * Creates a new simulator for the given network.
+   *
+   * @param net the network to simulate
+   * @return the new simulator
+   */
+  Simulator createSimulator(Network net);
+
+}
@@ -0,0 +1,517 @@
+package fern.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import fern.network.AbstractKineticConstantPropensityCalculator;
+import fern.network.AmountManager;
+import fern.network.DefaultAmountManager;
+import fern.network.Network;
+import fern.network.modification.ModifierNetwork;
+import fern.simulation.Simulator.FireType;
+import fern.simulation.controller.SimulationController;
+import fern.simulation.observer.Observer;
+import fern.tools.Stochastics;
+
+/**
+ * Estimates the probability of rare events by the weighted ensemble method. The state space is
+ * divided into bins along a {@link ProgressCoordinate}, and each bin holds a fixed number of
+ * weighted trajectories (walkers). They are simulated in segments of a fixed length of time. After
+ * each segment, walkers are split in bins with too few walkers and merged in bins with too many.
+ * Splitting halves the weight, and merging keeps one of two walkers with a probability
+ * proportional to its weight. Hence the weights stay an unbiased estimate of the probability
+ * distribution, while the rarely visited bins near the target are still populated. Walkers whose
+ * progress reaches the target are removed, and their weight is the probability flux into the
+ * target in this segment.
+ * <p>
+ * Without recycling, {@link #run(int)} estimates the probability to reach the target from the
+ * initial amounts within the simulated time. With recycling (see {@link #setRecycling(boolean)}),
+ * walkers reaching the target are restarted at the initial amounts with their weight. The mean
+ * flux per segment time then estimates the rate of the transition in the steady state.
+ * <p>
+ * Each segment is simulated by a fresh run starting at time 0 from the amounts of its walker. So
+ * the network has to be time homogeneous. Like in {@link SimulationEnsemble}, the segments are
+ * distributed in batches over a {@link ForkJoinPool}. Each segment gets its own random stream
+ * (see {@link Stochastics#Stochastics(long, long)}), so the same root seed always yields the same
+ * estimate.
+ * <p>
+ * For references see G.A. Huber and S. Kim, Weighted-ensemble Brownian dynamics simulations for
+ * protein association reactions, Biophys. J. 70, 97-110 (1996) and B.W. Zhang, D. Jasnow and D.M.
+ * Zuckerman, The "weighted ensemble" path sampling method is statistically exact for a broad class
+ * of stochastic processes and binning procedures, J. Chem. Phys. 132, 054107 (2010)
+ *
+ * @see ProgressCoordinate
+ * @see SimulationEnsemble
+ */
+public class WeightedEnsemble {
+
+  private Network net;
+  private SimulatorFactory factory;
+  private ProgressCoordinate progress;
+  private double[] binBoundaries;
+  private double target;
+  private double segmentTime;
+
+  private int walkersPerBin = 8;
+  private boolean recycling = false;
+  private long rootSeed = Stochastics.getInstance().getSeed();
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  private int batchSize = 4;
+
+  private List<Segment> segments = new ArrayList<>();
+  private List<Walker> walkers = new ArrayList<>();
+  private double[] fluxes = new double[0];
+  private double probability = 0;
+  private long numSegments = 0;
+
+  /**
+   * Creates the weighted ensemble. A walker with progress <i>p</i> belongs to the bin given by the
+   * number of boundaries that are less or equal to <i>p</i>.
+   *
+   * @param net           the network to simulate
+   * @param factory       creates a simulator for each batch of segments
+   * @param progress      the progress coordinate
+   * @param binBoundaries the ascending boundaries of the bins
+   * @param target        the progress at which the rare event has occurred
+   * @param segmentTime   the time each walker is simulated between two resamplings
+   */
+  public WeightedEnsemble(Network net, SimulatorFactory factory, ProgressCoordinate progress,
+      double[] binBoundaries, double target, double segmentTime) {
+    for (int i = 1; i < binBoundaries.length; i++) {
+      if (!(binBoundaries[i - 1] < binBoundaries[i])) {
+        throw new IllegalArgumentException("The bin boundaries have to be ascending!");
+      }
+    }
+    if (!(segmentTime > 0)) {
+      throw new IllegalArgumentException("The segment time has to be positive!");
+    }
+    this.net = net;
+    this.factory = factory;
+    this.progress = progress;
+    this.binBoundaries = binBoundaries.clone();
+    this.target = target;
+    this.segmentTime = segmentTime;
+  }
+
+  /**
+   * Runs the given number of segments for all walkers, starting with {@link #getWalkersPerBin()}
+   * walkers at the initial amounts of the network.
+   *
+   * @param numIterations the number of segments
+   * @return the estimated probability to reach the target within <code>numIterations</code> times
+   * the segment time (or the total flux into the target if walkers are recycled)
+   */
+  public double run(int numIterations) {
+    Stochastics resampling = new Stochastics(rootSeed);
+    long[] initial = new long[net.getNumSpecies()];
+    for (int i = 0; i < initial.length; i++) {
+      initial[i] = net.getInitialAmount(i);
+    }
+    double initialProgress = getSegment(0).getProgress(initial);
+
+    walkers.clear();
+    for (int i = 0; i < walkersPerBin; i++) {
+      walkers.add(new Walker(initial, 1.0 / walkersPerBin, initialProgress));
+    }
+    fluxes = new double[numIterations];
+    probability = 0;
+    numSegments = 0;
+
+    for (int it = 0; it < numIterations && walkers.size() > 0; it++) {
+      simulate();
+
+      List<Walker> next = new ArrayList<>(walkers.size());
+      for (Walker w : walkers) {
+        if (w.reached) {
+          fluxes[it] += w.weight;
+          if (recycling) {
+            next.add(new Walker(initial, w.weight, initialProgress));
+          }
+        } else {
+          next.add(w);
+        }
+      }
+      probability += fluxes[it];
+      walkers = resample(next, resampling);
+    }
+    return probability;
+  }
+
+  /**
+   * Simulates one segment for each walker.
+   */
+  private void simulate() {
+    int numBatches = (walkers.size() + batchSize - 1) / batchSize;
+    for (int b = 0; b < (isParallel() ? numBatches : 1); b++) {
+      getSegment(b);
+    }
+    SegmentTask task = new SegmentTask(0, walkers.size());
+    if (isParallel()) {
+      pool.invoke(task);
+    } else {
+      task.runSegments(segments.get(0));
+    }
+    numSegments += walkers.size();
+  }
+
+  /**
+   * Splits and merges the walkers of each bin, such that each non-empty bin contains {@link
+   * #getWalkersPerBin()} walkers.
+   */
+  private List<Walker> resample(List<Walker> walkers, Stochastics s) {
+    List<List<Walker>> bins = new ArrayList<>();
+    for (int b = 0; b <= binBoundaries.length; b++) {
+      bins.add(new ArrayList<>());
+    }
+    for (Walker w : walkers) {
+      bins.get(getBin(w.progress)).add(w);
+    }
+
+    List<Walker> re = new ArrayList<>(bins.size() * walkersPerBin);
+    for (List<Walker> bin : bins) {
+      if (bin.isEmpty()) {
+        continue;
+      }
+      // merge the two lightest walkers
+      while (bin.size() > walkersPerBin) {
+        bin.sort((w1, w2) -> Double.compare(w1.weight, w2.weight));
+        Walker w1 = bin.get(0);
+        Walker w2 = bin.get(1);
+        double weight = w1.weight + w2.weight;
+        Walker kept = s.getUnif() * weight < w1.weight ? w1 : w2;
+        kept.weight = weight;
+        bin.remove(kept == w1 ? 1 : 0);
+      }
+      // split the heaviest walker
+      while (bin.size() < walkersPerBin) {
+        Walker heaviest = bin.get(0);
+        for (Walker w : bin) {
+          if (w.weight > heaviest.weight) {
+            heaviest = w;
+          }
+        }
+        heaviest.weight /= 2;
+        bin.add(new Walker(heaviest.amounts, heaviest.weight, heaviest.progress));
+      }
+      re.addAll(bin);
+    }
+    return re;
+  }
+
+  private int getBin(double p) {
+    int index = Arrays.binarySearch(binBoundaries, p);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  private Segment getSegment(int batch) {
+    while (segments.size() <= batch) {
+      segments.add(new Segment());
+    }
+    return segments.get(batch);
+  }
+
+  /**
+   * Gets whether the segments are run concurrently, which depends on the network's propensity
+   * calculator (see {@link SimulationEnsemble#isParallel()}).
+   *
+   * @return whether the segments are run concurrently
+   */
+  public boolean isParallel() {
+    return net.getPropensityCalculator() instanceof AbstractKineticConstantPropensityCalculator;
+  }
+
+  /**
+   * Gets the estimate of the last run, i.e. the sum of all fluxes into the target.
+   *
+   * @return the estimated probability
+   */
+  public double getProbability() {
+    return probability;
+  }
+
+  /**
+   * Gets the flux into the target (the weight of the walkers that reached it) for each segment of
+   * the last run.
+   *
+   * @return the fluxes
+   */
+  public double[] getFluxes() {
+    return fluxes.clone();
+  }
+
+  /**
+   * Gets the total weight of the walkers in each bin after the last run.
+   *
+   * @return the weights of the bins
+   */
+  public double[] getBinWeights() {
+    double[] re = new double[binBoundaries.length + 1];
+    for (Walker w : walkers) {
+      re[getBin(w.progress)] += w.weight;
+    }
+    return re;
+  }
+
+  /**
+   * Gets the number of simulated segments in the last run, which is a measure for its costs.
+   *
+   * @return number of segments
+   */
+  public long getNumSegments() {
+    return numSegments;
+  }
+
+  /**
+   * Gets the number of walkers in each non-empty bin. The default value is 8.
+   *
+   * @return walkers per bin
+   */
+  public int getWalkersPerBin() {
+    return walkersPerBin;
+  }
+
+  /**
+   * Sets the number of walkers in each non-empty bin. The default value is 8.
+   *
+   * @param walkersPerBin walkers per bin
+   */
+  public void setWalkersPerBin(int walkersPerBin) {
+    if (walkersPerBin < 1) {
+      throw new IllegalArgumentException("There has to be at least one walker per bin!");
+    }
+    this.walkersPerBin = walkersPerBin;
+  }
+
+  /**
+   * Gets whether walkers reaching the target are restarted at the initial amounts.
+   *
+   * @return whether walkers are recycled
+   */
+  public boolean isRecycling() {
+    return recycling;
+  }
+
+  /**
+   * Sets whether walkers reaching the target are restarted at the initial amounts. The default is
+   * false.
+   *
+   * @param recycling whether walkers are recycled
+   */
+  public void setRecycling(boolean recycling) {
+    this.recycling = recycling;
+  }
+
+  /**
+   * Gets the seed from which the random streams of the segments are derived. The default is the
+   * seed of the {@link Stochastics} singleton at creation time.
+   *
+   * @return the root seed
+   */
+  public long getRootSeed() {
+    return rootSeed;
+  }
+
+  /**
+   * Sets the seed from which the random streams of the segments are derived.
+   *
+   * @param rootSeed the root seed
+   */
+  public void setRootSeed(long rootSeed) {
+    this.rootSeed = rootSeed;
+  }
+
+  /**
+   * Sets the pool in which the segments are run. The default is the common pool.
+   *
+   * @param pool the pool
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Gets the number of segments, that are run one after another by one simulator. The default
+   * value is 4.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the number of segments, that are run one after another by one simulator. The default
+   * value is 4.
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * A weighted trajectory.
+   */
+  private static class Walker {
+
+    private long[] amounts;
+    private double weight;
+    private double progress;
+    private boolean reached = false;
+
+    public Walker(long[] amounts, double weight, double progress) {
+      this.amounts = amounts;
+      this.weight = weight;
+      this.progress = progress;
+    }
+  }
+
+  /**
+   * Splits the walkers into batches and runs each batch by its own simulator.
+   */
+  private class SegmentTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private int from;
+    private int to;
+
+    public SegmentTask(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= batchSize) {
+        runSegments(segments.get(from / batchSize));
+        return;
+      }
+      int mid = from + (((to - from) / batchSize + 1) / 2) * batchSize;
+      invokeAll(new SegmentTask(from, mid), new SegmentTask(mid, to));
+    }
+
+    void runSegments(Segment segment) {
+      for (int i = from; i < to; i++) {
+        segment.run(walkers.get(i), numSegments + i);
+      }
+    }
+  }
+
+  /**
+   * Simulates the segments of one batch. It is observer and controller of its simulator: the
+   * amounts are recorded at the end of the segment by a theta and the simulation is stopped when
+   * the target is reached.
+   */
+  private class Segment extends Observer implements SimulationController {
+
+    private WalkerNetwork walkerNet;
+    private Walker walker;
+    private boolean done;
+
+    public Segment() {
+      super(null);
+      walkerNet = new WalkerNetwork(net);
+      Simulator sim = factory.createSimulator(walkerNet);
+      setSimulator(sim);
+      sim.addObserver(this);
+    }
+
+    public void run(Walker walker, long replicate) {
+      this.walker = walker;
+      walkerNet.start = walker.amounts;
+      getSimulator().setStochasticSeed(rootSeed, replicate);
+      getSimulator().start(this);
+    }
+
+    public double getProgress(long[] amounts) {
+      walkerNet.start = amounts;
+      getSimulator().initialize();
+      return progress.getProgress(getSimulator());
+    }
+
+    @Override
+    public boolean goOn(Simulator sim) {
+      if (done) {
+        return false;
+      }
+      if (progress.getProgress(sim) >= target) {
+        walker.reached = true;
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void started() {
+      done = false;
+      walker.reached = false;
+      setTheta(segmentTime);
+    }
+
+    /**
+     * Records the amounts at the end of the segment.
+     */
+    @Override
+    public void theta(double theta) {
+      long[] amounts = new long[walkerNet.getNumSpecies()];
+      for (int i = 0; i < amounts.length; i++) {
+        amounts[i] = (long) getSimulator().getAmount(i);
+      }
+      walker.amounts = amounts;
+      walker.progress = progress.getProgress(getSimulator());
+      done = true;
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public boolean isStepNeeded() {
+      return false;
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+    }
+
+    @Override
+    public boolean isActivateReactionNeeded() {
+      return false;
+    }
+  }
+
+  /**
+   * View of the network with its own {@link AmountManager}, whose initial amounts are the amounts
+   * of the actual walker.
+   */
+  private static class WalkerNetwork extends ModifierNetwork {
+
+    private AmountManager amountManager;
+    private long[] start;
+
+    public WalkerNetwork(Network originalNet) {
+      super(originalNet);
+      amountManager = new DefaultAmountManager(this);
+    }
+
+    @Override
+    public AmountManager getAmountManager() {
+      return amountManager;
+    }
+
+    @Override
+    public long getInitialAmount(int species) {
+      return start[species];
+    }
+  }
+
+}
@@ -1,5 +1,6 @@
 package fern.simulation.algorithm;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import cern.colt.bitvector.BitVector;
@@ -19,6 +20,11 @@
  * Each tau leaping algorithm only works with an {@link AbstractKineticConstantPropensityCalculator}
  * and only if the highest order of a reaction is maximal 3.
  * <p>
+ * The stoichiometry is stored in flat arrays (by reaction and by species), so the propensities,
+ * the critical reactions and the moments needed for the timestep candidates are each computed in
+ * one pass over them. The firings of a leap are drawn at once and checked for negative amounts
+ * before any of them is performed.
+ * <p>
  * For references see Daniel T. Gillespie, Approximate accelerated stochastic simulation of
  * chemically reacting systems, Journal of chemical physics vol 115, nr 4 (2001); Cao et al.,
  * Efficient step size selection for the tau-leaping simulation method, Journal of chemical physics
@@ -34,13 +40,35 @@ public abstract class AbstractBaseTauLeaping extends GillespieEnhanced {
   private int numSimpleCalls = 100;
   private int nCritical = 10;
   private double epsilon = 0.03;
-  private int[][] v = null;
   private BitVector criticals = null;
   protected boolean verbose = false;
 
   protected Map<Integer, Integer>[] reactantHistos;
   protected Map<Integer, Integer>[] productHistos;
 
+  // the distinct reactants of reaction j and their multiplicities are stored at
+  // reactantOffsets[j] to reactantOffsets[j+1]-1
+  protected int[] reactantOffsets;
+  protected int[] reactantSpecies;
+  protected int[] reactantMultiplicity;
+  // the species changed by reaction j and their net changes are stored at
+  // changeOffsets[j] to changeOffsets[j+1]-1
+  protected int[] changeOffsets;
+  protected int[] changeSpecies;
+  protected int[] change;
+  // the reactions changing species i and the net changes are stored at
+  // speciesOffsets[i] to speciesOffsets[i+1]-1
+  protected int[] speciesOffsets;
+  protected int[] speciesReactions;
+  protected int[] speciesChange;
+
+  private boolean[] boundary;
+  private double[] means;
+  private int[] firings;
+  private long[] delta;
+  private int[] touched;
+  private boolean[] isTouched;
+
 
   /**
    * Create the simulator for a given network.
@@ -59,19 +87,98 @@ public AbstractBaseTauLeaping(Network net) {
       productHistos[i] = NumberTools.createHistogramAsMap(net.getProducts(i));
     }
 
-    v = new int[net.getNumSpecies()][net.getNumReactions()];
-    for (int species = 0; species < v.length; species++) {
-      for (int reaction = 0; reaction < v[species].length; reaction++) {
-        if (reactantHistos[reaction].containsKey(species)) {
-          v[species][reaction] -= reactantHistos[reaction].get(species);
+    createStoichiometry(net);
+
+    boundary = new boolean[net.getNumSpecies()];
+    for (int i = 0; i < boundary.length; i++) {
+      boundary[i] = net.getAnnotationManager().containsSpeciesAnnotation(i, "BoundaryCondition");
+    }
+    means = new double[net.getNumReactions()];
+    firings = new int[net.getNumReactions()];
+    delta = new long[net.getNumSpecies()];
+    touched = new int[net.getNumSpecies()];
+    isTouched = new boolean[net.getNumSpecies()];
+  }
+
+  private void createStoichiometry(Network net) {
+    int numReactions = net.getNumReactions();
+    int numSpecies = net.getNumSpecies();
+
+    reactantOffsets = new int[numReactions + 1];
+    changeOffsets = new int[numReactions + 1];
+    for (int j = 0; j < numReactions; j++) {
+      reactantOffsets[j + 1] = reactantOffsets[j] + reactantHistos[j].size();
+      int num = 0;
+      for (int species : reactantHistos[j].keySet()) {
+        if (getNetChange(species, j) != 0) {
+          num++;
         }
-        if (productHistos[reaction].containsKey(species)) {
-          v[species][reaction] = productHistos[reaction].get(species);
+      }
+      for (int species : productHistos[j].keySet()) {
+        if (!reactantHistos[j].containsKey(species)) {
+          num++;
         }
       }
+      changeOffsets[j + 1] = changeOffsets[j] + num;
+    }
+
+    reactantSpecies = new int[reactantOffsets[numReactions]];
+    reactantMultiplicity = new int[reactantSpecies.length];
+    changeSpecies = new int[changeOffsets[numReactions]];
+    change = new int[changeSpecies.length];
+    int[] count = new int[numSpecies + 1];
+    for (int j = 0; j < numReactions; j++) {
+      int r = reactantOffsets[j];
+      for (int species : reactantHistos[j].keySet()) {
+        reactantSpecies[r] = species;
+        reactantMultiplicity[r++] = reactantHistos[j].get(species);
+      }
+      int c = changeOffsets[j];
+      for (int species : reactantHistos[j].keySet()) {
+        if (getNetChange(species, j) != 0) {
+          changeSpecies[c] = species;
+          change[c++] = getNetChange(species, j);
+        }
+      }
+      for (int species : productHistos[j].keySet()) {
+        if (!reactantHistos[j].containsKey(species)) {
+          changeSpecies[c] = species;
+          change[c++] = productHistos[j].get(species);
+        }
+      }
+      for (int k = changeOffsets[j]; k < changeOffsets[j + 1]; k++) {
+        count[changeSpecies[k] + 1]++;
+      }
+    }
+
+    // transpose
+    speciesOffsets = count;
+    for (int i = 0; i < numSpecies; i++) {
+      speciesOffsets[i + 1] += speciesOffsets[i];
+    }
+    speciesReactions = new int[changeSpecies.length];
+    speciesChange = new int[changeSpecies.length];
+    int[] next = speciesOffsets.clone();
+    for (int j = 0; j < numReactions; j++) {
+      for (int k = changeOffsets[j]; k < changeOffsets[j + 1]; k++) {
+        int index = next[changeSpecies[k]]++;
+        speciesReactions[index] = j;
+        speciesChange[index] = change[k];
+      }
     }
   }
 
+  private int getNetChange(int species, int reaction) {
+    int re = 0;
+    if (reactantHistos[reaction].containsKey(species)) {
+      re -= reactantHistos[reaction].get(species);
+    }
+    if (productHistos[reaction].containsKey(species)) {
+      re += productHistos[reaction].get(species);
+    }
+    return re;
+  }
+
   /**
    * choose the timestep candidate for the noncritical reactions by some method.
    *
@@ -97,6 +204,31 @@ protected double chooseTauCriticals(BitVector criticals) {
     return stochastics.getExponential(a_sum_c);
   }
 
+  /**
+   * Computes for each species the expected change and its variance per time unit by the firings
+   * of the noncritical reactions in one pass over the stoichiometry, i.e. <code>mu[i]</code> is
+   * the sum of v_ij * a_j and <code>sigma[i]</code> the sum of v_ij^2 * a_j over all noncritical
+   * reactions j.
+   *
+   * @param criticals Bitvector identifying the critical reactions
+   * @param mu        array for the expected changes
+   * @param sigma     array for the variances
+   */
+  protected void computeSpeciesMoments(BitVector criticals, double[] mu, double[] sigma) {
+    Arrays.fill(mu, 0);
+    Arrays.fill(sigma, 0);
+    for (int j = 0; j < a.length; j++) {
+      if (a[j] == 0 || criticals.get(j)) {
+        continue;
+      }
+      for (int k = changeOffsets[j]; k < changeOffsets[j + 1]; k++) {
+        double v = change[k];
+        mu[changeSpecies[k]] += v * a[j];
+        sigma[changeSpecies[k]] += v * v * a[j];
+      }
+    }
+  }
+
 
   /**
    * Performs a tau leaping step. First, critical reactions (that could exhaust one of its
@@ -126,11 +258,6 @@ public void performStep(SimulationController control) {
     if (verbose) {
       System.out.println("Step started at (" + getTime() + ")\n-----------------\n");
       System.out.println("use simple threshold: " + (useSimpleFactor / a_sum));
-    }
-
-    identifyCriticals();
-
-    if (verbose) {
       System.out.println("critical reactions: \n" + NetworkTools
         .getReactionNameWithAmounts(getNet(), NumberTools.getContentAsArray(criticals)) + "\n");
     }
@@ -160,22 +287,20 @@ public void performStep(SimulationController control) {
           System.out.println("Chose tau'': " + tau2);
         }
 
-        getNet().getAmountManager().save();
         if ((tau3 < tau1) && (tau3 < tau2)) {
-          success = leapBy(tau3, criticals, FireType.TauLeapNonCritical);
+          success = leapBy(tau3, -1, FireType.TauLeapNonCritical);
           if (verbose) {
             System.out.println("Leaped to theta");
           }
         } else if (tau1 < tau2) {
-          success = leapBy(tau1, criticals, FireType.TauLeapNonCritical);
+          success = leapBy(tau1, -1, FireType.TauLeapNonCritical);
           if (verbose) {
             System.out.println("Leaped tau'");
           }
 
         } else {
           int crit = identifyTheOnlyCriticalReaction(criticals);
-          fireReaction(crit, t + tau2, FireType.TauLeapCritical);
-          success = leapBy(tau2, criticals, FireType.TauLeapCritical);
+          success = leapBy(tau2, crit, FireType.TauLeapCritical);
           if (verbose) {
             System.out.println("Leaped tau''");
           }
@@ -187,7 +312,6 @@ public void performStep(SimulationController control) {
           }
 
           tau1 /= 2.0;
-          getNet().getAmountManager().rollback();
         }
       }
     }
@@ -198,12 +322,23 @@ public void performStep(SimulationController control) {
   }
 
 
+  /**
+   * Calculates the propensities and identifies the critical reactions in one pass.
+   */
   private void recalculatePropensities() {
-    a_sum = 0;
+    if (criticals == null) {
+      criticals = new BitVector(getNet().getNumReactions());
+    } else {
+      criticals.clear();
+    }
 
+    a_sum = 0;
     for (int i = 0; i < a.length; i++) {
       a[i] = getPropensityCalculator().calculatePropensity(i, getAmountManager(), this);
       a_sum += a[i];
+      if ((a[i] > 0) && (computeL(i) < nCritical)) {
+        criticals.set(i);
+      }
     }
 
     if (a_sum == 0) {
@@ -243,26 +378,6 @@ private int identifyTheOnlyCriticalReaction(BitVector criticals) {
     throw new RuntimeException("Drawing variable aborted!");
   }
 
-
-  /**
-   * Identifies critical reactions.
-   *
-   * @return Bitvector identifying the critical reactions
-   */
-  private void identifyCriticals() {
-    if (criticals == null) {
-      criticals = new BitVector(getNet().getNumReactions());
-    } else {
-      criticals.clear();
-    }
-
-    for (int j = 0; j < criticals.size(); j++) {
-      if ((a[j] > 0) && (computeL(j) < nCritical)) {
-        criticals.set(j);
-      }
-    }
-  }
-
   /**
    * Determines the maximal number of times that the reaction {@code reaction} can fire before
    * exhausting one of its reactants.
@@ -271,64 +386,121 @@ private void identifyCriticals() {
    * @return maximal number of firing times
    */
   private int computeL(int reaction) {
-    int firings = Integer.MAX_VALUE;
-
-    Map<Integer, Integer> reactantHisto = this.reactantHistos[reaction];
-    for (Integer reactant : reactantHisto.keySet()) {
+    long firings = Integer.MAX_VALUE;
+    for (int k = reactantOffsets[reaction]; k < reactantOffsets[reaction + 1]; k++) {
       firings = Math.min(firings,
-        (int) Math.floor(getAmountManager().getAmount(reactant) / reactantHisto.get(reactant)));
+        getAmountManager().getAmount(reactantSpecies[k]) / reactantMultiplicity[k]);
     }
-
-    return firings;
+    return (int) firings;
   }
 
   /**
-   * Tries to perform the tau leap by generating random numbers for the times of firings of each
-   * noncritical reaction. If the leap is unsuccessful (because the reactants of one reaction are
-   * exhausted), false is returned (but the already performed firings are not canceled). If the
-   * parameter for the used Poisson distribution is greater than {@code langevinThreshold}, a
-   * Normal distribution is used as an approximation (which is faster).
+   * Tries to perform the tau leap. The numbers of firings of all noncritical reactions are drawn
+   * at once (see {@link fern.tools.Stochastics#getPoisson(double[], int[])}). If the parameter for
+   * the Poisson distribution is greater than {@code langevinThreshold}, a Normal distribution is
+   * used as an approximation. If one of the reactions would exhaust its reactants, false is
+   * returned and nothing is fired. Otherwise the given critical reaction (if any) fires once at the
+   * end of the leap and the noncritical reactions fire.
    *
-   * @param tau       the timestep for the leap
-   * @param criticals Bitvector identifying the critical reactions
-   * @return
+   * @param tau      the timestep for the leap
+   * @param critical the critical reaction to fire or -1
+   * @param fireType the type of the noncritical firings
+   * @return whether the leap was performed
    */
-  private boolean leapBy(double tau, BitVector criticals, FireType fireType) {
+  private boolean leapBy(double tau, int critical, FireType fireType) {
+    for (int i = 0; i < means.length; i++) {
+      double at = a[i] * tau;
+      means[i] = criticals.get(i) || at > langevinThreshold ? 0 : at;
+    }
+    stochastics.getPoisson(means, firings);
+    if (!Double.isInfinite(langevinThreshold)) {
+      for (int i = 0; i < means.length; i++) {
+        double at = a[i] * tau;
+        if (!criticals.get(i) && at > langevinThreshold) {
+          firings[i] = Math.max(0,
+              (int) Math.round(at + (Math.sqrt(at) * stochastics.getNormal())));
+        }
+      }
+    }
+
+    if (!isLeapFeasible(critical)) {
+      return false;
+    }
+
+    if (critical >= 0) {
+      fireReaction(critical, t + tau, FireType.TauLeapCritical);
+    }
     int max = 0;
     int sum = 0;
-    try {
-      int times;
-      double at;
-      for (int i = 0; i < getNet().getNumReactions(); i++) {
-        if (criticals.get(i)) {
+    for (int i = 0; i < firings.length; i++) {
+      if (firings[i] > 0) {
+        fireReaction(i, t, t + tau, firings[i], fireType);
+        max = Math.max(max, firings[i]);
+        sum += firings[i];
+      }
+    }
+    if (verbose) {
+      System.out.println("Sum=" + sum + " Max=" + max);
+    }
+    t += tau;
+    return true;
+  }
+
+  /**
+   * Checks whether the drawn firings can be performed one after another (the critical reaction
+   * first) without any amount becoming negative.
+   *
+   * @param critical the critical reaction to fire or -1
+   * @return whether no amount becomes negative
+   */
+  private boolean isLeapFeasible(int critical) {
+    int numTouched = 0;
+    boolean feasible = true;
+    for (int i = -1; i < firings.length && feasible; i++) {
+      int reaction = i < 0 ? critical : i;
+      long times = i < 0 ? 1 : firings[i];
+      if (reaction < 0 || times == 0) {
+        continue;
+      }
+      for (int k = changeOffsets[reaction]; k < changeOffsets[reaction + 1]; k++) {
+        int species = changeSpecies[k];
+        if (boundary[species]) {
           continue;
         }
-        at = a[i] * tau;
-        if (at > langevinThreshold) {
-          times = Math.max(0, (int) Math.round(at + (Math.sqrt(at) * stochastics.getNormal())));
-        } else {
-          times = stochastics.getPoisson(at);
+        if (!isTouched[species]) {
+          isTouched[species] = true;
+          touched[numTouched++] = species;
         }
-        if (times > 0) {
-          fireReaction(i, t, t + tau, times, fireType);
+        delta[species] += change[k] * times;
+        if (change[k] < 0 && getAmountManager().getAmount(species) + delta[species] < 0) {
+          feasible = false;
         }
-        max = Math.max(max, times);
-        sum += times;
-      }
-      if (verbose) {
-        System.out.println("Sum=" + sum + " Max=" + max);
       }
-      t += tau;
-      return true;
-    } catch (RuntimeException e) {
-      return false;
     }
+    for (int k = 0; k < numTouched; k++) {
+      delta[touched[k]] = 0;
+      isTouched[touched[k]] = false;
+    }
+    return feasible;
   }
 
+  /**
+   * Gets the net change of the amount of a species by one firing of a reaction.
+   *
+   * @param species  the species index
+   * @param reaction the reaction index
+   * @return the net change
+   */
   protected int getV(int species, int reaction) {
-    return v[species][reaction];
+    for (int k = changeOffsets[reaction]; k < changeOffsets[reaction + 1]; k++) {
+      if (changeSpecies[k] == species) {
+        return change[k];
+      }
+    }
+    return 0;
   }
 
+
   /**
    * The Langevin threshold determines, when the normal distribution is used as an approximation for
    * the poisson distribution. The default value is Infinity (no approximation).
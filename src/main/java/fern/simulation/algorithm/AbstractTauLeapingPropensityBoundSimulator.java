@@ -29,6 +29,8 @@ public abstract class AbstractTauLeapingPropensityBoundSimulator extends Abstrac
   protected double[][] f;
   protected double[] mu;
   protected double[] sigma;
+  private int[] touched;
+  private int[] touchedStamp;
 
 
   public AbstractTauLeapingPropensityBoundSimulator(Network net) {
@@ -36,6 +38,8 @@ public AbstractTauLeapingPropensityBoundSimulator(Network net) {
     f = new double[net.getNumReactions()][net.getNumReactions()];
     mu = new double[net.getNumReactions()];
     sigma = new double[net.getNumReactions()];
+    touched = new int[net.getNumReactions()];
+    touchedStamp = new int[net.getNumReactions()];
   }
 
 
@@ -81,6 +85,11 @@ protected double chooseTauNonCriticals(BitVector criticals) {
   protected abstract double getTop(int j);
 
 
+  /**
+   * Computes f_jj' = sum_i (partial a_j / partial x_i) * v_ij' only for the species i that are
+   * reactants of j and the reactions j' that change them, with one partial derivative per
+   * reactant species.
+   */
   private void preprocessNonCriticals(BitVector criticals) {
 
     if (!(getNet().getPropensityCalculator() instanceof PartialDerivativePropensityCalculator)) {
@@ -92,38 +101,37 @@ private void preprocessNonCriticals(BitVector criticals) {
         .getPropensityCalculator();
 
     for (int j = 0; j < getNet().getNumReactions(); j++) {
-      for (int js = 0; js < getNet().getNumReactions(); js++) {
-        if (criticals.get(js)) {
+      Arrays.fill(f[j], 0);
+      int numTouched = 0;
+      for (int r = reactantOffsets[j]; r < reactantOffsets[j + 1]; r++) {
+        int species = reactantSpecies[r];
+        if (speciesOffsets[species] == speciesOffsets[species + 1]) {
           continue;
         }
-        f[j][js] = 0;
-        for (int species : reactantHistos[j].keySet()) {
-          double v = getV(species, js);
-          if (v != 0) {
-            f[j][js] += v * propCalc
-                .calculatePartialDerivative(j, getAmountManager(), species, getVolume());
+        double partial = propCalc
+            .calculatePartialDerivative(j, getAmountManager(), species, getVolume());
+        for (int k = speciesOffsets[species]; k < speciesOffsets[species + 1]; k++) {
+          int js = speciesReactions[k];
+          if (criticals.get(js)) {
+            continue;
           }
+          if (touchedStamp[js] != j + 1) {
+            touchedStamp[js] = j + 1;
+            touched[numTouched++] = js;
+          }
+          f[j][js] += speciesChange[k] * partial;
         }
-//				for (int species : productHistos[js].keySet()) {
-//					if (reactantHistos[js].containsKey(species)) continue;
-//					double v = getV(species,js);
-//					if (v!=0 && reactantHistos[j].containsKey(species))
-//						f[j][js]+=v*propCalc.calculatePartialDerivative(j, getAmountManager(), species, getVolume());
-//				}
       }
-    }
 
-    for (int j = 0; j < getNet().getNumReactions(); j++) {
       mu[j] = 0;
       sigma[j] = 0;
-      for (int js = 0; js < getNet().getNumReactions(); js++) {
-        if (criticals.get(js)) {
-          continue;
-        }
+      for (int k = 0; k < numTouched; k++) {
+        int js = touched[k];
         mu[j] += f[j][js] * a[js];
         sigma[j] += f[j][js] * f[j][js] * a[js];
       }
     }
+    Arrays.fill(touchedStamp, 0);
   }
 
 
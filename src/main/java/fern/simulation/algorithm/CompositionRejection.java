@@ -6,6 +6,10 @@
  */
 package fern.simulation.algorithm;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import fern.network.Network;
 import fern.simulation.controller.SimulationController;
 
@@ -47,19 +51,15 @@ public boolean isEfficientlyAdaptSum() {
   public void initialize() {
     super.initialize();
     groups.initialize(a);
-  }
-
-  @Override
-  public void reinitialize() {
-    super.reinitialize();
-    groups.initialize(a);
+    groups.resetCounters();
   }
 
   @Override
   public void performStep(SimulationController control) {
 
     if (changed) {
-      initialize();
+      initializePropensities();
+      groups.initialize(a);
     }
 
     // obtain mu and tau by the direct method described in chapter 5A page 417ff
@@ -80,7 +80,10 @@ public void performStep(SimulationController control) {
 
       fireReaction(mu, t + tau, FireType.GillespieEnhanced);
 
-      for (int alpha : dep.getDependent(mu)) {
+      int[] offsets = dep.getOffsets();
+      int[] targets = dep.getTargets();
+      for (int k = offsets[mu]; k < offsets[mu + 1]; k++) {
+        int alpha = targets[k];
         double old = a[alpha];
         a[alpha] = getPropensityCalculator().calculatePropensity(alpha, getAmountManager(), this);
         groups.propensityChanged(alpha, old, a[alpha]);
@@ -95,6 +98,27 @@ public void performStep(SimulationController control) {
   }
 
 
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    super.writeState(out);
+    groups.writeState(out);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    groups.readState(in);
+  }
+
+  /**
+   * Gets the container of the propensity groups, e.g. to check its rejection rate.
+   *
+   * @return the group container
+   */
+  public GroupContainer getGroupContainer() {
+    return groups;
+  }
+
   @Override
   public String getName() {
     return "Composition rejection";
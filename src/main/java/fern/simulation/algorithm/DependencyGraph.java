@@ -8,9 +8,8 @@
 
 import fern.network.ComplexDependenciesPropensityCalculator;
 import fern.network.Network;
-import fern.tools.NumberTools;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Map;
 
 /**
  * Implements a dependency graph. It is a directed graph whose vertices are the reactions of a
@@ -19,6 +18,12 @@
  * <p>
  * This definition implies that if a reaction i fires, the propensities of each descendant in the
  * dependency graph has to be recalculated and no other.
+ * <p>
+ * The graph is built by an inverted index from each species to the reactions it is reactant of
+ * (or included in the kinetic law of), hence only reactions sharing a species are compared. It is
+ * stored in compressed sparse row form: the descendants of reaction i are
+ * <code>getTargets()[k]</code> for <code>getOffsets()[i] &le; k &lt; getOffsets()[i+1]</code>, in
+ * ascending order.
  *
  *
  * <p>
@@ -31,35 +36,126 @@
  */
 public class DependencyGraph {
 
-  private LinkedList<Integer>[] dependsOn = null;
+  private int[] offsets;
+  private int[] targets;
 
   /**
    * Creates the dependency graph for a given network
    *
    * @param net the network
    */
-  @SuppressWarnings("unchecked")
   public DependencyGraph(Network net) {
-    dependsOn = new LinkedList[net.getNumReactions()];
+    int numReactions = net.getNumReactions();
+    int[][] dependsOnSpecies = createSpeciesIndex(net);
+
+    // the net change of each species by reaction i and the species that are touched by i
+    int[] change = new int[net.getNumSpecies()];
+    int[] touched = new int[16];
+    // mark[j]==i+1 iff j is already a descendant of i
+    int[] mark = new int[numReactions];
+    int[] dependent = new int[16];
+
+    offsets = new int[numReactions + 1];
+    targets = new int[numReactions];
+    for (int i = 0; i < numReactions; i++) {
+      int numTouched = 0;
+      int[] reactants = net.getReactants(i);
+      int[] products = net.getProducts(i);
+      if (touched.length < reactants.length + products.length) {
+        touched = new int[reactants.length + products.length];
+      }
+      for (int s : reactants) {
+        change[s]--;
+        touched[numTouched++] = s;
+      }
+      for (int s : products) {
+        change[s]++;
+        touched[numTouched++] = s;
+      }
 
-    Map<Integer, Integer>[] reactants = new Map[net.getNumReactions()];
-    for (int i = 0; i < reactants.length; i++) {
-      reactants[i] = NumberTools.createHistogramAsMap(net.getReactants(i));
+      int numDependent = 0;
+      mark[i] = i + 1;
+      dependent[numDependent++] = i;
+      for (int k = 0; k < numTouched; k++) {
+        int s = touched[k];
+        if (change[s] != 0) {
+          for (int j : dependsOnSpecies[s]) {
+            if (mark[j] != i + 1) {
+              mark[j] = i + 1;
+              if (numDependent == dependent.length) {
+                dependent = Arrays.copyOf(dependent, 2 * dependent.length);
+              }
+              dependent[numDependent++] = j;
+            }
+          }
+        }
+      }
+      for (int k = 0; k < numTouched; k++) {
+        change[touched[k]] = 0;
+      }
+
+      Arrays.sort(dependent, 0, numDependent);
+      if (offsets[i] + numDependent > targets.length) {
+        targets = Arrays.copyOf(targets, Math.max(offsets[i] + numDependent, 2 * targets.length));
+      }
+      System.arraycopy(dependent, 0, targets, offsets[i], numDependent);
+      offsets[i + 1] = offsets[i] + numDependent;
     }
+    if (targets.length > offsets[numReactions]) {
+      targets = Arrays.copyOf(targets, offsets[numReactions]);
+    }
+  }
+
+  /**
+   * Creates the inverted index from each species to the reactions whose propensity depends on it,
+   * i.e. whose reactant it is or (for a {@link ComplexDependenciesPropensityCalculator}) whose
+   * kinetic law includes it.
+   */
+  private int[][] createSpeciesIndex(Network net) {
+    int numReactions = net.getNumReactions();
+    ComplexDependenciesPropensityCalculator complex =
+        net.getPropensityCalculator() instanceof ComplexDependenciesPropensityCalculator
+            ? (ComplexDependenciesPropensityCalculator) net.getPropensityCalculator()
+            : null;
 
-    Map<Integer, Integer>[] products = new Map[net.getNumReactions()];
-    for (int i = 0; i < products.length; i++) {
-      products[i] = NumberTools.createHistogramAsMap(net.getProducts(i));
+    int[][] species = new int[numReactions][];
+    int[] count = new int[net.getNumSpecies()];
+    for (int j = 0; j < numReactions; j++) {
+      int[] reactants = net.getReactants(j);
+      if (complex == null) {
+        species[j] = reactants;
+      } else {
+        species[j] = Arrays.copyOf(reactants,
+            reactants.length + complex.getKineticLawSpecies(j).size());
+        int k = reactants.length;
+        for (int s : complex.getKineticLawSpecies(j)) {
+          species[j][k++] = s;
+        }
+      }
+      for (int s : species[j]) {
+        count[s]++;
+      }
     }
 
-    for (int i = 0; i < dependsOn.length; i++) {
-      dependsOn[i] = new LinkedList();
-      for (int j = 0; j < net.getNumReactions(); j++) {
-        if (haveToCreateEdgeFromTo(i, j, net, reactants, products)) {
-          dependsOn[i].add(j);
+    int[][] re = new int[count.length][];
+    for (int s = 0; s < re.length; s++) {
+      re[s] = new int[count[s]];
+      count[s] = 0;
+    }
+    for (int j = 0; j < numReactions; j++) {
+      for (int s : species[j]) {
+        // a species may occur more than once for the same reaction
+        if (count[s] == 0 || re[s][count[s] - 1] != j) {
+          re[s][count[s]++] = j;
         }
       }
     }
+    for (int s = 0; s < re.length; s++) {
+      if (count[s] < re[s].length) {
+        re[s] = Arrays.copyOf(re[s], count[s]);
+      }
+    }
+    return re;
   }
 
   /**
@@ -67,46 +163,46 @@ public DependencyGraph(Network net) {
    *
    * @param reaction index of the reaction
    * @return list of dependent reactions
+   * @deprecated the list is created on each call, iterate over {@link #getTargets()} between the
+   * {@link #getOffsets()} instead
    */
+  @Deprecated
   public LinkedList<Integer> getDependent(int reaction) {
-    return dependsOn[reaction];
-  }
-
-  private boolean haveToCreateEdgeFromTo(int i, int j, Network net,
-      Map<Integer, Integer>[] reactants, Map<Integer, Integer>[] products) {
-    // if and only if there is at least one molecule that:
-    //  1. changes quantity, when i is executed
-    //  2. is reactant of j
-    // or i = j
-    // or we have a ComplexDependenciesPropensityCalculator:
-    // one molecule that
-    //  1. is dependent on j
-    //  2. changes quantitiy
-    if (i == j) {
-      return true;
-    }
-
-    for (int j_reactant : net.getReactants(j)) {
-      int i_reactant = reactants[i].containsKey(j_reactant) ? reactants[i].get(j_reactant) : 0;
-      int i_product = products[i].containsKey(j_reactant) ? products[i].get(j_reactant) : 0;
-      if (i_reactant != i_product) {
-        return true;
-      }
+    LinkedList<Integer> re = new LinkedList<>();
+    for (int k = offsets[reaction]; k < offsets[reaction + 1]; k++) {
+      re.add(targets[k]);
     }
+    return re;
+  }
 
-    if (net.getPropensityCalculator() instanceof ComplexDependenciesPropensityCalculator) {
-      for (int j_reactant : ((ComplexDependenciesPropensityCalculator) net
-          .getPropensityCalculator()).getKineticLawSpecies(j)) {
-        int i_reactant = reactants[i].containsKey(j_reactant) ? reactants[i].get(j_reactant) : 0;
-        int i_product = products[i].containsKey(j_reactant) ? products[i].get(j_reactant) : 0;
-        if (i_reactant != i_product) {
-          return true;
-        }
-      }
-    }
+  /**
+   * Gets the number of descendants of a reaction in the dependency graph.
+   *
+   * @param reaction index of the reaction
+   * @return number of dependent reactions
+   */
+  public int getNumDependent(int reaction) {
+    return offsets[reaction + 1] - offsets[reaction];
+  }
 
-    return false;
+  /**
+   * Gets the row offsets into {@link #getTargets()}, which has length <code>numReactions+1</code>.
+   * The array must not be modified.
+   *
+   * @return the row offsets
+   */
+  public int[] getOffsets() {
+    return offsets;
   }
 
+  /**
+   * Gets the descendants of all reactions, row by row (see {@link #getOffsets()}). The array must
+   * not be modified.
+   *
+   * @return the concatenated descendants
+   */
+  public int[] getTargets() {
+    return targets;
+  }
 
 }
@@ -6,6 +6,10 @@
  */
 package fern.simulation.algorithm;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import fern.network.Network;
 import fern.simulation.Simulator;
 import fern.simulation.controller.SimulationController;
@@ -90,7 +94,10 @@ public void performStep(SimulationController control) {
 
       fireReaction(mu, tau, FireType.GibsonBruck);
 
-      for (int alpha : dep.getDependent(mu)) {
+      int[] offsets = dep.getOffsets();
+      int[] targets = dep.getTargets();
+      for (int k = offsets[mu]; k < offsets[mu + 1]; k++) {
+        int alpha = targets[k];
         double a_alphaold = a[alpha];
         a[alpha] = getPropensityCalculator().calculatePropensity(alpha, getAmountManager(), this);
 
@@ -156,6 +163,22 @@ public void initialize() {
     tBeforeAlphaBecomesNull = new double[a.length];
   }
 
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    out.writeBoolean(changed);
+    queue.writeState(out);
+    out.writeObject(tBeforeAlphaBecomesNull);
+    out.writeObject(aBeforeAlphaBecomesNull);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    changed = in.readBoolean();
+    queue.readState(in);
+    tBeforeAlphaBecomesNull = (double[]) in.readObject();
+    aBeforeAlphaBecomesNull = (double[]) in.readObject();
+  }
+
   @Override
   public String getName() {
     return "Gibson-Bruck";
@@ -6,6 +6,10 @@
  */
 package fern.simulation.algorithm;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import fern.network.Network;
 import fern.simulation.Simulator;
 import fern.simulation.controller.SimulationController;
@@ -91,14 +95,18 @@ public void performStep(SimulationController control) {
 
       fireReaction(mu, t + tau, FireType.GillespieEnhanced);
 
-      for (int alpha : dep.getDependent(mu)) {
-        if (efficientlyAdaptSum) {
+      int[] offsets = dep.getOffsets();
+      int[] targets = dep.getTargets();
+      if (efficientlyAdaptSum) {
+        for (int k = offsets[mu]; k < offsets[mu + 1]; k++) {
+          int alpha = targets[k];
           a_sum -= a[alpha];
-        }
-        a[alpha] = getPropensityCalculator().calculatePropensity(alpha, getAmountManager(), this);
-        if (efficientlyAdaptSum) {
+          a[alpha] = getPropensityCalculator().calculatePropensity(alpha, getAmountManager(), this);
           a_sum += a[alpha];
         }
+      } else {
+        getPropensityCalculator().calculatePropensities(targets, offsets[mu], offsets[mu + 1],
+            getAmountManager(), this, a);
       }
     }
     if (!efficientlyAdaptSum) {
@@ -148,6 +156,18 @@ protected double directMCTau(double sum) {
     return (1 / sum) * Math.log(1 / r1);
   }
 
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    out.writeDouble(a_sum);
+    out.writeBoolean(changed);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    a_sum = in.readDouble();
+    changed = in.readBoolean();
+  }
+
   @Override
   public void setVolume(double volume) {
     super.setVolume(volume);
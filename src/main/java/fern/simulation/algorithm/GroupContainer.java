@@ -1,189 +1,403 @@
 package fern.simulation.algorithm;
 
-import fern.network.AmountManager;
-import fern.network.DefaultAmountManager;
-import fern.network.Network;
-import fern.network.PropensityCalculator;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
 import fern.simulation.Simulator;
 import fern.tools.Stochastics;
-import java.util.Arrays;
 
 
+/**
+ * Groups the reactions of a {@link CompositionRejection} simulator by their propensities. A
+ * reaction with propensity <i>a</i> belongs to the group with the binary exponent of <i>a</i>, i.e.
+ * the group of exponent <i>e</i> contains the propensities in [2<sup><i>e</i></sup>,
+ * 2<sup><i>e</i>+1</sup>). A group is selected by a linear search over the group sums and a
+ * reaction within the group by rejection sampling with the upper bound 2<sup><i>e</i>+1</sup>, so
+ * the expected number of trials is less than two.
+ * <p>
+ * The range of exponents is not fixed: the group arrays grow whenever a propensity leaves the
+ * range and only the range between the lowest and the highest non-empty group is searched. The
+ * members of each group are kept in a dense index array with swap-remove, the group sums and the
+ * total sum are kept with compensated summation.
+ * <p>
+ * The numbers of drawn reactions and rejected trials are counted to monitor the efficiency of the
+ * rejection step.
+ *
+ * @see CompositionRejection
+ */
 public class GroupContainer {
 
-  private int[][] groups;
-  private int[] groupSizes;
-  private double[] groupPropensitySums;
+  private static final int INITIAL_GROUP_CAPACITY = 4;
+
+  // group g contains the propensities with exponent lowExponent + g
+  private int lowExponent;
+  private int[][] groups = new int[0][];
+  private int[] groupSizes = new int[0];
+  private double[] groupSums = new double[0];
+  private double[] groupCompensations = new double[0];
+  private int bottomGroup;
+  private int topGroup;
 
-  private double min;
-  private double max;
   private int[] groupOfReaction;
   private int[] positionOfReaction;
-  private int topGroup = 0;
+  private int numGrouped;
 
   private double a_sum;
+  private double a_compensation;
 
-  public GroupContainer(Simulator sim) {
-    determineMaxMin(sim);
+  private long numDraws;
+  private long numRejections;
 
+  public GroupContainer(Simulator sim) {
     int numReactions = sim.getNet().getNumReactions();
-    int numGroups = (int) (1 + Math.log(max / min) / Math.log(2));
-
     groupOfReaction = new int[numReactions];
     positionOfReaction = new int[numReactions];
     Arrays.fill(groupOfReaction, -1);
     Arrays.fill(positionOfReaction, -1);
-
-    groupSizes = new int[numGroups];
-    groups = new int[numGroups][numReactions];
-    groupPropensitySums = new double[numGroups];
   }
 
+  /**
+   * Gets the sum of all propensities.
+   *
+   * @return sum of the propensities
+   */
   public double getA_sum() {
-    return a_sum;
-  }
-
-  private void determineMaxMin(Simulator sim) {
-    Network net = sim.getNet();
-    PropensityCalculator prop = net.getPropensityCalculator();
-    AmountManager amount = new DefaultAmountManager(net);
-
-    min = Double.POSITIVE_INFINITY;
-    max = Double.NEGATIVE_INFINITY;
-    for (int i = 0; i < net.getNumReactions(); i++) {
-      for (int r : net.getReactants(i)) {
-        amount.setAmount(r, 0);
-      }
-      for (int r : net.getReactants(i)) {
-        amount.setAmount(r, amount.getAmount(r) + 1);
-      }
-      min = Math.min(min, prop.calculatePropensity(i, amount, sim));
-      for (int r : net.getReactants(i)) {
-        amount.setAmount(r, amount.getAmount(r) * 10);
-      }
-      max = Math.max(max, prop.calculatePropensity(i, amount, sim));
-    }
+    return a_sum + a_compensation;
   }
 
+  /**
+   * Rebuilds the groups from the given propensities. The range of groups covers at least the
+   * exponents of the propensities.
+   *
+   * @param a the propensities
+   */
   public void initialize(double[] a) {
-    for (int g = 0; g < groupPropensitySums.length; g++) {
-      groupPropensitySums[g] = 0;
-      groupSizes[g] = 0;
-    }
-    a_sum = 0;
-    for (int i = 0; i < groupOfReaction.length; i++) {
+    int low = Integer.MAX_VALUE;
+    int high = Integer.MIN_VALUE;
+    for (int i = 0; i < a.length; i++) {
       if (a[i] > 0) {
-        a_sum += a[i];
-        checkMax(a[i]);
-
-        int g = getGroup(a[i]);
-        groupOfReaction[i] = g;
-        positionOfReaction[i] = groupSizes[g];
-        groups[g][groupSizes[g]++] = i;
-        groupPropensitySums[g] += a[i];
-        topGroup = Math.max(topGroup, g);
-      } else {
-        groupOfReaction[i] = -1;
-        positionOfReaction[i] = -1;
+        int e = Math.getExponent(a[i]);
+        low = Math.min(low, e);
+        high = Math.max(high, e);
       }
     }
-  }
+    if (low > high) {
+      low = high = 0;
+    }
+    int numGroups = high - low + 1;
+    if (groups.length < numGroups) {
+      lowExponent = low;
+      groups = Arrays.copyOf(groups, numGroups);
+      groupSizes = new int[numGroups];
+      groupSums = new double[numGroups];
+      groupCompensations = new double[numGroups];
+    } else {
+      // center the range in the existing groups, otherwise repeated runs would grow them each time
+      lowExponent = low - (groups.length - numGroups) / 2;
+      Arrays.fill(groupSizes, 0);
+      Arrays.fill(groupSums, 0);
+      Arrays.fill(groupCompensations, 0);
+    }
+    bottomGroup = groups.length;
+    topGroup = -1;
+    numGrouped = 0;
+    a_sum = 0;
+    a_compensation = 0;
 
-  private void checkMax(double a) {
-    if (a > max) {
-      int g = getGroup(a);
-      if (g >= groups.length) {
-        int numGroups = g + 1;
-        int[] n_groupSizes = new int[numGroups];
-        int[][] n_groups = new int[numGroups][groupOfReaction.length];
-        double[] n_groupPropensityCumSums = new double[numGroups];
-        System.arraycopy(groupSizes, 0, n_groupSizes, 0, groupSizes.length);
-        System.arraycopy(groups, 0, n_groups, 0, groups.length);
-        System.arraycopy(groupPropensitySums, 0, n_groupPropensityCumSums, 0,
-            groupPropensitySums.length);
-        groupSizes = n_groupSizes;
-        groups = n_groups;
-        groupPropensitySums = n_groupPropensityCumSums;
+    for (int i = 0; i < a.length; i++) {
+      groupOfReaction[i] = -1;
+      positionOfReaction[i] = -1;
+      if (a[i] > 0) {
+        insert(i, a[i]);
       }
-
-      max = a;
     }
   }
 
+  /**
+   * Draws a reaction according to the propensities.
+   *
+   * @param s the random number generator
+   * @param a the propensities
+   * @return index of the reaction
+   */
   public int drawReaction(Stochastics s, double[] a) {
-    double t = s.getUnif() * a_sum;
+    double t = s.getUnif() * getA_sum();
 
+    // search the group from the top; the adapted sums may slightly exceed the real ones
     double sum = 0;
-    int group;
-    for (group = topGroup; group >= 0; group--) {
-      sum += groupPropensitySums[group];
-      if (sum >= t) {
-        break;
+    int group = -1;
+    for (int g = topGroup; g >= bottomGroup; g--) {
+      if (groupSizes[g] > 0) {
+        group = g;
+        sum += groupSums[g] + groupCompensations[g];
+        if (sum >= t) {
+          break;
+        }
       }
     }
+    if (group < 0) {
+      throw new RuntimeException("No reaction could be selected!");
+    }
 
     int[] currentGroup = groups[group];
     int currentGroupSize = groupSizes[group];
-
-    int reaction;
-    double p;
+    numDraws++;
 
     if (currentGroupSize == 1) {
-      reaction = 0;
-    } else {
-      do {
-        reaction = s.getUnif(0, currentGroupSize);
-        p = s.getUnif() * min * (1 << group);
-      } while (p > a[currentGroup[reaction]]);
+      return currentGroup[0];
     }
+    double bound = Math.scalb(1.0, lowExponent + group + 1);
+    while (true) {
+      int reaction = currentGroup[s.getUnif(0, currentGroupSize)];
+      if (s.getUnif() * bound <= a[reaction]) {
+        return reaction;
+      }
+      numRejections++;
+    }
+  }
 
-    return currentGroup[reaction];
+  /**
+   * Moves the given reaction to the group of its new propensity and adapts the sums.
+   *
+   * @param reaction the reaction
+   * @param a_old    the old propensity
+   * @param a_new    the new propensity
+   */
+  public void propensityChanged(int reaction, double a_old, double a_new) {
+    int g = groupOfReaction[reaction];
+    if (g > -1) {
+      int ng = a_new > 0 ? Math.getExponent(a_new) - lowExponent : -1;
+      if (ng == g) {
+        addToGroup(g, a_new - a_old);
+        addToSum(a_new - a_old);
+        return;
+      }
+      remove(reaction, a_old);
+    }
+    if (a_new > 0) {
+      insert(reaction, a_new);
+    }
   }
 
+  private void insert(int reaction, double a) {
+    int g = ensureGroup(Math.getExponent(a));
+    if (groups[g] == null) {
+      groups[g] = new int[INITIAL_GROUP_CAPACITY];
+    } else if (groupSizes[g] == groups[g].length) {
+      groups[g] = Arrays.copyOf(groups[g], 2 * groups[g].length);
+    }
+    groupOfReaction[reaction] = g;
+    positionOfReaction[reaction] = groupSizes[g];
+    groups[g][groupSizes[g]++] = reaction;
+    addToGroup(g, a);
+    addToSum(a);
+    numGrouped++;
 
-  private int getGroup(double a) {
-    double t = a / min;
-    return (int) (Math.log(t) / Math.log(2));
+    bottomGroup = Math.min(bottomGroup, g);
+    topGroup = Math.max(topGroup, g);
   }
 
-  public void propensityChanged(int reaction, double a_old, double a_new) {
-    checkMax(a_new);
-
+  private void remove(int reaction, double a) {
     int g = groupOfReaction[reaction];
     int p = positionOfReaction[reaction];
-    if (g > -1) {
-      groupPropensitySums[g] -= a_old;
-      a_sum -= a_old;
-    }
+    int last = groups[g][--groupSizes[g]];
+    groups[g][p] = last;
+    positionOfReaction[last] = p;
+    groupOfReaction[reaction] = -1;
+    positionOfReaction[reaction] = -1;
+    numGrouped--;
 
-    int ng = a_new == 0 ? -1 : getGroup(a_new);
-    if (ng != g) {
-      if (g > -1) {
-        groups[g][p] = groups[g][--groupSizes[g]];
-        positionOfReaction[groups[g][p]] = p;
-      }
-      if (ng > -1) {
-        groupOfReaction[reaction] = ng;
-        positionOfReaction[reaction] = groupSizes[ng];
-        groups[ng][groupSizes[ng]++] = reaction;
-      } else {
-        groupOfReaction[reaction] = -1;
-        positionOfReaction[reaction] = -1;
-      }
+    if (groupSizes[g] == 0) {
+      // empty groups are exactly zero, this also discards accumulated rounding errors
+      groupSums[g] = 0;
+      groupCompensations[g] = 0;
+    } else {
+      addToGroup(g, -a);
+    }
+    if (numGrouped == 0) {
+      a_sum = 0;
+      a_compensation = 0;
+    } else {
+      addToSum(-a);
+    }
 
+    // shrink the searched range
+    while (topGroup >= bottomGroup && groupSizes[topGroup] == 0) {
+      topGroup--;
+    }
+    while (bottomGroup <= topGroup && groupSizes[bottomGroup] == 0) {
+      bottomGroup++;
     }
-    if (ng > -1) {
-      groupPropensitySums[ng] += a_new;
-      a_sum += a_new;
+    if (topGroup < bottomGroup) {
+      bottomGroup = groups.length;
+      topGroup = -1;
     }
-    if (ng > g && ng > topGroup) {
-      topGroup = ng;
-    } else if (ng < g) {
-      for (; topGroup > 0 && groupSizes[topGroup] == 0; topGroup--) {
-        ;
+  }
+
+  /**
+   * Makes sure that there is a group for the given exponent by growing the range of groups.
+   *
+   * @param exponent the binary exponent of a propensity
+   * @return index of the group
+   */
+  private int ensureGroup(int exponent) {
+    int g = exponent - lowExponent;
+    if (g < 0) {
+      int shift = Math.max(-g, groups.length / 2 + 1);
+      int numGroups = groups.length + shift;
+      int[][] n_groups = new int[numGroups][];
+      int[] n_groupSizes = new int[numGroups];
+      double[] n_groupSums = new double[numGroups];
+      double[] n_groupCompensations = new double[numGroups];
+      System.arraycopy(groups, 0, n_groups, shift, groups.length);
+      System.arraycopy(groupSizes, 0, n_groupSizes, shift, groups.length);
+      System.arraycopy(groupSums, 0, n_groupSums, shift, groups.length);
+      System.arraycopy(groupCompensations, 0, n_groupCompensations, shift, groups.length);
+      groups = n_groups;
+      groupSizes = n_groupSizes;
+      groupSums = n_groupSums;
+      groupCompensations = n_groupCompensations;
+      for (int i = 0; i < groupOfReaction.length; i++) {
+        if (groupOfReaction[i] > -1) {
+          groupOfReaction[i] += shift;
+        }
       }
+      lowExponent -= shift;
+      bottomGroup += shift;
+      topGroup += topGroup < 0 ? 0 : shift;
+      g += shift;
+    } else if (g >= groups.length) {
+      int numGroups = Math.max(g + 1, groups.length + groups.length / 2 + 1);
+      groups = Arrays.copyOf(groups, numGroups);
+      groupSizes = Arrays.copyOf(groupSizes, numGroups);
+      groupSums = Arrays.copyOf(groupSums, numGroups);
+      groupCompensations = Arrays.copyOf(groupCompensations, numGroups);
+    }
+    if (topGroup < 0) {
+      bottomGroup = groups.length;
+    }
+    return g;
+  }
+
+  /**
+   * Neumaier's variant of the Kahan summation for the sum of a group.
+   */
+  private void addToGroup(int g, double x) {
+    double s = groupSums[g];
+    double t = s + x;
+    if (Math.abs(s) >= Math.abs(x)) {
+      groupCompensations[g] += (s - t) + x;
+    } else {
+      groupCompensations[g] += (x - t) + s;
+    }
+    groupSums[g] = t;
+  }
+
+  private void addToSum(double x) {
+    double t = a_sum + x;
+    if (Math.abs(a_sum) >= Math.abs(x)) {
+      a_compensation += (a_sum - t) + x;
+    } else {
+      a_compensation += (x - t) + a_sum;
     }
+    a_sum = t;
+  }
+
+  /**
+   * Gets the number of reactions drawn since the last call of {@link #resetCounters()}.
+   *
+   * @return number of drawn reactions
+   */
+  public long getNumDraws() {
+    return numDraws;
+  }
+
+  /**
+   * Gets the number of rejected trials since the last call of {@link #resetCounters()}.
+   *
+   * @return number of rejections
+   */
+  public long getNumRejections() {
+    return numRejections;
   }
 
+  /**
+   * Gets the fraction of rejected trials among all trials. Since each group spans a factor of two,
+   * it should stay below one half.
+   *
+   * @return the rejection rate
+   */
+  public double getRejectionRate() {
+    long trials = numDraws + numRejections;
+    return trials == 0 ? 0 : (double) numRejections / trials;
+  }
+
+  /**
+   * Gets the number of groups that are currently searched (from the lowest to the highest
+   * non-empty group).
+   *
+   * @return number of groups in the range
+   */
+  public int getNumGroups() {
+    return Math.max(0, topGroup - bottomGroup + 1);
+  }
+
+  /**
+   * Resets the counters for draws and rejections.
+   */
+  public void resetCounters() {
+    numDraws = 0;
+    numRejections = 0;
+  }
+
+  /**
+   * Writes the groups to a checkpoint of the simulator. The sums are written as they are, so the
+   * restored groups yield exactly the same draws.
+   *
+   * @param out the output
+   * @throws IOException if the groups could not be written
+   */
+  public void writeState(ObjectOutput out) throws IOException {
+    out.writeInt(lowExponent);
+    out.writeObject(groups);
+    out.writeObject(groupSizes);
+    out.writeObject(groupSums);
+    out.writeObject(groupCompensations);
+    out.writeInt(bottomGroup);
+    out.writeInt(topGroup);
+    out.writeObject(groupOfReaction);
+    out.writeObject(positionOfReaction);
+    out.writeInt(numGrouped);
+    out.writeDouble(a_sum);
+    out.writeDouble(a_compensation);
+    out.writeLong(numDraws);
+    out.writeLong(numRejections);
+  }
+
+  /**
+   * Reads the groups written by {@link #writeState(ObjectOutput)}.
+   *
+   * @param in the input
+   * @throws IOException            if the groups could not be read
+   * @throws ClassNotFoundException if the input contains unknown classes
+   */
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    lowExponent = in.readInt();
+    groups = (int[][]) in.readObject();
+    groupSizes = (int[]) in.readObject();
+    groupSums = (double[]) in.readObject();
+    groupCompensations = (double[]) in.readObject();
+    bottomGroup = in.readInt();
+    topGroup = in.readInt();
+    groupOfReaction = (int[]) in.readObject();
+    positionOfReaction = (int[]) in.readObject();
+    numGrouped = in.readInt();
+    a_sum = in.readDouble();
+    a_compensation = in.readDouble();
+    numDraws = in.readLong();
+    numRejections = in.readLong();
+  }
 
 }
@@ -1,5 +1,9 @@
 package fern.simulation.algorithm;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 import cern.colt.bitvector.BitVector;
 import fern.network.Network;
 import fern.simulation.Simulator;
@@ -88,6 +92,8 @@ public void performStep(SimulationController control) {
     }
 
     dependent.clear();
+    int[] offsets = dep.getOffsets();
+    int[] targets = dep.getTargets();
 
     for (int i = 0; i < fast.size(); i++) {
       if (fast.getQuick(i)) {
@@ -95,8 +101,8 @@ public void performStep(SimulationController control) {
 
         fireReaction(i, t, t + tau, k, FireType.TauLeapNonCritical);
 
-        for (int alpha : dep.getDependent(i)) {
-          dependent.set(alpha);
+        for (int d = offsets[i]; d < offsets[i + 1]; d++) {
+          dependent.set(targets[d]);
         }
       }
     }
@@ -106,8 +112,8 @@ public void performStep(SimulationController control) {
 
       fireReaction(mu, t + tau, FireType.GillespieEnhanced);
 
-      for (int alpha : dep.getDependent(mu)) {
-        dependent.set(alpha);
+      for (int d = offsets[mu]; d < offsets[mu + 1]; d++) {
+        dependent.set(targets[d]);
       }
 
     }
@@ -205,6 +211,22 @@ protected double directMCTau(double sum) {
     return (1 / sum) * Math.log(1 / r1);
   }
 
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    out.writeBoolean(changed);
+    for (int i = 0; i < fast.size(); i++) {
+      out.writeBoolean(fast.getQuick(i));
+    }
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    changed = in.readBoolean();
+    for (int i = 0; i < fast.size(); i++) {
+      fast.putQuick(i, in.readBoolean());
+    }
+  }
+
   @Override
   public void setVolume(double volume) {
     super.setVolume(volume);
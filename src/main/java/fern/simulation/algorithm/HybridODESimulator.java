@@ -0,0 +1,637 @@
+package fern.simulation.algorithm;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+import org.apache.commons.math.ode.DerivativeException;
+import org.simulator.math.odes.AbstractDESSolver;
+import org.simulator.math.odes.DESystem;
+import org.simulator.math.odes.RosenbrockSolver;
+
+import fern.network.AbstractKineticConstantPropensityCalculator;
+import fern.network.Network;
+import fern.simulation.Simulator;
+import fern.simulation.controller.SimulationController;
+
+/**
+ * This is a hybrid method that integrates the fast reactions as ordinary differential equations
+ * and fires the slow ones exactly like the Direct method. A reaction is fast if it fires at least
+ * <code>lambda</code> times in one integration step and each species it involves has at least
+ * <code>epsilon</code> molecules. The species changed by fast reactions are continuous, all other
+ * species are discrete. The partition is re-evaluated after each integration step and each slow
+ * firing, so species can move between both regimes during the simulation.
+ * <p>
+ * The continuous species are integrated by an {@link AbstractDESSolver} of the
+ * <code>org.simulator.math.odes</code> package (a {@link RosenbrockSolver} by default, which is
+ * suited for the stiff systems that fast reactions usually form). The integral of the slow
+ * propensities is integrated along with them, and a slow reaction fires when it reaches an
+ * exponentially distributed threshold. The time of this crossing is located by the Illinois
+ * variant of regula falsi on the integral, so the slow reactions are exact up to the accuracy of
+ * the solver even though their propensities change continuously. If there are no fast reactions,
+ * each step is an exact step of the Direct method.
+ * <p>
+ * The amounts of the continuous species are rounded for the observers. The extents of the fast
+ * reactions are integrated as well, and their whole firings are reported to the observers like the
+ * leaps of tau leaping methods.
+ * <p>
+ * Only networks with an {@link AbstractKineticConstantPropensityCalculator} (mass action kinetics)
+ * can be simulated.
+ * <p>
+ * For references see E.L. Haseltine and J.B. Rawlings, Approximate simulation of coupled fast and
+ * slow reactions for stochastic chemical kinetics, J. Chem. Phys. 117, 6959-6969 (2002) and H.
+ * Salis and Y. Kaznessis, Accurate hybrid stochastic simulation of a system of coupled chemical or
+ * biochemical reactions, J. Chem. Phys. 122, 054103 (2005)
+ *
+ * @see HybridMaximalTimeStep
+ * @see GillespieEnhanced
+ */
+public class HybridODESimulator extends Simulator {
+
+  /**
+   * The maximal number of iterations to locate the firing of a slow reaction
+   */
+  private static final int MAX_ROOT_ITERATIONS = 50;
+
+  /**
+   * The tolerance of the integral of the slow propensities at the firing of a slow reaction
+   */
+  private static final double ROOT_TOLERANCE = 1E-10;
+
+  private boolean changed = false;
+  private double lambda = 10;
+  private double epsilon = 100;
+  private double stepSize = 0.01;
+  private AbstractDESSolver solver = new RosenbrockSolver();
+
+  private AbstractKineticConstantPropensityCalculator calculator;
+
+  // the distinct species involved in reaction j and their net changes (zero for boundary species)
+  // are stored at speciesOffsets[j] to speciesOffsets[j+1]-1
+  private int[] speciesOffsets;
+  private int[] species;
+  private double[] change;
+
+  // amounts of all species, the continuous ones are not rounded
+  private double[] x;
+  private long[] before;
+
+  private int[] fastReactions;
+  private int numFast;
+  private int[] slowReactions;
+  private int numSlow;
+  private int[] continuousSpecies;
+  private int numContinuous;
+  private int[] continuousIndex;
+
+  // integral of the slow propensities since the last slow firing and its threshold
+  private double slowIntegral;
+  private double threshold;
+
+  // extent of each fast reaction that has not been reported to the observers yet
+  private double[] extent;
+
+  private PartitionedSystem system = new PartitionedSystem();
+  private double[] y = new double[1];
+  private double[] dy = new double[1];
+
+  public HybridODESimulator(Network net) {
+    super(net);
+    if (!(getPropensityCalculator() instanceof AbstractKineticConstantPropensityCalculator)) {
+      throw new IllegalArgumentException(
+          "The hybrid ODE simulator needs mass action kinetics "
+              + "(AbstractKineticConstantPropensityCalculator)!");
+    }
+    calculator = (AbstractKineticConstantPropensityCalculator) getPropensityCalculator();
+    createStoichiometry(net);
+
+    int numReactions = net.getNumReactions();
+    int numSpecies = net.getNumSpecies();
+    x = new double[numSpecies];
+    before = new long[numSpecies];
+    fastReactions = new int[numReactions];
+    slowReactions = new int[numReactions];
+    continuousSpecies = new int[numSpecies];
+    continuousIndex = new int[numSpecies];
+    extent = new double[numReactions];
+  }
+
+  private void createStoichiometry(Network net) {
+    int numReactions = net.getNumReactions();
+    int[] count = new int[net.getNumSpecies()];
+    int[] buffer = new int[net.getNumSpecies()];
+    speciesOffsets = new int[numReactions + 1];
+    int[] s = new int[16];
+    double[] c = new double[16];
+    int n = 0;
+    for (int j = 0; j < numReactions; j++) {
+      int num = 0;
+      for (int r : net.getReactants(j)) {
+        if (count[r]-- == 0) {
+          buffer[num++] = r;
+        }
+      }
+      for (int p : net.getProducts(j)) {
+        if (count[p]++ == 0 && !contains(buffer, num, p)) {
+          buffer[num++] = p;
+        }
+      }
+      if (n + num > s.length) {
+        s = Arrays.copyOf(s, 2 * (n + num));
+        c = Arrays.copyOf(c, s.length);
+      }
+      for (int k = 0; k < num; k++) {
+        s[n] = buffer[k];
+        // boundary species are not changed by the amount manager, hence never continuous
+        c[n++] = net.getAnnotationManager().containsSpeciesAnnotation(buffer[k],
+            "BoundaryCondition") ? 0 : count[buffer[k]];
+        count[buffer[k]] = 0;
+      }
+      speciesOffsets[j + 1] = n;
+    }
+    species = Arrays.copyOf(s, n);
+    change = Arrays.copyOf(c, n);
+  }
+
+  private static boolean contains(int[] a, int length, int value) {
+    for (int i = 0; i < length; i++) {
+      if (a[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void initialize() {
+    super.initialize();
+    initializeState();
+  }
+
+  /**
+   * Takes the amounts from the {@link fern.network.AmountManager}, draws a new threshold for the
+   * slow reactions and partitions the reactions.
+   */
+  private void initializeState() {
+    for (int s = 0; s < x.length; s++) {
+      x[s] = getAmountManager().getAmount(s);
+    }
+    slowIntegral = 0;
+    threshold = stochastics.getExponential(1);
+    Arrays.fill(extent, 0);
+    partition();
+    changed = false;
+  }
+
+  @Override
+  public void reinitialize() {
+    changed = true;
+  }
+
+  @Override
+  public void performStep(SimulationController control) {
+
+    if (changed) {
+      initializeState();
+    }
+
+    double theta = getNextThetaEvent();
+    if (t >= theta) {
+      thetaEvent();
+      return;
+    }
+
+    if (numFast == 0) {
+      // the slow propensities are constant until the next firing
+      double a_sum = 0;
+      for (int i = 0; i < numSlow; i++) {
+        a_sum += a[slowReactions[i]];
+      }
+      double tau = (threshold - slowIntegral) / a_sum;
+      if (t + tau > theta) {
+        slowIntegral += a_sum * (theta - t);
+        t = theta;
+        thetaEvent();
+        return;
+      }
+      t += tau;
+      if (Double.isInfinite(tau)) {
+        thetaEvent();
+        return;
+      }
+    } else {
+      double h = Math.min(stepSize, theta - t);
+      integrate(h);
+      if (slowIntegral + dy[dy.length - 1] < threshold) {
+        advance(h);
+        if (t >= theta) {
+          thetaEvent();
+        }
+        return;
+      }
+      // a slow reaction fires within this step
+      advance(findSlowFiring(h));
+    }
+
+    fireSlowReaction();
+  }
+
+  /**
+   * Integrates the continuous species, the extents of the fast reactions and the integral of the
+   * slow propensities from the actual time for the given time span. The changes are stored in
+   * <code>dy</code>.
+   */
+  private void integrate(double h) {
+    for (int i = 0; i < numContinuous; i++) {
+      y[i] = x[continuousSpecies[i]];
+    }
+    Arrays.fill(y, numContinuous, y.length, 0);
+    try {
+      solver.computeChange(system, y, t, h, dy, false);
+    } catch (DerivativeException e) {
+      throw new RuntimeException("The ODE solver failed!", e);
+    }
+  }
+
+  /**
+   * Locates the time within a step of the given size at which the integral of the slow
+   * propensities reaches the threshold, by the Illinois variant of regula falsi. The integral has
+   * to reach the threshold within the step, and it is increasing since the propensities are not
+   * negative. The changes for the located time are stored in <code>dy</code>.
+   *
+   * @param h the size of the step whose changes are stored in <code>dy</code>
+   * @return the time span until the firing
+   */
+  private double findSlowFiring(double h) {
+    double target = threshold - slowIntegral;
+    double lower = 0;
+    double lowerValue = -target;
+    double upper = h;
+    double upperValue = dy[dy.length - 1] - target;
+    if (upperValue <= ROOT_TOLERANCE * threshold) {
+      return h;
+    }
+    double root = h;
+    int side = 0;
+    for (int i = 0; i < MAX_ROOT_ITERATIONS; i++) {
+      root = (lower * upperValue - upper * lowerValue) / (upperValue - lowerValue);
+      integrate(root);
+      double value = dy[dy.length - 1] - target;
+      if (Math.abs(value) <= ROOT_TOLERANCE * threshold) {
+        break;
+      }
+      if (value < 0) {
+        lower = root;
+        lowerValue = value;
+        if (side < 0) {
+          upperValue /= 2;
+        }
+        side = -1;
+      } else {
+        upper = root;
+        upperValue = value;
+        if (side > 0) {
+          lowerValue /= 2;
+        }
+        side = 1;
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Applies the changes of the last integration, reports the whole firings of the fast reactions
+   * to the observers, advances the time and re-evaluates the partition.
+   */
+  private void advance(double h) {
+    for (int i = 0; i < numContinuous; i++) {
+      int s = continuousSpecies[i];
+      x[s] = Math.max(0, x[s] + dy[i]);
+      getAmountManager().setAmount(s, Math.round(x[s]));
+    }
+    for (int i = 0; i < numFast; i++) {
+      int j = fastReactions[i];
+      extent[j] += dy[numContinuous + i];
+      int times = (int) extent[j];
+      if (times > 0) {
+        extent[j] -= times;
+        notifyReaction(j, t, t + h, times, FireType.TauLeapNonCritical);
+      }
+    }
+    slowIntegral += dy[dy.length - 1];
+    t += h;
+    partition();
+  }
+
+  /**
+   * Selects a slow reaction according to the slow propensities and fires it.
+   */
+  private void fireSlowReaction() {
+    double a_sum = 0;
+    for (int i = 0; i < numSlow; i++) {
+      a_sum += a[slowReactions[i]];
+    }
+    double test = stochastics.getUnif() * a_sum;
+    double sum = 0;
+    int mu = -1;
+    for (int i = 0; i < numSlow && mu < 0; i++) {
+      sum += a[slowReactions[i]];
+      if (sum >= test && a[slowReactions[i]] > 0) {
+        mu = slowReactions[i];
+      }
+    }
+    if (mu < 0) {
+      throw new RuntimeException("No reaction could be selected!");
+    }
+
+    for (int k = speciesOffsets[mu]; k < speciesOffsets[mu + 1]; k++) {
+      before[species[k]] = getAmountManager().getAmount(species[k]);
+    }
+    fireReaction(mu, t, FireType.GillespieEnhanced);
+    for (int k = speciesOffsets[mu]; k < speciesOffsets[mu + 1]; k++) {
+      int s = species[k];
+      x[s] += getAmountManager().getAmount(s) - before[s];
+    }
+
+    slowIntegral = 0;
+    threshold = stochastics.getExponential(1);
+    partition();
+  }
+
+  /**
+   * Calculates the propensities and divides the reactions into fast and slow ones and the species
+   * into continuous and discrete ones. Species that become discrete are rounded.
+   */
+  private void partition() {
+    double volume = getVolume();
+    numFast = 0;
+    numSlow = 0;
+    for (int j = 0; j < a.length; j++) {
+      a[j] = calculator.calculatePropensity(j, x, volume);
+      if (isFast(j)) {
+        fastReactions[numFast++] = j;
+      } else {
+        slowReactions[numSlow++] = j;
+        extent[j] = 0;
+      }
+    }
+
+    Arrays.fill(continuousIndex, -1);
+    numContinuous = 0;
+    for (int i = 0; i < numFast; i++) {
+      int j = fastReactions[i];
+      for (int k = speciesOffsets[j]; k < speciesOffsets[j + 1]; k++) {
+        int s = species[k];
+        if (change[k] != 0 && continuousIndex[s] < 0) {
+          continuousIndex[s] = numContinuous;
+          continuousSpecies[numContinuous++] = s;
+        }
+      }
+    }
+    for (int s = 0; s < x.length; s++) {
+      if (continuousIndex[s] < 0 && x[s] != getAmountManager().getAmount(s)) {
+        x[s] = getAmountManager().getAmount(s);
+      }
+    }
+
+    if (y.length != numContinuous + numFast + 1) {
+      y = new double[numContinuous + numFast + 1];
+      dy = new double[numContinuous + numFast + 1];
+    }
+  }
+
+  private boolean isFast(int j) {
+    if (a[j] * stepSize < lambda) {
+      return false;
+    }
+    for (int k = speciesOffsets[j]; k < speciesOffsets[j + 1]; k++) {
+      if (x[species[k]] < epsilon) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    out.writeBoolean(changed);
+    out.writeObject(x);
+    out.writeDouble(slowIntegral);
+    out.writeDouble(threshold);
+    out.writeObject(extent);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    changed = in.readBoolean();
+    x = (double[]) in.readObject();
+    slowIntegral = in.readDouble();
+    threshold = in.readDouble();
+    extent = (double[]) in.readObject();
+    partition();
+  }
+
+  @Override
+  public void setVolume(double volume) {
+    super.setVolume(volume);
+    changed = true;
+  }
+
+  @Override
+  public void setAmount(int species, long amount) {
+    super.setAmount(species, amount);
+    changed = true;
+  }
+
+  /**
+   * Gets the amount of the given species. The amounts of continuous species are not rounded.
+   *
+   * @param species species index
+   * @return amount of species
+   */
+  public double getContinuousAmount(int species) {
+    return x[species];
+  }
+
+  /**
+   * Gets whether the given species is actually integrated as ordinary differential equation.
+   *
+   * @param species species index
+   * @return whether the species is continuous
+   */
+  public boolean isContinuous(int species) {
+    return continuousIndex[species] >= 0;
+  }
+
+  /**
+   * Gets the number of reactions that are actually integrated as ordinary differential
+   * equations.
+   *
+   * @return number of fast reactions
+   */
+  public int getNumFastReactions() {
+    return numFast;
+  }
+
+  /**
+   * Gets the minimal number of firings of a fast reaction within one integration step. The
+   * default value is 10.
+   *
+   * @return lambda
+   */
+  public double getLambda() {
+    return lambda;
+  }
+
+  /**
+   * Sets the minimal number of firings of a fast reaction within one integration step. The
+   * default value is 10.
+   *
+   * @param lambda lambda
+   */
+  public void setLambda(double lambda) {
+    this.lambda = lambda;
+  }
+
+  /**
+   * Gets the minimal amount of each species involved in a fast reaction. The default value is
+   * 100.
+   *
+   * @return epsilon
+   */
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  /**
+   * Sets the minimal amount of each species involved in a fast reaction. The default value is
+   * 100.
+   *
+   * @param epsilon epsilon
+   */
+  public void setEpsilon(double epsilon) {
+    this.epsilon = epsilon;
+  }
+
+  /**
+   * Gets the maximal time span that is integrated before the partition is re-evaluated. The
+   * default value is 0.01.
+   *
+   * @return the step size
+   */
+  public double getStepSize() {
+    return stepSize;
+  }
+
+  /**
+   * Sets the maximal time span that is integrated before the partition is re-evaluated. The
+   * default value is 0.01.
+   *
+   * @param stepSize the step size
+   */
+  public void setStepSize(double stepSize) {
+    if (!(stepSize > 0)) {
+      throw new IllegalArgumentException("The step size has to be positive!");
+    }
+    this.stepSize = stepSize;
+    changed = true;
+  }
+
+  /**
+   * Gets the solver for the continuous species.
+   *
+   * @return the solver
+   */
+  public AbstractDESSolver getSolver() {
+    return solver;
+  }
+
+  /**
+   * Sets the solver for the continuous species. The default is a {@link RosenbrockSolver}.
+   *
+   * @param solver the solver
+   */
+  public void setSolver(AbstractDESSolver solver) {
+    this.solver = solver;
+  }
+
+  @Override
+  public String getName() {
+    return "Hybrid ODE/SSA";
+  }
+
+  /**
+   * The ordinary differential equations of the continuous species (given by the fast reactions),
+   * of the extents of the fast reactions and of the integral of the slow propensities (the last
+   * dimension).
+   */
+  private class PartitionedSystem implements DESystem {
+
+    private static final long serialVersionUID = 1L;
+
+    private double[] amount;
+
+    @Override
+    public int getDimension() {
+      return numContinuous + numFast + 1;
+    }
+
+    @Override
+    public void computeDerivatives(double time, double[] y, double[] yDot) {
+      if (amount == null || amount.length != x.length) {
+        amount = new double[x.length];
+      }
+      System.arraycopy(x, 0, amount, 0, x.length);
+      for (int i = 0; i < numContinuous; i++) {
+        amount[continuousSpecies[i]] = y[i];
+      }
+      Arrays.fill(yDot, 0, numContinuous + numFast + 1, 0);
+
+      double volume = getVolume();
+      for (int i = 0; i < numFast; i++) {
+        int j = fastReactions[i];
+        double rate = calculator.calculatePropensity(j, amount, volume);
+        yDot[numContinuous + i] = rate;
+        for (int k = speciesOffsets[j]; k < speciesOffsets[j + 1]; k++) {
+          int c = continuousIndex[species[k]];
+          if (c >= 0) {
+            yDot[c] += change[k] * rate;
+          }
+        }
+      }
+      for (int i = 0; i < numSlow; i++) {
+        yDot[numContinuous + numFast] += calculator.calculatePropensity(slowReactions[i], amount,
+            volume);
+      }
+    }
+
+    @Override
+    public String[] getIdentifiers() {
+      String[] re = new String[numContinuous + numFast + 1];
+      for (int i = 0; i < numContinuous; i++) {
+        re[i] = getNet().getSpeciesName(continuousSpecies[i]);
+      }
+      for (int i = 0; i < numFast; i++) {
+        re[numContinuous + i] = "extent of " + getNet().getReactionName(fastReactions[i]);
+      }
+      re[numContinuous + numFast] = "slow propensity integral";
+      return re;
+    }
+
+    @Override
+    public boolean containsEventsOrRules() {
+      return false;
+    }
+
+    @Override
+    public int getPositiveValueCount() {
+      return 0;
+    }
+
+    @Override
+    public void setDelaysIncluded(boolean delaysIncluded) {
+    }
+  }
+
+}
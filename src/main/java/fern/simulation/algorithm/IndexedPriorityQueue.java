@@ -6,10 +6,10 @@
  */
 package fern.simulation.algorithm;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Random;
 
 
 /**
@@ -18,6 +18,10 @@
  * keys) and an index for fast access to a node of the heap. The fast access is necessary to update
  * unused taus in the queue.
  * <p>
+ * The heap is stored in parallel arrays (the key and the reaction of each heap position) together
+ * with the inverse map from reactions to heap positions, so no objects are created per node and
+ * each instance is independent of every other one.
+ * <p>
  * For reference see M.A.Gibson and J.Bruck, Efficient Exact Stochastic Simulation of Chemical
  * Systems with Many Species and Many Channels, J.Phys.Chem.A., Vol 104, no 9, 2000
  *
@@ -26,11 +30,9 @@
  */
 public class IndexedPriorityQueue {
 
-  private double[] t;
-  private int[] oldIndex;
-
-  private Node heapRoot = null;
-  private Node[] index = null;
+  private double[] key;
+  private int[] heap;
+  private int[] index;
 
 
   /**
@@ -39,40 +41,28 @@ public class IndexedPriorityQueue {
    * @param t taus
    */
   public IndexedPriorityQueue(double[] t) {
-    this.t = t;
-    oldIndex = new int[t.length];
-    for (int i = 0; i < oldIndex.length; i++) {
-      oldIndex[i] = i;
+    key = new double[t.length];
+    heap = new int[t.length];
+    index = new int[t.length];
+    for (int i = 0; i < t.length; i++) {
+      key[i] = Double.isNaN(t[i]) ? Double.POSITIVE_INFINITY : t[i];
+      heap[i] = i;
+      index[i] = i;
     }
 
-    qsort(0, t.length - 1);
-
-    // create balanced binary heap and index
-    index = new Node[t.length];
-    heapRoot = new Node(oldIndex[0], t[0]);
-    Queue<Node> queue = new LinkedList<>();
-    queue.add(heapRoot);
-    index[heapRoot.index] = heapRoot;
-    for (int i = 1; i < t.length; i += 2) {
-      Node n = queue.poll();
-      Node left = new Node(oldIndex[i], t[i]);
-      n.left = left;
-      left.parent = n;
-      queue.add(left);
-      index[left.index] = left;
-      if (i + 1 < t.length) {
-        Node right = new Node(oldIndex[i + 1], t[i + 1]);
-        n.right = right;
-        right.parent = n;
-        queue.add(right);
-        index[right.index] = right;
-      }
+    // create the binary heap bottom up
+    for (int p = t.length / 2 - 1; p >= 0; p--) {
+      siftDown(p);
     }
   }
 
   @Override
   public String toString() {
-    return Arrays.toString(index);
+    double[] re = new double[index.length];
+    for (int i = 0; i < re.length; i++) {
+      re[i] = key[index[i]];
+    }
+    return Arrays.toString(re);
   }
 
   /**
@@ -81,20 +71,7 @@ public String toString() {
    * @return number of nodes in the binary heap.
    */
   public int size() {
-    int s = 0;
-    Queue<Node> q = new LinkedList<>();
-    q.add(heapRoot);
-    while (!q.isEmpty()) {
-      Node n = q.poll();
-      s++;
-      if (n.left != null) {
-        q.add(n.left);
-      }
-      if (n.right != null) {
-        q.add(n.right);
-      }
-    }
-    return s;
+    return heap.length;
   }
 
   /**
@@ -103,7 +80,7 @@ public int size() {
    * @return index of the minimal tau
    */
   public int getMin() {
-    return heapRoot.index;
+    return heap[0];
   }
 
   /**
@@ -112,7 +89,7 @@ public int getMin() {
    * @return minimal tau
    */
   public double getMinKey() {
-    return heapRoot.key;
+    return heap.length == 0 ? Double.POSITIVE_INFINITY : key[0];
   }
 
   /**
@@ -126,9 +103,14 @@ public void update(int i, double value) {
       value = Double.POSITIVE_INFINITY;
     }
 
-    Node n = index[i];
-    n.key = value;
-    update_aux(n);
+    int p = index[i];
+    double old = key[p];
+    key[p] = value;
+    if (value < old) {
+      siftUp(p);
+    } else if (value > old) {
+      siftDown(p);
+    }
   }
 
   /**
@@ -138,84 +120,74 @@ public void update(int i, double value) {
    * @return tau of the reaction
    */
   public double getKey(int i) {
-    return index[i].key;
+    return key[index[i]];
   }
 
-  private void update_aux(Node n) {
-    if (n.parent != null && n.key < n.parent.key) {
-      swap(n, n.parent);
-      update_aux(n.parent);
-    } else if (n.left != null && n.right != null && n.key > Math.min(n.left.key, n.right.key)) {
-      Node child = n.left.key < n.right.key ? n.left : n.right;
-      swap(n, child);
-      update_aux(child);
-    } else if (n.left != null && n.key > n.left.key) {
-      swap(n, n.left);
-      update_aux(n.left);
-    }
+  /**
+   * Writes the heap to a checkpoint of the simulator.
+   *
+   * @param out the output
+   * @throws IOException if the heap could not be written
+   */
+  public void writeState(ObjectOutput out) throws IOException {
+    out.writeObject(key);
+    out.writeObject(heap);
+    out.writeObject(index);
   }
 
-  private void swap(Node n, Node m) {
-    double tmp = n.key;
-    n.key = m.key;
-    m.key = tmp;
-    int tmp2 = n.index;
-    n.index = m.index;
-    m.index = tmp2;
-    Node tmp3 = index[n.index];
-    index[n.index] = index[m.index];
-    index[m.index] = tmp3;
+  /**
+   * Reads a heap written by {@link #writeState(ObjectOutput)}.
+   *
+   * @param in the input
+   * @throws IOException            if the heap could not be read
+   * @throws ClassNotFoundException if the input contains unknown classes
+   */
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    key = (double[]) in.readObject();
+    heap = (int[]) in.readObject();
+    index = (int[]) in.readObject();
   }
 
-  private class Node {
-
-    Node left = null;
-    Node right = null;
-    Node parent = null;
-    int index;
-    double key;
-
-    public Node(int index, double key) {
-      this.index = index;
-      this.key = key;
-    }
-
-    @Override
-    public String toString() {
-      return key + "";
+  private void siftUp(int p) {
+    double k = key[p];
+    int reaction = heap[p];
+    while (p > 0) {
+      int parent = (p - 1) >> 1;
+      if (k >= key[parent]) {
+        break;
+      }
+      move(parent, p);
+      p = parent;
     }
+    key[p] = k;
+    heap[p] = reaction;
+    index[reaction] = p;
   }
 
-  public static final Random RND = new Random();
-
-  private void swap(int i, int j) {
-    double tmp = t[i];
-    t[i] = t[j];
-    t[j] = tmp;
-    int tmp2 = oldIndex[i];
-    oldIndex[i] = oldIndex[j];
-    oldIndex[j] = tmp2;
-  }
-
-  private int partition(int begin, int end) {
-    int index = begin + RND.nextInt(end - begin + 1);
-    double pivot = t[index];
-    swap(index, end);
-    for (int i = index = begin; i < end; ++i) {
-      if (t[i] < pivot) {
-        swap(index++, i);
+  private void siftDown(int p) {
+    double k = key[p];
+    int reaction = heap[p];
+    int n = heap.length;
+    int child;
+    while ((child = 2 * p + 1) < n) {
+      if (child + 1 < n && key[child + 1] < key[child]) {
+        child++;
+      }
+      if (k <= key[child]) {
+        break;
       }
+      move(child, p);
+      p = child;
     }
-    swap(index, end);
-    return (index);
+    key[p] = k;
+    heap[p] = reaction;
+    index[reaction] = p;
   }
 
-  private void qsort(int begin, int end) {
-    if (end > begin) {
-      int index = partition(begin, end);
-      qsort(begin, index - 1);
-      qsort(index + 1, end);
-    }
+  private void move(int from, int to) {
+    key[to] = key[from];
+    heap[to] = heap[from];
+    index[heap[to]] = to;
   }
 
 
@@ -0,0 +1,111 @@
+package fern.simulation.algorithm;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import fern.network.Network;
+import fern.simulation.controller.SimulationController;
+
+
+/**
+ * This is a version of the Direct method which stores the propensities in a {@link PropensityTree}.
+ * Like {@link GillespieEnhanced} it uses a dependency graph to know what propensities have to be
+ * recalculated, but updating the sum of the propensities and selecting the next reaction take only
+ * logarithmic time in the number of reactions instead of linear time. This is especially useful for
+ * large networks, in which each firing only changes a few propensities.
+ * <p>
+ * The random numbers are drawn in the same order as by {@link GillespieEnhanced}, hence both
+ * simulators yield the same trajectory for the same random stream (except for differences in the
+ * rounding of the propensity sums).
+ * <p>
+ * For references see Daniel T. Gillespie., A General Method for Numerically Simulating the
+ * Stochastic Time Evolution of Coupled Chemical Reactions, J.Comp.Phys. 22, 403 (1976) and Hong Li
+ * and Linda Petzold, Logarithmic Direct Method for Discrete Stochastic Simulation of Chemically
+ * Reacting Systems, Technical Report, UCSB (2006)
+ *
+ * @see GillespieEnhanced
+ * @see DependencyGraph
+ * @see PropensityTree
+ */
+public class LogarithmicDirectMethod extends GillespieEnhanced {
+
+  private PropensityTree tree;
+
+  public LogarithmicDirectMethod(Network net) {
+    super(net);
+    tree = new PropensityTree(net.getNumReactions());
+  }
+
+  @Override
+  public void initialize() {
+    super.initialize();
+    tree.initialize(a);
+    a_sum = tree.getSum();
+  }
+
+  @Override
+  public void performStep(SimulationController control) {
+
+    if (changed) {
+      initializePropensities();
+      tree.initialize(a);
+    }
+
+    // obtain mu and tau by the direct method described in chapter 5A page 417ff
+    a_sum = tree.getSum();
+    double tau = directMCTau(a_sum);
+
+    if (!Double.isInfinite(tau)) {
+      changed = false;
+      while (t <= getNextThetaEvent() && t + tau > getNextThetaEvent() && !changed) {
+        thetaEvent();
+      }
+
+      if (changed) {
+        performStep(control);
+        return;
+
+      }
+      int mu = tree.search(stochastics.getUnif() * a_sum);
+
+      fireReaction(mu, t + tau, FireType.GillespieEnhanced);
+
+      int[] offsets = dep.getOffsets();
+      int[] targets = dep.getTargets();
+      getPropensityCalculator().calculatePropensities(targets, offsets[mu], offsets[mu + 1],
+          getAmountManager(), this, a);
+      for (int k = offsets[mu]; k < offsets[mu + 1]; k++) {
+        tree.update(targets[k], a[targets[k]]);
+      }
+    }
+
+    // advance in time
+    t += tau;
+
+    if (Double.isInfinite(tau)) {
+      thetaEvent();
+    }
+  }
+
+  /**
+   * The inner nodes of the tree are always the sums of their children, so the tree is rebuilt
+   * from the restored propensities.
+   */
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    tree.initialize(a);
+  }
+
+  @Override
+  public boolean isEfficientlyAdaptSum() {
+    return true;
+  }
+
+  @Override
+  public String getName() {
+    return "Logarithmic direct method";
+  }
+
+}
@@ -0,0 +1,429 @@
+package fern.simulation.algorithm;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+import fern.network.AbstractKineticConstantPropensityCalculator;
+import fern.network.AmountManager;
+import fern.network.Network;
+import fern.simulation.Simulator;
+import fern.simulation.controller.SimulationController;
+
+
+/**
+ * Implementation of the partial-propensity direct method (PDM). The propensities of elementary
+ * reactions are factored by one of their reactants: the propensity of a reaction in the row of
+ * species <i>i</i> is <i>n<sub>i</sub></i> times its partial propensity, which only depends on the
+ * amount of the other reactant (if any). Reactions of order zero form an extra row. The partial
+ * propensities of a row are summed up and multiplied by the amount of the row's species.
+ * <p>
+ * A reaction is selected by first searching the row and then the reaction within the row. When a
+ * reaction has fired, only the partial propensities depending on species changed by the firing and
+ * the row sums of these species are updated. Hence, the costs per step depend on the coupling of
+ * the network and not on the number of reactions. The sums are recalculated after each
+ * <code>numReactions</code> steps to avoid accumulation of rounding errors.
+ * <p>
+ * The factorization is only possible for mass action kinetics of at most order two, so the network
+ * has to use an {@link AbstractKineticConstantPropensityCalculator} and reactions with more than
+ * two reactant molecules have to be decomposed into elementary reactions.
+ * <p>
+ * For reference see Rajesh Ramaswamy, Nelido Gonz&aacute;lez-Segredo and Ivo F. Sbalzarini, A new
+ * class of highly efficient exact stochastic simulation algorithms for chemical reaction networks,
+ * J. Chem. Phys. 130, 244104 (2009)
+ *
+ * @see GillespieEnhanced
+ */
+public class PartialPropensityDirectMethod extends Simulator {
+
+  private boolean changed = false;
+
+  // the row of reaction j is row[j], row 0 contains the reactions of order zero and row i+1 the
+  // reactions factored by species i; the entries of row r are stored at rowOffsets[r] to
+  // rowOffsets[r+1]-1
+  private int[] rowOffsets;
+  private int[] entryReaction;
+  private int[] entryRow;
+  private int[] reactionEntry;
+  // the partial propensity of an entry is coefficient * (amount of partner - shift) or just the
+  // coefficient if there is no partner
+  private int[] entryPartner;
+  private int[] entryShift;
+  private double[] entryCoefficient;
+  private double[] partial;
+
+  // entries whose partial propensity depends on species s: partnerEntries[partnerOffsets[s]..]
+  private int[] partnerOffsets;
+  private int[] partnerEntries;
+  // species whose amount is changed by reaction j: changedSpecies[changedOffsets[j]..]
+  private int[] changedOffsets;
+  private int[] changedSpecies;
+
+  private double[] rowPartialSum;
+  private double[] rowSum;
+  private double a_sum;
+  private int stepsSinceSum = 0;
+
+  /**
+   * Creates the simulator for the given network.
+   *
+   * @param net the network to simulate
+   * @throws IllegalArgumentException if the network's propensity calculator is no {@link
+   *                                  AbstractKineticConstantPropensityCalculator} or a reaction has
+   *                                  more than two reactant molecules
+   */
+  public PartialPropensityDirectMethod(Network net) {
+    super(net);
+    if (!(net.getPropensityCalculator() instanceof AbstractKineticConstantPropensityCalculator)) {
+      throw new IllegalArgumentException(
+          "The partial-propensity direct method needs mass action kinetics "
+              + "(an AbstractKineticConstantPropensityCalculator)!");
+    }
+    createPartialPropensityStructure(net);
+    createChangedSpecies(net);
+  }
+
+  private void createPartialPropensityStructure(Network net) {
+    int numReactions = net.getNumReactions();
+    int numSpecies = net.getNumSpecies();
+
+    int[] row = new int[numReactions];
+    int[] partner = new int[numReactions];
+    int[] shift = new int[numReactions];
+    rowOffsets = new int[numSpecies + 2];
+    partnerOffsets = new int[numSpecies + 1];
+    for (int j = 0; j < numReactions; j++) {
+      int[] reactants = net.getReactants(j);
+      partner[j] = -1;
+      switch (reactants.length) {
+      case 0:
+        row[j] = 0;
+        break;
+      case 1:
+        row[j] = reactants[0] + 1;
+        break;
+      case 2:
+        int first = Math.min(reactants[0], reactants[1]);
+        row[j] = first + 1;
+        partner[j] = Math.max(reactants[0], reactants[1]);
+        if (reactants[0] == reactants[1]) {
+          shift[j] = 1;
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Reaction " + net.getReactionName(j) + " has "
+            + reactants.length + " reactant molecules, the partial-propensity direct method can "
+            + "only handle elementary reactions!");
+      }
+      rowOffsets[row[j] + 1]++;
+      if (partner[j] >= 0) {
+        partnerOffsets[partner[j] + 1]++;
+      }
+    }
+    for (int r = 0; r <= numSpecies; r++) {
+      rowOffsets[r + 1] += rowOffsets[r];
+    }
+    for (int s = 0; s < numSpecies; s++) {
+      partnerOffsets[s + 1] += partnerOffsets[s];
+    }
+
+    entryReaction = new int[numReactions];
+    entryRow = new int[numReactions];
+    reactionEntry = new int[numReactions];
+    entryPartner = new int[numReactions];
+    entryShift = new int[numReactions];
+    entryCoefficient = new double[numReactions];
+    partial = new double[numReactions];
+    partnerEntries = new int[partnerOffsets[numSpecies]];
+
+    int[] nextEntry = rowOffsets.clone();
+    int[] nextPartner = partnerOffsets.clone();
+    for (int j = 0; j < numReactions; j++) {
+      int e = nextEntry[row[j]]++;
+      entryReaction[e] = j;
+      entryRow[e] = row[j];
+      reactionEntry[j] = e;
+      entryPartner[e] = partner[j];
+      entryShift[e] = shift[j];
+      if (partner[j] >= 0) {
+        partnerEntries[nextPartner[partner[j]]++] = e;
+      }
+    }
+
+    rowPartialSum = new double[numSpecies + 1];
+    rowSum = new double[numSpecies + 1];
+  }
+
+  private void createChangedSpecies(Network net) {
+    int size = 0;
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      size += net.getReactants(j).length + net.getProducts(j).length;
+    }
+    int[] change = new int[net.getNumSpecies()];
+    int[] species = new int[size];
+    changedOffsets = new int[net.getNumReactions() + 1];
+    int n = 0;
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      for (int s : net.getReactants(j)) {
+        change[s]--;
+      }
+      for (int s : net.getProducts(j)) {
+        change[s]++;
+      }
+      // collect each species with a net change once and reset its entry
+      for (int s : net.getReactants(j)) {
+        if (change[s] != 0) {
+          change[s] = 0;
+          species[n++] = s;
+        }
+      }
+      for (int s : net.getProducts(j)) {
+        if (change[s] != 0) {
+          change[s] = 0;
+          species[n++] = s;
+        }
+      }
+      changedOffsets[j + 1] = n;
+    }
+    changedSpecies = Arrays.copyOf(species, n);
+  }
+
+  @Override
+  public void initialize() {
+    super.initialize();
+    initializeCoefficients();
+    initializePartialPropensities();
+  }
+
+  @Override
+  public void reinitialize() {
+    changed = true;
+  }
+
+  @Override
+  public void performStep(SimulationController control) {
+
+    if (changed) {
+      // the constants may have been changed before reinitialize()
+      initializeCoefficients();
+      initializePartialPropensities();
+    }
+
+    double tau = directMCTau(a_sum);
+
+    if (!Double.isInfinite(tau)) {
+      changed = false;
+      while (t <= getNextThetaEvent() && t + tau > getNextThetaEvent() && !changed) {
+        thetaEvent();
+      }
+
+      if (changed) {
+        performStep(control);
+        return;
+      }
+
+      int mu = partialPropensityMCReaction();
+
+      fireReaction(mu, t + tau, FireType.GillespieEnhanced);
+
+      updatePartialPropensities(mu);
+
+      if (++stepsSinceSum >= entryReaction.length) {
+        initializePartialPropensities();
+      }
+    }
+
+    // advance in time
+    t += tau;
+
+    if (Double.isInfinite(tau)) {
+      thetaEvent();
+    }
+  }
+
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    out.writeBoolean(changed);
+    out.writeObject(partial);
+    out.writeObject(rowPartialSum);
+    out.writeObject(rowSum);
+    out.writeDouble(a_sum);
+    out.writeInt(stepsSinceSum);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    changed = in.readBoolean();
+    partial = (double[]) in.readObject();
+    rowPartialSum = (double[]) in.readObject();
+    rowSum = (double[]) in.readObject();
+    a_sum = in.readDouble();
+    stepsSinceSum = in.readInt();
+  }
+
+  @Override
+  public void setVolume(double volume) {
+    super.setVolume(volume);
+    changed = true;
+  }
+
+  @Override
+  public void setAmount(int species, long amount) {
+    super.setAmount(species, amount);
+    changed = true;
+  }
+
+  /**
+   * Calculates the coefficients of the partial propensities from the reactions' constants. They
+   * depend on the volume and the constants, so this is done on each (re)initialization.
+   */
+  private void initializeCoefficients() {
+    AbstractKineticConstantPropensityCalculator calc =
+        (AbstractKineticConstantPropensityCalculator) getPropensityCalculator();
+    double volume = getVolume();
+    for (int e = 0; e < entryReaction.length; e++) {
+      int j = entryReaction[e];
+      double c = calc.getConstant(j);
+      if (volume > 0) {
+        c = calc.getConstantFromDeterministicRateConstant(c, j, volume);
+      }
+      // dimerizations have the propensity c*x*(x-1)/2
+      entryCoefficient[e] = entryShift[e] == 1 ? c * 0.5 : c;
+    }
+  }
+
+  /**
+   * Calculates all partial propensities and sums.
+   */
+  private void initializePartialPropensities() {
+    AmountManager amount = getAmountManager();
+    a_sum = 0;
+    for (int r = 0; r < rowSum.length; r++) {
+      double sum = 0;
+      for (int e = rowOffsets[r]; e < rowOffsets[r + 1]; e++) {
+        partial[e] = calculatePartialPropensity(e, amount);
+        sum += partial[e];
+      }
+      rowPartialSum[r] = sum;
+      rowSum[r] = r == 0 ? sum : amount.getAmount(r - 1) * sum;
+      a_sum += rowSum[r];
+    }
+    stepsSinceSum = 0;
+    changed = false;
+  }
+
+  /**
+   * Updates the partial propensities and sums that depend on species changed by the given
+   * reaction.
+   *
+   * @param mu the fired reaction
+   */
+  private void updatePartialPropensities(int mu) {
+    AmountManager amount = getAmountManager();
+    for (int k = changedOffsets[mu]; k < changedOffsets[mu + 1]; k++) {
+      int s = changedSpecies[k];
+      // partial propensities with s as partner
+      for (int i = partnerOffsets[s]; i < partnerOffsets[s + 1]; i++) {
+        int e = partnerEntries[i];
+        int r = entryRow[e];
+        double p = calculatePartialPropensity(e, amount);
+        rowPartialSum[r] += p - partial[e];
+        partial[e] = p;
+        updateRowSum(r, amount);
+      }
+      // the row factored by s
+      updateRowSum(s + 1, amount);
+    }
+  }
+
+  private void updateRowSum(int r, AmountManager amount) {
+    a_sum -= rowSum[r];
+    rowSum[r] = r == 0 ? rowPartialSum[r] : amount.getAmount(r - 1) * rowPartialSum[r];
+    a_sum += rowSum[r];
+  }
+
+  private double calculatePartialPropensity(int e, AmountManager amount) {
+    if (entryPartner[e] < 0) {
+      return entryCoefficient[e];
+    }
+    double x = amount.getAmount(entryPartner[e]) - entryShift[e];
+    return x > 0 ? entryCoefficient[e] * x : 0;
+  }
+
+  /**
+   * Obtains a random (but following a specific distribution) reaction by searching first the row
+   * and then the reaction within the row.
+   *
+   * @return index of the reaction
+   */
+  private int partialPropensityMCReaction() {
+    double test = stochastics.getUnif() * a_sum;
+
+    // search the row
+    double sum = 0;
+    int row = -1;
+    for (int r = 0; r < rowSum.length; r++) {
+      if (rowSum[r] > 0) {
+        row = r;
+        sum += rowSum[r];
+        if (sum >= test) {
+          break;
+        }
+      }
+    }
+    if (row < 0) {
+      throw new RuntimeException("No reaction could be selected!");
+    }
+
+    // search the reaction within the row
+    test = (test - (sum - rowSum[row])) / (row == 0 ? 1 : getAmountManager().getAmount(row - 1));
+    sum = 0;
+    int last = -1;
+    for (int e = rowOffsets[row]; e < rowOffsets[row + 1]; e++) {
+      if (partial[e] > 0) {
+        last = e;
+        sum += partial[e];
+        if (sum >= test) {
+          break;
+        }
+      }
+    }
+    if (last < 0) {
+      throw new RuntimeException("No reaction could be selected!");
+    }
+    return entryReaction[last];
+  }
+
+  /**
+   * obtains a random (but following a specific distribution) timestep as described by the direct
+   * method in chapter 5A page 417ff
+   *
+   * @param sum the sum of the propensities
+   * @return tau
+   */
+  protected double directMCTau(double sum) {
+    double r1 = stochastics.getUnif();
+    return (1 / sum) * Math.log(1 / r1);
+  }
+
+  /**
+   * Gets the current propensity for the given reaction, which is the product of its partial
+   * propensity and the amount of its row's species.
+   *
+   * @param reaction index of the reaction
+   * @return propensity for the reaction
+   */
+  @Override
+  public double getPropensity(int reaction) {
+    int e = reactionEntry[reaction];
+    int r = entryRow[e];
+    return r == 0 ? partial[e] : getAmountManager().getAmount(r - 1) * partial[e];
+  }
+
+  @Override
+  public String getName() {
+    return "Partial-propensity direct method";
+  }
+
+}
@@ -0,0 +1,111 @@
+package fern.simulation.algorithm;
+
+
+/**
+ * Implements a partial sum tree over the propensities of a network. It is a complete binary tree
+ * stored in an array, whose leaves are the propensities and whose inner nodes are the sums of their
+ * children. Updating one propensity as well as searching the reaction whose cumulative propensity
+ * exceeds a given value take logarithmic time in the number of reactions. Since each inner node is
+ * recalculated from its children, no rounding errors are accumulated over the updates.
+ * <p>
+ * For reference see Hong Li and Linda Petzold, Logarithmic Direct Method for Discrete Stochastic
+ * Simulation of Chemically Reacting Systems, Technical Report, UCSB (2006)
+ *
+ * @see LogarithmicDirectMethod
+ */
+public class PropensityTree {
+
+  private double[] tree;
+  private int leaves;
+  private int numReactions;
+
+  /**
+   * Creates an empty tree for the given number of reactions.
+   *
+   * @param numReactions number of reactions
+   */
+  public PropensityTree(int numReactions) {
+    this.numReactions = numReactions;
+    leaves = 1;
+    while (leaves < numReactions) {
+      leaves <<= 1;
+    }
+    tree = new double[2 * leaves];
+  }
+
+  /**
+   * Sets all propensities and recalculates the inner nodes.
+   *
+   * @param a the propensities
+   */
+  public void initialize(double[] a) {
+    System.arraycopy(a, 0, tree, leaves, numReactions);
+    for (int i = leaves + numReactions; i < tree.length; i++) {
+      tree[i] = 0;
+    }
+    for (int i = leaves - 1; i >= 1; i--) {
+      tree[i] = tree[2 * i] + tree[2 * i + 1];
+    }
+  }
+
+  /**
+   * Sets the propensity of a reaction and updates its ancestors.
+   *
+   * @param reaction index of the reaction
+   * @param value    new propensity
+   */
+  public void update(int reaction, double value) {
+    int p = leaves + reaction;
+    tree[p] = value;
+    for (p >>= 1; p >= 1; p >>= 1) {
+      tree[p] = tree[2 * p] + tree[2 * p + 1];
+    }
+  }
+
+  /**
+   * Gets the sum of all propensities.
+   *
+   * @return sum of the propensities
+   */
+  public double getSum() {
+    return tree[1];
+  }
+
+  /**
+   * Gets the propensity of a reaction.
+   *
+   * @param reaction index of the reaction
+   * @return the propensity
+   */
+  public double get(int reaction) {
+    return tree[leaves + reaction];
+  }
+
+  /**
+   * Searches the first reaction whose cumulative propensity is greater or equal than the given
+   * value (which has to be positive and less than the sum).
+   *
+   * @param test the value
+   * @return index of the reaction
+   */
+  public int search(double test) {
+    int p = 1;
+    while (p < leaves) {
+      p <<= 1;
+      if (test > tree[p]) {
+        test -= tree[p];
+        p++;
+      }
+    }
+    int reaction = p - leaves;
+    // rounding may lead into an empty leaf, take the closest reaction to the left then
+    while (reaction >= numReactions || (tree[leaves + reaction] == 0 && reaction > 0)) {
+      reaction--;
+    }
+    if (tree[leaves + reaction] == 0) {
+      throw new RuntimeException("No reaction could be selected!");
+    }
+    return reaction;
+  }
+
+}
@@ -0,0 +1,393 @@
+package fern.simulation.algorithm;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+import fern.network.AbstractKineticConstantPropensityCalculator;
+import fern.network.AmountManager;
+import fern.network.Network;
+import fern.simulation.Simulator;
+import fern.simulation.controller.SimulationController;
+
+
+/**
+ * Implementation of the rejection-based stochastic simulation algorithm (RSSA). For each species a
+ * fluctuation interval around its current amount is defined, which yields a lower and an upper
+ * bound for the propensity of each reaction. A candidate reaction is chosen according to the upper
+ * bounds (by a {@link PropensityTree}) and accepted with the probability of its propensity divided
+ * by its upper bound. The exact propensity only has to be calculated if the random number does not
+ * already lie below the lower bound. The time advances by an exponentially distributed amount for
+ * each trial, hence the trajectories are exact.
+ * <p>
+ * The bounds only have to be recalculated for the reactions of a species whose amount has left its
+ * fluctuation interval. This is especially efficient for networks in which a firing affects the
+ * propensities of many reactions.
+ * <p>
+ * The bounds are computed by evaluating the propensity calculator with the interval limits, so the
+ * propensities have to be non-decreasing in the amounts of the reactants. Therefore, this
+ * simulator only works with an {@link AbstractKineticConstantPropensityCalculator}.
+ * <p>
+ * For reference see Vo Hong Thanh, Corrado Priami and Roberto Zunino, Efficient rejection-based
+ * simulation of biochemical reactions with stochastic noise and delays, J. Chem. Phys. 141, 134116
+ * (2014)
+ *
+ * @see PropensityTree
+ */
+public class RejectionBasedSimulator extends Simulator {
+
+  private double delta = 0.1;
+  private boolean changed = false;
+  private long numRejections = 0;
+
+  private PropensityTree upperBounds;
+  private double[] lowerBounds;
+  private BoundAmountManager lowerAmounts;
+  private BoundAmountManager upperAmounts;
+
+  // reactions whose propensity depends on species s: speciesReactions[speciesOffsets[s]..]
+  private int[] speciesOffsets;
+  private int[] speciesReactions;
+  // species whose amount is changed by reaction r: changedSpecies[changedOffsets[r]..]
+  private int[] changedOffsets;
+  private int[] changedSpecies;
+
+  private int[] mark;
+  private int[] update;
+  private int stamp = 0;
+
+  /**
+   * Creates the simulator for the given network.
+   *
+   * @param net the network to simulate
+   * @throws IllegalArgumentException if the network's propensity calculator is no {@link
+   *                                  AbstractKineticConstantPropensityCalculator}
+   */
+  public RejectionBasedSimulator(Network net) {
+    super(net);
+    if (!(net.getPropensityCalculator() instanceof AbstractKineticConstantPropensityCalculator)) {
+      throw new IllegalArgumentException(
+          "The rejection-based SSA needs mass action kinetics "
+              + "(an AbstractKineticConstantPropensityCalculator)!");
+    }
+    int numReactions = net.getNumReactions();
+    int numSpecies = net.getNumSpecies();
+
+    upperBounds = new PropensityTree(numReactions);
+    lowerBounds = new double[numReactions];
+    lowerAmounts = new BoundAmountManager(numSpecies);
+    upperAmounts = new BoundAmountManager(numSpecies);
+    mark = new int[numReactions];
+    update = new int[numReactions];
+
+    createSpeciesIndex(net);
+    createChangedSpecies(net);
+  }
+
+  private void createSpeciesIndex(Network net) {
+    speciesOffsets = new int[net.getNumSpecies() + 1];
+    for (int r = 0; r < net.getNumReactions(); r++) {
+      for (int s : net.getReactants(r)) {
+        speciesOffsets[s + 1]++;
+      }
+    }
+    for (int s = 0; s < net.getNumSpecies(); s++) {
+      speciesOffsets[s + 1] += speciesOffsets[s];
+    }
+    int[] next = speciesOffsets.clone();
+    speciesReactions = new int[speciesOffsets[net.getNumSpecies()]];
+    for (int r = 0; r < net.getNumReactions(); r++) {
+      for (int s : net.getReactants(r)) {
+        speciesReactions[next[s]++] = r;
+      }
+    }
+  }
+
+  private void createChangedSpecies(Network net) {
+    int size = 0;
+    for (int r = 0; r < net.getNumReactions(); r++) {
+      size += net.getReactants(r).length + net.getProducts(r).length;
+    }
+    int[] change = new int[net.getNumSpecies()];
+    int[] species = new int[size];
+    changedOffsets = new int[net.getNumReactions() + 1];
+    int n = 0;
+    for (int r = 0; r < net.getNumReactions(); r++) {
+      for (int s : net.getReactants(r)) {
+        change[s]--;
+      }
+      for (int s : net.getProducts(r)) {
+        change[s]++;
+      }
+      // collect each species with a net change once and reset its entry
+      for (int s : net.getReactants(r)) {
+        if (change[s] != 0) {
+          change[s] = 0;
+          species[n++] = s;
+        }
+      }
+      for (int s : net.getProducts(r)) {
+        if (change[s] != 0) {
+          change[s] = 0;
+          species[n++] = s;
+        }
+      }
+      changedOffsets[r + 1] = n;
+    }
+    changedSpecies = Arrays.copyOf(species, n);
+  }
+
+  @Override
+  public void initialize() {
+    super.initialize();
+    numRejections = 0;
+    initializeBounds();
+  }
+
+  @Override
+  public void reinitialize() {
+    changed = true;
+  }
+
+  @Override
+  public void performStep(SimulationController control) {
+
+    if (changed) {
+      initializeBounds();
+    }
+
+    // draw candidates according to the upper bounds until one is accepted
+    double tau = 0;
+    int mu = -1;
+    int trials = 0;
+    while (mu < 0) {
+      double upperSum = upperBounds.getSum();
+      if (!(upperSum > 0) || ((++trials % lowerBounds.length == 0) && !hasPropensity())) {
+        tau = Double.POSITIVE_INFINITY;
+        break;
+      }
+      tau += stochastics.getExponential(upperSum);
+      int candidate = upperBounds.search(stochastics.getUnif() * upperSum);
+      double test = stochastics.getUnif() * upperBounds.get(candidate);
+      if (test <= lowerBounds[candidate] || test <= getPropensityCalculator()
+          .calculatePropensity(candidate, getAmountManager(), this)) {
+        mu = candidate;
+      } else {
+        numRejections++;
+      }
+    }
+
+    if (!Double.isInfinite(tau)) {
+      changed = false;
+      while (t <= getNextThetaEvent() && t + tau > getNextThetaEvent() && !changed) {
+        thetaEvent();
+      }
+
+      if (changed) {
+        performStep(control);
+        return;
+      }
+
+      fireReaction(mu, t + tau, FireType.GillespieEnhanced);
+      updateBounds(mu);
+    }
+
+    // advance in time
+    t += tau;
+
+    if (Double.isInfinite(tau)) {
+      thetaEvent();
+    }
+  }
+
+  /**
+   * Checks whether any exact propensity is positive. The upper bounds may be positive although all
+   * propensities are zero (e.g. for a dimerization with one molecule inside a wide interval), in
+   * which case every candidate would be rejected. Since this is checked once per number of
+   * reactions trials, the costs are amortized.
+   */
+  private boolean hasPropensity() {
+    for (int r = 0; r < lowerBounds.length; r++) {
+      if (getPropensityCalculator().calculatePropensity(r, getAmountManager(), this) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sets the fluctuation intervals of all species and calculates all bounds.
+   */
+  private void initializeBounds() {
+    for (int s = 0; s < getNet().getNumSpecies(); s++) {
+      setInterval(s);
+    }
+    for (int r = 0; r < lowerBounds.length; r++) {
+      lowerBounds[r] = getPropensityCalculator().calculatePropensity(r, lowerAmounts, this);
+      a[r] = getPropensityCalculator().calculatePropensity(r, upperAmounts, this);
+    }
+    upperBounds.initialize(a);
+    changed = false;
+  }
+
+  /**
+   * Checks whether the species changed by the fired reaction have left their fluctuation intervals
+   * and recalculates the bounds of the dependent reactions.
+   */
+  private void updateBounds(int mu) {
+    stamp++;
+    int numUpdates = 0;
+    for (int k = changedOffsets[mu]; k < changedOffsets[mu + 1]; k++) {
+      int s = changedSpecies[k];
+      long x = getAmountManager().getAmount(s);
+      if (x < lowerAmounts.amount[s] || x > upperAmounts.amount[s]) {
+        setInterval(s);
+        for (int i = speciesOffsets[s]; i < speciesOffsets[s + 1]; i++) {
+          int r = speciesReactions[i];
+          if (mark[r] != stamp) {
+            mark[r] = stamp;
+            update[numUpdates++] = r;
+          }
+        }
+      }
+    }
+    for (int i = 0; i < numUpdates; i++) {
+      int r = update[i];
+      lowerBounds[r] = getPropensityCalculator().calculatePropensity(r, lowerAmounts, this);
+      upperBounds.update(r, getPropensityCalculator().calculatePropensity(r, upperAmounts, this));
+    }
+  }
+
+  private void setInterval(int s) {
+    long x = getAmountManager().getAmount(s);
+    long width = (long) (delta * x);
+    lowerAmounts.amount[s] = Math.max(0, x - width);
+    upperAmounts.amount[s] = x + width;
+  }
+
+  /**
+   * Writes the fluctuation intervals and the bounds. The upper bounds are restored into the tree,
+   * whose inner nodes are always the sums of their children.
+   */
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    out.writeBoolean(changed);
+    out.writeLong(numRejections);
+    out.writeObject(lowerAmounts.amount);
+    out.writeObject(upperAmounts.amount);
+    out.writeObject(lowerBounds);
+    double[] upper = new double[lowerBounds.length];
+    for (int r = 0; r < upper.length; r++) {
+      upper[r] = upperBounds.get(r);
+    }
+    out.writeObject(upper);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    changed = in.readBoolean();
+    numRejections = in.readLong();
+    lowerAmounts.amount = (long[]) in.readObject();
+    upperAmounts.amount = (long[]) in.readObject();
+    lowerBounds = (double[]) in.readObject();
+    upperBounds.initialize((double[]) in.readObject());
+  }
+
+  /**
+   * Gets the current propensity for the given reaction. Since this simulator only keeps bounds of
+   * the propensities, it is calculated on demand.
+   *
+   * @param reaction index of the reaction
+   * @return propensity for the reaction
+   */
+  @Override
+  public double getPropensity(int reaction) {
+    return getPropensityCalculator().calculatePropensity(reaction, getAmountManager(), this);
+  }
+
+  /**
+   * Gets the relative size of the fluctuation intervals. The default value is 0.1.
+   *
+   * @return the relative size of the intervals
+   */
+  public double getDelta() {
+    return delta;
+  }
+
+  /**
+   * Sets the relative size of the fluctuation intervals: the interval of a species with amount
+   * <i>x</i> is [<i>x</i>-&delta;<i>x</i>, <i>x</i>+&delta;<i>x</i>] (rounded down), hence the
+   * bounds are exact for small amounts and a species with amount zero yields an upper bound of
+   * zero. Larger intervals lead to less recalculations of the bounds but to more rejections. The
+   * default value is 0.1.
+   *
+   * @param delta the relative size of the intervals
+   */
+  public void setDelta(double delta) {
+    this.delta = delta;
+  }
+
+  /**
+   * Gets the number of rejected candidates since the simulation has been started.
+   *
+   * @return number of rejections
+   */
+  public long getNumRejections() {
+    return numRejections;
+  }
+
+  @Override
+  public void setVolume(double volume) {
+    super.setVolume(volume);
+    changed = true;
+  }
+
+  @Override
+  public void setAmount(int species, long amount) {
+    super.setAmount(species, amount);
+    changed = true;
+  }
+
+  @Override
+  public String getName() {
+    return "Rejection-based SSA";
+  }
+
+  /**
+   * Provides the lower or upper limits of the fluctuation intervals to the propensity calculator.
+   */
+  private static class BoundAmountManager implements AmountManager {
+
+    private long[] amount;
+
+    public BoundAmountManager(int numSpecies) {
+      amount = new long[numSpecies];
+    }
+
+    public long getAmount(int species) {
+      return amount[species];
+    }
+
+    public void performReaction(int reaction, int times) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void setAmount(int species, long amount) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void resetAmount() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void save() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void rollback() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+package fern.simulation.algorithm;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+import fern.network.Network;
+import fern.simulation.controller.SimulationController;
+
+
+/**
+ * This is a version of the Direct method which searches the next reaction in an order that is
+ * adapted during the simulation. Whenever a reaction fires, it is swapped with its predecessor in
+ * the search order, hence frequently firing reactions bubble to the front and the linear search
+ * usually ends after a few comparisons. At the very first start the reactions are sorted by their
+ * initial propensities, later runs reuse the order learned so far. The observers always get the
+ * original reaction indices.
+ * <p>
+ * Like {@link GillespieEnhanced} it uses a dependency graph to know what propensities have to be
+ * recalculated. The sum of the propensities is adapted efficiently and recalculated after each
+ * <code>numReactions</code> steps to avoid accumulation of rounding errors.
+ * <p>
+ * For references see Daniel T. Gillespie., A General Method for Numerically Simulating the
+ * Stochastic Time Evolution of Coupled Chemical Reactions, J.Comp.Phys. 22, 403 (1976) and James M.
+ * McCollum, Gregory D. Peterson, Chris D. Cox, Michael L. Simpson and Nagiza F. Samatova, The
+ * sorting direct method for stochastic simulation of biochemical systems with varying reaction
+ * execution behavior, Comp. Biol. Chem. 30, 39-49 (2006)
+ *
+ * @see GillespieEnhanced
+ * @see DependencyGraph
+ */
+public class SortingDirectMethod extends GillespieEnhanced {
+
+  private int[] order;
+  private int[] position;
+  private boolean sorted = false;
+  private int stepsSinceSum = 0;
+
+  public SortingDirectMethod(Network net) {
+    super(net);
+    order = new int[net.getNumReactions()];
+    position = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+      position[i] = i;
+    }
+  }
+
+  @Override
+  public void initialize() {
+    super.initialize();
+    if (!sorted) {
+      sortByPropensity();
+      sorted = true;
+    }
+    stepsSinceSum = 0;
+  }
+
+  @Override
+  public void performStep(SimulationController control) {
+
+    if (changed) {
+      initializePropensities();
+      recalculateSum();
+    }
+
+    // obtain mu and tau by the direct method described in chapter 5A page 417ff
+    double tau = directMCTau(a_sum);
+
+    if (!Double.isInfinite(tau)) {
+      changed = false;
+      while (t <= getNextThetaEvent() && t + tau > getNextThetaEvent() && !changed) {
+        thetaEvent();
+      }
+
+      if (changed) {
+        performStep(control);
+        return;
+
+      }
+      int mu = sortedMCReaction();
+
+      fireReaction(mu, t + tau, FireType.GillespieEnhanced);
+
+      int[] offsets = dep.getOffsets();
+      int[] targets = dep.getTargets();
+      for (int k = offsets[mu]; k < offsets[mu + 1]; k++) {
+        int alpha = targets[k];
+        a_sum -= a[alpha];
+        a[alpha] = getPropensityCalculator().calculatePropensity(alpha, getAmountManager(), this);
+        a_sum += a[alpha];
+      }
+
+      // bubble the fired reaction one position to the front
+      int p = position[mu];
+      if (p > 0) {
+        int pred = order[p - 1];
+        order[p - 1] = mu;
+        order[p] = pred;
+        position[mu] = p - 1;
+        position[pred] = p;
+      }
+
+      if (++stepsSinceSum >= a.length) {
+        recalculateSum();
+      }
+    }
+
+    // advance in time
+    t += tau;
+
+    if (Double.isInfinite(tau)) {
+      thetaEvent();
+    }
+  }
+
+  /**
+   * obtains a random (but following a specific distribution) reaction as described by the direct
+   * method in chapter 5A page 417ff, but the propensities are summed up in the adapted order.
+   *
+   * @return index of the reaction
+   */
+  private int sortedMCReaction() {
+    double r2 = stochastics.getUnif();
+    double test = r2 * a_sum;
+
+    double sum = 0;
+    int last = -1;
+    for (int k = 0; k < order.length; k++) {
+      int i = order[k];
+      if (a[i] > 0) {
+        sum += a[i];
+        last = i;
+        if (sum >= test) {
+          return i;
+        }
+      }
+    }
+
+    // the adapted sum may slightly exceed the real one
+    if (last >= 0) {
+      return last;
+    }
+    throw new RuntimeException("No reaction could be selected!");
+  }
+
+  private void recalculateSum() {
+    a_sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      a_sum += a[i];
+    }
+    stepsSinceSum = 0;
+  }
+
+  private void sortByPropensity() {
+    Integer[] byPropensity = new Integer[a.length];
+    for (int i = 0; i < byPropensity.length; i++) {
+      byPropensity[i] = i;
+    }
+    Arrays.sort(byPropensity, (i, j) -> Double.compare(a[j], a[i]));
+    for (int k = 0; k < order.length; k++) {
+      order[k] = byPropensity[k];
+      position[order[k]] = k;
+    }
+  }
+
+  @Override
+  protected void writeState(ObjectOutput out) throws IOException {
+    super.writeState(out);
+    out.writeObject(order);
+    out.writeInt(stepsSinceSum);
+  }
+
+  @Override
+  protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    order = (int[]) in.readObject();
+    for (int k = 0; k < order.length; k++) {
+      position[order[k]] = k;
+    }
+    sorted = true;
+    stepsSinceSum = in.readInt();
+  }
+
+  /**
+   * Gets the reaction at the given position of the actual search order.
+   *
+   * @param position position in the search order
+   * @return index of the reaction
+   */
+  public int getReactionAt(int position) {
+    return order[position];
+  }
+
+  /**
+   * Gets the position of the given reaction in the actual search order.
+   *
+   * @param reaction index of the reaction
+   * @return position in the search order
+   */
+  public int getPosition(int reaction) {
+    return position[reaction];
+  }
+
+  @Override
+  public boolean isEfficientlyAdaptSum() {
+    return true;
+  }
+
+  @Override
+  public String getName() {
+    return "Sorting direct method";
+  }
+
+}
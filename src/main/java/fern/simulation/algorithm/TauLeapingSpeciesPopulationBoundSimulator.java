@@ -45,7 +45,7 @@ public TauLeapingSpeciesPopulationBoundSimulator(Network net) {
 
   @Override
   protected double chooseTauNonCriticals(BitVector criticals) {
-    preprocessNonCriticals(criticals);
+    computeSpeciesMoments(criticals, mu, sigma);
 
     double tau = Double.POSITIVE_INFINITY;
 
@@ -77,24 +77,6 @@ protected double chooseTauNonCriticals(BitVector criticals) {
     return tau;
   }
 
-  private void preprocessNonCriticals(BitVector criticals) {
-    for (int i = 0; i < getNet().getNumSpecies(); i++) {
-      mu[i] = 0;
-      sigma[i] = 0;
-      if (g[i] == 0) {
-        continue;
-      }
-      for (int j = 0; j < getNet().getNumReactions(); j++) {
-        if (criticals.get(j) || getV(i, j) == 0) {
-          continue;
-        }
-        mu[i] += getV(i, j) * a[j];
-        sigma[i] += getV(i, j) * getV(i, j) * a[j];
-      }
-    }
-  }
-
-
   @SuppressWarnings("unchecked")
   private void calculateG() {
     Network net = getNet();
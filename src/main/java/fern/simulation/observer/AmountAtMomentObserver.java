@@ -1,6 +1,8 @@
 package fern.simulation.observer;
 
 import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -76,6 +78,11 @@ public boolean goOn(Simulator sim) {
   public void activateReaction(int mu, double tau, FireType fireType, int times) {
   }
 
+  @Override
+  public boolean isActivateReactionNeeded() {
+    return isActivateReactionOverridden(AmountAtMomentObserver.class);
+  }
+
   /**
    * Records the amounts of the species and puts it into the histogram.
    */
@@ -116,6 +123,28 @@ public void started() {
   public void step() {
   }
 
+  @Override
+  public boolean isStepNeeded() {
+    return isStepOverridden(AmountAtMomentObserver.class);
+  }
+
+  @Override
+  public void writeState(ObjectOutput out) throws IOException {
+    super.writeState(out);
+    out.writeBoolean(thetaReached);
+    out.writeInt(count);
+    out.writeObject(histogram);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    thetaReached = in.readBoolean();
+    count = in.readInt();
+    histogram = (Map<Integer, Integer>[]) in.readObject();
+  }
+
   public GnuPlot toGnuplot() throws IOException {
     return toGnuplot(new GnuPlot());
   }
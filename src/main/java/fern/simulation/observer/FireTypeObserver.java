@@ -1,5 +1,8 @@
 package fern.simulation.observer;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -70,6 +73,25 @@ public void started() {
   public void step() {
   }
 
+  @Override
+  public boolean isStepNeeded() {
+    return isStepOverridden(FireTypeObserver.class);
+  }
+
+  @Override
+  public void writeState(ObjectOutput out) throws IOException {
+    super.writeState(out);
+    out.writeObject(numTypes);
+    out.writeObject(numTypesAvg);
+  }
+
+  @Override
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    numTypes = (long[]) in.readObject();
+    numTypesAvg = (double[]) in.readObject();
+  }
+
   @Override
   public String toString() {
     double sum = 0;
@@ -1,6 +1,11 @@
 package fern.simulation.observer;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
 
@@ -22,6 +27,10 @@
  * <p>
  * Extending classes just have to implement {@link IntervalObserver#getEntityValue(int)} and to
  * pass some indices and names to to constructor.
+ * <p>
+ * By default, the values are recorded in the heap. For long simulations with a small interval,
+ * they can be written to a memory-mapped file instead (see {@link
+ * IntervalObserver#setRecordingFile(File)}).
  *
  * @author Florian Erhard
  */
@@ -36,6 +45,9 @@ public abstract class IntervalObserver extends Observer implements GnuPlotObserv
   private String[] entityName;
   private LinkedList<double[]> log;
   private int duration;
+  private File recordingFile = null;
+  private MappedTrajectoryWriter recording = null;
+  private double[] sample;
 
 
   /**
@@ -92,6 +104,14 @@ public IntervalObserver(Simulator sim, double interval, int duration, String[] e
   @Override
   public void started() {
     log.clear();
+    if (recordingFile != null) {
+      closeRecording();
+      try {
+        recording = new MappedTrajectoryWriter(recordingFile, entityName.length + 1);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     if (thetaMethod) {
       setTheta(0);
     }
@@ -105,6 +125,20 @@ public void started() {
   public void activateReaction(int mu, double tau, FireType fireType, int times) {
   }
 
+  @Override
+  public boolean isActivateReactionNeeded() {
+    return isActivateReactionOverridden(IntervalObserver.class);
+  }
+
+  /**
+   * The <code>step</code> method is only needed if the theta method is not used or if it is
+   * overridden.
+   */
+  @Override
+  public boolean isStepNeeded() {
+    return !thetaMethod || isStepOverridden(IntervalObserver.class);
+  }
+
   /**
    * Adds the recorded data to the average data pool. Moreover a linear interpolation is done to the
    * recorded values in order to guarantee that the time axis matches exactly the intervals. If the
@@ -113,6 +147,7 @@ public void activateReaction(int mu, double tau, FireType fireType, int times) {
   @Override
   public void finished() {
     step();
+    closeRecording();
     if (log.size() == 0) {
       return;
     }
@@ -167,12 +202,7 @@ public void finished() {
   public void step() {
     if (!thetaMethod && (int) (getSimulator().getTime() / interval) > (int) (recentStep
         / interval)) {
-      double[] l = new double[entityName.length + 1];
-      l[0] = getSimulator().getTime();
-      for (int i = 0; i < entityName.length; i++) {
-        l[i + 1] = getEntityValue(i);
-      }
-      log.add(l);
+      record(getSimulator().getTime());
     }
     recentStep = getSimulator().getTime();
   }
@@ -183,16 +213,102 @@ public void step() {
   @Override
   public void theta(double theta) {
     if (thetaMethod) {
-      double[] l = new double[entityName.length + 1];
-      l[0] = theta;
-      for (int i = 0; i < entityName.length; i++) {
-        l[i + 1] = getEntityValue(i);
-      }
-      log.add(l);
+      record(theta);
       setTheta(theta + interval);
     }
   }
 
+  /**
+   * Writes the recorded values of the actual run and the average data. Recording to a file cannot
+   * be continued from a checkpoint.
+   */
+  @Override
+  public void writeState(ObjectOutput out) throws IOException {
+    if (recording != null) {
+      throw new IOException("An observer recording to a file cannot be saved in a checkpoint!");
+    }
+    super.writeState(out);
+    out.writeDouble(recentStep);
+    out.writeObject(log.toArray(new double[log.size()][]));
+    out.writeObject(avgLog);
+    out.writeObject(quality);
+  }
+
+  @Override
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    recentStep = in.readDouble();
+    log.clear();
+    log.addAll(Arrays.asList((double[][]) in.readObject()));
+    avgLog = (double[][]) in.readObject();
+    quality = (int[]) in.readObject();
+  }
+
+  private void record(double time) {
+    double[] l = recording == null ? new double[entityName.length + 1] : sample;
+    l[0] = time;
+    for (int i = 0; i < entityName.length; i++) {
+      l[i + 1] = getEntityValue(i);
+    }
+    if (recording == null) {
+      log.add(l);
+    } else {
+      recording.append(l);
+    }
+  }
+
+  private void closeRecording() {
+    if (recording != null) {
+      try {
+        recording.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      recording = null;
+    }
+  }
+
+  /**
+   * Gets the file the values are recorded to.
+   *
+   * @return the file or <code>null</code> if the values are recorded in the heap
+   * @see IntervalObserver#setRecordingFile(File)
+   */
+  public File getRecordingFile() {
+    return recordingFile;
+  }
+
+  /**
+   * Sets a file to record the values to. Each simulation run overwrites the file by a {@link
+   * MappedTrajectoryWriter}, hence only the most recent run is kept. The recorded values are not
+   * added to the average data, which would have to be kept in the heap. Use {@link
+   * #openRecording()} to access the values without copying them or {@link #getRecentData()} to get
+   * them as an array. If it is <code>null</code> (the default), the values are recorded in the
+   * heap.
+   *
+   * @param recordingFile the file or <code>null</code>
+   */
+  public void setRecordingFile(File recordingFile) {
+    this.recordingFile = recordingFile;
+    if (recordingFile != null && sample == null) {
+      sample = new double[entityName.length + 1];
+    }
+  }
+
+  /**
+   * Opens the values recorded to the recording file. The reader has to be closed by the caller.
+   *
+   * @return the reader of the recording file
+   * @throws IOException if the file could not be read
+   * @see IntervalObserver#setRecordingFile(File)
+   */
+  public MappedTrajectoryReader openRecording() throws IOException {
+    if (recordingFile == null) {
+      throw new IllegalStateException("No recording file has been set!");
+    }
+    return new MappedTrajectoryReader(recordingFile);
+  }
+
 
   /**
    * Using theta method means that the time intervals are registered at the simulator and the
@@ -238,6 +354,13 @@ public GnuPlot toGnuplot(GnuPlot gnuplot) throws IOException {
    * @return data as double array [step][entity index]
    */
   public double[][] getRecentData() {
+    if (recordingFile != null && recordingFile.exists()) {
+      try (MappedTrajectoryReader reader = openRecording()) {
+        return reader.getRecentData();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     double[][] re = new double[log.size()][];
     int index = 0;
     for (double[] rec : log) {
@@ -266,7 +389,7 @@ public GnuPlot toGnuplotRecent() throws IOException {
    * @throws IOException if gnuplot could not be accessed
    */
   public GnuPlot toGnuplotRecent(GnuPlot gnuplot) throws IOException {
-    return toGnuplot(gnuplot, new LinkedList<>(log));
+    return toGnuplot(gnuplot, Arrays.asList(getRecentData()));
   }
 
   /**
@@ -44,6 +44,11 @@ public LeapObserver(Simulator sim, String... speciesNames) {
   public void activateReaction(int mu, double tau, FireType fireType, int times) {
   }
 
+  @Override
+  public boolean isActivateReactionNeeded() {
+    return isActivateReactionOverridden(LeapObserver.class);
+  }
+
   /**
    * Do nothing.
    */
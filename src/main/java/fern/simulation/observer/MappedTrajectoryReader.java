@@ -0,0 +1,151 @@
+package fern.simulation.observer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+
+/**
+ * Reads a trajectory file written by {@link MappedTrajectoryWriter}. The file is memory-mapped, so
+ * single values can be accessed by {@link #get(long, int)} without loading the whole trajectory.
+ * {@link #getRecentData()} copies the trajectory into an array of the same shape as {@link
+ * IntervalObserver#getRecentData()}.
+ *
+ * @see MappedTrajectoryWriter
+ */
+public class MappedTrajectoryReader implements Closeable {
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private MappedByteBuffer[] windows;
+
+  private int numColumns;
+  private int blockSize;
+  private long blockBytes;
+  private int windowBlocks;
+  private long numSamples;
+
+  /**
+   * Opens a trajectory file. The number of samples is read once, samples that are appended later
+   * are not visible.
+   *
+   * @param file the file
+   * @throws IOException if the file could not be read or is no trajectory file
+   */
+  public MappedTrajectoryReader(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    channel = this.file.getChannel();
+    if (channel.size() < MappedTrajectoryWriter.HEADER_SIZE) {
+      close();
+      throw new IOException(file + " is no trajectory file!");
+    }
+    MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, MappedTrajectoryWriter.HEADER_SIZE);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    if (header.getInt(0) != MappedTrajectoryWriter.MAGIC
+        || header.getInt(4) != MappedTrajectoryWriter.VERSION) {
+      close();
+      throw new IOException(file + " is no trajectory file!");
+    }
+    numColumns = header.getInt(8);
+    blockSize = header.getInt(12);
+    numSamples = header.getLong(MappedTrajectoryWriter.NUM_SAMPLES_POSITION);
+    blockBytes = 8L * numColumns * blockSize;
+    windowBlocks = (int) Math.max(1, MappedTrajectoryWriter.WINDOW_SIZE / blockBytes);
+
+    long numBlocks = (numSamples + blockSize - 1) / blockSize;
+    windows = new MappedByteBuffer[(int) ((numBlocks + windowBlocks - 1) / windowBlocks)];
+  }
+
+  /**
+   * Gets the number of samples.
+   *
+   * @return number of samples
+   */
+  public long getNumSamples() {
+    return numSamples;
+  }
+
+  /**
+   * Gets the number of values per sample.
+   *
+   * @return number of columns
+   */
+  public int getNumColumns() {
+    return numColumns;
+  }
+
+  /**
+   * Gets one value of the trajectory.
+   *
+   * @param sample index of the sample
+   * @param column index of the column
+   * @return the value
+   */
+  public double get(long sample, int column) {
+    if (sample < 0 || sample >= numSamples || column < 0 || column >= numColumns) {
+      throw new IndexOutOfBoundsException("No value for sample " + sample + ", column " + column);
+    }
+    long block = sample / blockSize;
+    MappedByteBuffer window = getWindow((int) (block / windowBlocks));
+    return window.getDouble((int) ((block % windowBlocks) * blockBytes
+        + (8L * column * blockSize) + (sample % blockSize) * 8));
+  }
+
+  /**
+   * Copies one sample into the given array.
+   *
+   * @param sample index of the sample
+   * @param values array for the values (one for each column)
+   * @return the array of values
+   */
+  public double[] getSample(long sample, double[] values) {
+    for (int c = 0; c < numColumns; c++) {
+      values[c] = get(sample, c);
+    }
+    return values;
+  }
+
+  /**
+   * Copies the whole trajectory into an array.
+   *
+   * @return data as double array [step][column]
+   * @see IntervalObserver#getRecentData()
+   */
+  public double[][] getRecentData() {
+    if (numSamples > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The trajectory is too large for an array!");
+    }
+    double[][] re = new double[(int) numSamples][];
+    for (int i = 0; i < re.length; i++) {
+      re[i] = getSample(i, new double[numColumns]);
+    }
+    return re;
+  }
+
+  private MappedByteBuffer getWindow(int w) {
+    if (windows[w] == null) {
+      try {
+        long position = MappedTrajectoryWriter.HEADER_SIZE + (long) w * windowBlocks * blockBytes;
+        long size = Math.min(windowBlocks * blockBytes, channel.size() - position);
+        windows[w] = channel.map(MapMode.READ_ONLY, position, size);
+        windows[w].order(ByteOrder.LITTLE_ENDIAN);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not map the trajectory file!", e);
+      }
+    }
+    return windows[w];
+  }
+
+  @Override
+  public void close() throws IOException {
+    windows = null;
+    channel.close();
+    file.close();
+  }
+
+}
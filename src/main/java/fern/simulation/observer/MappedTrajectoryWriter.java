@@ -0,0 +1,181 @@
+package fern.simulation.observer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+
+/**
+ * Writes samples of a trajectory (a fixed number of double values per sample, e.g. the time and
+ * the amounts of some species) to a memory-mapped file. Hence, a trajectory can be larger than the
+ * heap (and the RAM). The file can be read by {@link MappedTrajectoryReader}.
+ * <p>
+ * The file starts with a header of {@value #HEADER_SIZE} bytes (magic number, version, number of
+ * columns, block size and number of samples). The samples are stored column-wise in blocks of
+ * <code>blockSize</code> samples: a block contains <code>blockSize</code> values of the first
+ * column, followed by <code>blockSize</code> values of the second column and so on. All values are
+ * stored in little endian byte order. The file is mapped in windows of several blocks, so it can
+ * exceed the 2GB limit of a single {@link MappedByteBuffer}.
+ * <p>
+ * The number of samples in the header is updated with each sample, so a reader can already access
+ * the samples of an unfinished trajectory.
+ *
+ * @see MappedTrajectoryReader
+ * @see IntervalObserver#setRecordingFile(File)
+ */
+public class MappedTrajectoryWriter implements Closeable {
+
+  /**
+   * The default number of samples per block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  static final int MAGIC = 0x4645524E;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final int NUM_SAMPLES_POSITION = 16;
+  static final long WINDOW_SIZE = 1 << 26;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private MappedByteBuffer header;
+  private MappedByteBuffer window = null;
+  private long windowIndex = -1;
+
+  private int numColumns;
+  private int blockSize;
+  private long blockBytes;
+  private int windowBlocks;
+  private long numSamples = 0;
+
+  /**
+   * Creates a trajectory file with the default block size. An existing file is overwritten.
+   *
+   * @param file       the file
+   * @param numColumns number of values per sample
+   * @throws IOException if the file could not be created
+   */
+  public MappedTrajectoryWriter(File file, int numColumns) throws IOException {
+    this(file, numColumns, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Creates a trajectory file. An existing file is overwritten. If a block of the given size would
+   * not fit into one mapping window, the block size is reduced.
+   *
+   * @param file       the file
+   * @param numColumns number of values per sample
+   * @param blockSize  number of samples per block
+   * @throws IOException if the file could not be created
+   */
+  public MappedTrajectoryWriter(File file, int numColumns, int blockSize) throws IOException {
+    if (numColumns < 1 || blockSize < 1) {
+      throw new IllegalArgumentException("Number of columns and block size have to be positive!");
+    }
+    this.numColumns = numColumns;
+    this.blockSize = (int) Math.max(1, Math.min(blockSize, WINDOW_SIZE / (8L * numColumns)));
+    this.blockBytes = 8L * numColumns * this.blockSize;
+    this.windowBlocks = (int) Math.max(1, WINDOW_SIZE / blockBytes);
+
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+    channel = this.file.getChannel();
+    header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(0, MAGIC);
+    header.putInt(4, VERSION);
+    header.putInt(8, numColumns);
+    header.putInt(12, this.blockSize);
+    header.putLong(NUM_SAMPLES_POSITION, 0);
+  }
+
+  /**
+   * Appends a sample.
+   *
+   * @param sample the values of the sample (one for each column)
+   */
+  public void append(double[] sample) {
+    if (sample.length != numColumns) {
+      throw new IllegalArgumentException(
+          "Sample has " + sample.length + " values, but there are " + numColumns + " columns!");
+    }
+    long block = numSamples / blockSize;
+    long w = block / windowBlocks;
+    if (w != windowIndex) {
+      mapWindow(w);
+    }
+    int index = (int) ((block % windowBlocks) * blockBytes + (numSamples % blockSize) * 8);
+    int columnBytes = 8 * blockSize;
+    for (int c = 0; c < numColumns; c++) {
+      window.putDouble(index, sample[c]);
+      index += columnBytes;
+    }
+    numSamples++;
+    header.putLong(NUM_SAMPLES_POSITION, numSamples);
+  }
+
+  private void mapWindow(long w) {
+    try {
+      window = channel.map(MapMode.READ_WRITE, HEADER_SIZE + w * windowBlocks * blockBytes,
+          windowBlocks * blockBytes);
+      window.order(ByteOrder.LITTLE_ENDIAN);
+      windowIndex = w;
+    } catch (IOException e) {
+      throw new RuntimeException("Could not map the trajectory file!", e);
+    }
+  }
+
+  /**
+   * Gets the number of written samples.
+   *
+   * @return number of samples
+   */
+  public long getNumSamples() {
+    return numSamples;
+  }
+
+  /**
+   * Gets the number of values per sample.
+   *
+   * @return number of columns
+   */
+  public int getNumColumns() {
+    return numColumns;
+  }
+
+  /**
+   * Writes the mapped data to the storage device.
+   */
+  public void flush() {
+    header.force();
+    if (window != null) {
+      window.force();
+    }
+  }
+
+  /**
+   * Flushes the data and closes the file. The file is truncated after the last used block.
+   *
+   * @throws IOException if the file could not be closed
+   */
+  @Override
+  public void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    flush();
+    long numBlocks = (numSamples + blockSize - 1) / blockSize;
+    window = null;
+    header = null;
+    channel.truncate(HEADER_SIZE + numBlocks * blockBytes);
+    channel.close();
+    file.close();
+    channel = null;
+  }
+
+}
@@ -6,6 +6,9 @@
  */
 package fern.simulation.observer;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.PrintWriter;
 
 import fern.simulation.Simulator;
@@ -86,6 +89,106 @@ public Observer(Simulator sim) {
    */
   public abstract void activateReaction(int mu, double tau, FireType fireType, int times);
 
+  /**
+   * Gets called with a batch of firings if the simulator buffers them (see {@link
+   * Simulator#setObserverBatchSize(int)}). By default, {@link #activateReaction(int, double,
+   * FireType, int)} is called for each record. The buffer is cleared after all observers have been
+   * called, so it must not be kept.
+   *
+   * @param records the buffered firings
+   */
+  public void activateReactions(ReactionRecordBuffer records) {
+    for (int i = 0; i < records.size(); i++) {
+      activateReaction(records.getReaction(i), records.getTime(i), records.getFireType(i),
+          records.getTimes(i));
+    }
+  }
+
+  /**
+   * Gets whether this observer has to be informed about firings. Observers with an empty {@link
+   * #activateReaction(int, double, FireType, int)} may return false, the simulator then does not
+   * call it at all. They should return {@link #isActivateReactionOverridden(Class)} instead of
+   * false, so that extending classes overriding the empty method are still called. The default is
+   * true.
+   *
+   * @return whether <code>activateReaction</code> has to be called
+   */
+  public boolean isActivateReactionNeeded() {
+    return true;
+  }
+
+  /**
+   * Gets whether this observer has to be called before each step. Observers with an empty {@link
+   * #step()} may return false, the simulator then does not call it at all. They should return
+   * {@link #isStepOverridden(Class)} instead of false, so that extending classes overriding the
+   * empty method are still called. The default is true.
+   *
+   * @return whether <code>step</code> has to be called
+   */
+  public boolean isStepNeeded() {
+    return true;
+  }
+
+  /**
+   * Gets whether {@link #activateReaction(int, double, FireType, int)} or {@link
+   * #activateReactions(ReactionRecordBuffer)} is overridden by a class extending the given one.
+   *
+   * @param emptyImplementation the class implementing <code>activateReaction</code> by an empty
+   *                            method
+   * @return whether the class of this observer overrides the empty method
+   */
+  protected final boolean isActivateReactionOverridden(
+      Class<? extends Observer> emptyImplementation) {
+    return isOverridden(emptyImplementation, "activateReaction", int.class, double.class,
+        FireType.class, int.class)
+        || isOverridden(emptyImplementation, "activateReactions", ReactionRecordBuffer.class);
+  }
+
+  /**
+   * Gets whether {@link #step()} is overridden by a class extending the given one.
+   *
+   * @param emptyImplementation the class implementing <code>step</code> by an empty method
+   * @return whether the class of this observer overrides the empty method
+   */
+  protected final boolean isStepOverridden(Class<? extends Observer> emptyImplementation) {
+    return isOverridden(emptyImplementation, "step");
+  }
+
+  private boolean isOverridden(Class<? extends Observer> emptyImplementation, String name,
+      Class<?>... parameterTypes) {
+    try {
+      Class<?> declaring = getClass().getMethod(name, parameterTypes).getDeclaringClass();
+      return declaring != emptyImplementation && emptyImplementation.isAssignableFrom(declaring);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Writes the state of this observer to a checkpoint of its simulator (see {@link
+   * Simulator#saveCheckpoint(java.io.File)}). Extending classes that record data during a
+   * simulation should override it (and {@link #readState(ObjectInput)}) and call the super method.
+   *
+   * @param out the output
+   * @throws IOException if the state could not be written
+   */
+  public void writeState(ObjectOutput out) throws IOException {
+    out.writeDouble(theta);
+    out.writeInt(numSimulations);
+  }
+
+  /**
+   * Reads the state written by {@link #writeState(ObjectOutput)} when a checkpoint is loaded.
+   *
+   * @param in the input
+   * @throws IOException            if the state could not be read
+   * @throws ClassNotFoundException if the state contains unknown classes
+   */
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    theta = in.readDouble();
+    numSimulations = in.readInt();
+  }
+
   /**
    * Gets called after the <code>finish</code> call and prints the results of this observer if a
    * {@link PrintWriter} is registered.
@@ -32,7 +32,7 @@ public class RandomNumberGeneratorCallObserver extends Observer implements GnuPl
    */
   public RandomNumberGeneratorCallObserver(Simulator sim) {
     super(sim);
-    Stochastics.getInstance().setCountGenerations(true);
+    sim.getStochastics().setCountGenerations(true);
     addedTitles = new HashSet<>();
   }
 
@@ -43,15 +43,20 @@ public RandomNumberGeneratorCallObserver(Simulator sim) {
   public void activateReaction(int mu, double tau, FireType fireType, int times) {
   }
 
+  @Override
+  public boolean isActivateReactionNeeded() {
+    return isActivateReactionOverridden(RandomNumberGeneratorCallObserver.class);
+  }
+
   /**
    * Calculates the average.
    */
   @Override
   public void finished() {
     if (numCalls == null) {
-      numCalls = NumberTools.convertIntToDouble(Stochastics.getInstance().getCounts());
+      numCalls = NumberTools.convertIntToDouble(getSimulator().getStochastics().getCounts());
     } else {
-      int[] act = Stochastics.getInstance().getCounts();
+      int[] act = getSimulator().getStochastics().getCounts();
       for (int i = 0; i < numCalls.length; i++) {
         numCalls[i] =
             (numCalls[i] * (double) getNumSimulations() + act[i]) / ((double) getNumSimulations()
@@ -68,7 +73,8 @@ public void finished() {
    */
   @Override
   public void started() {
-    Stochastics.getInstance().resetCounts();
+    getSimulator().getStochastics().setCountGenerations(true);
+    getSimulator().getStochastics().resetCounts();
   }
 
   /**
@@ -78,6 +84,11 @@ public void started() {
   public void step() {
   }
 
+  @Override
+  public boolean isStepNeeded() {
+    return isStepOverridden(RandomNumberGeneratorCallObserver.class);
+  }
+
   /**
    * Do nothing.
    */
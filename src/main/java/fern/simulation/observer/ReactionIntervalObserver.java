@@ -1,5 +1,8 @@
 package fern.simulation.observer;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -64,6 +67,17 @@ public void started() {
     Arrays.fill(observeReactions, 0);
   }
 
+  @Override
+  public void writeState(ObjectOutput out) throws IOException {
+    super.writeState(out);
+    out.writeObject(observeReactions);
+  }
+
+  @Override
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    super.readState(in);
+    observeReactions = (int[]) in.readObject();
+  }
 
   /**
    * Gets the moment in time where the recording starts
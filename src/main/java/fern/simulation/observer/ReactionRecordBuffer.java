@@ -0,0 +1,132 @@
+package fern.simulation.observer;
+
+import fern.simulation.Simulator;
+import fern.simulation.Simulator.FireType;
+
+
+/**
+ * Buffer of reaction firings (reaction, time, type of the firing and number of firings) stored in
+ * primitive arrays. If batched observer dispatch is enabled by {@link
+ * Simulator#setObserverBatchSize(int)}, the simulator appends each firing to this buffer and passes
+ * it to {@link Observer#activateReactions(ReactionRecordBuffer)} when it is full or when the
+ * observers have to be up to date (before <code>step</code>, <code>theta</code>, triggers and
+ * <code>finished</code>). Afterwards the buffer is cleared and reused.
+ *
+ * @see Observer#activateReactions(ReactionRecordBuffer)
+ */
+public class ReactionRecordBuffer {
+
+  private static final FireType[] FIRE_TYPES = FireType.values();
+
+  private int[] reactions;
+  private double[] times;
+  private byte[] fireTypes;
+  private int[] counts;
+  private int size = 0;
+
+  /**
+   * Creates a buffer for the given number of records.
+   *
+   * @param capacity maximal number of records
+   */
+  public ReactionRecordBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity has to be positive!");
+    }
+    reactions = new int[capacity];
+    times = new double[capacity];
+    fireTypes = new byte[capacity];
+    counts = new int[capacity];
+  }
+
+  /**
+   * Appends a record. The buffer must not be full.
+   *
+   * @param mu       the reaction
+   * @param tau      the time of the firing
+   * @param fireType the type of the firing
+   * @param times    the number of firings
+   */
+  public void add(int mu, double tau, FireType fireType, int times) {
+    reactions[size] = mu;
+    this.times[size] = tau;
+    fireTypes[size] = (byte) fireType.ordinal();
+    counts[size] = times;
+    size++;
+  }
+
+  /**
+   * Removes all records.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Gets the number of records.
+   *
+   * @return number of records
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets whether no more records can be added.
+   *
+   * @return whether the buffer is full
+   */
+  public boolean isFull() {
+    return size == reactions.length;
+  }
+
+  /**
+   * Gets the maximal number of records.
+   *
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return reactions.length;
+  }
+
+  /**
+   * Gets the reaction of the given record.
+   *
+   * @param index index of the record
+   * @return the reaction
+   */
+  public int getReaction(int index) {
+    return reactions[index];
+  }
+
+  /**
+   * Gets the time of the given record.
+   *
+   * @param index index of the record
+   * @return the time of the firing
+   */
+  public double getTime(int index) {
+    return times[index];
+  }
+
+  /**
+   * Gets the type of the firing of the given record.
+   *
+   * @param index index of the record
+   * @return the type of the firing
+   */
+  public FireType getFireType(int index) {
+    return FIRE_TYPES[fireTypes[index]];
+  }
+
+  /**
+   * Gets the number of firings of the given record.
+   *
+   * @param index index of the record
+   * @return the number of firings
+   */
+  public int getTimes(int index) {
+    return counts[index];
+  }
+
+}
@@ -29,6 +29,32 @@ public static int faculty(int i) {
     return i == 1 ? 1 : i * faculty(i - 1);
   }
 
+  private static final double[] LOG_FACULTY = new double[16];
+
+  static {
+    for (int i = 1; i < LOG_FACULTY.length; i++) {
+      LOG_FACULTY[i] = LOG_FACULTY[i - 1] + Math.log(i);
+    }
+  }
+
+  /**
+   * Gets the natural logarithm of the faculty. Small values are taken from a table, larger ones
+   * are computed by the Stirling series.
+   *
+   * @param i the number (non negative)
+   * @return log(faculty(i))
+   */
+  public static double logFaculty(int i) {
+    if (i < LOG_FACULTY.length) {
+      return LOG_FACULTY[i];
+    }
+    double x = i + 1.0;
+    double x2 = 1.0 / (x * x);
+    double series = ((((-1.0 / 1680.0 * x2 + 1.0 / 1260.0) * x2 - 1.0 / 360.0) * x2) + 1.0 / 12.0)
+        / x;
+    return (x - 0.5) * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI) + series;
+  }
+
   /**
    * Gets the maximal value within the given {@link Iterable}.
    *
@@ -0,0 +1,167 @@
+package fern.tools;
+
+/**
+ * Mergeable sketch for quantiles of a stream of non negative values. The values are counted in
+ * logarithmically sized buckets, such that each quantile is returned with a relative error of at
+ * most the given accuracy. The memory needed only depends on the range of the values, not on their
+ * number, and two sketches with the same accuracy can be merged without loss.
+ * <p>
+ * For reference see Charles Masson, Jee E. Rim and Homin K. Lee, DDSketch: A Fast and
+ * Fully-Mergeable Quantile Sketch with Relative-Error Guarantees, PVLDB 12(12), 2195-2205 (2019)
+ */
+public class QuantileSketch {
+
+  private double relativeAccuracy;
+  private double gamma;
+  private double logGamma;
+
+  private long[] counts = new long[0];
+  private int offset = 0;
+  private long zeroCount = 0;
+  private long count = 0;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Creates an empty sketch with the given relative accuracy.
+   *
+   * @param relativeAccuracy the relative accuracy (0 &lt; relativeAccuracy &lt; 1)
+   */
+  public QuantileSketch(double relativeAccuracy) {
+    if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+      throw new IllegalArgumentException("The relative accuracy has to be in (0,1)!");
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    logGamma = Math.log(gamma);
+  }
+
+  /**
+   * Adds a value to the sketch.
+   *
+   * @param value the value (non negative)
+   */
+  public void add(double value) {
+    if (value < 0 || Double.isNaN(value)) {
+      throw new IllegalArgumentException("Only non negative values can be added!");
+    }
+    if (value == 0) {
+      zeroCount++;
+    } else {
+      int bucket = (int) Math.ceil(Math.log(value) / logGamma);
+      ensureBucket(bucket);
+      counts[bucket - offset]++;
+    }
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds the content of another sketch to this one. Both sketches have to have the same accuracy.
+   *
+   * @param other the other sketch
+   */
+  public void merge(QuantileSketch other) {
+    if (other.gamma != gamma) {
+      throw new IllegalArgumentException("Only sketches with equal accuracy can be merged!");
+    }
+    if (other.count == 0) {
+      return;
+    }
+    if (other.counts.length > 0) {
+      ensureBucket(other.offset);
+      ensureBucket(other.offset + other.counts.length - 1);
+      for (int i = 0; i < other.counts.length; i++) {
+        counts[other.offset + i - offset] += other.counts[i];
+      }
+    }
+    zeroCount += other.zeroCount;
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Gets the value at the given quantile. If the sketch is empty, NaN is returned.
+   *
+   * @param q the quantile (0 &le; q &le; 1)
+   * @return the value at the quantile
+   */
+  public double getQuantile(double q) {
+    if (q < 0 || q > 1) {
+      throw new IllegalArgumentException("The quantile has to be in [0,1]!");
+    }
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long rank = (long) (q * (count - 1));
+    long cum = zeroCount;
+    if (cum > rank) {
+      return 0;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      cum += counts[i];
+      if (cum > rank) {
+        double value = 2 * Math.pow(gamma, i + offset) / (gamma + 1);
+        return Math.max(min, Math.min(max, value));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Gets the number of values added to the sketch.
+   *
+   * @return number of values
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Gets the smallest value added to the sketch.
+   *
+   * @return the minimum
+   */
+  public double getMin() {
+    return min;
+  }
+
+  /**
+   * Gets the largest value added to the sketch.
+   *
+   * @return the maximum
+   */
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * Gets the relative accuracy of the sketch.
+   *
+   * @return the relative accuracy
+   */
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  private void ensureBucket(int bucket) {
+    if (counts.length == 0) {
+      counts = new long[8];
+      offset = bucket;
+    } else if (bucket < offset) {
+      int grow = Math.max(offset - bucket, counts.length / 2);
+      long[] n = new long[counts.length + grow];
+      System.arraycopy(counts, 0, n, grow, counts.length);
+      counts = n;
+      offset -= grow;
+    } else if (bucket >= offset + counts.length) {
+      int grow = Math.max(bucket - offset - counts.length + 1, counts.length / 2);
+      long[] n = new long[counts.length + grow];
+      System.arraycopy(counts, 0, n, 0, counts.length);
+      counts = n;
+    }
+  }
+
+}
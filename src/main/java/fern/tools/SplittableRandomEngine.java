@@ -0,0 +1,129 @@
+package fern.tools;
+
+import cern.jet.random.engine.RandomEngine;
+
+/**
+ * Splittable random number engine based on the SplitMix64 generator. In contrast to the {@link
+ * cern.jet.random.engine.MersenneTwister} which is seeded by a 32 bit integer, the state of this
+ * engine is a 64 bit seed together with a 64 bit increment (gamma). Independent streams can be
+ * derived either by {@link #split()} or, without touching the state of this engine, by {@link
+ * #substream(long)}, so each replicate of an ensemble gets its own reproducible stream given a root
+ * seed and the replicate index.
+ * <p>
+ * For reference see Guy L. Steele Jr., Doug Lea and Christine H. Flood, Fast Splittable
+ * Pseudorandom Number Generators, OOPSLA 2014
+ *
+ * @see Stochastics
+ */
+public class SplittableRandomEngine extends RandomEngine {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  private long seed;
+  private long gamma;
+
+  /**
+   * Creates the engine for the given seed.
+   *
+   * @param seed the seed
+   */
+  public SplittableRandomEngine(long seed) {
+    this(seed, GOLDEN_GAMMA);
+  }
+
+  private SplittableRandomEngine(long seed, long gamma) {
+    this.seed = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * Creates a new engine which shares no state with this one. The state of this engine is advanced.
+   *
+   * @return the new engine
+   */
+  public SplittableRandomEngine split() {
+    return new SplittableRandomEngine(mix64(nextSeed()), mixGamma(nextSeed()));
+  }
+
+  /**
+   * Creates the engine for the given substream index. The state of this engine is not changed, so
+   * calling this method with the same index always yields an engine producing the same numbers.
+   *
+   * @param index index of the substream
+   * @return the engine for the substream
+   */
+  public SplittableRandomEngine substream(long index) {
+    long s = mix64(seed + (index + 1) * GOLDEN_GAMMA);
+    return new SplittableRandomEngine(mix64(s), mixGamma(s + GOLDEN_GAMMA));
+  }
+
+  /**
+   * Gets the actual state of the engine (seed and gamma).
+   *
+   * @return seed and gamma
+   */
+  public long[] getState() {
+    return new long[]{seed, gamma};
+  }
+
+  /**
+   * Sets the state of the engine as returned by {@link #getState()}.
+   *
+   * @param state seed and gamma
+   */
+  public void setState(long[] state) {
+    this.seed = state[0];
+    this.gamma = state[1];
+  }
+
+  @Override
+  public int nextInt() {
+    return (int) (mix64(nextSeed()) >>> 32);
+  }
+
+  @Override
+  public long nextLong() {
+    return mix64(nextSeed());
+  }
+
+  /**
+   * Returns a 53 bit uniformly distributed random number in the open unit interval (0,1).
+   *
+   * @return random number
+   */
+  @Override
+  public double raw() {
+    double d;
+    do {
+      d = (nextLong() >>> 11) * DOUBLE_UNIT;
+    } while (d == 0.0);
+    return d;
+  }
+
+  @Override
+  public double nextDouble() {
+    return raw();
+  }
+
+  private long nextSeed() {
+    return seed += gamma;
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static long mixGamma(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    int n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+
+}
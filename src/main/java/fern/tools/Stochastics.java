@@ -6,6 +6,9 @@
  */
 package fern.tools;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 
 import cern.jet.random.Binomial;
@@ -14,6 +17,7 @@
 import cern.jet.random.Poisson;
 import cern.jet.random.Uniform;
 import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
 
 /**
  * Manages a random number generators for various distributions. By only using this class for every
@@ -21,6 +25,13 @@
  * <ul><li>it is guaranteed that the most quickest possible generator is used for each drawing</li>
  * <li>one can derandomize the algorithms by using {@link Stochastics#setSeed(Date)}</li>
  * <li>the number of random number generations can easily be counted</li></ul>
+ * <p>
+ * Besides the singleton, which is shared by every {@link fern.simulation.Simulator} by default,
+ * independent instances can be created. Each {@link fern.simulation.Simulator} can be given its own
+ * instance (see {@link fern.simulation.Simulator#setStochastics(Stochastics)}), which is required
+ * when simulations are run concurrently. Instances created by {@link #Stochastics(long, long)} use
+ * a {@link SplittableRandomEngine} and yield for a given root seed and replicate index always the
+ * same, statistically independent stream of random numbers.
  *
  * @author Florian Erhard
  */
@@ -42,10 +53,12 @@ public static Stochastics getInstance() {
   }
 
   private Date seed = null;
+  private long replicate = -1;
   private Uniform unif = null;
   private Exponential exponential = null;
   private Binomial binom = null;
   private Poisson poisson = null;
+  private RandomEngine poissonEngine = null;
   private Normal normal = null;
   private int unifCount = 0;
   private int exponentialCount = 0;
@@ -60,6 +73,54 @@ private Stochastics() {
     resetSeed();
   }
 
+  /**
+   * Creates an independent instance with the given seed. It yields the same random numbers as the
+   * singleton object would after a call to {@link Stochastics#setSeed(long)}.
+   *
+   * @param seed the seed
+   */
+  public Stochastics(long seed) {
+    setSeed(seed);
+  }
+
+  /**
+   * Creates an independent instance for one replicate of an ensemble of simulations. The random
+   * numbers are drawn from a {@link SplittableRandomEngine} whose substream is determined by the
+   * root seed and the replicate index, so different replicates get different streams and the same
+   * replicate always gets the same stream.
+   *
+   * @param rootSeed  the seed of the whole ensemble
+   * @param replicate the index of the replicate (non negative)
+   */
+  public Stochastics(long rootSeed, long replicate) {
+    if (replicate < 0) {
+      throw new IllegalArgumentException("The replicate index has to be non negative!");
+    }
+    this.replicate = replicate;
+    setSeed(rootSeed);
+  }
+
+  /**
+   * Creates an independent instance for the given replicate index with the seed of this object as
+   * root seed.
+   *
+   * @param replicate the index of the replicate
+   * @return the new instance
+   * @see Stochastics#Stochastics(long, long)
+   */
+  public Stochastics createReplicate(long replicate) {
+    return new Stochastics(getSeed(), replicate);
+  }
+
+  /**
+   * Gets the replicate index of this object or -1, if it has not been created for a replicate.
+   *
+   * @return replicate index
+   */
+  public long getReplicate() {
+    return replicate;
+  }
+
   /**
    * Sets the seed to the current date
    */
@@ -91,11 +152,23 @@ public void setSeed(long seed) {
    * @param seed the seed
    */
   public void setSeed(Date seed) {
-    unif = new Uniform(new MersenneTwister(seed));
-    exponential = new Exponential(0, new MersenneTwister(seed));
-    binom = new Binomial(10, 0.5, new MersenneTwister(seed));
-    poisson = new Poisson(1, new MersenneTwister(seed));
-    normal = new Normal(0, 1, new MersenneTwister(seed));
+    if (replicate < 0) {
+      unif = new Uniform(new MersenneTwister(seed));
+      exponential = new Exponential(0, new MersenneTwister(seed));
+      binom = new Binomial(10, 0.5, new MersenneTwister(seed));
+      poissonEngine = new MersenneTwister(seed);
+      poisson = new Poisson(1, poissonEngine);
+      normal = new Normal(0, 1, new MersenneTwister(seed));
+    } else {
+      SplittableRandomEngine stream = new SplittableRandomEngine(seed.getTime())
+          .substream(replicate);
+      unif = new Uniform(stream.split());
+      exponential = new Exponential(0, stream.split());
+      binom = new Binomial(10, 0.5, stream.split());
+      poissonEngine = stream.split();
+      poisson = new Poisson(1, poissonEngine);
+      normal = new Normal(0, 1, stream.split());
+    }
     this.seed = seed;
   }
 
@@ -231,6 +304,76 @@ public int getPoisson(double mean) {
     return poisson.nextInt(mean);
   }
 
+  /**
+   * Gets a random number from the Poisson distribution for each of the given means. Zero means
+   * yield zero without consuming random numbers. The numbers are drawn from the same stream as
+   * {@link #getPoisson(double)}, by inversion for means below 10 and by the transformed rejection
+   * method PTRS otherwise, which needs about two uniform random numbers per variate regardless of
+   * the mean.
+   * <p>
+   * For reference see W. Hoermann, The transformed rejection method for generating Poisson random
+   * variables, Insurance: Mathematics and Economics 12, 39-45 (1993)
+   *
+   * @param mean the means
+   * @param re   array for the random numbers (at least as long as <code>mean</code>)
+   */
+  public void getPoisson(double[] mean, int[] re) {
+    for (int i = 0; i < mean.length; i++) {
+      if (mean[i] == 0) {
+        re[i] = 0;
+        continue;
+      }
+      if (countGenerations) {
+        poissonCount++;
+      }
+      re[i] = mean[i] < 10 ? getPoissonByInversion(mean[i]) : getPoissonByPTRS(mean[i]);
+    }
+  }
+
+  private int getPoissonByInversion(double mean) {
+    double p0 = Math.exp(-mean);
+    double u = poissonEngine.raw();
+    double p = p0;
+    double cdf = p0;
+    int k = 0;
+    while (u > cdf) {
+      k++;
+      p *= mean / k;
+      cdf += p;
+      if (k == 100) {
+        // only reached by rounding errors in the far tail, start over
+        u = poissonEngine.raw();
+        p = cdf = p0;
+        k = 0;
+      }
+    }
+    return k;
+  }
+
+  private int getPoissonByPTRS(double mean) {
+    double logMean = Math.log(mean);
+    double b = 0.931 + 2.53 * Math.sqrt(mean);
+    double a = -0.059 + 0.02483 * b;
+    double logInvAlpha = Math.log(1.1239 + 1.1328 / (b - 3.4));
+    double vr = 0.9277 - 3.6224 / (b - 2);
+    while (true) {
+      double u = poissonEngine.raw() - 0.5;
+      double v = poissonEngine.raw();
+      double us = 0.5 - Math.abs(u);
+      double k = Math.floor((2 * a / us + b) * u + mean + 0.43);
+      if (us >= 0.07 && v <= vr) {
+        return (int) k;
+      }
+      if (k < 0 || k > Integer.MAX_VALUE || (us < 0.013 && v > us)) {
+        continue;
+      }
+      if (Math.log(v) + logInvAlpha - Math.log(a / (us * us) + b)
+          <= -mean + k * logMean - NumberTools.logFaculty((int) k)) {
+        return (int) k;
+      }
+    }
+  }
+
   /**
    * Gets a random number from the Normal distribution
    *
@@ -259,5 +402,41 @@ public double getNormal(double mean, double stddev) {
     return normal.nextDouble(mean, stddev);
   }
 
+  /**
+   * Writes the complete state of the random number generators (including the seed and the
+   * replicate index), so that {@link #readState(ObjectInput)} can continue the random number
+   * streams exactly where they have been.
+   *
+   * @param out the output
+   * @throws IOException if the state could not be written
+   */
+  public void writeState(ObjectOutput out) throws IOException {
+    out.writeLong(getSeed());
+    out.writeLong(replicate);
+    out.writeObject(unif);
+    out.writeObject(exponential);
+    out.writeObject(binom);
+    out.writeObject(poisson);
+    out.writeObject(normal);
+    out.writeObject(poissonEngine);
+  }
+
+  /**
+   * Reads a state written by {@link #writeState(ObjectOutput)}.
+   *
+   * @param in the input
+   * @throws IOException            if the state could not be read
+   * @throws ClassNotFoundException if the state contains unknown classes
+   */
+  public void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+    seed = new Date(in.readLong());
+    replicate = in.readLong();
+    unif = (Uniform) in.readObject();
+    exponential = (Exponential) in.readObject();
+    binom = (Binomial) in.readObject();
+    poisson = (Poisson) in.readObject();
+    normal = (Normal) in.readObject();
+    poissonEngine = (RandomEngine) in.readObject();
+  }
 
 }
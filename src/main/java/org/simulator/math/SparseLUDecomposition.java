@@ -0,0 +1,334 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.simulator.math.MatrixOperations.MatrixException;
+
+/**
+ * LU decomposition of {@link SparseMatrix}s with a fixed structure. The rows and columns are
+ * permuted symmetrically by a minimum degree ordering of the structure to reduce the fill-in,
+ * and the structure of the factors is determined once when the decomposition is created. Each
+ * call of {@link #factorize(SparseMatrix)} then only computes the values of the factors of a
+ * matrix with this structure, which can be solved for any number of right hand sides with
+ * {@link #solve(double[])}.
+ * <p>
+ * The pivots are taken from the diagonal, which is suitable for matrices with a dominant
+ * diagonal like the iteration matrices of implicit solvers for small step sizes. A pivot that is
+ * small compared to the other entries of its row in U (see {@link #PIVOT_THRESHOLD}), or entries
+ * of U that grow too much compared to the matrix (see {@link #GROWTH_LIMIT}), make the
+ * decomposition unstable. In this case the matrix is decomposed as a dense matrix with partial
+ * pivoting by {@link MatrixOperations#ludcmp(double[][], int[])} instead.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+public class SparseLUDecomposition {
+
+  /**
+   * The minimal ratio of the magnitude of a diagonal pivot to the largest magnitude in its row of
+   * U
+   */
+  public static final double PIVOT_THRESHOLD = 1E-3d;
+
+  /**
+   * The maximal ratio of the largest magnitude in U to the largest magnitude in the matrix
+   */
+  public static final double GROWTH_LIMIT = 1E8d;
+
+  /**
+   * The structure of the matrices to decompose
+   */
+  private SparseMatrix structure;
+
+  /**
+   * The original row and column of each row and column of the permuted matrix
+   */
+  private int[] permutation;
+
+  /**
+   * The factors of the permuted matrix in compressed row storage: the entries left of the
+   * diagonal belong to the unit lower triangular matrix L, the other entries to the upper
+   * triangular matrix U.
+   */
+  private int[] rowPointers;
+  private int[] columns;
+  private int[] diagonal;
+  private double[] values;
+
+  /**
+   * The position of each entry of the structure in the factors
+   */
+  private int[] positions;
+
+  /**
+   * Helper arrays
+   */
+  private int[] position;
+  private double[] x;
+
+  /**
+   * Flag that is {@code true} if the last matrix has been decomposed as a dense matrix, as well
+   * as the dense decomposition and its row permutation
+   */
+  private boolean dense;
+  private double[][] denseValues;
+  private int[] indx;
+
+  /**
+   * Creates the decomposition for matrices with the given structure.
+   *
+   * @param structure a matrix with the structure of the matrices to decompose
+   */
+  public SparseLUDecomposition(SparseMatrix structure) {
+    this.structure = structure;
+    int n = structure.getDimension();
+    int[] pointers = structure.getRowPointers();
+    int[] structureColumns = structure.getColumns();
+
+    // the symmetric structure without the diagonal
+    List<Set<Integer>> adjacency = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      adjacency.add(new HashSet<>());
+    }
+    for (int i = 0; i < n; i++) {
+      for (int k = pointers[i]; k < pointers[i + 1]; k++) {
+        int j = structureColumns[k];
+        if (i != j) {
+          adjacency.get(i).add(j);
+          adjacency.get(j).add(i);
+        }
+      }
+    }
+
+    // minimum degree ordering, eliminating the nodes in the graph of the matrix
+    permutation = new int[n];
+    int[] inverse = new int[n];
+    int[][] eliminated = new int[n][];
+    PriorityQueue<long[]> queue = new PriorityQueue<>(Math.max(1, n), (a, b) -> (a[0] != b[0])
+        ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    for (int i = 0; i < n; i++) {
+      queue.add(new long[] {adjacency.get(i).size(), i});
+    }
+    for (int p = 0; p < n; p++) {
+      int v;
+      while (true) {
+        long[] next = queue.poll();
+        v = (int) next[1];
+        if ((eliminated[v] == null) && (next[0] == adjacency.get(v).size())) {
+          break;
+        }
+      }
+      permutation[p] = v;
+      inverse[v] = p;
+      Set<Integer> neighbors = adjacency.get(v);
+      int[] clique = new int[neighbors.size()];
+      int count = 0;
+      for (int w : neighbors) {
+        clique[count++] = w;
+      }
+      eliminated[v] = clique;
+      // the remaining neighbors become a clique, which is the fill-in
+      for (int w : clique) {
+        Set<Integer> set = adjacency.get(w);
+        set.remove(v);
+        for (int u : clique) {
+          if (u != w) {
+            set.add(u);
+          }
+        }
+        queue.add(new long[] {set.size(), w});
+      }
+      adjacency.set(v, null);
+    }
+
+    // the structure of the factors: row p of U contains the neighbors of the p-th node at its
+    // elimination, row q of L the nodes eliminated before that had the q-th node as neighbor
+    int[] counts = new int[n];
+    for (int p = 0; p < n; p++) {
+      int[] clique = eliminated[permutation[p]];
+      counts[p] += clique.length + 1;
+      for (int w : clique) {
+        counts[inverse[w]]++;
+      }
+    }
+    rowPointers = new int[n + 1];
+    for (int p = 0; p < n; p++) {
+      rowPointers[p + 1] = rowPointers[p] + counts[p];
+    }
+    columns = new int[rowPointers[n]];
+    int[] next = Arrays.copyOf(rowPointers, n);
+    for (int p = 0; p < n; p++) {
+      columns[next[p]++] = p;
+      for (int w : eliminated[permutation[p]]) {
+        int q = inverse[w];
+        columns[next[p]++] = q;
+        columns[next[q]++] = p;
+      }
+    }
+    diagonal = new int[n];
+    for (int p = 0; p < n; p++) {
+      Arrays.sort(columns, rowPointers[p], rowPointers[p + 1]);
+      diagonal[p] = Arrays.binarySearch(columns, rowPointers[p], rowPointers[p + 1], p);
+    }
+    values = new double[columns.length];
+
+    positions = new int[structureColumns.length];
+    for (int i = 0; i < n; i++) {
+      int p = inverse[i];
+      for (int k = pointers[i]; k < pointers[i + 1]; k++) {
+        positions[k] = Arrays.binarySearch(columns, rowPointers[p], rowPointers[p + 1],
+            inverse[structureColumns[k]]);
+      }
+    }
+    position = new int[n];
+    x = new double[n];
+  }
+
+  /**
+   * @return the number of entries in the factors L and U, including the fill-in
+   */
+  public int getNonZeroCount() {
+    return columns.length;
+  }
+
+  /**
+   * @return flag that is {@code true} if the last matrix has been decomposed as a dense matrix,
+   * because the pivots on the diagonal have not been stable
+   */
+  public boolean isDense() {
+    return dense;
+  }
+
+  /**
+   * Computes the LU decomposition of the given matrix.
+   *
+   * @param matrix a matrix with the structure given to the constructor
+   * @throws MatrixException if a row of the matrix is zero or the matrix is singular
+   * @throws IllegalArgumentException if the structure of the matrix differs
+   */
+  public void factorize(SparseMatrix matrix) throws MatrixException {
+    if (!structure.hasSameStructure(matrix)) {
+      throw new IllegalArgumentException("The structure of the matrix differs.");
+    }
+    int n = structure.getDimension();
+    int[] pointers = structure.getRowPointers();
+    double[] matrixValues = matrix.getValues();
+    Arrays.fill(values, 0d);
+    double largest = 0d;
+    for (int i = 0; i < n; i++) {
+      boolean zero = true;
+      for (int k = pointers[i]; k < pointers[i + 1]; k++) {
+        values[positions[k]] = matrixValues[k];
+        zero &= (matrixValues[k] == 0d);
+        largest = Math.max(largest, Math.abs(matrixValues[k]));
+      }
+      if (zero) {
+        throw new MatrixException("Error: Singular linearized system. Computation cannot proceed.");
+      }
+    }
+    dense = false;
+    for (int p = 0; p < n; p++) {
+      int end = rowPointers[p + 1];
+      for (int k = rowPointers[p]; k < end; k++) {
+        position[columns[k]] = k;
+      }
+      for (int k = rowPointers[p]; k < diagonal[p]; k++) {
+        int q = columns[k];
+        double factor = values[k] / values[diagonal[q]];
+        values[k] = factor;
+        if (factor != 0d) {
+          for (int l = diagonal[q] + 1; l < rowPointers[q + 1]; l++) {
+            values[position[columns[l]]] -= factor * values[l];
+          }
+        }
+      }
+      double rowMax = 0d;
+      for (int k = diagonal[p]; k < end; k++) {
+        rowMax = Math.max(rowMax, Math.abs(values[k]));
+      }
+      if (!(Math.abs(values[diagonal[p]]) >= PIVOT_THRESHOLD * rowMax)
+          || !(rowMax <= GROWTH_LIMIT * largest)) {
+        factorizeDense(matrix);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Decomposes the given matrix as a dense matrix with partial pivoting.
+   *
+   * @param matrix the matrix
+   * @throws MatrixException if the matrix is singular
+   */
+  private void factorizeDense(SparseMatrix matrix) throws MatrixException {
+    if (denseValues == null) {
+      int n = structure.getDimension();
+      denseValues = new double[n][n];
+      indx = new int[n];
+    }
+    matrix.copyTo(denseValues);
+    MatrixOperations.ludcmp(denseValues, indx);
+    dense = true;
+  }
+
+  /**
+   * Solves the linear equations A*x = b for the matrix A that has been decomposed by the last
+   * call of {@link #factorize(SparseMatrix)}.
+   *
+   * @param b the right hand side, which is replaced by the solution x
+   */
+  public void solve(double[] b) {
+    if (dense) {
+      MatrixOperations.lubksb(denseValues, indx, b);
+      return;
+    }
+    int n = permutation.length;
+    for (int p = 0; p < n; p++) {
+      double sum = b[permutation[p]];
+      for (int k = rowPointers[p]; k < diagonal[p]; k++) {
+        sum -= values[k] * x[columns[k]];
+      }
+      x[p] = sum;
+    }
+    for (int p = n - 1; p >= 0; p--) {
+      double sum = x[p];
+      for (int k = diagonal[p] + 1; k < rowPointers[p + 1]; k++) {
+        sum -= values[k] * x[columns[k]];
+      }
+      x[p] = sum / values[diagonal[p]];
+    }
+    for (int p = 0; p < n; p++) {
+      b[permutation[p]] = x[p];
+    }
+  }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.math;
+
+import java.util.Arrays;
+
+/**
+ * A square sparse matrix in compressed row storage. The structure, i.e., the positions of the
+ * entries that may be nonzero, is fixed when the matrix is created and always contains the
+ * diagonal. The values of all entries in row i are stored in {@link #getValues()} at the
+ * positions {@code getRowPointers()[i]} to {@code getRowPointers()[i+1]-1}, sorted by their
+ * columns.
+ * <p>
+ * Several matrices can share the same structure (see {@link #SparseMatrix(SparseMatrix)}), e.g.,
+ * a Jacobian and the iteration matrix of an implicit solver.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+public class SparseMatrix {
+
+  /**
+   * The number of rows and columns
+   */
+  private int dimension;
+
+  /**
+   * The positions of the first entry of each row (and the number of entries at the end)
+   */
+  private int[] rowPointers;
+
+  /**
+   * The columns of the entries
+   */
+  private int[] columns;
+
+  /**
+   * The positions of the diagonal entries
+   */
+  private int[] diagonal;
+
+  /**
+   * The values of the entries
+   */
+  private double[] values;
+
+  /**
+   * The rows of the entries and the positions of the entries of each column, sorted by their
+   * rows, which are created when needed
+   */
+  private int[] rows;
+  private int[] columnPointers;
+  private int[] columnEntries;
+
+  /**
+   * The groups of structurally orthogonal columns, which are created when needed
+   */
+  private int[][] columnGroups;
+
+  /**
+   * Creates a matrix with the given structure and all values zero.
+   *
+   * @param structure the columns of the entries that may be nonzero for each row, in any order
+   *                  and possibly with duplicates. The diagonal is added in any case.
+   */
+  public SparseMatrix(int[][] structure) {
+    dimension = structure.length;
+    rowPointers = new int[dimension + 1];
+    int[][] sorted = new int[dimension][];
+    for (int i = 0; i < dimension; i++) {
+      int[] row = Arrays.copyOf(structure[i], structure[i].length + 1);
+      row[row.length - 1] = i;
+      Arrays.sort(row);
+      int count = 0;
+      for (int k = 0; k < row.length; k++) {
+        if ((row[k] < 0) || (row[k] >= dimension)) {
+          throw new IllegalArgumentException(
+              "Column " + row[k] + " in row " + i + " is out of range.");
+        }
+        if ((k == 0) || (row[k] != row[k - 1])) {
+          row[count++] = row[k];
+        }
+      }
+      sorted[i] = Arrays.copyOf(row, count);
+      rowPointers[i + 1] = rowPointers[i] + count;
+    }
+    columns = new int[rowPointers[dimension]];
+    diagonal = new int[dimension];
+    for (int i = 0; i < dimension; i++) {
+      System.arraycopy(sorted[i], 0, columns, rowPointers[i], sorted[i].length);
+      diagonal[i] = rowPointers[i] + Arrays.binarySearch(sorted[i], i);
+    }
+    values = new double[columns.length];
+  }
+
+  /**
+   * Creates a matrix with the same structure as the given one and all values zero.
+   *
+   * @param matrix the matrix to take the structure from
+   */
+  public SparseMatrix(SparseMatrix matrix) {
+    dimension = matrix.dimension;
+    rowPointers = matrix.rowPointers;
+    columns = matrix.columns;
+    diagonal = matrix.diagonal;
+    rows = matrix.rows;
+    columnPointers = matrix.columnPointers;
+    columnEntries = matrix.columnEntries;
+    columnGroups = matrix.columnGroups;
+    values = new double[columns.length];
+  }
+
+  /**
+   * @return the number of rows and columns
+   */
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * @return the number of entries in the structure
+   */
+  public int getNonZeroCount() {
+    return columns.length;
+  }
+
+  /**
+   * @return the positions of the first entry of each row, followed by the number of entries
+   */
+  public int[] getRowPointers() {
+    return rowPointers;
+  }
+
+  /**
+   * @return the columns of the entries
+   */
+  public int[] getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return the values of the entries, which may be changed directly
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  /**
+   * @param row the row
+   * @return the position of the diagonal entry of the row
+   */
+  public int getDiagonalIndex(int row) {
+    return diagonal[row];
+  }
+
+  /**
+   * @return the rows of the entries
+   */
+  public int[] getRows() {
+    createColumnIndex();
+    return rows;
+  }
+
+  /**
+   * @return the positions in {@link #getColumnEntries()} of the first entry of each column,
+   * followed by the number of entries
+   */
+  public int[] getColumnPointers() {
+    createColumnIndex();
+    return columnPointers;
+  }
+
+  /**
+   * @return the positions of the entries of each column, sorted by their rows (see {@link
+   * #getColumnPointers()})
+   */
+  public int[] getColumnEntries() {
+    createColumnIndex();
+    return columnEntries;
+  }
+
+  /**
+   * Partitions the columns into groups of structurally orthogonal columns, i.e., columns that do
+   * not have entries in the same row, by a greedy coloring of the columns with the largest number
+   * of entries first (Curtis, Powell and Reid, 1974). The columns of a group can be approximated
+   * by finite differences at once, perturbing all of them together, since the difference in each
+   * row is caused by a single column of the group.
+   *
+   * @return the columns of each group
+   */
+  public int[][] getColumnGroups() {
+    if (columnGroups != null) {
+      return columnGroups;
+    }
+    createColumnIndex();
+    Integer[] order = new Integer[dimension];
+    for (int j = 0; j < dimension; j++) {
+      order[j] = j;
+    }
+    Arrays.sort(order, (a, b) -> (columnPointers[b + 1] - columnPointers[b]) - (
+        columnPointers[a + 1] - columnPointers[a]));
+    int[] group = new int[dimension];
+    Arrays.fill(group, -1);
+    // the last column for which a group has been found to be occupied
+    int[] occupied = new int[dimension];
+    Arrays.fill(occupied, -1);
+    int[] sizes = new int[dimension];
+    int count = 0;
+    for (int j : order) {
+      for (int k = columnPointers[j]; k < columnPointers[j + 1]; k++) {
+        int i = rows[columnEntries[k]];
+        for (int l = rowPointers[i]; l < rowPointers[i + 1]; l++) {
+          int g = group[columns[l]];
+          if (g >= 0) {
+            occupied[g] = j;
+          }
+        }
+      }
+      int g = 0;
+      while (occupied[g] == j) {
+        g++;
+      }
+      group[j] = g;
+      sizes[g]++;
+      count = Math.max(count, g + 1);
+    }
+    int[][] groups = new int[count][];
+    for (int g = 0; g < count; g++) {
+      groups[g] = new int[sizes[g]];
+      sizes[g] = 0;
+    }
+    for (int j = 0; j < dimension; j++) {
+      groups[group[j]][sizes[group[j]]++] = j;
+    }
+    columnGroups = groups;
+    return groups;
+  }
+
+  /**
+   * Tells whether two matrices have the same structure.
+   *
+   * @param matrix the other matrix
+   * @return flag that is {@code true} if the structures are equal
+   */
+  public boolean hasSameStructure(SparseMatrix matrix) {
+    return (matrix.columns == columns) || ((matrix.dimension == dimension) && Arrays
+        .equals(matrix.rowPointers, rowPointers) && Arrays.equals(matrix.columns, columns));
+  }
+
+  /**
+   * @param row    the row
+   * @param column the column
+   * @return the position of the entry in {@link #getValues()} or -1 if it is not part of the
+   * structure
+   */
+  public int indexOf(int row, int column) {
+    int index = Arrays.binarySearch(columns, rowPointers[row], rowPointers[row + 1], column);
+    return (index < 0) ? -1 : index;
+  }
+
+  /**
+   * @param row    the row
+   * @param column the column
+   * @return the value of the entry, which is zero if it is not part of the structure
+   */
+  public double get(int row, int column) {
+    int index = indexOf(row, column);
+    return (index < 0) ? 0d : values[index];
+  }
+
+  /**
+   * Sets the value of an entry.
+   *
+   * @param row    the row
+   * @param column the column
+   * @param value  the value
+   * @throws IllegalArgumentException if the entry is not part of the structure
+   */
+  public void set(int row, int column, double value) {
+    values[checkedIndexOf(row, column)] = value;
+  }
+
+  /**
+   * Adds a value to an entry.
+   *
+   * @param row    the row
+   * @param column the column
+   * @param value  the value to add
+   * @throws IllegalArgumentException if the entry is not part of the structure
+   */
+  public void add(int row, int column, double value) {
+    values[checkedIndexOf(row, column)] += value;
+  }
+
+  /**
+   * Sets all values to zero.
+   */
+  public void clear() {
+    Arrays.fill(values, 0d);
+  }
+
+  /**
+   * Copies the values to a dense matrix, setting all other entries to zero.
+   *
+   * @param matrix the dense matrix of size {@link #getDimension()} x {@link #getDimension()}
+   */
+  public void copyTo(double[][] matrix) {
+    for (int i = 0; i < dimension; i++) {
+      double[] row = matrix[i];
+      Arrays.fill(row, 0d);
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        row[columns[k]] = values[k];
+      }
+    }
+  }
+
+  private int checkedIndexOf(int row, int column) {
+    int index = indexOf(row, column);
+    if (index < 0) {
+      throw new IllegalArgumentException(
+          "The entry (" + row + ", " + column + ") is not part of the structure.");
+    }
+    return index;
+  }
+
+  private void createColumnIndex() {
+    if (columnPointers != null) {
+      return;
+    }
+    int[] pointers = new int[dimension + 1];
+    for (int column : columns) {
+      pointers[column + 1]++;
+    }
+    for (int j = 0; j < dimension; j++) {
+      pointers[j + 1] += pointers[j];
+    }
+    int[] entries = new int[columns.length];
+    int[] next = Arrays.copyOf(pointers, dimension);
+    int[] entryRows = new int[columns.length];
+    for (int i = 0; i < dimension; i++) {
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        entryRows[k] = i;
+        entries[next[columns[k]]++] = k;
+      }
+    }
+    rows = entryRows;
+    columnEntries = entries;
+    columnPointers = pointers;
+  }
+
+}
@@ -0,0 +1,982 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.math.odes;
+
+import java.util.Arrays;
+
+import org.apache.commons.math.ode.DerivativeException;
+import org.simulator.math.Mathematics;
+import org.simulator.math.MatrixOperations.MatrixException;
+import org.simulator.math.SparseMatrix;
+
+/**
+ * A variable-order, variable-step solver based on the backward differentiation formulas (BDF) of
+ * orders one to five for stiff systems.
+ * <p>
+ * The history of the solution is kept as a Nordsieck array, i.e., the scaled derivatives
+ * h<sup>j</sup> y<sup>(j)</sup> / j! of the interpolating polynomial, which is rescaled when the
+ * step size changes. The step size and the order are selected from estimates of the local error
+ * as in LSODE and CVODE. Each step solves the corrector equation by a Newton iteration, whose
+ * iteration matrix I - &gamma; J is kept for several steps: the Jacobian J is evaluated again
+ * after {@link #getMaxJacobianAge()} steps or if the iteration does not converge, and the matrix
+ * is decomposed again if &gamma; has changed by more than {@link #getFactorizationThreshold()}.
+ * <p>
+ * The Jacobian is approximated by finite differences, unless the differential equation system is
+ * a {@link JacobianDESystem} that can compute it. For systems with at least {@link
+ * #getSparseThreshold()} equations whose Jacobian structure is known, the linear equations are
+ * solved with sparse matrices.
+ * <p>
+ * The history is kept across calls of {@link #computeChange(DESystem, double[], double, double,
+ * double[], boolean)} as long as the state has not been changed in between by more than a small
+ * fraction of the tolerances. Events and rules of an {@link EventDESystem} are processed after
+ * each step like in the {@link RosenbrockSolver}, and the integration starts again with order one
+ * after an event.
+ * <p>
+ * References: Alan C. Hindmarsh. ODEPACK, A Systematized Collection of ODE Solvers. IMACS
+ * Transactions on Scientific Computation 1, 1983, pp. 55-64. Alan C. Hindmarsh, Peter N. Brown,
+ * Keith E. Grant, Steven L. Lee, Radu Serban, Dan E. Shumaker, and Carol S. Woodward. SUNDIALS:
+ * Suite of nonlinear and differential/algebraic equation solvers. ACM Transactions on
+ * Mathematical Software 31(3), 2005, pp. 363-396.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+public class BDFSolver extends AdaptiveStepsizeIntegrator {
+
+  /**
+   * Generated serial version identifier.
+   */
+  private static final long serialVersionUID = 4236195462154817930L;
+
+  /**
+   * The highest order of the backward differentiation formulas
+   */
+  public static final int MAX_ORDER = 5;
+
+  /**
+   * The default number of equations from which on sparse matrices are used
+   */
+  public static final int DEFAULT_SPARSE_THRESHOLD = 20;
+
+  /**
+   * The default number of steps the Jacobian is kept for
+   */
+  public static final int DEFAULT_MAX_JACOBIAN_AGE = 20;
+
+  /**
+   * The default relative change of &gamma; up to which the decomposition of the iteration matrix is
+   * kept
+   */
+  public static final double DEFAULT_FACTORIZATION_THRESHOLD = 0.3d;
+
+  /**
+   * The coefficients of the corrector for each order, normalized such that the coefficient of the
+   * first derivative is one
+   */
+  private static final double[][] l;
+
+  /**
+   * The factors of the local error estimate for the current order, the next lower and the next
+   * higher order
+   */
+  private static final double[] errorFactor, errorFactorDown, errorFactorUp;
+
+  static {
+    l = new double[MAX_ORDER + 1][];
+    errorFactor = new double[MAX_ORDER + 1];
+    errorFactorDown = new double[MAX_ORDER + 1];
+    errorFactorUp = new double[MAX_ORDER + 1];
+    // the coefficients of the polynomial (1 + x) (1 + x/2) ... (1 + x/q)
+    double[] polynomial = new double[]{1d};
+    double[] harmonic = new double[MAX_ORDER + 2];
+    double factorial = 1d;
+    for (int q = 1; q <= MAX_ORDER + 1; q++) {
+      harmonic[q] = harmonic[q - 1] + 1d / q;
+      if (q > MAX_ORDER) {
+        break;
+      }
+      double[] product = new double[q + 1];
+      for (int j = 0; j < q; j++) {
+        product[j] += polynomial[j];
+        product[j + 1] += polynomial[j] / q;
+      }
+      polynomial = product;
+      l[q] = new double[q + 1];
+      for (int j = 0; j <= q; j++) {
+        l[q][j] = polynomial[j] / polynomial[1];
+      }
+      errorFactorDown[q] = factorial / harmonic[q - 1];
+      factorial *= q;
+    }
+    for (int q = 1; q <= MAX_ORDER; q++) {
+      errorFactor[q] = 1d / ((q + 1) * harmonic[q] * harmonic[q]);
+      errorFactorUp[q] = 1d / ((q + 2) * harmonic[q] * harmonic[q + 1]);
+    }
+  }
+
+  /**
+   * The maximal number of iterations to solve the corrector equation
+   */
+  private static final int MAX_NEWTON_ITERATIONS = 3;
+
+  /**
+   * The part of the local error the Newton iteration has to achieve
+   */
+  private static final double NEWTON_TOLERANCE = 0.1d;
+
+  /**
+   * The largest change of the state between two calls in the weighted norm of the local error
+   * that does not restart the integration, which allows for rounding errors when the change is
+   * added to the state
+   */
+  private static final double MAX_STATE_CHANGE = 1E-3d;
+
+  /**
+   * The maximal number of failed attempts of one step
+   */
+  private static final int MAX_CONVERGENCE_FAILURES = 10, MAX_ERROR_FAILURES = 7;
+
+  /**
+   * Precision for event timing
+   */
+  private static final double precisionTimingEventsAndRules = 1E-7;
+
+  /**
+   * Precision for fast reaction timing
+   */
+  private static final double precisionTimingFastReactions = 1E-3;
+
+  /**
+   * Precision for fast reactions
+   */
+  private static final double precisionFastReactions = 1E-3;
+
+  /**
+   * The highest order that is used
+   */
+  private int maxOrder = MAX_ORDER;
+
+  /**
+   * The number of equations from which on sparse matrices are used
+   */
+  private int sparseThreshold = DEFAULT_SPARSE_THRESHOLD;
+
+  /**
+   * The number of steps the Jacobian is kept for
+   */
+  private int maxJacobianAge = DEFAULT_MAX_JACOBIAN_AGE;
+
+  /**
+   * The relative change of &gamma; up to which the decomposition of the iteration matrix is kept
+   */
+  private double factorizationThreshold = DEFAULT_FACTORIZATION_THRESHOLD;
+
+  /**
+   * The number of evaluations of the Jacobian and of decompositions of the iteration matrix
+   */
+  private long jacobianEvaluations, factorizations;
+
+  /**
+   * The number of equations
+   */
+  private int numEqn;
+
+  /**
+   * The Nordsieck array, i.e., z[j] = h<sup>j</sup> y<sup>(j)</sup> / j! at the current time
+   */
+  private double[][] z;
+
+  /**
+   * The current time, step size, maximal step size and order
+   */
+  private double t, h, hMax;
+  private int q;
+
+  /**
+   * The minimal step size
+   */
+  private double hMin = 1E-14d;
+
+  /**
+   * Flag that is true if the Nordsieck array holds the history of the solution at the current time
+   */
+  private boolean started;
+
+  /**
+   * The step size before it has been reduced to reach the end of an interval, or 0
+   */
+  private double hInterrupted;
+
+  /**
+   * The number of steps until the order may change
+   */
+  private int orderWait;
+
+  /**
+   * Flag that is true if the step size has not been changed since the start yet
+   */
+  private boolean firstChange;
+
+  /**
+   * The weighted norm of the local error estimate of the last step
+   */
+  private double errorNorm;
+
+  /**
+   * The correction of the current step and the one saved for the estimate of the next higher order
+   */
+  private double[] e, savedE;
+
+  /**
+   * The step size savedE belongs to or 0 if there is none
+   */
+  private double hSaved;
+
+  /**
+   * The weights of the error norm
+   */
+  private double[] weights;
+
+  /**
+   * NaNs that are set before the calculation are ignored.
+   */
+  private boolean[] ignoreNaN;
+
+  /**
+   * helper arrays to hold intermediate values
+   */
+  private double[] y, yTemp, oldY, f, fTemp, r, increments;
+
+  /**
+   * The iteration matrix and the structure of the Jacobian it has been created for
+   */
+  private transient IterationMatrix matrix;
+  private transient SparseMatrix structure;
+
+  /**
+   * The number of steps since the Jacobian has been evaluated, or -1 if there is no Jacobian that
+   * can be used
+   */
+  private int jacobianAge;
+
+  /**
+   * The value of &gamma; the iteration matrix has been decomposed for, or {@link Double#NaN}
+   */
+  private double gammaFactorized;
+
+  /**
+   * The estimated rate of convergence of the Newton iteration
+   */
+  private double convergenceRate;
+
+  /**
+   * The number of failed attempts of the current step
+   */
+  private int convergenceFailures, errorFailures;
+
+  /**
+   * default constructor
+   */
+  public BDFSolver() {
+    super();
+  }
+
+  /**
+   * clone constructor
+   *
+   * @param solver
+   */
+  public BDFSolver(BDFSolver solver) {
+    super(solver);
+    maxOrder = solver.getMaxOrder();
+    sparseThreshold = solver.getSparseThreshold();
+    maxJacobianAge = solver.getMaxJacobianAge();
+    factorizationThreshold = solver.getFactorizationThreshold();
+  }
+
+  /**
+   * initialization function
+   *
+   * @param size the number of equations
+   */
+  private void init(int size) {
+    numEqn = size;
+    z = new double[MAX_ORDER + 1][numEqn];
+    e = new double[numEqn];
+    savedE = new double[numEqn];
+    weights = new double[numEqn];
+    ignoreNaN = new boolean[numEqn];
+    y = new double[numEqn];
+    yTemp = new double[numEqn];
+    oldY = new double[numEqn];
+    f = new double[numEqn];
+    fTemp = new double[numEqn];
+    r = new double[numEqn];
+    increments = new double[numEqn];
+    matrix = null;
+    structure = null;
+    started = false;
+    jacobianAge = -1;
+    gammaFactorized = Double.NaN;
+  }
+
+  /* (non-Javadoc)
+   * @see org.simulator.math.odes.AbstractDESSolver#clone()
+   */
+  @Override
+  public BDFSolver clone() {
+    return new BDFSolver(this);
+  }
+
+  /* (non-Javadoc)
+   * @see org.simulator.math.odes.AbstractDESSolver#computeChange(org.simulator.math.odes.DESystem, double[], double, double, double[], boolean)
+   */
+  @Override
+  public double[] computeChange(DESystem DES, double[] y2, double time, double currentStepSize,
+      double[] change, boolean steadyState) throws DerivativeException {
+    if ((y == null) || (y.length != y2.length)) {
+      init(y2.length);
+    }
+    hMax = currentStepSize;
+    boolean hasDerivatives = true;
+    if (DES instanceof EventDESystem) {
+      EventDESystem EDES = (EventDESystem) DES;
+      if (EDES.getNoDerivatives()) {
+        hasDerivatives = false;
+      }
+    }
+    double timeEnd = time + currentStepSize;
+
+    // Restrict relative error tolerance to be at least as large as
+    // 2*eps+RELMIN to avoid limiting precision difficulties arising
+    // from impossible accuracy requests
+    double relMin = 2d * Math.ulp(1d) + RosenbrockSolver.RELMIN;
+    if (relTol < relMin) {
+      relTol = relMin;
+    }
+
+    // the history can only be used if the state has not been changed since the last call
+    if (started && hasDerivatives && (Math.abs(t - time) <= 1E-12 * Math.max(1d, Math.abs(time)))) {
+      computeWeights();
+      for (int i = 0; i < numEqn; i++) {
+        r[i] = y2[i] - z[0][i];
+      }
+      started = norm(r) <= MAX_STATE_CHANGE;
+    } else {
+      started = false;
+    }
+    if (started) {
+      System.arraycopy(y2, 0, z[0], 0, numEqn);
+      if (hInterrupted > 0d) {
+        rescale(hInterrupted / h);
+        hInterrupted = 0d;
+      }
+      if (h > hMax) {
+        rescale(hMax / h);
+      }
+    }
+    t = time;
+    System.arraycopy(y2, 0, y, 0, numEqn);
+    for (int i = 0; i != numEqn; i++) {
+      ignoreNaN[i] = !Double.isFinite(y[i]);
+    }
+
+    while (true) {
+      // see if we're done
+      if (t >= timeEnd) {
+        if ((DES instanceof EventDESystem) && (!steadyState)) {
+          EventDESystem EDES = (EventDESystem) DES;
+          if ((EDES.getEventCount() > 0) || (EDES.getRuleCount() > 0)) {
+            System.arraycopy(y, 0, yTemp, 0, numEqn);
+            if (processEventsAndRules(true, EDES, timeEnd, t - h, yTemp)) {
+              started = false;
+            }
+            System.arraycopy(yTemp, 0, y, 0, numEqn);
+            if (started) {
+              System.arraycopy(y, 0, z[0], 0, numEqn);
+            }
+          }
+        }
+        Mathematics.vvSub(y, y2, change);
+        break;
+      }
+      if (!started) {
+        start(DES, timeEnd - t, hasDerivatives);
+      }
+      // reach the end of the interval exactly
+      boolean last = (t + h >= timeEnd) || (timeEnd - t - h < hMin);
+      if (last) {
+        hInterrupted = h;
+        rescale((timeEnd - t) / h);
+      }
+      double newTime = last ? timeEnd : t + h;
+      if (hasDerivatives) {
+        if (!step(DES, newTime)) {
+          continue;
+        }
+        System.arraycopy(z[0], 0, yTemp, 0, numEqn);
+      } else {
+        System.arraycopy(y, 0, yTemp, 0, numEqn);
+      }
+      setUnstableFlag(false);
+      boolean changed = false;
+      boolean eventFired = false;
+      if ((DES instanceof EventDESystem) && (!steadyState)) {
+        EventDESystem EDES = (EventDESystem) DES;
+        if ((EDES.getEventCount() > 0) || (EDES.getRuleCount() > 0)) {
+          changed = processEventsAndRules(true, EDES, newTime, t, yTemp);
+          eventFired = changed;
+        }
+      }
+      if ((!changed) && (DES instanceof FastProcessDESystem) && (!steadyState)) {
+        FastProcessDESystem FDES = (FastProcessDESystem) DES;
+        if (FDES.containsFastProcesses()) {
+          System.arraycopy(y, 0, oldY, 0, numEqn);
+          double[] yTemp2 = new double[yTemp.length];
+          System.arraycopy(yTemp, 0, yTemp2, 0, yTemp.length);
+          if (clonedSolver == null) {
+            clonedSolver = clone();
+          }
+          double[] result = clonedSolver.computeSteadyState(FDES, yTemp2, 0);
+          System.arraycopy(result, 0, yTemp, 0, yTemp.length);
+          for (int i = 0; i != result.length; i++) {
+            double difference = Math.abs(yTemp[i] - oldY[i]);
+            if ((Math.abs(yTemp[i]) > 1E-10) || (Math.abs(oldY[i]) > 1E-10)) {
+              difference = Math.abs((yTemp[i] - oldY[i]) / Math.max(yTemp[i], oldY[i]));
+            }
+            if ((difference > precisionFastReactions) && (h > precisionTimingFastReactions)) {
+              changed = true;
+              break;
+            }
+          }
+        }
+      }
+      if (changed && (h > precisionTimingEventsAndRules)) {
+        // repeat the step with a smaller step size to find the time of the change
+        if (hasDerivatives) {
+          undoStep();
+          rescale(Math.max(h / 10, precisionTimingEventsAndRules) / h);
+        } else {
+          h = Math.max(h / 10, precisionTimingEventsAndRules);
+        }
+        continue;
+      }
+      t = newTime;
+      System.arraycopy(yTemp, 0, y, 0, numEqn);
+      if (!hasDerivatives) {
+        h = hMax;
+      } else if (eventFired) {
+        // the solution is not smooth at an event
+        started = false;
+      } else {
+        // rules and fast processes may have changed the state
+        System.arraycopy(y, 0, z[0], 0, numEqn);
+        if (!last) {
+          hInterrupted = 0d;
+        }
+        completeStep();
+      }
+    }
+    return change;
+  }
+
+  /**
+   * Starts the integration with order one from the current state.
+   *
+   * @param DES            the differential equation system
+   * @param distance       the length of the remaining interval
+   * @param hasDerivatives flag that is false if the system has no derivatives
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  private void start(DESystem DES, double distance, boolean hasDerivatives)
+      throws DerivativeException {
+    if (!hasDerivatives) {
+      h = Math.min(hMax, distance);
+      return;
+    }
+    System.arraycopy(y, 0, z[0], 0, numEqn);
+    DES.computeDerivatives(t, y, f);
+    computeWeights();
+    // initial step size such that the first step changes the state by about the square root of
+    // the relative tolerance (see LSODE)
+    double fNorm = norm(f);
+    double sum = (1d / (relTol * distance * distance)) + (relTol * fNorm * fNorm);
+    h = Math.min(Math.min(1d / Math.sqrt(sum), hMax), distance);
+    h = Math.max(h, hMin);
+    for (int i = 0; i < numEqn; i++) {
+      z[1][i] = h * f[i];
+    }
+    q = 1;
+    orderWait = 2;
+    firstChange = true;
+    hSaved = 0d;
+    hInterrupted = 0d;
+    jacobianAge = -1;
+    started = true;
+  }
+
+  /**
+   * Tries to make a step to the given time, which is the current time plus the step size.
+   *
+   * @param DES     the differential equation system
+   * @param newTime the time at the end of the step
+   * @return flag that is true if the step has been accepted; otherwise the step size or the order
+   * has been reduced
+   * @throws DerivativeException if the step cannot be made with the minimal step size
+   */
+  private boolean step(DESystem DES, double newTime) throws DerivativeException {
+    computeWeights();
+    predict();
+    double gamma = h * l[q][0];
+    boolean jacobianCurrent = false;
+    boolean converged = false;
+    do {
+      try {
+        DES.computeDerivatives(newTime, z[0], f);
+        if ((jacobianAge < 0) || (jacobianAge >= maxJacobianAge)) {
+          jacobianCurrent = true;
+          computeJacobian(DES, newTime);
+        }
+        if (!(Math.abs(gamma / gammaFactorized - 1d) <= factorizationThreshold)) {
+          gammaFactorized = Double.NaN;
+          matrix.factorize(1d / gamma);
+          gammaFactorized = gamma;
+          factorizations++;
+          convergenceRate = 1d;
+        }
+        converged = solveCorrector(DES, newTime, gamma);
+      } catch (MatrixException exc) {
+        // the iteration matrix is singular
+        converged = false;
+      }
+      if (!converged) {
+        // try again with a new Jacobian
+        jacobianAge = -1;
+      }
+    } while (!converged && !jacobianCurrent);
+    if (!converged) {
+      retract();
+      convergenceFailures++;
+      if ((convergenceFailures >= MAX_CONVERGENCE_FAILURES) || (h <= hMin)) {
+        throw new DerivativeException(
+            "The Newton iteration of the BDF solver does not converge, even at the minimum "
+                + "stepsize.");
+      }
+      rescale(Math.max(0.25d, hMin / h));
+      return false;
+    }
+    // local error test
+    errorNorm = errorFactor[q] * norm(e);
+    if (errorNorm > 1d) {
+      retract();
+      errorFailures++;
+      if ((errorFailures >= MAX_ERROR_FAILURES) || (h <= hMin)) {
+        throw new DerivativeException(
+            "Requested tolerance could not be achieved, even at the minumum stepsize.  Please increase the tolerance or decrease the minimum stepsize.");
+      }
+      if (errorFailures >= 3) {
+        // start again with order one, the history may be inaccurate
+        DES.computeDerivatives(t, z[0], f);
+        h = Math.max(0.1d * h, hMin);
+        for (int i = 0; i < numEqn; i++) {
+          z[1][i] = h * f[i];
+        }
+        q = 1;
+        orderWait = 2;
+        hSaved = 0d;
+      } else {
+        double eta = 1d / ((1.2d * Math.pow(errorNorm, 1d / (q + 1))) + 1.2E-6d);
+        eta = Math.max(eta, 0.1d);
+        if (errorFailures >= 2) {
+          eta = Math.min(eta, 0.2d);
+        }
+        rescale(Math.max(eta, hMin / h));
+      }
+      return false;
+    }
+    for (int j = 0; j <= q; j++) {
+      for (int i = 0; i < numEqn; i++) {
+        z[j][i] += l[q][j] * e[i];
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Solves the corrector equation h f(t, z[0] + l[0] e) - z[1] - e = 0 for the correction e by a
+   * Newton iteration with the decomposed iteration matrix.
+   *
+   * @param DES     the differential equation system
+   * @param newTime the time at the end of the step
+   * @param gamma   the current value of &gamma;
+   * @return flag that is true if the iteration has converged
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  private boolean solveCorrector(DESystem DES, double newTime, double gamma)
+      throws DerivativeException {
+    // the matrix has been decomposed for I - gammaFactorized J, which is corrected by a factor
+    double scale = (gamma == gammaFactorized) ? 1d : 2d / (1d + gamma / gammaFactorized);
+    Arrays.fill(e, 0d);
+    System.arraycopy(z[0], 0, yTemp, 0, numEqn);
+    double previous = 0d;
+    for (int m = 0; m < MAX_NEWTON_ITERATIONS; m++) {
+      if (m > 0) {
+        DES.computeDerivatives(newTime, yTemp, f);
+      }
+      for (int i = 0; i < numEqn; i++) {
+        r[i] = (h * f[i] - z[1][i] - e[i]) / gammaFactorized;
+      }
+      matrix.solve(r);
+      for (int i = 0; i < numEqn; i++) {
+        r[i] *= scale;
+        e[i] += r[i];
+        yTemp[i] = z[0][i] + l[q][0] * e[i];
+      }
+      double delta = norm(r);
+      if (Double.isNaN(delta) || Double.isInfinite(delta)) {
+        return false;
+      }
+      if (m > 0) {
+        convergenceRate = Math.max(0.3d * convergenceRate, delta / previous);
+      }
+      if (delta * Math.min(1d, convergenceRate) * errorFactor[q] <= NEWTON_TOLERANCE) {
+        return true;
+      }
+      if ((m > 0) && (delta > 2d * previous)) {
+        return false;
+      }
+      previous = delta;
+    }
+    return false;
+  }
+
+  /**
+   * Evaluates the Jacobian at the predicted state, analytically or by finite differences.
+   *
+   * @param DES     the differential equation system
+   * @param newTime the time at the end of the step
+   * @throws DerivativeException if the Jacobian cannot be computed
+   */
+  private void computeJacobian(DESystem DES, double newTime) throws DerivativeException {
+    prepareMatrix(DES);
+    gammaFactorized = Double.NaN;
+    if ((DES instanceof JacobianDESystem) && ((JacobianDESystem) DES).hasJacobian()) {
+      matrix.computeJacobian((JacobianDESystem) DES, newTime, z[0]);
+    } else {
+      // increments as in CVODE
+      double srur = Math.sqrt(Math.ulp(1d));
+      double fNorm = norm(f);
+      double minIncrement = (fNorm != 0d) ? 1000d * h * Math.ulp(1d) * numEqn * fNorm : 1d;
+      for (int j = 0; j < numEqn; j++) {
+        if (weights[j] == 0d) {
+          increments[j] = 0d;
+        } else {
+          double yj = z[0][j];
+          increments[j] = (yj + Math.max(srur * Math.abs(yj), minIncrement / weights[j])) - yj;
+        }
+      }
+      matrix.approximateJacobian(DES, newTime, z[0], f, increments, yTemp, fTemp);
+    }
+    jacobianAge = 0;
+    jacobianEvaluations++;
+  }
+
+  /**
+   * Creates the iteration matrix if there is none yet, or the structure of the Jacobian or the
+   * choice between dense and sparse matrices has changed.
+   *
+   * @param DES the differential equation system
+   */
+  private void prepareMatrix(DESystem DES) {
+    SparseMatrix structure = null;
+    if (DES instanceof JacobianDESystem) {
+      structure = ((JacobianDESystem) DES).getJacobianStructure();
+      if ((structure != null) && (structure.getDimension() != numEqn)) {
+        structure = null;
+      }
+    }
+    boolean sparse = (structure != null) && (numEqn >= sparseThreshold);
+    if ((matrix == null) || (structure != this.structure) || (sparse != matrix.isSparse())) {
+      matrix = IterationMatrix.create(numEqn, structure, sparse);
+      this.structure = structure;
+    }
+  }
+
+  /**
+   * Completes an accepted step and selects the step size and the order of the next step.
+   */
+  private void completeStep() {
+    convergenceFailures = 0;
+    errorFailures = 0;
+    if (jacobianAge >= 0) {
+      jacobianAge++;
+    }
+    orderWait--;
+    if (orderWait > 0) {
+      if ((orderWait == 1) && (q < maxOrder)) {
+        System.arraycopy(e, 0, savedE, 0, numEqn);
+        hSaved = h;
+      }
+      return;
+    }
+    // estimate the step sizes for the same, the next lower and the next higher order
+    double eta = 1d / ((1.2d * Math.pow(errorNorm, 1d / (q + 1))) + 1.2E-6d);
+    int newOrder = q;
+    if (q > 1) {
+      double errorDown = errorFactorDown[q] * norm(z[q]);
+      double etaDown = 1d / ((1.3d * Math.pow(errorDown, 1d / q)) + 1.3E-6d);
+      if (etaDown > eta) {
+        eta = etaDown;
+        newOrder = q - 1;
+      }
+    }
+    if ((q < maxOrder) && (hSaved > 0d)) {
+      double ratio = Math.pow(h / hSaved, q + 1);
+      for (int i = 0; i < numEqn; i++) {
+        r[i] = e[i] - ratio * savedE[i];
+      }
+      double errorUp = errorFactorUp[q] * norm(r);
+      double etaUp = 1d / ((1.4d * Math.pow(errorUp, 1d / (q + 2))) + 1.4E-6d);
+      if (etaUp > eta) {
+        eta = etaUp;
+        newOrder = q + 1;
+      }
+    }
+    hSaved = 0d;
+    if (eta < 1.1d) {
+      // the change is not worth a new decomposition
+      orderWait = 3;
+      return;
+    }
+    if (newOrder > q) {
+      double factor = l[q][q] / (q + 1);
+      for (int i = 0; i < numEqn; i++) {
+        z[q + 1][i] = factor * e[i];
+      }
+    }
+    q = newOrder;
+    eta = Math.min(eta, firstChange ? 1E4d : 10d);
+    eta = Math.min(eta, hMax / h);
+    firstChange = false;
+    hInterrupted = 0d;
+    rescale(eta);
+    orderWait = q + 1;
+  }
+
+  /**
+   * Predicts the Nordsieck array at the end of the step.
+   */
+  private void predict() {
+    for (int k = 1; k <= q; k++) {
+      for (int j = q; j >= k; j--) {
+        for (int i = 0; i < numEqn; i++) {
+          z[j - 1][i] += z[j][i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Restores the Nordsieck array of the current time from its prediction.
+   */
+  private void retract() {
+    for (int k = 1; k <= q; k++) {
+      for (int j = q; j >= k; j--) {
+        for (int i = 0; i < numEqn; i++) {
+          z[j - 1][i] -= z[j][i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Restores the Nordsieck array of the current time after a step has been accepted.
+   */
+  private void undoStep() {
+    for (int j = 0; j <= q; j++) {
+      for (int i = 0; i < numEqn; i++) {
+        z[j][i] -= l[q][j] * e[i];
+      }
+    }
+    retract();
+  }
+
+  /**
+   * Changes the step size by the given factor.
+   *
+   * @param eta the factor
+   */
+  private void rescale(double eta) {
+    double factor = 1d;
+    for (int j = 1; j <= q; j++) {
+      factor *= eta;
+      for (int i = 0; i < numEqn; i++) {
+        z[j][i] *= factor;
+      }
+    }
+    h *= eta;
+  }
+
+  /**
+   * Computes the weights of the error norm for the current state.
+   */
+  private void computeWeights() {
+    for (int i = 0; i < numEqn; i++) {
+      weights[i] = ignoreNaN[i] ? 0d : 1d / (absTol + relTol * Math.abs(z[0][i]));
+    }
+  }
+
+  /**
+   * @param v a vector
+   * @return the weighted root mean square norm of the vector
+   */
+  private double norm(double[] v) {
+    double sum = 0d;
+    for (int i = 0; i < numEqn; i++) {
+      double w = v[i] * weights[i];
+      if (weights[i] != 0d) {
+        sum += w * w;
+      }
+    }
+    return Math.sqrt(sum / numEqn);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.simulator.math.odes.AbstractDESSolver#getName()
+   */
+  @Override
+  public String getName() {
+    return "BDF solver";
+  }
+
+  /**
+   * @return the highest order that is used (default: {@link #MAX_ORDER})
+   */
+  public int getMaxOrder() {
+    return maxOrder;
+  }
+
+  /**
+   * @param maxOrder the highest order that is used, between 1 and {@link #MAX_ORDER}
+   */
+  public void setMaxOrder(int maxOrder) {
+    if ((maxOrder < 1) || (maxOrder > MAX_ORDER)) {
+      throw new IllegalArgumentException(
+          "The order of the BDF solver must be between 1 and " + MAX_ORDER + ".");
+    }
+    this.maxOrder = maxOrder;
+  }
+
+  /**
+   * @return the number of equations from which on sparse matrices are used if the structure of
+   * the Jacobian is known (default: {@link #DEFAULT_SPARSE_THRESHOLD})
+   */
+  public int getSparseThreshold() {
+    return sparseThreshold;
+  }
+
+  /**
+   * @param sparseThreshold the number of equations from which on sparse matrices are used if the
+   *                        structure of the Jacobian is known; {@link Integer#MAX_VALUE} to always
+   *                        use dense matrices
+   */
+  public void setSparseThreshold(int sparseThreshold) {
+    this.sparseThreshold = sparseThreshold;
+  }
+
+  /**
+   * @return the number of steps the Jacobian is kept for (default: {@link
+   * #DEFAULT_MAX_JACOBIAN_AGE})
+   */
+  public int getMaxJacobianAge() {
+    return maxJacobianAge;
+  }
+
+  /**
+   * @param maxJacobianAge the number of steps the Jacobian is kept for as long as the Newton
+   *                       iteration converges; 0 to evaluate it in every step
+   */
+  public void setMaxJacobianAge(int maxJacobianAge) {
+    this.maxJacobianAge = maxJacobianAge;
+  }
+
+  /**
+   * @return the relative change of &gamma; up to which the decomposition of the iteration matrix is
+   * kept (default: {@link #DEFAULT_FACTORIZATION_THRESHOLD})
+   */
+  public double getFactorizationThreshold() {
+    return factorizationThreshold;
+  }
+
+  /**
+   * @param factorizationThreshold the relative change of &gamma; (which is proportional to the
+   *                               step size) up to which the decomposition of the iteration matrix
+   *                               is kept; 0 to decompose it whenever &gamma; changes
+   */
+  public void setFactorizationThreshold(double factorizationThreshold) {
+    this.factorizationThreshold = factorizationThreshold;
+  }
+
+  /**
+   * @return the number of evaluations of the Jacobian since the creation of this solver or the
+   * last call of {@link #resetCounters()}
+   */
+  public long getJacobianEvaluations() {
+    return jacobianEvaluations;
+  }
+
+  /**
+   * @return the number of decompositions of the iteration matrix since the creation of this
+   * solver or the last call of {@link #resetCounters()}
+   */
+  public long getFactorizations() {
+    return factorizations;
+  }
+
+  /**
+   * Sets the number of Jacobian evaluations and decompositions of the iteration matrix to zero.
+   */
+  public void resetCounters() {
+    jacobianEvaluations = 0;
+    factorizations = 0;
+  }
+
+  /* (non-Javadoc)
+   * @see org.simulator.math.odes.AbstractDESSolver#hasSolverEventProcessing()
+   */
+  @Override
+  protected boolean hasSolverEventProcessing() {
+    return true;
+  }
+
+  /* (non-Javadoc)
+   * @see org.simulator.math.odes.DESSolver#getKISAOTerm()
+   */
+  @Override
+  public int getKiSAOterm() {
+    return 288;
+  }
+}
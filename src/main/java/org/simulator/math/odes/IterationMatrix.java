@@ -0,0 +1,303 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.math.odes;
+
+import org.apache.commons.math.ode.DerivativeException;
+import org.simulator.math.MatrixOperations;
+import org.simulator.math.MatrixOperations.MatrixException;
+import org.simulator.math.SparseLUDecomposition;
+import org.simulator.math.SparseMatrix;
+
+/**
+ * The iteration matrix c I - J of implicit solvers, where J is the Jacobian of a {@link DESystem}
+ * and c a scalar depending on the step size, together with the linear solver for it. The Jacobian
+ * is kept when the matrix is decomposed, so that it can be decomposed again for another c without
+ * evaluating the Jacobian.
+ * <p>
+ * There is a dense implementation based on {@link MatrixOperations#ludcmp(double[][], int[])}
+ * and a sparse one based on {@link SparseLUDecomposition}, which are created with {@link
+ * #create(int, SparseMatrix, boolean)}. The sparse one approximates the Jacobian by finite
+ * differences perturbing structurally orthogonal columns together, while the dense one perturbs
+ * each column on its own.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+abstract class IterationMatrix {
+
+  /**
+   * The number of equations
+   */
+  final int dimension;
+
+  /**
+   * The structure of the Jacobian or {@code null} if it is not known
+   */
+  final SparseMatrix structure;
+
+  /**
+   * @param dimension the number of equations
+   * @param structure the structure of the Jacobian or {@code null} if it is not known
+   */
+  IterationMatrix(int dimension, SparseMatrix structure) {
+    this.dimension = dimension;
+    this.structure = structure;
+  }
+
+  /**
+   * Creates an iteration matrix.
+   *
+   * @param dimension the number of equations
+   * @param structure the structure of the Jacobian or {@code null} if it is not known
+   * @param sparse    flag that is {@code true} if sparse matrices should be used, which requires
+   *                  the structure
+   * @return the iteration matrix
+   */
+  static IterationMatrix create(int dimension, SparseMatrix structure, boolean sparse) {
+    if (sparse) {
+      return new Sparse(structure);
+    }
+    return new Dense(dimension, structure);
+  }
+
+  /**
+   * @return the structure of the Jacobian or {@code null} if it is not known
+   */
+  SparseMatrix getStructure() {
+    return structure;
+  }
+
+  /**
+   * @return flag that is {@code true} if sparse matrices are used
+   */
+  abstract boolean isSparse();
+
+  /**
+   * Computes the Jacobian with the given system.
+   *
+   * @param DES the differential equation system
+   * @param t   the time
+   * @param y   the state
+   * @throws DerivativeException if the Jacobian cannot be computed
+   */
+  abstract void computeJacobian(JacobianDESystem DES, double t, double[] y)
+      throws DerivativeException;
+
+  /**
+   * Approximates the Jacobian by forward differences.
+   *
+   * @param DES        the differential equation system
+   * @param t          the time
+   * @param y          the state
+   * @param f          the rate of change at the given time and state
+   * @param increments the perturbation of each state variable, 0 for the columns that are not
+   *                   approximated
+   * @param yWork      an array to store the perturbed state in
+   * @param fWork      an array to store the rate of change at the perturbed state in
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  void approximateJacobian(DESystem DES, double t, double[] y, double[] f, double[] increments,
+      double[] yWork, double[] fWork) throws DerivativeException {
+    if (!isSparse()) {
+      for (int j = 0; j < dimension; j++) {
+        if (increments[j] == 0d) {
+          continue;
+        }
+        System.arraycopy(y, 0, yWork, 0, dimension);
+        yWork[j] += increments[j];
+        DES.computeDerivatives(t, yWork, fWork);
+        for (int i = 0; i < dimension; i++) {
+          setEntry(-1, i, j, (fWork[i] - f[i]) / increments[j]);
+        }
+      }
+      return;
+    }
+    int[] columnPointers = structure.getColumnPointers();
+    int[] columnEntries = structure.getColumnEntries();
+    int[] rows = structure.getRows();
+    for (int[] group : structure.getColumnGroups()) {
+      System.arraycopy(y, 0, yWork, 0, dimension);
+      for (int j : group) {
+        yWork[j] += increments[j];
+      }
+      DES.computeDerivatives(t, yWork, fWork);
+      for (int j : group) {
+        for (int k = columnPointers[j]; k < columnPointers[j + 1]; k++) {
+          int e = columnEntries[k];
+          int i = rows[e];
+          setEntry(e, i, j, (increments[j] == 0d) ? 0d : (fWork[i] - f[i]) / increments[j]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets an entry of the Jacobian.
+   *
+   * @param entry  the index of the entry in the structure or -1 for dense matrices
+   * @param row    the row
+   * @param column the column
+   * @param value  the value
+   */
+  abstract void setEntry(int entry, int row, int column, double value);
+
+  /**
+   * Decomposes the iteration matrix c I - J for the current Jacobian.
+   *
+   * @param c the value on the diagonal of the identity part
+   * @throws MatrixException if the matrix is singular
+   */
+  abstract void factorize(double c) throws MatrixException;
+
+  /**
+   * Solves the linear equations with the decomposed iteration matrix.
+   *
+   * @param b the right hand side, which is replaced by the solution
+   */
+  abstract void solve(double[] b);
+
+  /**
+   * Iteration matrix with dense matrices.
+   *
+   * @version $Rev$
+   * @since 2.1
+   */
+  private static class Dense extends IterationMatrix {
+
+    /**
+     * The Jacobian and the decomposition of the iteration matrix
+     */
+    private double[][] jacobian, decomposition;
+
+    /**
+     * The row permutation of the decomposition
+     */
+    private int[] indx;
+
+    /**
+     * @param dimension the number of equations
+     * @param structure the structure of the Jacobian or {@code null} if it is not known
+     */
+    Dense(int dimension, SparseMatrix structure) {
+      super(dimension, structure);
+      jacobian = new double[dimension][dimension];
+      decomposition = new double[dimension][dimension];
+      indx = new int[dimension];
+    }
+
+    @Override
+    boolean isSparse() {
+      return false;
+    }
+
+    @Override
+    void computeJacobian(JacobianDESystem DES, double t, double[] y) throws DerivativeException {
+      DES.computeJacobian(t, y, jacobian, null);
+    }
+
+    @Override
+    void setEntry(int entry, int row, int column, double value) {
+      jacobian[row][column] = value;
+    }
+
+    @Override
+    void factorize(double c) throws MatrixException {
+      for (int i = 0; i < dimension; i++) {
+        for (int j = 0; j < dimension; j++) {
+          decomposition[i][j] = -jacobian[i][j];
+        }
+        decomposition[i][i] += c;
+      }
+      MatrixOperations.ludcmp(decomposition, indx);
+    }
+
+    @Override
+    void solve(double[] b) {
+      MatrixOperations.lubksb(decomposition, indx, b);
+    }
+  }
+
+  /**
+   * Iteration matrix with sparse matrices of the structure of the Jacobian.
+   *
+   * @version $Rev$
+   * @since 2.1
+   */
+  private static class Sparse extends IterationMatrix {
+
+    /**
+     * The Jacobian and the iteration matrix
+     */
+    private SparseMatrix jacobian, matrix;
+
+    /**
+     * The decomposition of the iteration matrix
+     */
+    private SparseLUDecomposition decomposition;
+
+    /**
+     * @param structure the structure of the Jacobian
+     */
+    Sparse(SparseMatrix structure) {
+      super(structure.getDimension(), structure);
+      jacobian = new SparseMatrix(structure);
+      matrix = new SparseMatrix(structure);
+      decomposition = new SparseLUDecomposition(structure);
+    }
+
+    @Override
+    boolean isSparse() {
+      return true;
+    }
+
+    @Override
+    void computeJacobian(JacobianDESystem DES, double t, double[] y) throws DerivativeException {
+      DES.computeJacobian(t, y, jacobian, null);
+    }
+
+    @Override
+    void setEntry(int entry, int row, int column, double value) {
+      jacobian.getValues()[entry] = value;
+    }
+
+    @Override
+    void factorize(double c) throws MatrixException {
+      double[] jac = jacobian.getValues();
+      double[] values = matrix.getValues();
+      for (int e = 0; e < values.length; e++) {
+        values[e] = -jac[e];
+      }
+      for (int i = 0; i < dimension; i++) {
+        values[matrix.getDiagonalIndex(i)] += c;
+      }
+      decomposition.factorize(matrix);
+    }
+
+    @Override
+    void solve(double[] b) {
+      decomposition.solve(b);
+    }
+  }
+}
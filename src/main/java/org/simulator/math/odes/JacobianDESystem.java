@@ -0,0 +1,94 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.math.odes;
+
+import org.apache.commons.math.ode.DerivativeException;
+import org.simulator.math.SparseMatrix;
+
+/**
+ * A {@link JacobianDESystem} is a {@link DESystem} that can compute the Jacobian matrix of its
+ * rate of change, i.e., the partial derivatives with respect to each state variable, without
+ * finite differences. Implicit solvers, such as the {@link RosenbrockSolver}, use it instead of
+ * perturbing each state variable if {@link #hasJacobian()} is {@code true}.
+ * <p>
+ * For large systems, the Jacobian can also be computed as a {@link SparseMatrix} with the
+ * structure given by {@link #getJacobianStructure()}. The structure may be known even if the
+ * Jacobian itself cannot be computed, e.g., to approximate only its nonzero entries by finite
+ * differences.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+public interface JacobianDESystem extends DESystem {
+
+  /**
+   * Tells whether the Jacobian can be computed for this system. If not, solvers have to fall back
+   * to finite differences.
+   *
+   * @return flag that is {@code true} if {@link #computeJacobian(double, double[], double[][],
+   * double[])} can be called.
+   */
+  boolean hasJacobian();
+
+  /**
+   * Computes the Jacobian matrix of the rate of change at the given time and state. The entry in
+   * row i and column j is the partial derivative of the rate of change of the i-th state variable
+   * with respect to the j-th state variable.
+   *
+   * @param t              the time
+   * @param Y              the state
+   * @param jacobian       the matrix of size {@link #getDimension()} x {@link #getDimension()} to
+   *                       store the Jacobian in
+   * @param timeDerivative an array to store the partial derivatives of the rate of change with
+   *                       respect to time in or {@code null}
+   * @throws DerivativeException if the Jacobian cannot be computed for the given state
+   */
+  void computeJacobian(double t, double[] Y, double[][] jacobian, double[] timeDerivative)
+      throws DerivativeException;
+
+  /**
+   * Computes the Jacobian matrix like {@link #computeJacobian(double, double[], double[][],
+   * double[])}, but as a sparse matrix.
+   *
+   * @param t              the time
+   * @param Y              the state
+   * @param jacobian       a matrix with the structure given by {@link #getJacobianStructure()} to
+   *                       store the Jacobian in
+   * @param timeDerivative an array to store the partial derivatives of the rate of change with
+   *                       respect to time in or {@code null}
+   * @throws DerivativeException if the Jacobian cannot be computed for the given state
+   */
+  void computeJacobian(double t, double[] Y, SparseMatrix jacobian, double[] timeDerivative)
+      throws DerivativeException;
+
+  /**
+   * Returns the structure of the Jacobian matrix, i.e., the entries that may be nonzero for any
+   * time and state, as well as the diagonal. Solvers that use sparse matrices approximate only
+   * these entries, so a structure that is not known to be complete must not be returned.
+   *
+   * @return a matrix with the structure of the Jacobian or {@code null} if it is not known
+   */
+  SparseMatrix getJacobianStructure();
+}
@@ -28,6 +28,8 @@
 import org.simulator.math.Mathematics;
 import org.simulator.math.MatrixOperations;
 import org.simulator.math.MatrixOperations.MatrixException;
+import org.simulator.math.SparseLUDecomposition;
+import org.simulator.math.SparseMatrix;
 
 /**
  * An implementation of Rosenbrock's method to approximate ODE solutions.
@@ -37,6 +39,24 @@
  * <p>
  * This solver has been adapted from ODE Toolkit: a free application for solving systems of ordinary
  * differential equations.
+ * <p>
+ * The Jacobian is approximated by finite differences, unless the differential equation system is a
+ * {@link JacobianDESystem} that can compute it. For systems with at least {@link
+ * #getSparseThreshold()} equations whose Jacobian structure is known, the Jacobian and the linear
+ * equations of each step are handled as sparse matrices, with a {@link SparseLUDecomposition} whose
+ * ordering and structure are computed only once. Only the entries in the structure are then
+ * approximated, perturbing structurally independent columns together, while smaller systems
+ * perturb each column on its own.
+ * <p>
+ * A step that is rejected is repeated with the Jacobian of the same point, so only the iteration
+ * matrix is decomposed again. The Jacobian can also be kept for up to {@link
+ * #getMaxJacobianAge()} accepted steps, and the decomposition of the iteration matrix for step
+ * sizes that differ by at most {@link #getFactorizationThreshold()} from the one it has been
+ * computed for. Both are disabled by default, because the method only has its full order with
+ * the exact iteration matrix. The error estimate still controls the step size with an approximate
+ * one, and a kept Jacobian is evaluated again as soon as a step with it is rejected or the step
+ * size has to decrease. The number of Jacobian evaluations and decompositions are counted (see
+ * {@link #getJacobianEvaluations()} and {@link #getFactorizations()}).
  *
  * @author Chris Moore
  * @author Roland Keller
@@ -87,6 +107,22 @@ public class RosenbrockSolver extends AdaptiveStepsizeIntegrator {
    */
   public static final double RELMIN = 1.0E-12;
 
+  /**
+   * The default number of equations from which on sparse matrices are used
+   */
+  public static final int DEFAULT_SPARSE_THRESHOLD = 20;
+
+  /**
+   * The default number of accepted steps the Jacobian is kept for
+   */
+  public static final int DEFAULT_MAX_JACOBIAN_AGE = 0;
+
+  /**
+   * The default relative change of the step size up to which the decomposition of the iteration
+   * matrix is kept
+   */
+  public static final double DEFAULT_FACTORIZATION_THRESHOLD = 0d;
+
   /**
    * maximum stepsize
    */
@@ -163,6 +199,55 @@ public class RosenbrockSolver extends AdaptiveStepsizeIntegrator {
    */
   double[][] JAC, FAC, I;
 
+  /**
+   * The number of equations from which on sparse matrices are used
+   */
+  private int sparseThreshold = DEFAULT_SPARSE_THRESHOLD;
+
+  /**
+   * Flag that is true if the current step uses sparse matrices
+   */
+  private boolean sparse;
+
+  /**
+   * The structure of the Jacobian the sparse matrices have been created for
+   */
+  private transient SparseMatrix sparseStructure;
+
+  /**
+   * The Jacobian and the iteration matrix as sparse matrices and the decomposition of the latter
+   */
+  private transient SparseMatrix sparseJAC, sparseFAC;
+  private transient SparseLUDecomposition sparseLU;
+
+  /**
+   * The number of accepted steps the Jacobian is kept for
+   */
+  private int maxJacobianAge = DEFAULT_MAX_JACOBIAN_AGE;
+
+  /**
+   * The relative change of the step size up to which the decomposition of the iteration matrix
+   * is kept
+   */
+  private double factorizationThreshold = DEFAULT_FACTORIZATION_THRESHOLD;
+
+  /**
+   * The number of accepted steps since the Jacobian has been evaluated, or -1 if there is no
+   * Jacobian that can be used
+   */
+  private int jacobianAge;
+
+  /**
+   * The step size the iteration matrix has been decomposed for, or {@link Double#NaN} if there is
+   * no decomposition that can be used
+   */
+  private double factorizedStepSize;
+
+  /**
+   * The number of evaluations of the Jacobian and of decompositions of the iteration matrix
+   */
+  private long jacobianEvaluations, factorizations;
+
   /**
    * Keep track whether the thread is killed or not
    */
@@ -217,6 +302,9 @@ public RosenbrockSolver(int size, double stepsize) {
   public RosenbrockSolver(RosenbrockSolver solver) {
     super(solver);
     init(solver.getNumEquations(), solver.getStepSize(), 2);
+    sparseThreshold = solver.getSparseThreshold();
+    maxJacobianAge = solver.getMaxJacobianAge();
+    factorizationThreshold = solver.getFactorizationThreshold();
   }
 
   /**
@@ -259,19 +347,12 @@ private void init(int size, double stepsize, int nTimepoints) {
     g2x = new double[numEqn];
     DFDX = new double[numEqn];
     indx = new int[numEqn];
-    JAC = new double[numEqn][numEqn];
-    FAC = new double[numEqn][numEqn];
-    I = new double[numEqn][numEqn];
-
-    for (int i = 0; i < numEqn; i++) {
-      for (int j = 0; j < numEqn; j++) {
-        if (i == j) {
-          I[i][j] = 1;
-        } else {
-          I[i][j] = 0;
-        }
-      }
-    }
+    // the dense matrices are allocated when needed
+    JAC = null;
+    FAC = null;
+    I = null;
+    sparseStructure = null;
+    invalidateJacobian();
 
     ignoreNaN = new boolean[numEqn];
   }
@@ -293,29 +374,27 @@ public RosenbrockSolver clone() {
    */
   public double step(DESystem DES) throws DerivativeException {
     double largestError = 0;
-    DES.computeDerivatives(t, y, g0);
-    for (int j = 0; j < numEqn; j++) {
-      System.arraycopy(y, 0, ya, 0, numEqn);
-      ya[j] += h;
-      System.arraycopy(y, 0, yb, 0, numEqn);
-      yb[j] += 2 * h;
-      DES.computeDerivatives(t, ya, g1);
-      DES.computeDerivatives(t, yb, g2);
-      for (int q = 0; q < numEqn; q++) {
-        JAC[q][j] = (-3 * g0[q] + 4 * g1[q] - g2[q]) / (2 * h);
+    prepareSparseMatrices(DES);
+    if ((jacobianAge < 0) || (jacobianAge > maxJacobianAge)) {
+      jacobianAge = -1;
+      factorizedStepSize = Double.NaN;
+      if (sparse) {
+        computeSparseJacobian(DES);
+      } else {
+        computeJacobian(DES);
       }
+      jacobianAge = 0;
+      jacobianEvaluations++;
     }
-    for (int i = 0; i < numEqn; i++) {
-      for (int j = 0; j < numEqn; j++) {
-        FAC[i][j] = I[i][j] / (gam * h) - JAC[i][j];
+    if (!(Math.abs(h / factorizedStepSize - 1d) <= factorizationThreshold)) {
+      factorizedStepSize = Double.NaN;
+      if (sparse) {
+        decomposeSparseIterationMatrix();
+      } else {
+        decomposeIterationMatrix();
       }
-    }
-    // Forward difference approx for derivative of f
-    // WRT the independent variable
-    DES.computeDerivatives(t + h, y, g1x);
-    DES.computeDerivatives(t + 2 * h, y, g2x);
-    for (int i = 0; i < numEqn; i++) {
-      DFDX[i] = g0[i] * -3 / (2 * h) + g1x[i] * 2 / h + g2x[i] * -1 / (2 * h);
+      factorizedStepSize = h;
+      factorizations++;
     }
     // Here the work of taking the step begins
     // It uses the derivatives calculated above
@@ -323,12 +402,7 @@ public double step(DESystem DES) throws DerivativeException {
     for (int i = 0; i < numEqn; i++) {
       k1[i] = f1[i] + DFDX[i] * h * d1;
     }
-    try {
-      MatrixOperations.ludcmp(FAC, indx);
-    } catch (MatrixException e) {
-      throw new DerivativeException("Rosenbrock solver returns an error due to singular matrix.");
-    }
-    MatrixOperations.lubksb(FAC, indx, k1);
+    solve(k1);
     for (int i = 0; i < numEqn; i++) {
       yTemp[i] = y[i] + k1[i] * a21;
     }
@@ -336,7 +410,7 @@ public double step(DESystem DES) throws DerivativeException {
     for (int i = 0; i < numEqn; i++) {
       k2[i] = f2[i] + DFDX[i] * h * d2 + k1[i] * c21 / h;
     }
-    MatrixOperations.lubksb(FAC, indx, k2);
+    solve(k2);
     for (int i = 0; i < numEqn; i++) {
       yTemp[i] = y[i] + k1[i] * a31 + k2[i] * a32;
     }
@@ -344,7 +418,7 @@ public double step(DESystem DES) throws DerivativeException {
     for (int i = 0; i < numEqn; i++) {
       k3[i] = f3[i] + DFDX[i] * h * d3 + k1[i] * c31 / h + k2[i] * c32 / h;
     }
-    MatrixOperations.lubksb(FAC, indx, k3);
+    solve(k3);
     for (int i = 0; i < numEqn; i++) {
       yTemp[i] = y[i] + k1[i] * a41 + k2[i] * a42 + k3[i] * a43;
     }
@@ -352,7 +426,7 @@ public double step(DESystem DES) throws DerivativeException {
     for (int i = 0; i < numEqn; i++) {
       k4[i] = f4[i] + DFDX[i] * h * d4 + k1[i] * c41 / h + k2[i] * c42 / h + k3[i] * c43 / h;
     }
-    MatrixOperations.lubksb(FAC, indx, k4);
+    solve(k4);
     for (int i = 0; i < numEqn; i++) {
       yTemp[i] = y[i] + k1[i] * a51 + k2[i] * a52 + k3[i] * a53 + k4[i] * a54;
     }
@@ -360,7 +434,7 @@ public double step(DESystem DES) throws DerivativeException {
     for (int i = 0; i < numEqn; i++) {
       k5[i] = f5[i] + k1[i] * c51 / h + k2[i] * c52 / h + k3[i] * c53 / h + k4[i] * c54 / h;
     }
-    MatrixOperations.lubksb(FAC, indx, k5);
+    solve(k5);
     for (int i = 0; i < numEqn; i++) {
       yTemp[i] += k5[i];
     }
@@ -369,7 +443,7 @@ public double step(DESystem DES) throws DerivativeException {
       yerr[i] = f6[i] + k1[i] * c61 / h + k2[i] * c62 / h + k3[i] * c63 / h + k4[i] * c64 / h
           + k5[i] * c65 / h;
     }
-    MatrixOperations.lubksb(FAC, indx, yerr);
+    solve(yerr);
     for (int i = 0; i < numEqn; i++) {
       yNew[i] = yTemp[i] + yerr[i];
     }
@@ -386,6 +460,202 @@ public double step(DESystem DES) throws DerivativeException {
     return largestError;
   }
 
+  /**
+   * Computes the Jacobian and the derivative with respect to time as dense matrices.
+   *
+   * @param DES the differential equation system
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  private void computeJacobian(DESystem DES) throws DerivativeException {
+    if ((JAC == null) || (JAC.length != numEqn)) {
+      JAC = new double[numEqn][numEqn];
+      FAC = new double[numEqn][numEqn];
+      I = new double[numEqn][numEqn];
+      for (int i = 0; i < numEqn; i++) {
+        I[i][i] = 1;
+      }
+    }
+    if ((DES instanceof JacobianDESystem) && ((JacobianDESystem) DES).hasJacobian()) {
+      ((JacobianDESystem) DES).computeJacobian(t, y, JAC, DFDX);
+    } else {
+      DES.computeDerivatives(t, y, g0);
+      for (int j = 0; j < numEqn; j++) {
+        System.arraycopy(y, 0, ya, 0, numEqn);
+        ya[j] += h;
+        System.arraycopy(y, 0, yb, 0, numEqn);
+        yb[j] += 2 * h;
+        DES.computeDerivatives(t, ya, g1);
+        DES.computeDerivatives(t, yb, g2);
+        for (int q = 0; q < numEqn; q++) {
+          JAC[q][j] = (-3 * g0[q] + 4 * g1[q] - g2[q]) / (2 * h);
+        }
+      }
+      computeTimeDerivative(DES);
+    }
+  }
+
+  /**
+   * Decomposes the dense iteration matrix for the current step size.
+   *
+   * @throws DerivativeException if the iteration matrix is singular
+   */
+  private void decomposeIterationMatrix() throws DerivativeException {
+    for (int i = 0; i < numEqn; i++) {
+      for (int j = 0; j < numEqn; j++) {
+        FAC[i][j] = I[i][j] / (gam * h) - JAC[i][j];
+      }
+    }
+    try {
+      MatrixOperations.ludcmp(FAC, indx);
+    } catch (MatrixException e) {
+      throw new DerivativeException("Rosenbrock solver returns an error due to singular matrix.");
+    }
+  }
+
+  /**
+   * Computes the Jacobian and the derivative with respect to time as a sparse matrix.
+   *
+   * @param DES the differential equation system, which is a {@link JacobianDESystem}
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  private void computeSparseJacobian(DESystem DES) throws DerivativeException {
+    JacobianDESystem JDES = (JacobianDESystem) DES;
+    if (JDES.hasJacobian()) {
+      JDES.computeJacobian(t, y, sparseJAC, DFDX);
+    } else {
+      computeGroupedJacobian(DES);
+    }
+  }
+
+  /**
+   * Decomposes the sparse iteration matrix for the current step size.
+   *
+   * @throws DerivativeException if the iteration matrix is singular
+   */
+  private void decomposeSparseIterationMatrix() throws DerivativeException {
+    double[] jac = sparseJAC.getValues();
+    double[] fac = sparseFAC.getValues();
+    for (int e = 0; e < fac.length; e++) {
+      fac[e] = -jac[e];
+    }
+    for (int i = 0; i < numEqn; i++) {
+      fac[sparseFAC.getDiagonalIndex(i)] += 1d / (gam * h);
+    }
+    try {
+      sparseLU.factorize(sparseFAC);
+    } catch (MatrixException e) {
+      throw new DerivativeException("Rosenbrock solver returns an error due to singular matrix.");
+    }
+  }
+
+  /**
+   * Approximates the entries in the structure of the Jacobian and the derivative with respect to
+   * time by finite differences. Structurally orthogonal columns (see {@link
+   * SparseMatrix#getColumnGroups()}) are perturbed together, which gives the same values as
+   * perturbing each column on its own with far fewer evaluations of the rate of change, provided
+   * that the structure contains every entry that can be nonzero as required by {@link
+   * JacobianDESystem#getJacobianStructure()}.
+   *
+   * @param DES the differential equation system
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  private void computeGroupedJacobian(DESystem DES) throws DerivativeException {
+    int[] columnPointers = sparseJAC.getColumnPointers();
+    int[] columnEntries = sparseJAC.getColumnEntries();
+    int[] rows = sparseJAC.getRows();
+    double[] jac = sparseJAC.getValues();
+    DES.computeDerivatives(t, y, g0);
+    for (int[] group : sparseJAC.getColumnGroups()) {
+      System.arraycopy(y, 0, ya, 0, numEqn);
+      System.arraycopy(y, 0, yb, 0, numEqn);
+      for (int j : group) {
+        ya[j] += h;
+        yb[j] += 2 * h;
+      }
+      DES.computeDerivatives(t, ya, g1);
+      DES.computeDerivatives(t, yb, g2);
+      for (int j : group) {
+        for (int k = columnPointers[j]; k < columnPointers[j + 1]; k++) {
+          int e = columnEntries[k];
+          int q = rows[e];
+          jac[e] = (-3 * g0[q] + 4 * g1[q] - g2[q]) / (2 * h);
+        }
+      }
+    }
+    computeTimeDerivative(DES);
+  }
+
+  /**
+   * Approximates the derivative of the rate of change with respect to time by forward differences,
+   * using the rate of change at the current point in {@link #g0}.
+   *
+   * @param DES the differential equation system
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  private void computeTimeDerivative(DESystem DES) throws DerivativeException {
+    // Forward difference approx for derivative of f
+    // WRT the independent variable
+    DES.computeDerivatives(t + h, y, g1x);
+    DES.computeDerivatives(t + 2 * h, y, g2x);
+    for (int i = 0; i < numEqn; i++) {
+      DFDX[i] = g0[i] * -3 / (2 * h) + g1x[i] * 2 / h + g2x[i] * -1 / (2 * h);
+    }
+  }
+
+  /**
+   * Creates the sparse Jacobian if the structure of the Jacobian of the system is known, and the
+   * sparse iteration matrix and its decomposition if the system is also large enough.
+   *
+   * @param DES the differential equation system
+   */
+  private void prepareSparseMatrices(DESystem DES) {
+    boolean wasSparse = sparse;
+    SparseMatrix structure = null;
+    if (DES instanceof JacobianDESystem) {
+      structure = ((JacobianDESystem) DES).getJacobianStructure();
+      if ((structure != null) && (structure.getDimension() != numEqn)) {
+        structure = null;
+      }
+    }
+    if (structure != sparseStructure) {
+      sparseJAC = (structure == null) ? null : new SparseMatrix(structure);
+      sparseFAC = null;
+      sparseLU = null;
+      sparseStructure = structure;
+      invalidateJacobian();
+    }
+    sparse = (sparseJAC != null) && (numEqn >= sparseThreshold);
+    if (sparse != wasSparse) {
+      invalidateJacobian();
+    }
+    if (sparse && (sparseLU == null)) {
+      sparseFAC = new SparseMatrix(structure);
+      sparseLU = new SparseLUDecomposition(structure);
+    }
+  }
+
+  /**
+   * Discards the Jacobian and the decomposition of the iteration matrix, so that both are
+   * computed again in the next step.
+   */
+  private void invalidateJacobian() {
+    jacobianAge = -1;
+    factorizedStepSize = Double.NaN;
+  }
+
+  /**
+   * Solves the linear equations with the decomposed iteration matrix.
+   *
+   * @param b the right hand side, which is replaced by the solution
+   */
+  private void solve(double[] b) {
+    if (sparse) {
+      sparseLU.solve(b);
+    } else {
+      MatrixOperations.lubksb(FAC, indx, b);
+    }
+  }
+
   /**
    * Returns an approximation to the error involved with the current arithmetic implementation
    *
@@ -415,6 +685,81 @@ public String getName() {
     return "Rosenbrock solver";
   }
 
+  /**
+   * @return the number of equations from which on sparse matrices are used if the structure of
+   * the Jacobian is known (default: {@link #DEFAULT_SPARSE_THRESHOLD})
+   */
+  public int getSparseThreshold() {
+    return sparseThreshold;
+  }
+
+  /**
+   * @param sparseThreshold the number of equations from which on sparse matrices are used if the
+   *                        structure of the Jacobian is known; {@link Integer#MAX_VALUE} to always
+   *                        use dense matrices
+   */
+  public void setSparseThreshold(int sparseThreshold) {
+    this.sparseThreshold = sparseThreshold;
+  }
+
+  /**
+   * @return the number of accepted steps the Jacobian is kept for (default: {@link
+   * #DEFAULT_MAX_JACOBIAN_AGE})
+   */
+  public int getMaxJacobianAge() {
+    return maxJacobianAge;
+  }
+
+  /**
+   * @param maxJacobianAge the number of accepted steps the Jacobian is kept for, as long as no
+   *                       step is rejected; 0 to evaluate it in every accepted step
+   */
+  public void setMaxJacobianAge(int maxJacobianAge) {
+    this.maxJacobianAge = maxJacobianAge;
+  }
+
+  /**
+   * @return the relative change of the step size up to which the decomposition of the iteration
+   * matrix is kept (default: {@link #DEFAULT_FACTORIZATION_THRESHOLD})
+   */
+  public double getFactorizationThreshold() {
+    return factorizationThreshold;
+  }
+
+  /**
+   * @param factorizationThreshold the relative change of the step size up to which the
+   *                               decomposition of the iteration matrix is kept as long as the
+   *                               Jacobian is kept; 0 to decompose it whenever the step size
+   *                               changes
+   */
+  public void setFactorizationThreshold(double factorizationThreshold) {
+    this.factorizationThreshold = factorizationThreshold;
+  }
+
+  /**
+   * @return the number of evaluations of the Jacobian since the creation of this solver or the
+   * last call of {@link #resetCounters()}
+   */
+  public long getJacobianEvaluations() {
+    return jacobianEvaluations;
+  }
+
+  /**
+   * @return the number of decompositions of the iteration matrix since the creation of this
+   * solver or the last call of {@link #resetCounters()}
+   */
+  public long getFactorizations() {
+    return factorizations;
+  }
+
+  /**
+   * Sets the number of Jacobian evaluations and decompositions of the iteration matrix to zero.
+   */
+  public void resetCounters() {
+    jacobianEvaluations = 0;
+    factorizations = 0;
+  }
+
   /**
    * @return the number of equations in the system
    */
@@ -476,6 +821,10 @@ public double[] computeChange(DESystem DES, double[] y2, double time, double cur
       for (int i = 0; i != y.length; i++) {
         ignoreNaN[i] = !Double.isFinite(y[i]);
       }
+      // the Jacobian of the previous call belongs to an earlier point
+      if (jacobianAge >= 0) {
+        jacobianAge++;
+      }
 
       // add the initial conditions to the solution matrix and let all
       // point
@@ -533,6 +882,10 @@ public double[] computeChange(DESystem DES, double[] y2, double time, double cur
         // good step
         if (((!Double.isNaN(localError)) && (localError != -1) && (localError <= 1.0) && !stop)) {
           setUnstableFlag(false);
+          boolean jacobianKept = jacobianAge > 0;
+          if (jacobianAge >= 0) {
+            jacobianAge++;
+          }
           System.arraycopy(y, 0, oldY, 0, numEqn);
           System.arraycopy(yTemp, 0, y, 0, numEqn);
           boolean changed = false;
@@ -587,6 +940,10 @@ public double[] computeChange(DESystem DES, double[] y2, double time, double cur
             t = Math.min(newTime, timeEnd);
             // change stepsize (see Rodas.f) require 0.2<=hnew/h<=6
             hAdap = Math.max(fac1, Math.min(fac2, Math.pow(localError, PWR) / SAFETY));
+            // a kept Jacobian is only used further as long as the step size does not decrease
+            if (jacobianKept && (hAdap > 1)) {
+              jacobianAge = -1;
+            }
             h = h / hAdap;
             if (timeEnd - t - h < hMin) {
               h = timeEnd - t;
@@ -607,6 +964,11 @@ public double[] computeChange(DESystem DES, double[] y2, double time, double cur
           } else {
             hAdap = Math.max(fac1, Math.min(fac2, Math.pow(localError, PWR) / SAFETY));
           }
+          // the step is repeated from the same point, so only a Jacobian of an earlier point
+          // has to be evaluated again
+          if (jacobianAge > 0) {
+            jacobianAge = -1;
+          }
           h = h / hAdap;
           if (timeEnd - t - h < hMin) {
             h = timeEnd - t;
@@ -0,0 +1,492 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.sbml;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.sbml.jsbml.ASTNode;
+import org.sbml.jsbml.CallableSBase;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.FunctionDefinition;
+import org.sbml.jsbml.LocalParameter;
+import org.sbml.jsbml.Parameter;
+import org.sbml.jsbml.Species;
+import org.sbml.jsbml.SpeciesReference;
+
+/**
+ * This class differentiates {@link ASTNode}s symbolically with respect to a symbol of the model or
+ * to time. Calls of function definitions are inlined and the variables of assignment rules are
+ * replaced by the math of their rules, so that the derivative refers to the symbols the math
+ * depends on in the end. The resulting {@link ASTNode}s are simplified with respect to the
+ * constants zero and one only.
+ * <p>
+ * Only arithmetic, powers, exp, ln, log, root, sin and cos can be differentiated. For all other
+ * constructs, e.g., piecewise, delay or rateOf, {@code null} is returned.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+public class ASTNodeDerivative {
+
+  /**
+   * The math of the assignment rules by the ids of their variables
+   */
+  private Map<String, ASTNode> assignments;
+
+  /**
+   * The variables of the assignment rules that are currently being differentiated
+   */
+  private Set<String> inProgress;
+
+  /**
+   * @param assignments the math of the assignment rules by the ids of their variables
+   */
+  public ASTNodeDerivative(Map<String, ASTNode> assignments) {
+    this.assignments = assignments;
+    inProgress = new HashSet<>();
+  }
+
+  /**
+   * Collects the ids of the compartments, species, parameters and species references the given
+   * math depends on, following assignment rules and the arguments of function calls.
+   *
+   * @param node    the math
+   * @param symbols the set to add the ids to
+   */
+  public void collectSymbols(ASTNode node, Set<String> symbols) {
+    if (node.getType() == ASTNode.Type.NAME) {
+      CallableSBase variable = node.getVariable();
+      if (isSymbol(variable)) {
+        String id = variable.getId();
+        ASTNode rule = assignments.get(id);
+        if (rule == null) {
+          symbols.add(id);
+        } else if (inProgress.add(id)) {
+          collectSymbols(rule, symbols);
+          inProgress.remove(id);
+        }
+      }
+    }
+    for (int i = 0; i < node.getChildCount(); i++) {
+      collectSymbols(node.getChild(i), symbols);
+    }
+  }
+
+  /**
+   * Differentiates the given math with respect to the given symbol.
+   *
+   * @param node the math
+   * @param id   the id of the symbol or {@code null} for the time
+   * @return the derivative or {@code null} if the math cannot be differentiated
+   */
+  public ASTNode derive(ASTNode node, String id) {
+    switch (node.getType()) {
+      case INTEGER:
+      case REAL:
+      case REAL_E:
+      case RATIONAL:
+      case CONSTANT_E:
+      case CONSTANT_PI:
+      case NAME_AVOGADRO:
+        return zero();
+      case NAME_TIME:
+        return (id == null) ? one() : zero();
+      case NAME:
+        return deriveName(node, id);
+      case PLUS: {
+        ASTNode re = zero();
+        for (int i = 0; i < node.getChildCount(); i++) {
+          ASTNode d = derive(node.getChild(i), id);
+          if (d == null) {
+            return null;
+          }
+          re = plus(re, d);
+        }
+        return re;
+      }
+      case MINUS: {
+        ASTNode re = derive(node.getChild(0), id);
+        if ((re == null) || (node.getChildCount() == 1)) {
+          return (re == null) ? null : negate(re);
+        }
+        for (int i = 1; i < node.getChildCount(); i++) {
+          ASTNode d = derive(node.getChild(i), id);
+          if (d == null) {
+            return null;
+          }
+          re = minus(re, d);
+        }
+        return re;
+      }
+      case TIMES:
+        return deriveProduct(node, id);
+      case DIVIDE: {
+        ASTNode u = node.getChild(0), v = node.getChild(1);
+        ASTNode du = derive(u, id), dv = derive(v, id);
+        if ((du == null) || (dv == null)) {
+          return null;
+        }
+        if (isZero(dv)) {
+          return divide(du, copy(v));
+        }
+        return divide(minus(times(du, copy(v)), times(copy(u), dv)),
+            times(copy(v), copy(v)));
+      }
+      case POWER:
+      case FUNCTION_POWER:
+        return derivePower(node, id);
+      case FUNCTION_EXP: {
+        ASTNode du = derive(node.getChild(0), id);
+        return (du == null) ? null : times(copy(node), du);
+      }
+      case FUNCTION_LN: {
+        ASTNode du = derive(node.getChild(0), id);
+        return (du == null) ? null : divide(du, copy(node.getChild(0)));
+      }
+      case FUNCTION_LOG:
+        return deriveLog(node, id);
+      case FUNCTION_ROOT:
+        return deriveRoot(node, id);
+      case FUNCTION_SIN: {
+        ASTNode du = derive(node.getChild(0), id);
+        return (du == null) ? null
+            : times(function(ASTNode.Type.FUNCTION_COS, copy(node.getChild(0))), du);
+      }
+      case FUNCTION_COS: {
+        ASTNode du = derive(node.getChild(0), id);
+        return (du == null) ? null
+            : negate(times(function(ASTNode.Type.FUNCTION_SIN, copy(node.getChild(0))), du));
+      }
+      case FUNCTION: {
+        ASTNode inlined = inline(node);
+        return (inlined == null) ? null : derive(inlined, id);
+      }
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Tells whether the given {@link ASTNode} is the constant zero.
+   *
+   * @param node the node
+   * @return flag that is {@code true} if the node is zero
+   */
+  public static boolean isZero(ASTNode node) {
+    if (node.getType() == ASTNode.Type.INTEGER) {
+      return node.getInteger() == 0;
+    }
+    return (node.getType() == ASTNode.Type.REAL) && (node.getReal() == 0d);
+  }
+
+  /**
+   * @param variable the variable of a name
+   * @return flag that is {@code true} if the variable has a value in the state of the model
+   */
+  private static boolean isSymbol(CallableSBase variable) {
+    return (variable instanceof Species) || (variable instanceof Compartment)
+        || (variable instanceof Parameter) || (variable instanceof SpeciesReference);
+  }
+
+  /**
+   * @param node the name
+   * @param id   the id of the symbol or {@code null} for the time
+   * @return the derivative of the name
+   */
+  private ASTNode deriveName(ASTNode node, String id) {
+    CallableSBase variable = node.getVariable();
+    if (variable instanceof LocalParameter) {
+      return zero();
+    }
+    if (!isSymbol(variable)) {
+      return null;
+    }
+    String name = variable.getId();
+    ASTNode rule = assignments.get(name);
+    if (rule != null) {
+      if (!inProgress.add(name)) {
+        return null;
+      }
+      ASTNode d = derive(rule, id);
+      inProgress.remove(name);
+      return d;
+    }
+    return name.equals(id) ? one() : zero();
+  }
+
+  /**
+   * @param node the product
+   * @param id   the id of the symbol or {@code null} for the time
+   * @return the derivative by the product rule
+   */
+  private ASTNode deriveProduct(ASTNode node, String id) {
+    ASTNode re = zero();
+    int n = node.getChildCount();
+    for (int i = 0; i < n; i++) {
+      ASTNode d = derive(node.getChild(i), id);
+      if (d == null) {
+        return null;
+      }
+      if (isZero(d)) {
+        continue;
+      }
+      ASTNode term = d;
+      for (int j = 0; j < n; j++) {
+        if (j != i) {
+          term = times(term, copy(node.getChild(j)));
+        }
+      }
+      re = plus(re, term);
+    }
+    return re;
+  }
+
+  /**
+   * @param node the power
+   * @param id   the id of the symbol or {@code null} for the time
+   * @return the derivative of the power
+   */
+  private ASTNode derivePower(ASTNode node, String id) {
+    ASTNode u = node.getChild(0), v = node.getChild(1);
+    ASTNode du = derive(u, id), dv = derive(v, id);
+    if ((du == null) || (dv == null)) {
+      return null;
+    }
+    if (isZero(dv)) {
+      // v * u^(v-1) * u'
+      ASTNode exponent = v.isNumber() ? new ASTNode(v.getReal() - 1d)
+          : minus(copy(v), one());
+      ASTNode power = copy(u);
+      if (!isOne(exponent)) {
+        power = new ASTNode(ASTNode.Type.POWER);
+        power.addChild(copy(u));
+        power.addChild(exponent);
+      }
+      return times(times(copy(v), power), du);
+    }
+    // u^v * (v' * ln(u) + v * u' / u)
+    ASTNode d = times(dv, function(ASTNode.Type.FUNCTION_LN, copy(u)));
+    if (!isZero(du)) {
+      d = plus(d, divide(times(copy(v), du), copy(u)));
+    }
+    return times(copy(node), d);
+  }
+
+  /**
+   * @param node the logarithm
+   * @param id   the id of the symbol or {@code null} for the time
+   * @return the derivative of the logarithm
+   */
+  private ASTNode deriveLog(ASTNode node, String id) {
+    ASTNode x = node.getChild(node.getChildCount() - 1);
+    ASTNode dx = derive(x, id);
+    if (dx == null) {
+      return null;
+    }
+    if (node.getChildCount() == 1) {
+      return divide(dx, times(copy(x), new ASTNode(Math.log(10d))));
+    }
+    ASTNode base = node.getChild(0);
+    ASTNode dBase = derive(base, id);
+    if ((dBase == null) || !isZero(dBase)) {
+      return null;
+    }
+    return divide(dx, times(copy(x), function(ASTNode.Type.FUNCTION_LN, copy(base))));
+  }
+
+  /**
+   * @param node the root
+   * @param id   the id of the symbol or {@code null} for the time
+   * @return the derivative of the root
+   */
+  private ASTNode deriveRoot(ASTNode node, String id) {
+    ASTNode x = node.getChild(node.getChildCount() - 1);
+    ASTNode dx = derive(x, id);
+    if (dx == null) {
+      return null;
+    }
+    // root(n, x)' = root(n, x) / (n * x) * x'
+    ASTNode degree = new ASTNode(2);
+    if (node.getChildCount() == 2) {
+      ASTNode dDegree = derive(node.getChild(0), id);
+      if ((dDegree == null) || !isZero(dDegree)) {
+        return null;
+      }
+      degree = copy(node.getChild(0));
+    }
+    return divide(times(copy(node), dx), times(degree, copy(x)));
+  }
+
+  /**
+   * Replaces the call of a function definition by the math of the function with the arguments
+   * inserted.
+   *
+   * @param node the call
+   * @return the math of the function or {@code null} if the function is unknown
+   */
+  private ASTNode inline(ASTNode node) {
+    CallableSBase variable = node.getVariable();
+    if (!(variable instanceof FunctionDefinition)
+        || !((FunctionDefinition) variable).isSetMath()) {
+      return null;
+    }
+    ASTNode lambda = ((FunctionDefinition) variable).getMath();
+    int n = lambda.getChildCount() - 1;
+    if (n != node.getChildCount()) {
+      return null;
+    }
+    Map<String, ASTNode> arguments = new HashMap<>();
+    for (int i = 0; i < n; i++) {
+      arguments.put(lambda.getChild(i).getName(), node.getChild(i));
+    }
+    return substitute(copy(lambda.getChild(n)), arguments);
+  }
+
+  /**
+   * @param node      the math
+   * @param arguments the arguments by their names
+   * @return the math with the names of the arguments replaced by copies of the arguments
+   */
+  private static ASTNode substitute(ASTNode node, Map<String, ASTNode> arguments) {
+    if ((node.getType() == ASTNode.Type.NAME) && arguments.containsKey(node.getName())) {
+      return copy(arguments.get(node.getName()));
+    }
+    for (int i = 0; i < node.getChildCount(); i++) {
+      ASTNode child = node.getChild(i);
+      ASTNode replacement = substitute(child, arguments);
+      if (replacement != child) {
+        node.replaceChild(i, replacement);
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Copies the given {@link ASTNode} including the variables of its names, which are not kept by
+   * {@link ASTNode#clone()}.
+   *
+   * @param node the node
+   * @return the copy
+   */
+  private static ASTNode copy(ASTNode node) {
+    ASTNode re = node.clone();
+    restoreVariables(node, re);
+    return re;
+  }
+
+  /**
+   * @param node the original node
+   * @param copy the copy of the node
+   */
+  private static void restoreVariables(ASTNode node, ASTNode copy) {
+    if ((node.getType() == ASTNode.Type.NAME) || (node.getType() == ASTNode.Type.FUNCTION)) {
+      copy.setParentSBMLObject(node.getParentSBMLObject());
+      CallableSBase variable = node.getVariable();
+      if (variable != null) {
+        copy.setVariable(variable);
+      }
+    }
+    for (int i = 0; i < node.getChildCount(); i++) {
+      restoreVariables(node.getChild(i), copy.getChild(i));
+    }
+  }
+
+  private static ASTNode zero() {
+    return new ASTNode(0);
+  }
+
+  private static ASTNode one() {
+    return new ASTNode(1);
+  }
+
+  private static boolean isOne(ASTNode node) {
+    if (node.getType() == ASTNode.Type.INTEGER) {
+      return node.getInteger() == 1;
+    }
+    return (node.getType() == ASTNode.Type.REAL) && (node.getReal() == 1d);
+  }
+
+  private static ASTNode function(ASTNode.Type type, ASTNode argument) {
+    ASTNode re = new ASTNode(type);
+    re.addChild(argument);
+    return re;
+  }
+
+  private static ASTNode plus(ASTNode a, ASTNode b) {
+    if (isZero(a)) {
+      return b;
+    } else if (isZero(b)) {
+      return a;
+    }
+    ASTNode re = new ASTNode(ASTNode.Type.PLUS);
+    re.addChild(a);
+    re.addChild(b);
+    return re;
+  }
+
+  private static ASTNode negate(ASTNode a) {
+    if (isZero(a)) {
+      return a;
+    }
+    return function(ASTNode.Type.MINUS, a);
+  }
+
+  private static ASTNode minus(ASTNode a, ASTNode b) {
+    if (isZero(b)) {
+      return a;
+    } else if (isZero(a)) {
+      return negate(b);
+    }
+    ASTNode re = new ASTNode(ASTNode.Type.MINUS);
+    re.addChild(a);
+    re.addChild(b);
+    return re;
+  }
+
+  private static ASTNode times(ASTNode a, ASTNode b) {
+    if (isZero(a) || isOne(b)) {
+      return a;
+    } else if (isZero(b) || isOne(a)) {
+      return b;
+    }
+    ASTNode re = new ASTNode(ASTNode.Type.TIMES);
+    re.addChild(a);
+    re.addChild(b);
+    return re;
+  }
+
+  private static ASTNode divide(ASTNode a, ASTNode b) {
+    if (isZero(a) || isOne(b)) {
+      return a;
+    }
+    ASTNode re = new ASTNode(ASTNode.Type.DIVIDE);
+    re.addChild(a);
+    re.addChild(b);
+    return re;
+  }
+}
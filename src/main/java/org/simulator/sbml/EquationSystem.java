@@ -1892,6 +1892,17 @@ public Map<String, Boolean> getConstantHash() {
     return constantHash;
   }
 
+  /**
+   * Tells whether the value at the given position of the state array refers to an amount (and not
+   * to a concentration).
+   *
+   * @param position the position in the state array
+   * @return whether the value is an amount
+   */
+  public boolean isAmount(int position) {
+    return isAmount[position];
+  }
+
   /**
    * Get state array.
    *
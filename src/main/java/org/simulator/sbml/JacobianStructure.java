@@ -0,0 +1,257 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.sbml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sbml.jsbml.ASTNode;
+import org.sbml.jsbml.CallableSBase;
+import org.sbml.jsbml.FunctionDefinition;
+import org.simulator.math.SparseMatrix;
+import org.simulator.sbml.astnode.ASTNodeValue;
+import org.simulator.sbml.astnode.AssignmentRuleValue;
+import org.simulator.sbml.astnode.RateRuleValue;
+
+/**
+ * Determines the structure of the Jacobian matrix of an {@link EquationSystem} from the
+ * species&ndash;reaction network and the rules: the rate of change of a species depends on the
+ * symbols the kinetic laws of its reactions refer to, the rate of change of the variable of a
+ * rate rule on the symbols of the rule, each following assignment rules. Species whose values
+ * are converted between amounts and concentrations additionally depend on their compartments, and
+ * species in a compartment with a rate rule on the symbols of this rule.
+ * <p>
+ * The structure is not known for some models (see {@link #getAssignments(EquationSystem)}), the
+ * Jacobian then has to be approximated by finite differences over all columns.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+class JacobianStructure {
+
+  /**
+   * The equation system
+   */
+  private EquationSystem system;
+
+  /**
+   * The math of the assignment rules by the ids of their variables
+   */
+  private Map<String, ASTNode> assignments;
+
+  /**
+   * Collects the symbols the math depends on
+   */
+  private ASTNodeDerivative derivative;
+
+  /**
+   * The conversion of the values of the species (see {@link SymbolicJacobian})
+   */
+  private int[] conversion;
+
+  private JacobianStructure(EquationSystem system, Map<String, ASTNode> assignments) {
+    this.system = system;
+    this.assignments = assignments;
+    derivative = new ASTNodeDerivative(assignments);
+    conversion = SymbolicJacobian.getConversions(system);
+  }
+
+  /**
+   * Determines the structure of the Jacobian of the given system.
+   *
+   * @param system the equation system
+   * @return a matrix with the structure or {@code null} if it is not known for the model of the
+   * system
+   */
+  static SparseMatrix create(EquationSystem system) {
+    Map<String, ASTNode> assignments = getAssignments(system);
+    if (assignments == null) {
+      return null;
+    }
+    JacobianStructure structure = new JacobianStructure(system, assignments);
+
+    int dimension = system.Y.length;
+    List<Set<Integer>> rows = new ArrayList<>(dimension);
+    for (int i = 0; i < dimension; i++) {
+      rows.add(new HashSet<>());
+    }
+    int numReactions = system.kineticLawRoots.length;
+    List<Set<Integer>> reactionColumns = new ArrayList<>(numReactions);
+    for (int r = 0; r < numReactions; r++) {
+      reactionColumns.add(structure.getColumns(system.kineticLawRoots[r].getNode()));
+    }
+    for (int k = 0; k < system.speciesIndex.length; k++) {
+      if (!system.zeroChange[k]) {
+        rows.get(system.speciesIndex[k]).addAll(reactionColumns.get(system.reactionIndex[k]));
+      }
+    }
+    for (RateRuleValue rule : system.rateRulesRoots) {
+      Set<Integer> columns = structure.getColumns(rule.getNodeObject().getNode());
+      Set<Integer> row = rows.get(rule.getIndex());
+      row.addAll(columns);
+      if (system.speciesMap.containsKey(rule.getVariable())) {
+        structure.addColumn(row, system.compartmentIndexes[rule.getIndex()]);
+      } else if (system.model.getCompartment(rule.getVariable()) != null) {
+        // the species in the compartment are diluted by the rate of change of its size
+        columns.add(rule.getIndex());
+        for (int i = 0; i < dimension; i++) {
+          if ((system.compartmentIndexes[i] == rule.getIndex())
+              && system.speciesMap.containsKey(system.symbolIdentifiers[i])) {
+            rows.get(i).addAll(columns);
+            rows.get(i).add(i);
+          }
+        }
+      }
+    }
+    for (int i = 0; i < dimension; i++) {
+      if (system.inConcentrationValues[i]) {
+        structure.addColumn(rows.get(i), system.compartmentIndexes[i]);
+      }
+    }
+
+    int[][] columns = new int[dimension][];
+    for (int i = 0; i < dimension; i++) {
+      columns[i] = new int[rows.get(i).size()];
+      int j = 0;
+      for (int column : rows.get(i)) {
+        columns[i][j++] = column;
+      }
+    }
+    return new SparseMatrix(columns);
+  }
+
+  /**
+   * Collects the math of the assignment rules of the given system, if the structure of its
+   * Jacobian can be determined. This is not the case for models
+   * <ul>
+   * <li>with fast reactions, which are not part of the rate of change,</li>
+   * <li>with non-constant stoichiometries,</li>
+   * <li>with assignment rules for compartments or rules for species references,</li>
+   * <li>with assignment rules whose variables are not in the state array, or</li>
+   * <li>with math that refers to the rate of change of a symbol by rateOf.</li>
+   * </ul>
+   *
+   * @param system the equation system
+   * @return the math of the assignment rules by the ids of their variables or {@code null} if the
+   * structure of the Jacobian is not known for the model of the system
+   */
+  static Map<String, ASTNode> getAssignments(EquationSystem system) {
+    if (system.hasFastReactions) {
+      return null;
+    }
+    for (boolean constant : system.constantStoichiometry) {
+      if (!constant) {
+        return null;
+      }
+    }
+    Map<String, ASTNode> assignments = new HashMap<>();
+    for (AssignmentRuleValue rule : system.assignmentRulesRoots) {
+      if ((rule.getIndex() < 0) || (system.model.getCompartment(
+          system.symbolIdentifiers[rule.getIndex()]) != null) || containsRateOf(rule.getMath())) {
+        return null;
+      }
+      assignments.put(system.symbolIdentifiers[rule.getIndex()], rule.getMath());
+    }
+    for (RateRuleValue rule : system.rateRulesRoots) {
+      if ((system.model.findSpeciesReference(rule.getVariable()) != null)
+          || containsRateOf(rule.getNodeObject().getNode())) {
+        return null;
+      }
+    }
+    for (ASTNodeValue kineticLaw : system.kineticLawRoots) {
+      if (containsRateOf(kineticLaw.getNode())) {
+        return null;
+      }
+    }
+    return assignments;
+  }
+
+  /**
+   * @param math some math
+   * @return flag that is {@code true} if the math or a function it calls contains rateOf
+   */
+  private static boolean containsRateOf(ASTNode math) {
+    if (math.getType() == ASTNode.Type.FUNCTION_RATE_OF) {
+      return true;
+    }
+    if (math.getType() == ASTNode.Type.FUNCTION) {
+      CallableSBase function = math.getVariable();
+      if ((function instanceof FunctionDefinition) && ((FunctionDefinition) function).isSetMath()
+          && containsRateOf(((FunctionDefinition) function).getMath())) {
+        return true;
+      }
+    }
+    for (int i = 0; i < math.getChildCount(); i++) {
+      if (containsRateOf(math.getChild(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param math some math
+   * @return the positions in the state array of the symbols the math depends on
+   */
+  private Set<Integer> getColumns(ASTNode math) {
+    Set<String> ids = new LinkedHashSet<>();
+    derivative.collectSymbols(math, ids);
+    Set<Integer> columns = new HashSet<>();
+    for (String id : ids) {
+      Integer index = system.symbolHash.get(id);
+      if (index != null) {
+        addColumn(columns, index);
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Adds a position in the state array to a row of the structure, together with the compartment
+   * of a species whose value is converted and, if the value is given by an assignment rule, with
+   * the symbols of the rule.
+   *
+   * @param row   the columns of the row
+   * @param index the position in the state array
+   */
+  private void addColumn(Set<Integer> row, int index) {
+    if (!row.add(index)) {
+      return;
+    }
+    if (conversion[index] != SymbolicJacobian.NONE) {
+      addColumn(row, system.compartmentIndexes[index]);
+    }
+    ASTNode rule = assignments.get(system.symbolIdentifiers[index]);
+    if (rule != null) {
+      row.addAll(getColumns(rule));
+    }
+  }
+
+}
@@ -42,9 +42,11 @@
 import org.sbml.jsbml.SBMLException;
 import org.sbml.jsbml.Species;
 import org.sbml.jsbml.validator.ModelOverdeterminedException;
+import org.simulator.math.SparseMatrix;
 import org.simulator.math.odes.AbstractDESSolver;
 import org.simulator.math.odes.DESystem;
 import org.simulator.math.odes.EventInProgress;
+import org.simulator.math.odes.JacobianDESystem;
 import org.simulator.sbml.astnode.ASTNodeValue;
 import org.simulator.sbml.astnode.AssignmentRuleValue;
 
@@ -64,7 +66,7 @@
  * @version $Rev$
  * @since 0.9
  */
-public class SBMLinterpreter extends EquationSystem {
+public class SBMLinterpreter extends EquationSystem implements JacobianDESystem {
 
   /**
    * A {@link Logger}.
@@ -76,6 +78,43 @@ public class SBMLinterpreter extends EquationSystem {
    */
   private static final long serialVersionUID = 3453063382705340995L;
 
+  /**
+   * The position of each species in the {@link #Y} vector, indexed by the position of the species
+   * in the model.
+   */
+  private int[] speciesPosition;
+
+  /**
+   * The {@link AmountManager} whose amounts are currently stored in {@link #Y} and which reports
+   * each change by {@link #updateSpeciesConcentration(AmountManager, int)}.
+   */
+  private transient AmountManager synchronizedAmountManager;
+
+  /**
+   * Flag that is true if the Jacobian should be derived symbolically from the math of the model.
+   */
+  private boolean symbolicJacobian = true;
+
+  /**
+   * The symbolic Jacobian, or null if it cannot be derived for the model.
+   */
+  private transient SymbolicJacobian jacobian;
+
+  /**
+   * Flag that is true if it has been tried to derive the {@link #jacobian}.
+   */
+  private transient boolean jacobianDerived;
+
+  /**
+   * The structure of the Jacobian, or null if it is not known for the model.
+   */
+  private transient SparseMatrix jacobianStructure;
+
+  /**
+   * Flag that is true if the {@link #jacobianStructure} has been determined.
+   */
+  private transient boolean jacobianStructureDerived;
+
   /**
    * <p>
    * This constructs a new {@link DESystem} for the given SBML {@link Model}. Note that only a
@@ -441,6 +480,15 @@ public void init(boolean renewTree, double defaultSpeciesValue, double defaultPa
       throws ModelOverdeterminedException, SBMLException {
     super.init(renewTree, defaultSpeciesValue, defaultParameterValue, defaultCompartmentValue,
         amountHash);
+    speciesPosition = new int[model.getSpeciesCount()];
+    for (int i = 0; i < speciesPosition.length; i++) {
+      speciesPosition[i] = symbolHash.get(model.getSpecies(i).getId());
+    }
+    synchronizedAmountManager = null;
+    jacobian = null;
+    jacobianDerived = false;
+    jacobianStructure = null;
+    jacobianStructureDerived = false;
     /*
      * Initial assignments
      */
@@ -885,14 +933,50 @@ private void updateSpeciesConcentrationByCompartmentRateRule(int compartmentInde
   }
 
   /**
-   * Updates the species concentration as per the updated values in the AmountManager.
+   * Updates the species concentration as per the updated values in the AmountManager. The
+   * synchronized AmountManager (if any) is released.
    *
    * @param amountManager
    */
   public void updateSpeciesConcentration(AmountManager amountManager) {
-    for (int i = 0; i < model.getSpeciesCount(); i++) {
-      Y[symbolHash.get(model.getSpecies(i).getId())] = amountManager.getAmount(i);
+    for (int i = 0; i < speciesPosition.length; i++) {
+      Y[speciesPosition[i]] = amountManager.getAmount(i);
+    }
+    synchronizedAmountManager = null;
+  }
+
+  /**
+   * Updates the concentration of a single species as per its value in the AmountManager.
+   *
+   * @param amountManager
+   * @param species       index of the species in the model
+   */
+  public void updateSpeciesConcentration(AmountManager amountManager, int species) {
+    Y[speciesPosition[species]] = amountManager.getAmount(species);
+  }
+
+  /**
+   * Gets the {@link AmountManager} that keeps the species concentrations up to date by reporting
+   * each change, or null if the concentrations have to be updated before each evaluation.
+   *
+   * @return the synchronized AmountManager
+   */
+  public AmountManager getSynchronizedAmountManager() {
+    return synchronizedAmountManager;
+  }
+
+  /**
+   * Updates all species concentrations as per the given AmountManager, which from now on reports
+   * each change by {@link #updateSpeciesConcentration(AmountManager, int)}. A value of null
+   * releases the current AmountManager.
+   *
+   * @param amountManager the AmountManager to synchronize with
+   */
+  public void setSynchronizedAmountManager(AmountManager amountManager) {
+    if (amountManager != null) {
+      updateSpeciesConcentration(amountManager);
     }
+    synchronizedAmountManager = amountManager;
   }
 
   /**
@@ -918,6 +1002,82 @@ private void refreshSpeciesAmount(int compartmentIndex, double[] Y, double oldCo
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The Jacobian is derived symbolically from the math of the kinetic laws and rules when this
+   * method is called for the first time (see {@link ASTNodeDerivative}). This is not possible for
+   * models with fast reactions, non-constant stoichiometries, rules for compartments or species
+   * references or math that cannot be differentiated, e.g., piecewise or delay.
+   */
+  @Override
+  public boolean hasJacobian() {
+    if (!symbolicJacobian) {
+      return false;
+    }
+    if (!jacobianDerived) {
+      SparseMatrix structure = getJacobianStructure();
+      jacobian = (structure == null) ? null : SymbolicJacobian.create(this, structure);
+      jacobianDerived = true;
+    }
+    return jacobian != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void computeJacobian(double t, double[] Y, double[][] jacobian, double[] timeDerivative)
+      throws DerivativeException {
+    if (!hasJacobian()) {
+      throw new DerivativeException("The Jacobian of the model cannot be derived symbolically.");
+    }
+    this.jacobian.compute(t, Y, jacobian, timeDerivative);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void computeJacobian(double t, double[] Y, SparseMatrix jacobian,
+      double[] timeDerivative) throws DerivativeException {
+    if (!hasJacobian()) {
+      throw new DerivativeException("The Jacobian of the model cannot be derived symbolically.");
+    }
+    this.jacobian.compute(t, Y, jacobian, timeDerivative);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The structure is determined from the reactions the species take part in and the symbols
+   * the kinetic laws and rules refer to. It is not known for models with non-constant
+   * stoichiometries.
+   */
+  @Override
+  public SparseMatrix getJacobianStructure() {
+    if (!jacobianStructureDerived) {
+      jacobianStructure = JacobianStructure.create(this);
+      jacobianStructureDerived = true;
+    }
+    return jacobianStructure;
+  }
+
+  /**
+   * @return flag that is true if the Jacobian is derived symbolically (default: true)
+   */
+  public boolean isSymbolicJacobian() {
+    return symbolicJacobian;
+  }
+
+  /**
+   * @param symbolicJacobian if false, {@link #hasJacobian()} returns false, so that solvers use
+   *                         finite differences instead
+   */
+  public void setSymbolicJacobian(boolean symbolicJacobian) {
+    this.symbolicJacobian = symbolicJacobian;
+  }
+
   /**
    * @param reactionIndex index of the reaction
    * @return the current reaction velocity of a specific reaction
@@ -0,0 +1,446 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of Simulation Core Library, a Java-based library
+ * for efficient numerical simulation of biological models.
+ *
+ * Copyright (C) 2007-2016 jointly by the following organizations:
+ * 1. University of Tuebingen, Germany
+ * 2. Keio University, Japan
+ * 3. Harvard University, USA
+ * 4. The University of Edinburgh, UK
+ * 5. EMBL European Bioinformatics Institute (EBML-EBI), Hinxton, UK
+ * 6. The University of California, San Diego, La Jolla, CA, USA
+ * 7. The Babraham Institute, Cambridge, UK
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package org.simulator.sbml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.math.ode.DerivativeException;
+import org.sbml.jsbml.ASTNode;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.Species;
+import org.simulator.math.SparseMatrix;
+import org.simulator.sbml.astnode.ASTNodeValue;
+import org.simulator.sbml.astnode.RateRuleValue;
+
+/**
+ * The Jacobian matrix of an {@link EquationSystem}, derived symbolically from the math of its
+ * kinetic laws and rules by an {@link ASTNodeDerivative}. The partial derivatives of each kinetic
+ * law and rate rule with respect to the symbols they depend on are evaluated as {@link
+ * ASTNodeValue}s, like the math itself, and are combined with the stoichiometries, the
+ * conversion of species values between amounts and concentrations and the conversion factors in
+ * the same way as the rate of change is computed.
+ * <p>
+ * The models not supported by the {@link JacobianStructure}, models with rate rules for
+ * compartments, as well as math that cannot be differentiated (see {@link ASTNodeDerivative}), are
+ * not supported.
+ *
+ * @version $Rev$
+ * @since 2.1
+ */
+class SymbolicJacobian {
+
+  /**
+   * The ways the value of a species is converted between the state array and the math
+   */
+  static final int NONE = 0, DIVIDE = 1, MULTIPLY = 2;
+
+  /**
+   * The equation system
+   */
+  private EquationSystem system;
+
+  /**
+   * The partial derivatives of kinetic law r are stored at reactionOffsets[r] to
+   * reactionOffsets[r+1]-1 together with the positions of the symbols in the state array
+   */
+  private int[] reactionOffsets;
+  private int[] reactionSymbols;
+  private ASTNodeValue[] reactionDerivatives;
+
+  /**
+   * The derivatives of the kinetic laws with respect to time ({@code null} if zero)
+   */
+  private ASTNodeValue[] reactionTimeDerivatives;
+
+  /**
+   * The partial derivatives of the rate rules in the same layout as the ones of the kinetic laws
+   */
+  private int[] ruleOffsets;
+  private int[] ruleSymbols;
+  private ASTNodeValue[] ruleDerivatives;
+  private ASTNodeValue[] ruleTimeDerivatives;
+
+  /**
+   * The conversion of the values of the rate rules with species variables and the positions of
+   * the compartments of the species
+   */
+  private int[] ruleConversion;
+  private int[] ruleCompartment;
+
+  /**
+   * The conversion of the values of the species at each position in the state array when they
+   * are used in math
+   */
+  private int[] conversion;
+
+  /**
+   * Is the value at each position in the state array the variable of a rate rule?
+   */
+  private boolean[] isRateRuleVariable;
+
+  /**
+   * Does the value at each position in the state array change during the integration? The math
+   * is only derived with respect to these values, the other columns of the Jacobian are zero.
+   */
+  private boolean[] isVariable;
+
+  /**
+   * Helper arrays
+   */
+  private double[] values, changeRate;
+
+  /**
+   * The Jacobian in the structure of the system, used if it is requested as a dense matrix
+   */
+  private SparseMatrix matrix;
+
+  private SymbolicJacobian(EquationSystem system) {
+    this.system = system;
+  }
+
+  /**
+   * Derives the Jacobian of the given system.
+   *
+   * @param system    the equation system
+   * @param structure the structure of the Jacobian (see {@link JacobianStructure})
+   * @return the Jacobian or {@code null} if it cannot be derived for the model of the system
+   */
+  static SymbolicJacobian create(EquationSystem system, SparseMatrix structure) {
+    Map<String, ASTNode> assignments = JacobianStructure.getAssignments(system);
+    if (assignments == null) {
+      return null;
+    }
+    for (RateRuleValue rule : system.rateRulesRoots) {
+      if (system.model.getCompartment(rule.getVariable()) != null) {
+        return null;
+      }
+    }
+
+    SymbolicJacobian re = new SymbolicJacobian(system);
+    int dimension = system.Y.length;
+    re.isVariable = new boolean[dimension];
+    for (int k = 0; k < system.speciesIndex.length; k++) {
+      if (!system.zeroChange[k]) {
+        re.isVariable[system.speciesIndex[k]] = true;
+      }
+    }
+    for (RateRuleValue rule : system.rateRulesRoots) {
+      re.isVariable[rule.getIndex()] = true;
+    }
+    ASTNodeDerivative derivative = new ASTNodeDerivative(assignments);
+    List<Integer> symbols = new ArrayList<>();
+    List<ASTNodeValue> derivatives = new ArrayList<>();
+    int numReactions = system.kineticLawRoots.length;
+    re.reactionOffsets = new int[numReactions + 1];
+    re.reactionTimeDerivatives = new ASTNodeValue[numReactions];
+    for (int r = 0; r < numReactions; r++) {
+      ASTNode math = system.kineticLawRoots[r].getNode();
+      if (!re.derive(derivative, math, symbols, derivatives)) {
+        return null;
+      }
+      re.reactionOffsets[r + 1] = symbols.size();
+      ASTNode d = derivative.derive(math, null);
+      if (d == null) {
+        return null;
+      }
+      re.reactionTimeDerivatives[r] = re.createValue(d);
+    }
+    re.reactionSymbols = toArray(symbols);
+    re.reactionDerivatives = derivatives.toArray(new ASTNodeValue[0]);
+
+    symbols.clear();
+    derivatives.clear();
+    int numRules = system.rateRulesRoots.size();
+    re.ruleOffsets = new int[numRules + 1];
+    re.ruleTimeDerivatives = new ASTNodeValue[numRules];
+    re.ruleConversion = new int[numRules];
+    re.ruleCompartment = new int[numRules];
+    re.isRateRuleVariable = new boolean[dimension];
+    for (int q = 0; q < numRules; q++) {
+      RateRuleValue rule = system.rateRulesRoots.get(q);
+      ASTNode math = rule.getNodeObject().getNode();
+      if (!re.derive(derivative, math, symbols, derivatives)) {
+        return null;
+      }
+      re.ruleOffsets[q + 1] = symbols.size();
+      ASTNode d = derivative.derive(math, null);
+      if (d == null) {
+        return null;
+      }
+      re.ruleTimeDerivatives[q] = re.createValue(d);
+      re.isRateRuleVariable[rule.getIndex()] = true;
+      Species sp = system.model.getSpecies(rule.getVariable());
+      if ((sp != null) && !hasZeroSpatialDimensions(sp)) {
+        boolean isAmount = system.isAmount[rule.getIndex()];
+        if (isAmount && !sp.getHasOnlySubstanceUnits()) {
+          re.ruleConversion[q] = MULTIPLY;
+        } else if (!isAmount && sp.getHasOnlySubstanceUnits()) {
+          re.ruleConversion[q] = DIVIDE;
+        }
+        re.ruleCompartment[q] = system.compartmentIndexes[rule.getIndex()];
+      }
+    }
+    re.ruleSymbols = toArray(symbols);
+    re.ruleDerivatives = derivatives.toArray(new ASTNodeValue[0]);
+
+    re.conversion = getConversions(system);
+    re.matrix = new SparseMatrix(structure);
+    re.values = new double[Math.max(re.reactionDerivatives.length, re.ruleDerivatives.length)];
+    re.changeRate = new double[dimension];
+    return re;
+  }
+
+  /**
+   * Determines how the values of the species at each position in the state array are converted
+   * when they are used in math.
+   *
+   * @param system the equation system
+   * @return {@link #NONE}, {@link #DIVIDE} or {@link #MULTIPLY} by the size of the compartment
+   * for each position
+   */
+  static int[] getConversions(EquationSystem system) {
+    int[] conversion = new int[system.Y.length];
+    for (int k = 0; k < conversion.length; k++) {
+      Species sp = system.speciesMap.get(system.symbolIdentifiers[k]);
+      if ((sp != null) && !hasZeroSpatialDimensions(sp)) {
+        if (system.isAmount[k] && !sp.getHasOnlySubstanceUnits()) {
+          conversion[k] = DIVIDE;
+        } else if (!system.isAmount[k] && sp.getHasOnlySubstanceUnits()) {
+          conversion[k] = MULTIPLY;
+        }
+      }
+    }
+    return conversion;
+  }
+
+  /**
+   * Computes the Jacobian as a dense matrix (see {@link #compute(double, double[], SparseMatrix,
+   * double[])}).
+   *
+   * @param t              the time
+   * @param Y              the state
+   * @param jacobian       the matrix to store the Jacobian in
+   * @param timeDerivative the array to store the derivatives with respect to time in or {@code
+   *                       null}
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  void compute(double t, double[] Y, double[][] jacobian, double[] timeDerivative)
+      throws DerivativeException {
+    compute(t, Y, matrix, timeDerivative);
+    matrix.copyTo(jacobian);
+  }
+
+  /**
+   * Computes the Jacobian (see {@link org.simulator.math.odes.JacobianDESystem}).
+   *
+   * @param t              the time
+   * @param Y              the state
+   * @param jacobian       the matrix with the structure of the system to store the Jacobian in
+   * @param timeDerivative the array to store the derivatives with respect to time in or {@code
+   *                       null}
+   * @throws DerivativeException if the rate of change cannot be computed
+   */
+  void compute(double t, double[] Y, SparseMatrix jacobian, double[] timeDerivative)
+      throws DerivativeException {
+    jacobian.clear();
+    if (timeDerivative != null) {
+      Arrays.fill(timeDerivative, 0d);
+    }
+    // sets the state of the system, including the variables of assignment rules
+    system.computeDerivatives(t, Y, changeRate);
+    if (system.noDerivatives) {
+      return;
+    }
+    double time = system.astNodeTime;
+    double[] y = system.Y;
+
+    for (int e = 0; e < reactionDerivatives.length; e++) {
+      values[e] = reactionDerivatives[e].compileDouble(time, 0d);
+    }
+    for (int k = 0; k < system.speciesIndex.length; k++) {
+      if (system.zeroChange[k]) {
+        continue;
+      }
+      int i = system.speciesIndex[k];
+      int r = system.reactionIndex[k];
+      double factor = system.isReactant[k] ? -system.stoichiometry[k] : system.stoichiometry[k];
+      for (int e = reactionOffsets[r]; e < reactionOffsets[r + 1]; e++) {
+        add(jacobian, i, reactionSymbols[e], factor * values[e], y);
+      }
+      if ((timeDerivative != null) && (reactionTimeDerivatives[r] != null)) {
+        timeDerivative[i] += factor * reactionTimeDerivatives[r].compileDouble(time, 0d);
+      }
+    }
+
+    for (int e = 0; e < ruleDerivatives.length; e++) {
+      values[e] = ruleDerivatives[e].compileDouble(time, 0d);
+    }
+    for (int q = 0; q < ruleTimeDerivatives.length; q++) {
+      RateRuleValue rule = system.rateRulesRoots.get(q);
+      int i = rule.getIndex();
+      int c = ruleCompartment[q];
+      double factor = 1d;
+      if (ruleConversion[q] == MULTIPLY) {
+        factor = y[c];
+        jacobian.add(i, c, rule.getNodeObject().compileDouble(time, 0d));
+      } else if (ruleConversion[q] == DIVIDE) {
+        factor = 1d / y[c];
+        jacobian.add(i, c, -rule.getNodeObject().compileDouble(time, 0d) / (y[c] * y[c]));
+      }
+      for (int e = ruleOffsets[q]; e < ruleOffsets[q + 1]; e++) {
+        add(jacobian, i, ruleSymbols[e], factor * values[e], y);
+      }
+      if ((timeDerivative != null) && (ruleTimeDerivatives[q] != null)) {
+        timeDerivative[i] += factor * ruleTimeDerivatives[q].compileDouble(time, 0d);
+      }
+    }
+
+    // division by the compartment size and conversion factors (see processVelocities)
+    int[] rowPointers = jacobian.getRowPointers();
+    double[] entries = jacobian.getValues();
+    for (int i = 0; i < jacobian.getDimension(); i++) {
+      double factor = system.conversionFactors[i];
+      if (isRateRuleVariable[i]) {
+        factor /= system.conversionFactors[i];
+      }
+      int c = system.compartmentIndexes[i];
+      if (system.inConcentrationValues[i]) {
+        factor /= y[c];
+      }
+      if (factor != 1d) {
+        for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+          entries[k] *= factor;
+        }
+        if (timeDerivative != null) {
+          timeDerivative[i] *= factor;
+        }
+      }
+      if (system.inConcentrationValues[i]) {
+        jacobian.add(i, c, -changeRate[i] / y[c]);
+      }
+    }
+  }
+
+  /**
+   * Adds the partial derivative of some math with respect to the symbol at the given position to
+   * a row of the Jacobian, converting it to a derivative with respect to the value in the state
+   * array.
+   *
+   * @param jacobian   the Jacobian
+   * @param i          the row
+   * @param k          the position of the symbol in the state array
+   * @param derivative the partial derivative with respect to the symbol
+   * @param y          the state
+   */
+  private void add(SparseMatrix jacobian, int i, int k, double derivative, double[] y) {
+    switch (conversion[k]) {
+      case DIVIDE: {
+        int c = system.compartmentIndexes[k];
+        double size = y[c];
+        if (size == 0d) {
+          jacobian.add(i, k, derivative);
+        } else {
+          jacobian.add(i, k, derivative / size);
+          jacobian.add(i, c, -derivative * y[k] / (size * size));
+        }
+        break;
+      }
+      case MULTIPLY: {
+        int c = system.compartmentIndexes[k];
+        double size = y[c];
+        if (size == 0d) {
+          jacobian.add(i, k, derivative);
+        } else {
+          jacobian.add(i, k, derivative * size);
+          jacobian.add(i, c, derivative * y[k]);
+        }
+        break;
+      }
+      default:
+        jacobian.add(i, k, derivative);
+        break;
+    }
+  }
+
+  /**
+   * Derives the given math with respect to all symbols it depends on.
+   *
+   * @param derivative  the differentiator
+   * @param math        the math
+   * @param symbols     the list to add the positions of the symbols in the state array to
+   * @param derivatives the list to add the partial derivatives to
+   * @return flag that is {@code false} if the math cannot be differentiated
+   */
+  private boolean derive(ASTNodeDerivative derivative, ASTNode math, List<Integer> symbols,
+      List<ASTNodeValue> derivatives) {
+    Set<String> ids = new LinkedHashSet<>();
+    derivative.collectSymbols(math, ids);
+    for (String id : ids) {
+      Integer index = system.symbolHash.get(id);
+      if ((index == null) || !isVariable[index]) {
+        continue;
+      }
+      ASTNode d = derivative.derive(math, id);
+      if (d == null) {
+        return false;
+      }
+      if (!ASTNodeDerivative.isZero(d)) {
+        symbols.add(index);
+        derivatives.add(createValue(d));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param node a derivative
+   * @return the {@link ASTNodeValue} to evaluate the derivative or {@code null} if it is zero
+   */
+  private ASTNodeValue createValue(ASTNode node) {
+    if (ASTNodeDerivative.isZero(node)) {
+      return null;
+    }
+    return (ASTNodeValue) system.copyAST(node, false, null, null)
+        .getUserObject(EquationSystem.TEMP_VALUE);
+  }
+
+  private static boolean hasZeroSpatialDimensions(Species sp) {
+    Compartment c = sp.getCompartmentInstance();
+    return (c == null) || (c.getSpatialDimensions() <= 0);
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] re = new int[list.size()];
+    for (int i = 0; i < re.length; i++) {
+      re[i] = list.get(i);
+    }
+    return re;
+  }
+}
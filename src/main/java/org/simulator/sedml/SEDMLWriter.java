@@ -50,6 +50,7 @@
 import org.simulator.math.odes.AbstractDESSolver;
 import org.simulator.math.odes.AdamsBashforthSolver;
 import org.simulator.math.odes.AdamsMoultonSolver;
+import org.simulator.math.odes.BDFSolver;
 import org.simulator.math.odes.DormandPrince54Solver;
 import org.simulator.math.odes.DormandPrince853Solver;
 import org.simulator.math.odes.EulerMethod;
@@ -197,6 +198,8 @@ String getKisaoIDForSolver(AbstractDESSolver solver) {
       return "KISAO_0000279";
     } else if (solver instanceof AdamsMoultonSolver) {
       return "KISAO_0000280";
+    } else if (solver instanceof BDFSolver) {
+      return "KISAO_0000288";
     } else if ((solver instanceof DormandPrince54Solver)
         || (solver instanceof DormandPrince853Solver)) {
       return "KISAO_0000087";
@@ -65,6 +65,7 @@
 import org.semanticweb.owlapi.model.IRI;
 import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 import org.simulator.math.odes.AbstractDESSolver;
+import org.simulator.math.odes.BDFSolver;
 import org.simulator.math.odes.DormandPrince54Solver;
 import org.simulator.math.odes.EulerMethod;
 import org.simulator.math.odes.MultiTable;
@@ -106,7 +107,8 @@ public class SedMLSBMLSimulatorExecutor extends AbstractSedmlExecutor {
       "KISAO:0000030",  // Euler forward method
       "KISAO:0000087",  // Dormand-Prince method
       "KISAO:0000088",  // LSODA
-      "KISAO:0000019"   // CVODE
+      "KISAO:0000019",  // CVODE
+      "KISAO:0000288"   // BDF method
   };
 
   /**
@@ -616,6 +618,8 @@ AbstractDESSolver getSolverForKisaoID(String id) {
       return new EulerMethod();
     } else if (SUPPORTED_KISAO_IDS[2].equals(id)) {
       return new DormandPrince54Solver();
+    } else if (SUPPORTED_KISAO_IDS[5].equals(id)) {
+      return new BDFSolver();
     } else {
       return new RosenbrockSolver(); // default
     }
@@ -0,0 +1,183 @@
+package org.simulator.math;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.simulator.math.MatrixOperations.MatrixException;
+
+public class SparseLUDecompositionTest {
+
+  /**
+   * Creates a random sparse matrix with a dominant diagonal.
+   *
+   * @param n      the dimension
+   * @param random the random number generator
+   * @return the matrix
+   */
+  private static SparseMatrix createMatrix(int n, Random random) {
+    int[][] structure = new int[n][3];
+    for (int i = 0; i < n; i++) {
+      for (int k = 0; k < structure[i].length; k++) {
+        structure[i][k] = random.nextInt(n);
+      }
+    }
+    SparseMatrix matrix = new SparseMatrix(structure);
+    int[] rowPointers = matrix.getRowPointers();
+    double[] values = matrix.getValues();
+    for (int i = 0; i < n; i++) {
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        values[k] = random.nextDouble() - 0.5d;
+      }
+      values[matrix.getDiagonalIndex(i)] += 4d;
+    }
+    return matrix;
+  }
+
+  /**
+   * Testing the solution of a sparse system against the dense LU decomposition.
+   *
+   * @throws MatrixException
+   */
+  @Test
+  public void testSolveAgainstDense() throws MatrixException {
+    Random random = new Random(1);
+    int n = 200;
+    SparseMatrix matrix = createMatrix(n, random);
+    SparseLUDecomposition decomposition = new SparseLUDecomposition(matrix);
+    double[] b = new double[n];
+    for (int i = 0; i < n; i++) {
+      b[i] = random.nextDouble();
+    }
+
+    for (int iteration = 0; iteration < 2; iteration++) {
+      // the decomposition is reused for new values with the same structure
+      double[] values = matrix.getValues();
+      for (int k = 0; k < values.length; k++) {
+        values[k] *= 1d + iteration;
+      }
+      decomposition.factorize(matrix);
+      double[] x = b.clone();
+      decomposition.solve(x);
+
+      double[][] dense = new double[n][n];
+      matrix.copyTo(dense);
+      int[] indx = new int[n];
+      MatrixOperations.ludcmp(dense, indx);
+      double[] expected = b.clone();
+      MatrixOperations.lubksb(dense, indx, expected);
+      for (int i = 0; i < n; i++) {
+        assertEquals(expected[i], x[i], 1E-12);
+      }
+    }
+  }
+
+  /**
+   * Testing that matrices without a dominant diagonal are solved accurately, including a matrix
+   * whose diagonal is zero.
+   *
+   * @throws MatrixException
+   */
+  @Test
+  public void testSolveWithoutDominantDiagonal() throws MatrixException {
+    Random random = new Random(3);
+    int n = 100;
+    SparseMatrix[] matrices = new SparseMatrix[2];
+    // pairs of equations with tiny diagonal entries that are coupled to the next pair
+    int[][] structure = new int[n][];
+    for (int i = 0; i < n; i++) {
+      structure[i] = new int[] {i ^ 1, (i + 2) % n};
+    }
+    matrices[0] = new SparseMatrix(structure);
+    for (int i = 0; i < n; i++) {
+      matrices[0].set(i, i, 1E-10d * random.nextDouble());
+      matrices[0].set(i, i ^ 1, 1d + random.nextDouble());
+      matrices[0].set(i, (i + 2) % n, 0.1d * random.nextDouble());
+    }
+    // a cyclic permutation, for which every diagonal pivot is zero
+    structure = new int[n][];
+    for (int i = 0; i < n; i++) {
+      structure[i] = new int[] {(i + 1) % n};
+    }
+    matrices[1] = new SparseMatrix(structure);
+    for (int i = 0; i < n; i++) {
+      matrices[1].set(i, (i + 1) % n, 1d + i);
+    }
+
+    for (SparseMatrix matrix : matrices) {
+      SparseLUDecomposition decomposition = new SparseLUDecomposition(matrix);
+      decomposition.factorize(matrix);
+      assertTrue(decomposition.isDense());
+      double[] b = new double[n];
+      for (int i = 0; i < n; i++) {
+        b[i] = random.nextDouble();
+      }
+      double[] x = b.clone();
+      decomposition.solve(x);
+      double[][] dense = new double[n][n];
+      matrix.copyTo(dense);
+      for (int i = 0; i < n; i++) {
+        double sum = 0d;
+        for (int j = 0; j < n; j++) {
+          sum += dense[i][j] * x[j];
+        }
+        assertEquals(b[i], sum, 1E-9);
+      }
+    }
+
+    // a matrix with a dominant diagonal is decomposed without pivoting again
+    SparseMatrix matrix = createMatrix(n, random);
+    SparseLUDecomposition decomposition = new SparseLUDecomposition(matrix);
+    decomposition.factorize(matrix);
+    assertFalse(decomposition.isDense());
+  }
+
+  /**
+   * Testing that the column groups partition the columns into structurally orthogonal groups.
+   */
+  @Test
+  public void testColumnGroups() {
+    SparseMatrix matrix = createMatrix(500, new Random(2));
+    int[][] groups = matrix.getColumnGroups();
+    assertTrue(groups.length < 50);
+    int[] rowPointers = matrix.getRowPointers();
+    int[] columns = matrix.getColumns();
+    int[] group = new int[matrix.getDimension()];
+    Arrays.fill(group, -1);
+    for (int g = 0; g < groups.length; g++) {
+      for (int j : groups[g]) {
+        assertEquals(-1, group[j]);
+        group[j] = g;
+      }
+    }
+    for (int i = 0; i < matrix.getDimension(); i++) {
+      boolean[] used = new boolean[groups.length];
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        assertFalse(used[group[columns[k]]]);
+        used[group[columns[k]]] = true;
+      }
+    }
+  }
+
+  /**
+   * Testing that the structure contains the diagonal and that entries outside of it are rejected.
+   */
+  @Test
+  public void testStructure() {
+    SparseMatrix matrix = new SparseMatrix(new int[][] {{2, 2}, {}, {0}});
+    assertEquals(5, matrix.getNonZeroCount());
+    assertEquals(0d, matrix.get(1, 0), 0d);
+    matrix.set(0, 2, 1d);
+    matrix.add(0, 2, 2d);
+    assertEquals(3d, matrix.get(0, 2), 0d);
+    try {
+      matrix.set(1, 0, 1d);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+}
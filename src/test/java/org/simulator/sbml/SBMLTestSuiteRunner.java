@@ -90,6 +90,7 @@ public class SBMLTestSuiteRunner {
     String[] classes = new String[]{
         org.simulator.math.odes.AdamsBashforthSolver.class.getName(),
         org.simulator.math.odes.AdamsMoultonSolver.class.getName(),
+        org.simulator.math.odes.BDFSolver.class.getName(),
         org.simulator.math.odes.DormandPrince54Solver.class.getName(),
         org.simulator.math.odes.DormandPrince853Solver.class.getName(),
         org.simulator.math.odes.EulerMethod.class.getName(),
@@ -8,9 +8,11 @@
 import org.junit.Before;
 import org.junit.Test;
 import org.sbml.jsbml.*;
+import org.sbml.jsbml.text.parser.ParseException;
 import org.sbml.jsbml.validator.ModelOverdeterminedException;
 import org.simulator.TestUtils;
 import org.simulator.math.odes.AbstractDESSolver;
+import org.simulator.math.odes.BDFSolver;
 import org.simulator.math.odes.MultiTable;
 import org.simulator.math.odes.RosenbrockSolver;
 
@@ -115,4 +117,357 @@ public void testSteadyStateSimulation() throws XMLStreamException,
     assertEquals(10.0, S2.getValue(0), 1E-6);
   }
 
+  /**
+   * Testing the symbolically derived Jacobian against central differences.
+   *
+   * @throws XMLStreamException
+   * @throws IOException
+   * @throws ModelOverdeterminedException
+   * @throws SBMLException
+   * @throws DerivativeException
+   */
+  @Test
+  public void testSymbolicJacobian() throws XMLStreamException,
+      IOException, ModelOverdeterminedException, SBMLException,
+      DerivativeException {
+
+    // read the model
+    String sbmlPath = TestUtils.getPathForTestResource("/sbml/BIOMD0000000012.xml");
+    SBMLDocument doc = JSBML.readSBML(sbmlPath);
+    assertNotNull(doc);
+    Model model = doc.getModel();
+    assertNotNull(model);
+
+    SBMLinterpreter interpreter = new SBMLinterpreter(model);
+    assertTrue(interpreter.hasJacobian());
+    int n = interpreter.getDimension();
+    double[] y = interpreter.getInitialValues().clone();
+    for (int i = 0; i < n; i++) {
+      y[i] += 1d + (0.1d * i);
+    }
+    double[][] jacobian = new double[n][n];
+    interpreter.computeJacobian(0d, y, jacobian, null);
+
+    double[] rate = new double[n];
+    double[] ratePlus = new double[n];
+    double[] rateMinus = new double[n];
+    interpreter.computeDerivatives(0d, y, rate);
+    for (int j = 0; j < n; j++) {
+      // only the species that change are derived
+      if (rate[j] == 0d) {
+        continue;
+      }
+      double h = 1E-6 * Math.max(1d, Math.abs(y[j]));
+      double[] yPlus = y.clone();
+      double[] yMinus = y.clone();
+      yPlus[j] += h;
+      yMinus[j] -= h;
+      interpreter.computeDerivatives(0d, yPlus, ratePlus);
+      interpreter.computeDerivatives(0d, yMinus, rateMinus);
+      for (int i = 0; i < n; i++) {
+        double difference = (ratePlus[i] - rateMinus[i]) / (2d * h);
+        assertEquals(difference, jacobian[i][j], 1E-5 * Math.max(1d, Math.abs(difference)));
+      }
+    }
+  }
+
+  /**
+   * Testing that rejected steps of the RosenbrockSolver reuse the Jacobian.
+   *
+   * @throws XMLStreamException
+   * @throws IOException
+   * @throws ModelOverdeterminedException
+   * @throws SBMLException
+   * @throws DerivativeException
+   */
+  @Test
+  public void testJacobianReuse() throws XMLStreamException,
+      IOException, ModelOverdeterminedException, SBMLException,
+      DerivativeException {
+
+    // read the model
+    String sbmlPath = TestUtils.getPathForTestResource("/sbml/BIOMD0000000012.xml");
+    SBMLDocument doc = JSBML.readSBML(sbmlPath);
+    assertNotNull(doc);
+    Model model = doc.getModel();
+    assertNotNull(model);
+
+    RosenbrockSolver solver = new RosenbrockSolver();
+    solver.setStepSize(1d);
+    solver.setIncludeIntermediates(false);
+    SBMLinterpreter interpreter = new SBMLinterpreter(model);
+    MultiTable solution = solver.solve(interpreter, interpreter.getInitialValues(), 0d, 100d);
+    assertEquals(101, solution.getRowCount());
+
+    // every evaluation of the Jacobian is followed by a decomposition, and rejected steps only
+    // decompose the iteration matrix again
+    assertTrue(solver.getJacobianEvaluations() > 0);
+    assertTrue(solver.getFactorizations() > solver.getJacobianEvaluations());
+
+    solver.resetCounters();
+    assertEquals(0, solver.getJacobianEvaluations());
+    assertEquals(0, solver.getFactorizations());
+  }
+
+  /**
+   * Testing time course simulation with the BDFSolver against a tightly controlled
+   * RosenbrockSolver.
+   *
+   * @throws XMLStreamException
+   * @throws IOException
+   * @throws ModelOverdeterminedException
+   * @throws SBMLException
+   * @throws DerivativeException
+   */
+  @Test
+  public void testBDFSolver() throws XMLStreamException,
+      IOException, ModelOverdeterminedException, SBMLException,
+      DerivativeException {
+
+    // read the model
+    String sbmlPath = TestUtils.getPathForTestResource("/sbml/BIOMD0000000012.xml");
+    SBMLDocument doc = JSBML.readSBML(sbmlPath);
+    assertNotNull(doc);
+    Model model = doc.getModel();
+    assertNotNull(model);
+
+    RosenbrockSolver reference = new RosenbrockSolver();
+    reference.setStepSize(1d);
+    reference.setAbsTol(1E-12);
+    reference.setRelTol(1E-10);
+    SBMLinterpreter interpreter = new SBMLinterpreter(model);
+    MultiTable expected = reference.solve(interpreter, interpreter.getInitialValues(), 0d, 100d);
+
+    BDFSolver solver = new BDFSolver();
+    solver.setStepSize(1d);
+    solver.setAbsTol(1E-10);
+    solver.setRelTol(1E-8);
+    interpreter = new SBMLinterpreter(model);
+    MultiTable solution = solver.solve(interpreter, interpreter.getInitialValues(), 0d, 100d);
+    assertEquals(101, solution.getRowCount());
+    assertEquals(expected.getColumnCount(), solution.getColumnCount());
+    for (int j = 1; j < expected.getColumnCount(); j++) {
+      for (int i = 0; i < expected.getRowCount(); i++) {
+        double value = expected.getValueAt(i, j);
+        assertEquals(value, solution.getValueAt(i, j), 1E-5 * Math.max(1d, Math.abs(value)));
+      }
+    }
+
+    // the Jacobian is kept over many steps
+    assertTrue(solver.getJacobianEvaluations() > 0);
+    assertTrue(solver.getFactorizations() >= solver.getJacobianEvaluations());
+    assertTrue(solver.getJacobianEvaluations() < solution.getRowCount());
+  }
+
+  /**
+   * Creates a chain of reactions in a compartment that grows by a rate rule, so that the
+   * concentrations of the species are diluted.
+   *
+   * @param n the number of species
+   * @return the model
+   * @throws ParseException
+   */
+  private static Model createGrowingCompartmentModel(int n) throws ParseException {
+    SBMLDocument doc = new SBMLDocument(3, 1);
+    Model model = doc.createModel("growth");
+    Compartment c = model.createCompartment("V");
+    c.setSize(1d);
+    c.setSpatialDimensions(3d);
+    c.setConstant(false);
+    Parameter g = model.createParameter("g");
+    g.setValue(0.05d);
+    g.setConstant(true);
+    RateRule growth = model.createRateRule();
+    growth.setVariable("V");
+    growth.setMath(ASTNode.parseFormula("g * V"));
+    for (int i = 0; i < n; i++) {
+      Species s = model.createSpecies("S" + i, c);
+      s.setInitialConcentration(i == 0 ? 1d : 0d);
+      s.setHasOnlySubstanceUnits(false);
+      s.setBoundaryCondition(false);
+      s.setConstant(false);
+    }
+    Reaction in = model.createReaction("in");
+    in.setReversible(false);
+    in.setFast(false);
+    SpeciesReference product = in.createProduct(model.getSpecies("S0"));
+    product.setStoichiometry(1d);
+    product.setConstant(true);
+    in.createKineticLaw().setMath(ASTNode.parseFormula("V"));
+    for (int i = 0; i + 1 < n; i++) {
+      Reaction r = model.createReaction("R" + i);
+      r.setReversible(false);
+      r.setFast(false);
+      SpeciesReference reactant = r.createReactant(model.getSpecies("S" + i));
+      reactant.setStoichiometry(1d);
+      reactant.setConstant(true);
+      product = r.createProduct(model.getSpecies("S" + (i + 1)));
+      product.setStoichiometry(1d);
+      product.setConstant(true);
+      r.createKineticLaw().setMath(ASTNode.parseFormula((1d + i) + " * S" + i + " * V"));
+    }
+    return model;
+  }
+
+  /**
+   * Testing that the structure of the Jacobian contains all entries that are not zero, also if
+   * the species are diluted by a growing compartment, and that no structure is determined for
+   * math with rateOf.
+   *
+   * @throws XMLStreamException
+   * @throws IOException
+   * @throws ModelOverdeterminedException
+   * @throws SBMLException
+   * @throws DerivativeException
+   * @throws ParseException
+   */
+  @Test
+  public void testJacobianStructure() throws XMLStreamException,
+      IOException, ModelOverdeterminedException, SBMLException,
+      DerivativeException, ParseException {
+
+    String sbmlPath = TestUtils.getPathForTestResource("/sbml/BIOMD0000000012.xml");
+    Model[] models = {JSBML.readSBML(sbmlPath).getModel(), createGrowingCompartmentModel(5)};
+    for (Model model : models) {
+      SBMLinterpreter interpreter = new SBMLinterpreter(model);
+      org.simulator.math.SparseMatrix structure = interpreter.getJacobianStructure();
+      assertNotNull(structure);
+      int n = interpreter.getDimension();
+      double[] y = interpreter.getInitialValues().clone();
+      for (int i = 0; i < n; i++) {
+        y[i] += 1d + (0.1d * i);
+      }
+      double[] ratePlus = new double[n];
+      double[] rateMinus = new double[n];
+      for (int j = 0; j < n; j++) {
+        double h = 1E-6 * Math.max(1d, Math.abs(y[j]));
+        double[] yPlus = y.clone();
+        double[] yMinus = y.clone();
+        yPlus[j] += h;
+        yMinus[j] -= h;
+        interpreter.computeDerivatives(0d, yPlus, ratePlus);
+        interpreter.computeDerivatives(0d, yMinus, rateMinus);
+        for (int i = 0; i < n; i++) {
+          double difference = (ratePlus[i] - rateMinus[i]) / (2d * h);
+          if (Math.abs(difference) > 1E-8) {
+            assertTrue(structure.indexOf(i, j) >= 0);
+          }
+        }
+      }
+    }
+
+    // the rate of change of S1 depends on the one of S0
+    Model model = createGrowingCompartmentModel(3);
+    ASTNode rateOf = new ASTNode(ASTNode.Type.FUNCTION_RATE_OF);
+    rateOf.addChild(new ASTNode(model.getSpecies("S0")));
+    model.getReaction("R1").getKineticLaw().setMath(ASTNode.times(rateOf, new ASTNode(2)));
+    SBMLinterpreter interpreter = new SBMLinterpreter(model);
+    assertNull(interpreter.getJacobianStructure());
+    assertFalse(interpreter.hasJacobian());
+  }
+
+  /**
+   * Testing that the solvers approximate the Jacobian by finite differences consistently with
+   * dense and sparse matrices if the species are diluted by a growing compartment.
+   *
+   * @throws DerivativeException
+   * @throws ModelOverdeterminedException
+   * @throws ParseException
+   */
+  @Test
+  public void testFiniteDifferenceJacobian() throws DerivativeException,
+      ModelOverdeterminedException, ParseException {
+
+    Model model = createGrowingCompartmentModel(25);
+    RosenbrockSolver reference = new RosenbrockSolver();
+    reference.setStepSize(1d);
+    reference.setAbsTol(1E-12);
+    reference.setRelTol(1E-10);
+    reference.setSparseThreshold(Integer.MAX_VALUE);
+    SBMLinterpreter interpreter = new SBMLinterpreter(model);
+    assertFalse(interpreter.hasJacobian());
+    assertNotNull(interpreter.getJacobianStructure());
+    MultiTable expected = reference.solve(interpreter, interpreter.getInitialValues(), 0d, 20d);
+
+    for (int threshold : new int[] {1, Integer.MAX_VALUE}) {
+      RosenbrockSolver rosenbrock = new RosenbrockSolver();
+      rosenbrock.setAbsTol(1E-10);
+      rosenbrock.setRelTol(1E-8);
+      rosenbrock.setSparseThreshold(threshold);
+      BDFSolver bdf = new BDFSolver();
+      bdf.setAbsTol(1E-10);
+      bdf.setRelTol(1E-8);
+      bdf.setSparseThreshold(threshold);
+      AbstractDESSolver[] solvers = {rosenbrock, bdf};
+      for (AbstractDESSolver solver : solvers) {
+        solver.setStepSize(1d);
+        interpreter = new SBMLinterpreter(model);
+        MultiTable solution = solver.solve(interpreter, interpreter.getInitialValues(), 0d, 20d);
+        assertEquals(expected.getColumnCount(), solution.getColumnCount());
+        for (int j = 1; j < expected.getColumnCount(); j++) {
+          for (int i = 0; i < expected.getRowCount(); i++) {
+            double value = expected.getValueAt(i, j);
+            assertEquals(value, solution.getValueAt(i, j), 1E-5 * Math.max(1d, Math.abs(value)));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Testing the BDF solver with sparse matrices on a model whose compartment grows by a rate rule,
+   * and that errors of the rate of change are not taken for failures of the Newton iteration.
+   *
+   * @throws DerivativeException
+   * @throws ModelOverdeterminedException
+   * @throws ParseException
+   */
+  @Test
+  public void testBDFSolverSparse() throws DerivativeException,
+      ModelOverdeterminedException, ParseException {
+
+    Model model = createGrowingCompartmentModel(40);
+    RosenbrockSolver reference = new RosenbrockSolver();
+    reference.setStepSize(1d);
+    reference.setAbsTol(1E-12);
+    reference.setRelTol(1E-10);
+    reference.setSparseThreshold(Integer.MAX_VALUE);
+    SBMLinterpreter interpreter = new SBMLinterpreter(model);
+    MultiTable expected = reference.solve(interpreter, interpreter.getInitialValues(), 0d, 30d);
+
+    BDFSolver solver = new BDFSolver();
+    solver.setStepSize(1d);
+    solver.setAbsTol(1E-10);
+    solver.setRelTol(1E-8);
+    interpreter = new SBMLinterpreter(model);
+    assertTrue(interpreter.getDimension() >= solver.getSparseThreshold());
+    MultiTable solution = solver.solve(interpreter, interpreter.getInitialValues(), 0d, 30d);
+    assertEquals(expected.getColumnCount(), solution.getColumnCount());
+    for (int j = 1; j < expected.getColumnCount(); j++) {
+      for (int i = 0; i < expected.getRowCount(); i++) {
+        double value = expected.getValueAt(i, j);
+        assertEquals(value, solution.getValueAt(i, j), 1E-5 * Math.max(1d, Math.abs(value)));
+      }
+    }
+    assertTrue(solver.getJacobianEvaluations() < solution.getRowCount());
+
+    final DerivativeException error = new DerivativeException("test");
+    interpreter = new SBMLinterpreter(model) {
+      @Override
+      public void computeDerivatives(double time, double[] Y, double[] changeRate)
+          throws DerivativeException {
+        if (time > 10d) {
+          throw error;
+        }
+        super.computeDerivatives(time, Y, changeRate);
+      }
+    };
+    try {
+      new BDFSolver().solve(interpreter, interpreter.getInitialValues(), 0d, 30d);
+      fail();
+    } catch (DerivativeException exc) {
+      assertSame(error, exc);
+    }
+  }
+
 }
@@ -0,0 +1,213 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import fern.network.Network;
+import fern.simulation.Simulator;
+import fern.simulation.Simulator.FireType;
+import fern.simulation.algorithm.CompositionRejection;
+import fern.simulation.algorithm.GibsonBruckSimulator;
+import fern.simulation.algorithm.GillespieEnhanced;
+import fern.simulation.algorithm.HybridMaximalTimeStep;
+import fern.simulation.algorithm.HybridODESimulator;
+import fern.simulation.algorithm.LogarithmicDirectMethod;
+import fern.simulation.algorithm.PartialPropensityDirectMethod;
+import fern.simulation.algorithm.RejectionBasedSimulator;
+import fern.simulation.algorithm.SortingDirectMethod;
+import fern.simulation.controller.DefaultController;
+import fern.simulation.observer.Observer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.simulator.stochastic.StochasticSimulatorTest.SimulatorCreator;
+
+/**
+ * Tests of the checkpoints of the stochastic simulators: a simulation that is saved and resumed by
+ * a new simulator has to yield exactly the same firings as an uninterrupted simulation with the
+ * same seed.
+ */
+public class CheckpointTest {
+
+  private static final long SEED = 1595487468503L;
+  private static final long REPLICATE = 3;
+  private static final double CHECKPOINT_TIME = 5d;
+  private static final double TIME = 10d;
+
+  /**
+   * Records every firing as a triple of reaction, time and number of firings.
+   */
+  static class RecordingObserver extends Observer {
+
+    private final List<double[]> firings = new ArrayList<>();
+
+    RecordingObserver(Simulator sim) {
+      super(sim);
+    }
+
+    @Override
+    public void started() {
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void theta(double theta) {
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+      firings.add(new double[]{mu, tau, times});
+    }
+
+    List<double[]> getFirings() {
+      return firings;
+    }
+  }
+
+  /**
+   * Simulates the dimerization network until {@link #TIME}.
+   *
+   * @return the firings and, as last element, the final amounts
+   */
+  private static List<double[]> simulate(SimulatorCreator creator) {
+    Simulator sim = creator.create(MassActionNetwork.dimerization());
+    RecordingObserver obs = new RecordingObserver(sim);
+    sim.addObserver(obs);
+    sim.setStochasticSeed(SEED, REPLICATE);
+    sim.start(TIME);
+    obs.firings.add(getAmounts(sim));
+    return obs.firings;
+  }
+
+  /**
+   * Simulates the dimerization network until {@link #CHECKPOINT_TIME}, saves a checkpoint and
+   * resumes it by a new simulator until {@link #TIME}.
+   *
+   * @return the firings and, as last element, the final amounts
+   */
+  private static List<double[]> simulateWithCheckpoint(SimulatorCreator creator)
+      throws IOException {
+    Simulator sim = creator.create(MassActionNetwork.dimerization());
+    RecordingObserver obs = new RecordingObserver(sim);
+    sim.addObserver(obs);
+    sim.setStochasticSeed(SEED, REPLICATE);
+    sim.preRun();
+    sim.run(new DefaultController(CHECKPOINT_TIME));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sim.saveCheckpoint(out);
+
+    Simulator resumed = creator.create(MassActionNetwork.dimerization());
+    RecordingObserver resumedObs = new RecordingObserver(resumed);
+    resumed.addObserver(resumedObs);
+    resumed.loadCheckpoint(new ByteArrayInputStream(out.toByteArray()));
+    resumed.resume(new DefaultController(TIME));
+
+    List<double[]> re = new ArrayList<>(obs.firings);
+    re.addAll(resumedObs.firings);
+    re.add(getAmounts(resumed));
+    return re;
+  }
+
+  private static double[] getAmounts(Simulator sim) {
+    double[] re = new double[sim.getNet().getNumSpecies() + 1];
+    for (int i = 0; i < re.length - 1; i++) {
+      re[i] = sim.getAmount(i);
+    }
+    re[re.length - 1] = sim.getTime();
+    return re;
+  }
+
+  /**
+   * Asserts that a resumed simulation is identical to the uninterrupted one.
+   */
+  private static void assertResumedIdentical(SimulatorCreator creator) throws IOException {
+    List<double[]> expected = simulate(creator);
+    List<double[]> actual = simulateWithCheckpoint(creator);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals("firing " + i, expected.get(i), actual.get(i), 0d);
+    }
+  }
+
+  /**
+   * Testing the checkpoints of the exact simulators.
+   */
+  @Test
+  public void testExactSimulators() throws IOException {
+    assertResumedIdentical(GillespieEnhanced::new);
+    assertResumedIdentical(GibsonBruckSimulator::new);
+    assertResumedIdentical(LogarithmicDirectMethod::new);
+    assertResumedIdentical(SortingDirectMethod::new);
+    assertResumedIdentical(CompositionRejection::new);
+    assertResumedIdentical(PartialPropensityDirectMethod::new);
+    assertResumedIdentical(RejectionBasedSimulator::new);
+  }
+
+  /**
+   * Testing the checkpoints of the hybrid simulators.
+   */
+  @Test
+  public void testHybridSimulators() throws IOException {
+    assertResumedIdentical(HybridMaximalTimeStep::new);
+    assertResumedIdentical(HybridODESimulator::new);
+  }
+
+  /**
+   * Simulator writing an object of a class that must not be deserialized from a checkpoint.
+   */
+  static class ForeignObjectSimulator extends GillespieEnhanced {
+
+    ForeignObjectSimulator(Network net) {
+      super(net);
+    }
+
+    @Override
+    protected void writeState(ObjectOutput out) throws IOException {
+      super.writeState(out);
+      out.writeObject(new File("checkpoint"));
+    }
+
+    @Override
+    protected void readState(ObjectInput in) throws IOException, ClassNotFoundException {
+      super.readState(in);
+      in.readObject();
+    }
+  }
+
+  /**
+   * Testing that a checkpoint containing an object of another class is rejected.
+   */
+  @Test
+  public void testForeignClassRejected() throws IOException {
+    Simulator sim = new ForeignObjectSimulator(MassActionNetwork.dimerization());
+    sim.setStochasticSeed(SEED, REPLICATE);
+    sim.preRun();
+    sim.run(new DefaultController(CHECKPOINT_TIME));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sim.saveCheckpoint(out);
+
+    Simulator resumed = new ForeignObjectSimulator(MassActionNetwork.dimerization());
+    try {
+      resumed.loadCheckpoint(new ByteArrayInputStream(out.toByteArray()));
+      fail("The checkpoint contains a java.io.File!");
+    } catch (InvalidClassException e) {
+      assertEquals(File.class.getName(), e.classname);
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import fern.network.AmountManager;
+import fern.network.sbml.SBMLNetwork;
+import fern.network.sbml.SBMLPropensityCalculator;
+import fern.simulation.Simulator;
+import fern.simulation.algorithm.GillespieEnhanced;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.simulator.TestUtils;
+
+/**
+ * Tests that the compiled kinetic laws of an {@link SBMLNetwork} yield the same propensities as
+ * the interpreted ones.
+ */
+public class CompiledKineticLawTest {
+
+  private static final int NUM_REACTIONS = 5;
+
+  private static final long[][] AMOUNTS = {{100, 50, 0}, {7, 300, 12}, {1, 1, 40}};
+
+  /**
+   * @return the model whose kinetic laws use all functions that can be compiled
+   */
+  private static File getModelFile() {
+    return new File(TestUtils.getPathForTestResource("/sbml/compiled-kinetic-laws.xml"));
+  }
+
+  /**
+   * Testing that compiled and interpreted kinetic laws give the same propensities.
+   */
+  @Test
+  public void testCompiledAgainstInterpreted() throws Exception {
+    File file = getModelFile();
+    SBMLNetwork compiledNet = new SBMLNetwork(file, true);
+    SBMLNetwork interpretedNet = new SBMLNetwork(file, true, false);
+    SBMLPropensityCalculator compiled =
+        (SBMLPropensityCalculator) compiledNet.getPropensityCalculator();
+    SBMLPropensityCalculator interpreted =
+        (SBMLPropensityCalculator) interpretedNet.getPropensityCalculator();
+    Simulator compiledSim = new GillespieEnhanced(compiledNet);
+    Simulator interpretedSim = new GillespieEnhanced(interpretedNet);
+    for (int j = 0; j < NUM_REACTIONS; j++) {
+      assertTrue(compiled.isCompiled(j));
+      assertFalse(interpreted.isCompiled(j));
+    }
+
+    for (long[] amounts : AMOUNTS) {
+      for (int s = 0; s < amounts.length; s++) {
+        compiledNet.getAmountManager().setAmount(s, amounts[s]);
+        interpretedNet.getAmountManager().setAmount(s, amounts[s]);
+      }
+      for (int j = 0; j < NUM_REACTIONS; j++) {
+        double expected = interpreted.calculatePropensity(j, interpretedNet.getAmountManager(),
+            interpretedSim);
+        double actual = compiled.calculatePropensity(j, compiledNet.getAmountManager(),
+            compiledSim);
+        assertEquals("R" + j, expected, actual, 1E-12 * Math.max(1d, expected));
+      }
+    }
+  }
+
+  /**
+   * Testing that compiled kinetic laws can be evaluated by several threads at once.
+   */
+  @Test
+  public void testConcurrentEvaluation() throws Exception {
+    SBMLNetwork net = new SBMLNetwork(getModelFile(), true);
+    SBMLPropensityCalculator calculator = (SBMLPropensityCalculator) net.getPropensityCalculator();
+    Simulator sim = new GillespieEnhanced(net);
+    AmountManager amount = net.getAmountManager();
+    double[] expected = new double[NUM_REACTIONS];
+    for (int j = 0; j < expected.length; j++) {
+      expected[j] = calculator.calculatePropensity(j, amount, sim);
+    }
+
+    AtomicInteger errors = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int k = 0; k < 200000; k++) {
+          int j = k % expected.length;
+          if (calculator.calculatePropensity(j, amount, sim) != expected[j]) {
+            errors.incrementAndGet();
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, errors.get());
+  }
+
+}
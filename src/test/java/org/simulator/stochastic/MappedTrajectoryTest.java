@@ -0,0 +1,113 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import fern.simulation.Simulator;
+import fern.simulation.algorithm.GillespieEnhanced;
+import fern.simulation.observer.AmountIntervalObserver;
+import fern.simulation.observer.MappedTrajectoryReader;
+import fern.simulation.observer.MappedTrajectoryWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of the trajectories recorded to memory-mapped files: they have to contain exactly the
+ * values that are recorded in the heap.
+ */
+public class MappedTrajectoryTest {
+
+  private static final long SEED = 1595487468503L;
+  private static final double TIME = 5d;
+
+  /**
+   * More samples than {@link MappedTrajectoryWriter#DEFAULT_BLOCK_SIZE}, so the recordings span
+   * several blocks.
+   */
+  private static final double INTERVAL = 1E-3;
+
+  private static File createTempFile() throws IOException {
+    File file = File.createTempFile("trajectory", ".bin");
+    file.deleteOnExit();
+    return file;
+  }
+
+  /**
+   * Testing that the interval observer records the same trajectory to a file as to the heap, with
+   * and without the theta method and for consecutive runs overwriting the file.
+   */
+  @Test
+  public void testRecordingSameAsHeap() throws IOException {
+    File file = createTempFile();
+    for (boolean thetaMethod : new boolean[]{true, false}) {
+      Simulator heapSim = new GillespieEnhanced(MassActionNetwork.dimerization());
+      AmountIntervalObserver heap = new AmountIntervalObserver(heapSim, INTERVAL, "A", "B", "D");
+      heap.setThetaMethod(thetaMethod);
+      heapSim.addObserver(heap);
+      Simulator fileSim = new GillespieEnhanced(MassActionNetwork.dimerization());
+      AmountIntervalObserver recorded =
+          new AmountIntervalObserver(fileSim, INTERVAL, "A", "B", "D");
+      recorded.setThetaMethod(thetaMethod);
+      recorded.setRecordingFile(file);
+      fileSim.addObserver(recorded);
+
+      for (int r = 0; r < 2; r++) {
+        heapSim.setStochasticSeed(SEED, r);
+        heapSim.start(TIME);
+        fileSim.setStochasticSeed(SEED, r);
+        fileSim.start(TIME);
+
+        double[][] expected = heap.getRecentData();
+        double[][] actual = recorded.getRecentData();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+          assertArrayEquals("sample " + i, expected[i], actual[i], 0d);
+        }
+        try (MappedTrajectoryReader reader = recorded.openRecording()) {
+          assertEquals(expected.length, reader.getNumSamples());
+          assertEquals(expected[0].length, reader.getNumColumns());
+          int last = expected.length - 1;
+          for (int c = 0; c < expected[last].length; c++) {
+            assertEquals(expected[last][c], reader.get(last, c), 0d);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Testing the random access to the samples of a file with small blocks, including an incomplete
+   * last block.
+   */
+  @Test
+  public void testRandomAccess() throws IOException {
+    File file = createTempFile();
+    Random random = new Random(SEED);
+    double[][] samples = new double[11][4];
+    try (MappedTrajectoryWriter writer = new MappedTrajectoryWriter(file, 4, 3)) {
+      for (double[] sample : samples) {
+        for (int c = 0; c < sample.length; c++) {
+          sample[c] = random.nextGaussian();
+        }
+        writer.append(sample);
+      }
+      assertEquals(samples.length, writer.getNumSamples());
+    }
+
+    try (MappedTrajectoryReader reader = new MappedTrajectoryReader(file)) {
+      assertEquals(samples.length, reader.getNumSamples());
+      assertEquals(4, reader.getNumColumns());
+      for (int k = 0; k < 100; k++) {
+        int i = random.nextInt(samples.length);
+        int c = random.nextInt(4);
+        assertEquals(samples[i][c], reader.get(i, c), 0d);
+      }
+      for (int i = 0; i < samples.length; i++) {
+        assertArrayEquals(samples[i], reader.getSample(i, new double[4]), 0d);
+      }
+    }
+  }
+
+}
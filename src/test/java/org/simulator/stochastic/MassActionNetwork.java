@@ -0,0 +1,140 @@
+package org.simulator.stochastic;
+
+import java.util.HashMap;
+
+import fern.network.AbstractNetworkImpl;
+import fern.network.AnnotationManagerImpl;
+import fern.network.ArrayKineticConstantPropensityCalculator;
+import fern.network.DefaultAmountManager;
+
+/**
+ * Small mass action network for the tests of the stochastic simulators. Reactions are given as
+ * strings like {@code "A+B->C"}, {@code "A->"} or {@code "->A"}.
+ */
+public class MassActionNetwork extends AbstractNetworkImpl {
+
+  private final String[] reactions;
+  private final double[] constants;
+  private final long[] initialAmount;
+
+  /**
+   * Creates the network.
+   *
+   * @param species       the names of the species
+   * @param initialAmount the initial amounts of the species
+   * @param reactions     the reactions
+   * @param constants     the kinetic constants of the reactions
+   */
+  public MassActionNetwork(String[] species, long[] initialAmount, String[] reactions,
+      double[] constants) {
+    super("test");
+    this.reactions = reactions;
+    this.constants = constants;
+    this.initialAmount = initialAmount.clone();
+    speciesIdToIndex = new HashMap<>();
+    indexToSpeciesId = species;
+    for (int i = 0; i < species.length; i++) {
+      speciesIdToIndex.put(species[i], i);
+    }
+    createAnnotationManager();
+    createAdjacencyLists();
+    createPropensityCalculator();
+    createAmountManager();
+  }
+
+  /**
+   * Creates the birth-death network {@code ->X} with rate {@code birth} and {@code X->} with rate
+   * {@code death}.
+   *
+   * @param birth the rate of the birth reaction
+   * @param death the rate constant of the death reaction
+   * @param x0    the initial amount of X
+   * @return the network
+   */
+  public static MassActionNetwork birthDeath(double birth, double death, long x0) {
+    return new MassActionNetwork(new String[]{"X"}, new long[]{x0}, new String[]{"->X", "X->"},
+        new double[]{birth, death});
+  }
+
+  /**
+   * Creates a network with a dimerization, a reversible binding and a degradation, which covers
+   * reactions of all orders up to two.
+   *
+   * @return the network
+   */
+  public static MassActionNetwork dimerization() {
+    return new MassActionNetwork(new String[]{"A", "B", "C", "D"}, new long[]{60, 40, 0, 0},
+        new String[]{"->A", "A+A->D", "D->A+A", "A+B->C", "C->A+B", "C->", "B->"},
+        new double[]{5, 0.002, 0.1, 0.005, 0.2, 0.05, 0.01});
+  }
+
+  /**
+   * Marks species as boundary species, whose amounts are not changed by the reactions.
+   *
+   * @param species the names of the species
+   * @return this network
+   */
+  public MassActionNetwork setBoundarySpecies(String... species) {
+    for (String name : species) {
+      annotationManager.setSpeciesAnnotation(getSpeciesByName(name), "BoundaryCondition", "true");
+    }
+    // the amount manager reads the annotation when it is created
+    createAmountManager();
+    return this;
+  }
+
+  @Override
+  protected void createAnnotationManager() {
+    annotationManager = new AnnotationManagerImpl();
+  }
+
+  @Override
+  protected void createSpeciesMapping() {
+    // created in the constructor, since the species are passed to it
+  }
+
+  @Override
+  protected void createAdjacencyLists() {
+    adjListRea = new int[reactions.length][];
+    adjListPro = new int[reactions.length][];
+    for (int r = 0; r < reactions.length; r++) {
+      String[] sides = reactions[r].split("->", -1);
+      adjListRea[r] = parse(sides[0]);
+      adjListPro[r] = parse(sides[1]);
+    }
+  }
+
+  private int[] parse(String side) {
+    if (side.trim().isEmpty()) {
+      return new int[0];
+    }
+    String[] names = side.split("\\+");
+    int[] re = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      re[i] = speciesIdToIndex.get(names[i].trim());
+    }
+    return re;
+  }
+
+  @Override
+  protected void createAmountManager() {
+    amountManager = new DefaultAmountManager(this);
+  }
+
+  @Override
+  protected void createPropensityCalculator() {
+    propensitiyCalculator = new ArrayKineticConstantPropensityCalculator(adjListRea,
+        constants.clone());
+  }
+
+  @Override
+  public long getInitialAmount(int species) {
+    return initialAmount[species];
+  }
+
+  @Override
+  public void setInitialAmount(int species, long value) {
+    initialAmount[species] = value;
+  }
+
+}
@@ -0,0 +1,85 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import fern.network.DefaultAmountManager;
+import fern.network.PropensityCalculator;
+import fern.network.sbml.SBMLAmountManager;
+import fern.network.sbml.SBMLNetwork;
+import fern.simulation.Simulator;
+import fern.simulation.algorithm.GillespieEnhanced;
+import java.io.File;
+import org.junit.Test;
+import org.simulator.TestUtils;
+
+/**
+ * Tests of the simulation of {@link SBMLNetwork}s, whose kinetic laws are evaluated by the {@link
+ * org.simulator.sbml.SBMLinterpreter} with incrementally synchronized species amounts.
+ */
+public class SBMLNetworkTest {
+
+  /**
+   * @return the SBML version of {@link MassActionNetwork#dimerization()}
+   */
+  private static File getModelFile() {
+    return new File(TestUtils.getPathForTestResource("/sbml/dimerization.xml"));
+  }
+
+  /**
+   * Testing that the SBML network with interpreted and with compiled kinetic laws yields the same
+   * distribution as the mass action network.
+   */
+  @Test
+  public void testSameAsMassAction() throws Exception {
+    long[][] expected = StochasticSimulatorTest.sample(
+        new GillespieEnhanced(MassActionNetwork.dimerization()), 400, 5d);
+    for (boolean compile : new boolean[]{false, true}) {
+      SBMLNetwork net = new SBMLNetwork(getModelFile(), true, compile);
+      long[][] actual = StochasticSimulatorTest.sample(new GillespieEnhanced(net), 400, 5d);
+      StochasticSimulatorTest.assertSameDistribution(expected, actual);
+    }
+  }
+
+  /**
+   * Testing that the interpreter is synchronized with the amount manager of the network during a
+   * simulation, and that the propensities stay correct if another amount manager is evaluated in
+   * between.
+   */
+  @Test
+  public void testSynchronizedAmounts() throws Exception {
+    SBMLNetwork net = new SBMLNetwork(getModelFile(), true, false);
+    Simulator sim = new GillespieEnhanced(net);
+    sim.setStochasticSeed(1595487468503L);
+    sim.start(5d);
+    SBMLAmountManager amount = (SBMLAmountManager) net.getAmountManager();
+    PropensityCalculator calculator = net.getPropensityCalculator();
+    assertTrue(amount.isSynchronized());
+
+    DefaultAmountManager other = new DefaultAmountManager(net);
+    for (int s = 0; s < net.getNumSpecies(); s++) {
+      other.setAmount(s, 3 + s);
+    }
+    PropensityCalculator mass = MassActionNetwork.dimerization().getPropensityCalculator();
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      assertEquals(mass.calculatePropensity(j, other, sim),
+          calculator.calculatePropensity(j, other, sim), 1E-10);
+    }
+    assertFalse(amount.isSynchronized());
+
+    amount.performReaction(0, 1);
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      assertEquals(mass.calculatePropensity(j, amount, sim),
+          calculator.calculatePropensity(j, amount, sim), 1E-10);
+    }
+    assertTrue(amount.isSynchronized());
+    amount.performReaction(3, 1);
+    amount.setAmount(3, 17);
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      assertEquals(mass.calculatePropensity(j, amount, sim),
+          calculator.calculatePropensity(j, amount, sim), 1E-10);
+    }
+  }
+
+}
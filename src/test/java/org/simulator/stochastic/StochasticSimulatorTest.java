@@ -0,0 +1,963 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import fern.network.ArrayKineticConstantPropensityCalculator;
+import fern.network.Network;
+import fern.network.PropensityCalculator;
+import fern.simulation.EnsembleStatistics;
+import fern.simulation.LockStepEnsemble;
+import fern.simulation.SimulationEnsemble;
+import fern.simulation.Simulator;
+import fern.simulation.Simulator.FireType;
+import fern.simulation.algorithm.AbstractBaseTauLeaping;
+import fern.simulation.algorithm.CompositionRejection;
+import fern.simulation.algorithm.DependencyGraph;
+import fern.simulation.algorithm.GibsonBruckSimulator;
+import fern.simulation.algorithm.GillespieEnhanced;
+import fern.simulation.algorithm.GillespieSimple;
+import fern.simulation.algorithm.GroupContainer;
+import fern.simulation.algorithm.HybridODESimulator;
+import fern.simulation.algorithm.IndexedPriorityQueue;
+import fern.simulation.algorithm.LogarithmicDirectMethod;
+import fern.simulation.algorithm.PartialPropensityDirectMethod;
+import fern.simulation.algorithm.PropensityTree;
+import fern.simulation.algorithm.RejectionBasedSimulator;
+import fern.simulation.algorithm.SortingDirectMethod;
+import fern.simulation.algorithm.TauLeapingAbsoluteBoundSimulator;
+import fern.simulation.algorithm.TauLeapingRelativeBoundSimulator;
+import fern.simulation.algorithm.TauLeapingSpeciesPopulationBoundSimulator;
+import fern.simulation.controller.DefaultController;
+import fern.simulation.controller.SimulationController;
+import fern.simulation.observer.AmountAtMomentObserver;
+import fern.simulation.observer.AmountIntervalObserver;
+import fern.simulation.observer.Observer;
+import fern.tools.Stochastics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import org.junit.Test;
+import org.simulator.stochastic.CheckpointTest.RecordingObserver;
+
+/**
+ * Tests of the stochastic simulators. The exact methods are compared with {@link
+ * GillespieEnhanced}: the means and variances of the amounts at a given time have to agree for a
+ * fixed set of seeds.
+ */
+public class StochasticSimulatorTest {
+
+  private static final long SEED = 1595487468503L;
+  private static final int REPLICATES = 400;
+  private static final double TIME = 5d;
+
+  /**
+   * The maximal distance of two means in standard errors.
+   */
+  private static final double MEAN_CUTOFF = 4d;
+
+  /**
+   * The maximal relative difference of two variances.
+   */
+  private static final double VARIANCE_CUTOFF = 0.3d;
+
+  /**
+   * The maximal relative bias of the means and variances of the approximate tau-leaping methods.
+   */
+  private static final double TAU_LEAPING_BIAS = 0.05d;
+
+  /**
+   * Creates a simulator for the given network.
+   */
+  interface SimulatorCreator {
+
+    Simulator create(Network net);
+  }
+
+  /**
+   * Records the amounts of all species at a given moment and stops the simulation.
+   */
+  static class MomentObserver extends Observer implements SimulationController {
+
+    private final double moment;
+    private long[] amounts;
+
+    MomentObserver(Simulator sim, double moment) {
+      super(sim);
+      this.moment = moment;
+    }
+
+    @Override
+    public boolean goOn(Simulator sim) {
+      return amounts == null;
+    }
+
+    @Override
+    public void started() {
+      amounts = null;
+      setTheta(moment);
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void theta(double theta) {
+      amounts = new long[getSimulator().getNet().getNumSpecies()];
+      for (int i = 0; i < amounts.length; i++) {
+        amounts[i] = (long) getSimulator().getAmount(i);
+      }
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+    }
+
+    long[] getAmounts() {
+      return amounts;
+    }
+  }
+
+  /**
+   * Simulates the replicates and returns the amounts of each species at the given time.
+   *
+   * @param sim        the simulator
+   * @param replicates the number of replicates
+   * @param time       the time
+   * @return the amounts indexed by species and replicate
+   */
+  static long[][] sample(Simulator sim, int replicates, double time) {
+    MomentObserver obs = new MomentObserver(sim, time);
+    sim.addObserver(obs);
+    long[][] re = new long[sim.getNet().getNumSpecies()][replicates];
+    for (int r = 0; r < replicates; r++) {
+      sim.setStochasticSeed(SEED, r);
+      sim.start(obs);
+      for (int s = 0; s < re.length; s++) {
+        re[s][r] = obs.getAmounts()[s];
+      }
+    }
+    return re;
+  }
+
+  static double mean(long[] x) {
+    double sum = 0;
+    for (long v : x) {
+      sum += v;
+    }
+    return sum / x.length;
+  }
+
+  static double variance(long[] x) {
+    double m = mean(x);
+    double sum = 0;
+    for (long v : x) {
+      sum += (v - m) * (v - m);
+    }
+    return sum / (x.length - 1);
+  }
+
+  /**
+   * Asserts that the amounts of two samples have the same means and variances.
+   */
+  static void assertSameDistribution(long[][] expected, long[][] actual) {
+    for (int s = 0; s < expected.length; s++) {
+      double v1 = variance(expected[s]);
+      double v2 = variance(actual[s]);
+      double se = Math.sqrt((v1 + v2) / expected[s].length);
+      assertEquals("mean of species " + s, mean(expected[s]), mean(actual[s]),
+          MEAN_CUTOFF * Math.max(se, 1E-10));
+      assertEquals("variance of species " + s, v1, v2, VARIANCE_CUTOFF * Math.max(v1, 1d));
+    }
+  }
+
+  /**
+   * Asserts that the given simulator yields the same distribution as {@link GillespieEnhanced} on
+   * a small network with reactions of all orders up to two.
+   */
+  static void assertSameAsGillespie(SimulatorCreator creator) {
+    long[][] expected = sample(new GillespieEnhanced(MassActionNetwork.dimerization()), REPLICATES,
+        TIME);
+    long[][] actual = sample(creator.create(MassActionNetwork.dimerization()), REPLICATES, TIME);
+    assertSameDistribution(expected, actual);
+  }
+
+  /**
+   * Testing the rejection-based SSA against the direct method.
+   */
+  @Test
+  public void testRejectionBased() {
+    assertSameAsGillespie(RejectionBasedSimulator::new);
+  }
+
+  /**
+   * Testing that the rejection-based SSA terminates if the upper bounds are positive but all
+   * propensities are zero.
+   */
+  @Test(timeout = 10000)
+  public void testRejectionBasedWithoutPropensity() {
+    Network net = new MassActionNetwork(new String[]{"A", "B"}, new long[]{1, 0},
+        new String[]{"A+A->B", "B->A"}, new double[]{1, 1});
+    RejectionBasedSimulator sim = new RejectionBasedSimulator(net);
+    sim.setDelta(1d);
+    sim.start(10d);
+    assertEquals(1, (long) sim.getAmount(0));
+    assertEquals(0, (long) sim.getAmount(1));
+  }
+
+  /**
+   * Testing that the rejection-based SSA recalculates its bounds if an amount is set from outside.
+   */
+  @Test(timeout = 10000)
+  public void testRejectionBasedSetAmount() {
+    Network net = new MassActionNetwork(new String[]{"X"}, new long[]{0}, new String[]{"X->"},
+        new double[]{1});
+    RejectionBasedSimulator sim = new RejectionBasedSimulator(net);
+    sim.setStochasticSeed(SEED);
+    DefaultController control = new DefaultController(10d);
+    sim.preRun();
+    sim.setAmount(0, 100);
+    sim.run(control);
+    sim.postRun();
+    assertTrue(sim.getAmount(0) < 100);
+  }
+
+  /**
+   * Testing the partial-propensity direct method against the direct method.
+   */
+  @Test
+  public void testPartialPropensity() {
+    assertSameAsGillespie(PartialPropensityDirectMethod::new);
+  }
+
+  /**
+   * Testing that the partial-propensity direct method recalculates its partial propensities if an
+   * amount or the volume is set from outside.
+   */
+  @Test
+  public void testPartialPropensitySetAmountAndVolume() {
+    Network net = MassActionNetwork.dimerization();
+    PartialPropensityDirectMethod sim = new PartialPropensityDirectMethod(net);
+    sim.setStochasticSeed(SEED);
+    sim.preRun();
+    sim.setAmount(1, 1000);
+    sim.setVolume(10d);
+    sim.run(new DefaultController(1E-9));
+    PropensityCalculator calculator = net.getPropensityCalculator();
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      double expected = calculator.calculatePropensity(j, net.getAmountManager(), sim);
+      assertEquals(expected, sim.getPropensity(j), 1E-9 * Math.max(1d, expected));
+    }
+  }
+
+  /**
+   * Sets all rate constants to zero at a given time and reinitializes the simulator, so no reaction
+   * may fire afterwards.
+   */
+  static class StopReactionsObserver extends Observer {
+
+    private final double time;
+    private long[] amounts;
+
+    StopReactionsObserver(Simulator sim, double time) {
+      super(sim);
+      this.time = time;
+    }
+
+    @Override
+    public void started() {
+      setTheta(time);
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void theta(double theta) {
+      Simulator sim = getSimulator();
+      ArrayKineticConstantPropensityCalculator calculator =
+          (ArrayKineticConstantPropensityCalculator) sim.getNet().getPropensityCalculator();
+      amounts = new long[sim.getNet().getNumSpecies()];
+      for (int s = 0; s < amounts.length; s++) {
+        amounts[s] = (long) sim.getAmount(s);
+      }
+      for (int j = 0; j < sim.getNet().getNumReactions(); j++) {
+        calculator.setConstant(j, 0);
+      }
+      sim.reinitialize();
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+    }
+  }
+
+  /**
+   * Testing that the partial-propensity direct method uses rate constants changed by an observer
+   * followed by {@link Simulator#reinitialize()}, like the direct method.
+   */
+  @Test
+  public void testPartialPropensityChangedConstants() {
+    SimulatorCreator[] creators = {GillespieEnhanced::new, PartialPropensityDirectMethod::new};
+    for (SimulatorCreator creator : creators) {
+      Simulator sim = creator.create(MassActionNetwork.dimerization());
+      StopReactionsObserver obs = new StopReactionsObserver(sim, 1d);
+      sim.addObserver(obs);
+      sim.setStochasticSeed(SEED);
+      sim.start(TIME);
+      for (int s = 0; s < obs.amounts.length; s++) {
+        assertEquals(sim.getName(), obs.amounts[s], (long) sim.getAmount(s));
+      }
+    }
+  }
+
+  /**
+   * Testing the hybrid ODE simulator against the direct method on a network without fast
+   * reactions.
+   */
+  @Test
+  public void testHybridODE() {
+    assertSameAsGillespie(HybridODESimulator::new);
+  }
+
+  /**
+   * Testing that a boundary species that is the reactant of a fast reaction is not integrated by
+   * the hybrid ODE simulator. In the network S->P, P-> with boundary species S, the amount of S
+   * stays constant and P follows 10000*(1-exp(-0.1*t)).
+   */
+  @Test
+  public void testHybridODEBoundarySpecies() {
+    Network net = new MassActionNetwork(new String[]{"S", "P"}, new long[]{1000, 0},
+        new String[]{"S->P", "P->"}, new double[]{1, 0.1}).setBoundarySpecies("S");
+    HybridODESimulator sim = new HybridODESimulator(net);
+    FiringObserver obs = new FiringObserver(sim, 0);
+    sim.addObserver(obs);
+    sim.setStochasticSeed(SEED);
+    sim.start(TIME);
+    assertEquals(1000, (long) sim.getAmount(0));
+    assertTrue(obs.firings[0] > 0);
+    double expected = 10000 * (1 - Math.exp(-0.1 * TIME));
+    assertEquals(expected, sim.getAmount(1), 0.02 * expected);
+  }
+
+  /**
+   * Records the time of the first firing of a reaction and the number of firings of each reaction.
+   */
+  static class FiringObserver extends Observer {
+
+    private final int reaction;
+    private double firstFiring;
+    private long[] firings;
+
+    FiringObserver(Simulator sim, int reaction) {
+      super(sim);
+      this.reaction = reaction;
+    }
+
+    @Override
+    public void started() {
+      firstFiring = Double.NaN;
+      firings = new long[getSimulator().getNet().getNumReactions()];
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void theta(double theta) {
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+      firings[mu] += times;
+      if ((mu == reaction) && Double.isNaN(firstFiring)) {
+        firstFiring = tau;
+      }
+    }
+  }
+
+  /**
+   * Testing that the hybrid ODE simulator fires a slow reaction whose propensity changes within an
+   * integration step at the right time, and that the firings of the fast reaction are reported to
+   * the observers. In the network A->B, B->C the conversion of A is fast, so B follows
+   * 1100-1000*exp(-t) and the integral of the propensity of B->C at its first firing has to be
+   * exponentially distributed.
+   */
+  @Test
+  public void testHybridODESlowFiring() {
+    Network net = new MassActionNetwork(new String[]{"A", "B", "C"}, new long[]{1000, 100, 0},
+        new String[]{"A->B", "B->C"}, new double[]{1, 0.01});
+    HybridODESimulator sim = new HybridODESimulator(net);
+    sim.setStepSize(1d);
+    FiringObserver obs = new FiringObserver(sim, 1);
+    sim.addObserver(obs);
+    double[] values = new double[REPLICATES];
+    for (int r = 0; r < REPLICATES; r++) {
+      sim.setStochasticSeed(SEED, r);
+      sim.start(2d);
+      double t = obs.firstFiring;
+      values[r] = 0.01d * ((1100d * t) - (1000d * (1d - Math.exp(-t))));
+      assertEquals(1000 - (long) sim.getAmount(0), obs.firings[0], 1d);
+      assertTrue(obs.firings[1] > 0);
+    }
+    double mean = 0;
+    for (double v : values) {
+      mean += v / REPLICATES;
+    }
+    double variance = 0;
+    for (double v : values) {
+      variance += (v - mean) * (v - mean) / (REPLICATES - 1);
+    }
+    assertEquals(1d, mean, MEAN_CUTOFF / Math.sqrt(REPLICATES));
+    assertEquals(1d, variance, VARIANCE_CUTOFF);
+  }
+
+  /**
+   * Testing that the constants transformed for the volume are calculated again when the volume
+   * changes.
+   */
+  @Test
+  public void testKineticConstantsForVolume() {
+    Network net = MassActionNetwork.dimerization();
+    Simulator sim = new GillespieEnhanced(net);
+    PropensityCalculator calculator = net.getPropensityCalculator();
+    for (int s = 0; s < net.getNumSpecies(); s++) {
+      net.getAmountManager().setAmount(s, 10 + (7 * s));
+    }
+    for (double volume : new double[]{2, 0.5, 0, 3}) {
+      sim.setVolume(volume);
+      Network fresh = MassActionNetwork.dimerization();
+      for (int s = 0; s < net.getNumSpecies(); s++) {
+        fresh.getAmountManager().setAmount(s, 10 + (7 * s));
+      }
+      for (int j = 0; j < net.getNumReactions(); j++) {
+        assertEquals(fresh.getPropensityCalculator().calculatePropensity(j,
+            fresh.getAmountManager(), sim), calculator.calculatePropensity(j,
+            net.getAmountManager(), sim), 0d);
+      }
+    }
+  }
+
+  /**
+   * Testing that each replicate of the lock-step ensemble yields the same trajectory as the direct
+   * method with the random stream of the replicate. The blocks are smaller than the number of
+   * replicates, so replicates finish in different blocks and lanes.
+   */
+  @Test
+  public void testLockStepEnsemble() {
+    int replicates = 20;
+    for (double volume : new double[]{0, 2}) {
+      LockStepEnsemble ensemble = new LockStepEnsemble(MassActionNetwork.dimerization(),
+          replicates);
+      ensemble.setRootSeed(SEED);
+      ensemble.setBlockSize(8);
+      ensemble.setVolume(volume);
+      ensemble.start(TIME);
+      Simulator sim = new GillespieEnhanced(MassActionNetwork.dimerization());
+      sim.setVolume(volume);
+      for (int r = 0; r < replicates; r++) {
+        sim.setStochasticSeed(SEED, r);
+        sim.start(TIME);
+        for (int s = 0; s < sim.getNet().getNumSpecies(); s++) {
+          assertEquals("replicate " + r, (long) sim.getAmount(s), ensemble.getAmount(r, s));
+        }
+        assertEquals("replicate " + r, sim.getTime(), ensemble.getTime(r), 0d);
+      }
+    }
+  }
+
+  /**
+   * Observer that counts the calls of the methods that {@link AmountAtMomentObserver} implements
+   * by empty ones.
+   */
+  static class CountingObserver extends AmountAtMomentObserver {
+
+    private int steps;
+    private int firings;
+
+    CountingObserver(Simulator sim) {
+      super(sim, TIME, 0);
+    }
+
+    @Override
+    public void step() {
+      steps++;
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+      firings++;
+    }
+  }
+
+  /**
+   * Testing that observers which override methods that their super class implements by empty ones
+   * are still called.
+   */
+  @Test
+  public void testOverriddenObserverMethods() {
+    Simulator sim = new GillespieEnhanced(MassActionNetwork.dimerization());
+    AmountAtMomentObserver empty = new AmountAtMomentObserver(sim, TIME, 0);
+    assertFalse(empty.isStepNeeded());
+    assertFalse(empty.isActivateReactionNeeded());
+    assertFalse(new AmountIntervalObserver(sim, 1d, "A").isActivateReactionNeeded());
+
+    CountingObserver obs = new CountingObserver(sim);
+    assertTrue(obs.isStepNeeded());
+    assertTrue(obs.isActivateReactionNeeded());
+    sim.addObserver(obs);
+    sim.setStochasticSeed(SEED);
+    sim.start(TIME);
+    assertTrue(obs.steps > 0);
+    assertTrue(obs.firings > 0);
+  }
+
+  /**
+   * Testing the replicate streams: the direct method has to yield the same distribution as with
+   * the Mersenne twister of {@link Simulator#setStochasticSeed(long)}, and replicates simulated
+   * concurrently by several simulators have to be identical to the ones simulated one after
+   * another.
+   */
+  @Test
+  public void testRandomStreams() throws InterruptedException {
+    Simulator sim = new GillespieEnhanced(MassActionNetwork.dimerization());
+    MomentObserver obs = new MomentObserver(sim, TIME);
+    sim.addObserver(obs);
+    long[][] mersenne = new long[sim.getNet().getNumSpecies()][REPLICATES];
+    for (int r = 0; r < REPLICATES; r++) {
+      sim.setStochasticSeed(SEED + r);
+      sim.start(obs);
+      for (int s = 0; s < mersenne.length; s++) {
+        mersenne[s][r] = obs.getAmounts()[s];
+      }
+    }
+    long[][] streams = sample(new GillespieEnhanced(MassActionNetwork.dimerization()), REPLICATES,
+        TIME);
+    assertSameDistribution(mersenne, streams);
+
+    int numThreads = 4;
+    long[][] concurrent = new long[streams.length][REPLICATES];
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      int first = i;
+      threads[i] = new Thread(() -> {
+        Simulator threadSim = new GillespieEnhanced(MassActionNetwork.dimerization());
+        MomentObserver threadObs = new MomentObserver(threadSim, TIME);
+        threadSim.addObserver(threadObs);
+        for (int r = first; r < REPLICATES; r += numThreads) {
+          threadSim.setStochasticSeed(SEED, r);
+          threadSim.start(threadObs);
+          for (int s = 0; s < concurrent.length; s++) {
+            concurrent[s][r] = threadObs.getAmounts()[s];
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int s = 0; s < streams.length; s++) {
+      assertTrue("species " + s, Arrays.equals(streams[s], concurrent[s]));
+    }
+  }
+
+  /**
+   * Testing that the statistics of the parallel ensemble are the ones of the replicates simulated
+   * one after another by the direct method, independently of the number of threads.
+   */
+  @Test
+  public void testSimulationEnsemble() {
+    int numIntervals = 5;
+    double interval = TIME / numIntervals;
+    EnsembleStatistics[] stats = new EnsembleStatistics[2];
+    int[] parallelism = {1, 4};
+    for (int i = 0; i < stats.length; i++) {
+      Network net = MassActionNetwork.dimerization();
+      SimulationEnsemble ensemble = new SimulationEnsemble(net, GillespieEnhanced::new,
+          new DefaultController(TIME), REPLICATES);
+      ensemble.setRootSeed(SEED);
+      ForkJoinPool pool = new ForkJoinPool(parallelism[i]);
+      ensemble.setPool(pool);
+      stats[i] = ensemble.run(interval, 0, 1, 2, 3);
+      pool.shutdown();
+    }
+
+    for (int index = 1; index <= numIntervals; index++) {
+      long[][] expected = sample(new GillespieEnhanced(MassActionNetwork.dimerization()),
+          REPLICATES, index * interval);
+      for (EnsembleStatistics actual : stats) {
+        assertEquals(REPLICATES, actual.getCount(index));
+        for (int s = 0; s < expected.length; s++) {
+          double mean = mean(expected[s]);
+          double variance = variance(expected[s]);
+          assertEquals(mean, actual.getMean(s, index), 1E-9 * Math.max(1d, mean));
+          assertEquals(variance, actual.getVariance(s, index), 1E-9 * Math.max(1d, variance));
+        }
+      }
+    }
+  }
+
+  /**
+   * Testing the logarithmic direct method against the direct method.
+   */
+  @Test
+  public void testLogarithmicDirectMethod() {
+    assertSameAsGillespie(LogarithmicDirectMethod::new);
+  }
+
+  /**
+   * Testing that the logarithmic direct method fires exactly the same reactions at the same times
+   * as the direct method for the same random numbers. The constants are integers, so all
+   * propensities and their sums are integers as well and the pairwise sums of the tree are equal to
+   * the sequential ones.
+   */
+  @Test
+  public void testLogarithmicDirectMethodSameFirings() {
+    SimulatorCreator[] creators = {GillespieEnhanced::new, LogarithmicDirectMethod::new};
+    List<List<double[]>> firings = new ArrayList<>();
+    for (SimulatorCreator creator : creators) {
+      Simulator sim = creator.create(new MassActionNetwork(new String[]{"A", "B", "C", "D"},
+          new long[]{60, 40, 0, 0},
+          new String[]{"->A", "A+A->D", "D->A+A", "A+B->C", "C->A+B", "C->", "B->"},
+          new double[]{50, 1, 2, 1, 3, 1, 1}));
+      RecordingObserver obs = new RecordingObserver(sim);
+      sim.addObserver(obs);
+      sim.setStochasticSeed(SEED);
+      sim.start(TIME);
+      firings.add(obs.getFirings());
+    }
+    List<double[]> expected = firings.get(0);
+    List<double[]> actual = firings.get(1);
+    assertTrue(expected.size() > 1000);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertTrue("firing " + i, Arrays.equals(expected.get(i), actual.get(i)));
+    }
+  }
+
+  /**
+   * Testing that the propensity tree selects the same reactions as a linear search over the
+   * partial sums, also after updates and for a number of reactions that is not a power of two.
+   */
+  @Test
+  public void testPropensityTree() {
+    Random random = new Random(SEED);
+    double[] a = new double[13];
+    for (int j = 0; j < a.length; j++) {
+      a[j] = j % 4 == 0 ? 0 : random.nextDouble();
+    }
+    PropensityTree tree = new PropensityTree(a.length);
+    tree.initialize(a);
+    for (int k = 0; k < 1000; k++) {
+      int reaction = random.nextInt(a.length);
+      a[reaction] = random.nextInt(3) == 0 ? 0 : 10 * random.nextDouble();
+      tree.update(reaction, a[reaction]);
+
+      double sum = 0;
+      for (double v : a) {
+        sum += v;
+      }
+      assertEquals(sum, tree.getSum(), 1E-12 * sum);
+      double test = random.nextDouble() * tree.getSum();
+      int expected = 0;
+      for (double partialSum = a[0]; partialSum < test; partialSum += a[expected]) {
+        expected++;
+      }
+      assertEquals(expected, tree.search(test));
+    }
+  }
+
+  /**
+   * Testing the sorting direct method against the direct method.
+   */
+  @Test
+  public void testSortingDirectMethod() {
+    assertSameAsGillespie(SortingDirectMethod::new);
+  }
+
+  /**
+   * Testing that the search order of the sorting direct method stays a permutation of the
+   * reactions and that the most frequently fired reaction is searched before the least frequently
+   * fired one.
+   */
+  @Test
+  public void testSortingDirectMethodOrder() {
+    Network net = MassActionNetwork.dimerization();
+    SortingDirectMethod sim = new SortingDirectMethod(net);
+    FiringObserver obs = new FiringObserver(sim, 0);
+    sim.addObserver(obs);
+    sim.setStochasticSeed(SEED);
+    sim.start(10 * TIME);
+
+    int mostFrequent = 0;
+    int leastFrequent = 0;
+    for (int j = 0; j < net.getNumReactions(); j++) {
+      assertEquals(j, sim.getReactionAt(sim.getPosition(j)));
+      if (obs.firings[j] > obs.firings[mostFrequent]) {
+        mostFrequent = j;
+      }
+      if (obs.firings[j] < obs.firings[leastFrequent]) {
+        leastFrequent = j;
+      }
+    }
+    assertTrue(sim.getPosition(mostFrequent) < sim.getPosition(leastFrequent));
+  }
+
+  /**
+   * Testing the next reaction method of Gibson and Bruck against the direct method.
+   */
+  @Test
+  public void testGibsonBruck() {
+    assertSameAsGillespie(GibsonBruckSimulator::new);
+  }
+
+  /**
+   * Testing that the indexed priority queue yields the minimal key and the key of each reaction
+   * after random updates, including infinite and NaN keys.
+   */
+  @Test
+  public void testIndexedPriorityQueue() {
+    Random random = new Random(SEED);
+    double[] keys = new double[11];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = i % 5 == 0 ? Double.POSITIVE_INFINITY : random.nextDouble();
+    }
+    IndexedPriorityQueue queue = new IndexedPriorityQueue(keys);
+    for (int k = 0; k < 1000; k++) {
+      int i = random.nextInt(keys.length);
+      double value = random.nextInt(10) == 0 ? Double.NaN : 10 * random.nextDouble();
+      keys[i] = Double.isNaN(value) ? Double.POSITIVE_INFINITY : value;
+      queue.update(i, value);
+
+      int min = 0;
+      for (int j = 0; j < keys.length; j++) {
+        assertEquals(keys[j], queue.getKey(j), 0d);
+        if (keys[j] < keys[min]) {
+          min = j;
+        }
+      }
+      assertEquals(keys[min], queue.getMinKey(), 0d);
+      assertEquals(keys[min], keys[queue.getMin()], 0d);
+    }
+  }
+
+  /**
+   * Testing the composition-rejection method against the direct method.
+   */
+  @Test
+  public void testCompositionRejection() {
+    assertSameAsGillespie(CompositionRejection::new);
+  }
+
+  /**
+   * Testing that the group container keeps the sum of the propensities and draws the reactions
+   * proportional to their propensities, also after updates that move reactions between groups
+   * spanning many orders of magnitude and beyond the initial range of groups.
+   */
+  @Test
+  public void testGroupContainer() {
+    Random random = new Random(SEED);
+    Simulator sim = new GillespieEnhanced(randomNetwork(random, 5, 13));
+    double[] a = new double[sim.getNet().getNumReactions()];
+    for (int j = 0; j < a.length; j++) {
+      a[j] = j % 4 == 0 ? 0 : Math.scalb(1 + random.nextDouble(), random.nextInt(9) - 4);
+    }
+    GroupContainer groups = new GroupContainer(sim);
+    groups.initialize(a);
+    for (int k = 0; k < 1000; k++) {
+      int reaction = random.nextInt(a.length);
+      double old = a[reaction];
+      a[reaction] = random.nextInt(4) == 0 ? 0
+          : Math.scalb(1 + random.nextDouble(), random.nextInt(21) - 10);
+      groups.propensityChanged(reaction, old, a[reaction]);
+
+      double sum = 0;
+      for (double v : a) {
+        sum += v;
+      }
+      assertEquals(sum, groups.getA_sum(), 1E-12 * sum);
+    }
+
+    Stochastics stochastics = new Stochastics(SEED);
+    int draws = 100000;
+    int[] counts = new int[a.length];
+    for (int k = 0; k < draws; k++) {
+      counts[groups.drawReaction(stochastics, a)]++;
+    }
+    for (int j = 0; j < a.length; j++) {
+      double p = a[j] / groups.getA_sum();
+      assertEquals("reaction " + j, p * draws, counts[j],
+          5 * Math.sqrt(draws * p * (1 - p)) + 1E-10);
+    }
+    assertEquals(draws, groups.getNumDraws());
+    assertTrue(groups.getRejectionRate() < 0.5);
+  }
+
+  /**
+   * Asserts that the given tau-leaping simulator yields approximately the same distribution as
+   * {@link GillespieEnhanced}: the means may differ by {@link #MEAN_CUTOFF} standard errors plus
+   * the bias of the leaps, the variances by {@link #VARIANCE_CUTOFF} plus the bias.
+   */
+  private static void assertSimilarToGillespie(SimulatorCreator creator, Supplier<Network> net) {
+    long[][] expected = sample(new GillespieEnhanced(net.get()), REPLICATES, TIME);
+    long[][] actual = sample(creator.create(net.get()), REPLICATES, TIME);
+    for (int s = 0; s < expected.length; s++) {
+      double m1 = mean(expected[s]);
+      double v1 = variance(expected[s]);
+      double v2 = variance(actual[s]);
+      double se = Math.sqrt((v1 + v2) / expected[s].length);
+      assertEquals("mean of species " + s, m1, mean(actual[s]),
+          MEAN_CUTOFF * Math.max(se, 1E-10) + TAU_LEAPING_BIAS * m1);
+      assertEquals("variance of species " + s, v1, v2,
+          (VARIANCE_CUTOFF + TAU_LEAPING_BIAS) * Math.max(v1, 1d));
+    }
+  }
+
+  /**
+   * Testing the tau-leaping methods against the direct method, on the dimerization network, where
+   * most reactions are critical, and on a birth-death process with about 1000 molecules, where
+   * the reactions are leaped. In the equilibrium of the latter, leaps of length tau inflate the
+   * variance by 2/(2-tau), which is about 2.5 for the absolute bound with the default epsilon,
+   * hence a smaller one is used.
+   */
+  @Test
+  public void testTauLeaping() {
+    SimulatorCreator[] creators = {TauLeapingAbsoluteBoundSimulator::new,
+        TauLeapingRelativeBoundSimulator::new, TauLeapingSpeciesPopulationBoundSimulator::new};
+    for (SimulatorCreator creator : creators) {
+      assertSimilarToGillespie(creator, MassActionNetwork::dimerization);
+      SimulatorCreator accurate = net -> {
+        AbstractBaseTauLeaping sim = (AbstractBaseTauLeaping) creator.create(net);
+        sim.setEpsilon(0.01);
+        return sim;
+      };
+      assertSimilarToGillespie(accurate, () -> MassActionNetwork.birthDeath(1000, 1, 1000));
+    }
+  }
+
+  /**
+   * Testing the Poisson random numbers drawn for several means at once, both by inversion and by
+   * transformed rejection.
+   */
+  @Test
+  public void testPoissonArray() {
+    Stochastics stochastics = new Stochastics(SEED);
+    double[] means = {0, 0.5, 3, 9.9, 10, 25, 1000};
+    int draws = 20000;
+    long[][] x = new long[means.length][draws];
+    int[] re = new int[means.length];
+    for (int k = 0; k < draws; k++) {
+      stochastics.getPoisson(means, re);
+      for (int i = 0; i < means.length; i++) {
+        x[i][k] = re[i];
+      }
+    }
+    for (int i = 0; i < means.length; i++) {
+      double se = Math.sqrt(means[i] / draws);
+      assertEquals("mean " + means[i], means[i], mean(x[i]), MEAN_CUTOFF * Math.max(se, 1E-10));
+      assertEquals("variance " + means[i], means[i], variance(x[i]), 0.05 * means[i]);
+    }
+  }
+
+  /**
+   * Creates a random mass action network with reactions of order up to two, some of them catalytic
+   * (i.e. with a reactant that is also a product).
+   */
+  static Network randomNetwork(Random random, int numSpecies, int numReactions) {
+    String[] species = new String[numSpecies];
+    long[] amounts = new long[numSpecies];
+    for (int s = 0; s < numSpecies; s++) {
+      species[s] = "S" + s;
+      amounts[s] = random.nextInt(50);
+    }
+    String[] reactions = new String[numReactions];
+    double[] constants = new double[numReactions];
+    for (int j = 0; j < numReactions; j++) {
+      String[] reactants = new String[random.nextInt(3)];
+      for (int k = 0; k < reactants.length; k++) {
+        reactants[k] = species[random.nextInt(numSpecies)];
+      }
+      String[] products = new String[random.nextInt(3)];
+      for (int k = 0; k < products.length; k++) {
+        products[k] = k == 0 && reactants.length > 0 && random.nextBoolean() ? reactants[0]
+            : species[random.nextInt(numSpecies)];
+      }
+      reactions[j] = String.join("+", reactants) + "->" + String.join("+", products);
+      constants[j] = random.nextDouble();
+    }
+    return new MassActionNetwork(species, amounts, reactions, constants);
+  }
+
+  /**
+   * Testing the dependency graph against its definition: reaction j depends on reaction i iff i=j
+   * or a species whose amount is changed by i is a reactant of j.
+   */
+  @Test
+  public void testDependencyGraph() {
+    Random random = new Random(SEED);
+    for (Network net : new Network[]{MassActionNetwork.dimerization(),
+        randomNetwork(random, 10, 40), randomNetwork(random, 30, 15)}) {
+      DependencyGraph graph = new DependencyGraph(net);
+      assertEquals(net.getNumReactions() + 1, graph.getOffsets().length);
+      for (int i = 0; i < net.getNumReactions(); i++) {
+        int[] change = new int[net.getNumSpecies()];
+        for (int s : net.getReactants(i)) {
+          change[s]--;
+        }
+        for (int s : net.getProducts(i)) {
+          change[s]++;
+        }
+        int[] expected = new int[net.getNumReactions()];
+        int numExpected = 0;
+        for (int j = 0; j < net.getNumReactions(); j++) {
+          boolean dependent = i == j;
+          for (int s : net.getReactants(j)) {
+            dependent |= change[s] != 0;
+          }
+          if (dependent) {
+            expected[numExpected++] = j;
+          }
+        }
+        int[] dependent = Arrays.copyOfRange(graph.getTargets(), graph.getOffsets()[i],
+            graph.getOffsets()[i + 1]);
+        assertTrue("reaction " + i, Arrays.equals(Arrays.copyOf(expected, numExpected), dependent));
+        assertEquals(numExpected, graph.getNumDependent(i));
+        List<Integer> list = graph.getDependent(i);
+        assertEquals(numExpected, list.size());
+        for (int k = 0; k < numExpected; k++) {
+          assertEquals(expected[k], (int) list.get(k));
+        }
+      }
+    }
+
+    // the direct method without dependency graph has to yield the same distribution
+    Random networkRandom = new Random(SEED);
+    long[][] expected = sample(new GillespieSimple(randomNetwork(networkRandom, 10, 40)),
+        REPLICATES, 0.1d);
+    networkRandom = new Random(SEED);
+    long[][] actual = sample(new GillespieEnhanced(randomNetwork(networkRandom, 10, 40)),
+        REPLICATES, 0.1d);
+    assertSameDistribution(expected, actual);
+  }
+
+}
@@ -0,0 +1,186 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import fern.simulation.Simulator;
+import fern.simulation.Simulator.FireType;
+import fern.simulation.algorithm.GibsonBruckSimulator;
+import fern.simulation.algorithm.GillespieEnhanced;
+import fern.simulation.observer.Observer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.simulator.stochastic.StochasticSimulatorTest.SimulatorCreator;
+
+/**
+ * Tests of the theta events of the simulators: observers registering equal or different thetas
+ * have to be invoked in the order of the thetas, observers of equal thetas in the order of their
+ * registration, and all of them have to see the amounts at their theta.
+ */
+public class ThetaEventTest {
+
+  private static final long SEED = 1595487468503L;
+  private static final double TIME = 5d;
+
+  /**
+   * Registers the thetas {@code start}, {@code start + interval}, ... and logs each invocation as
+   * theta, id and the amounts of the species.
+   */
+  static class ThetaLogObserver extends Observer {
+
+    private final int id;
+    private final double start;
+    private final double interval;
+    private final List<double[]> log;
+
+    ThetaLogObserver(Simulator sim, int id, double start, double interval, List<double[]> log) {
+      super(sim);
+      this.id = id;
+      this.start = start;
+      this.interval = interval;
+      this.log = log;
+    }
+
+    @Override
+    public void started() {
+      setTheta(start);
+    }
+
+    @Override
+    public void step() {
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void theta(double theta) {
+      double[] entry = new double[2 + getSimulator().getNet().getNumSpecies()];
+      entry[0] = theta;
+      entry[1] = id;
+      for (int s = 2; s < entry.length; s++) {
+        entry[s] = getSimulator().getAmount(s - 2);
+      }
+      log.add(entry);
+      setTheta(theta + interval);
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+    }
+  }
+
+  /**
+   * Logs the time and the amounts before each step, i.e. the state from this time until the next
+   * firing.
+   */
+  static class StateLogObserver extends Observer {
+
+    private final List<double[]> log = new ArrayList<>();
+
+    StateLogObserver(Simulator sim) {
+      super(sim);
+    }
+
+    @Override
+    public void started() {
+    }
+
+    @Override
+    public void step() {
+      double[] entry = new double[1 + getSimulator().getNet().getNumSpecies()];
+      entry[0] = getSimulator().getTime();
+      for (int s = 1; s < entry.length; s++) {
+        entry[s] = getSimulator().getAmount(s - 1);
+      }
+      log.add(entry);
+    }
+
+    @Override
+    public void finished() {
+    }
+
+    @Override
+    public void theta(double theta) {
+    }
+
+    @Override
+    public void activateReaction(int mu, double tau, FireType fireType, int times) {
+    }
+
+    /**
+     * @return the amounts of the last state that started not after the given time
+     */
+    double[] getAmountsAt(double time) {
+      double[] re = null;
+      for (int i = 0; i < log.size() && log.get(i)[0] <= time; i++) {
+        re = log.get(i);
+      }
+      double[] amounts = new double[re.length - 1];
+      System.arraycopy(re, 1, amounts, 0, amounts.length);
+      return amounts;
+    }
+  }
+
+  /**
+   * Simulates the dimerization network with three observers of the same thetas and two observers
+   * of other ones, and checks the order of the invocations and the amounts seen by them.
+   */
+  private static void assertThetaEvents(SimulatorCreator creator) {
+    Simulator sim = creator.create(MassActionNetwork.dimerization());
+    List<double[]> log = new ArrayList<>();
+    StateLogObserver states = new StateLogObserver(sim);
+    sim.addObserver(states);
+    // the ids give the registration order of equal thetas; 3 and 4 are added before 2
+    sim.addObserver(new ThetaLogObserver(sim, 0, 0.25, 0.5, log));
+    sim.addObserver(new ThetaLogObserver(sim, 1, 0.25, 0.5, log));
+    sim.addObserver(new ThetaLogObserver(sim, 3, 0.3, 0.3, log));
+    sim.addObserver(new ThetaLogObserver(sim, 4, 0.7, 0.7, log));
+    sim.addObserver(new ThetaLogObserver(sim, 2, 0.25, 0.5, log));
+    sim.setStochasticSeed(SEED);
+    sim.start(TIME);
+
+    int[] counts = new int[5];
+    for (int i = 0; i < log.size(); i++) {
+      double[] entry = log.get(i);
+      counts[(int) entry[1]]++;
+      if (i > 0) {
+        double[] previous = log.get(i - 1);
+        assertTrue("thetas in order", previous[0] <= entry[0]);
+        if (previous[0] == entry[0] && previous[1] < 3 && entry[1] < 3) {
+          assertEquals("registration order", previous[1] + 1, entry[1], 0d);
+        }
+      }
+      double[] amounts = new double[entry.length - 2];
+      System.arraycopy(entry, 2, amounts, 0, amounts.length);
+      assertArrayEquals("amounts at " + entry[0], states.getAmountsAt(entry[0]), amounts, 0d);
+    }
+    // all thetas up to TIME: 0.25, 0.75, ..., 4.75 and 0.3, ..., 4.8 and 0.7, ..., 4.9; the last
+    // step may also pass later ones
+    int[] expected = {10, 10, 10, 16, 7};
+    for (int o = 0; o < counts.length; o++) {
+      assertTrue("thetas of observer " + o, counts[o] >= expected[o]);
+    }
+    assertTrue(log.get(log.size() - 1)[0] <= sim.getTime());
+  }
+
+  /**
+   * Testing the theta events of the direct method.
+   */
+  @Test
+  public void testDirectMethod() {
+    assertThetaEvents(GillespieEnhanced::new);
+  }
+
+  /**
+   * Testing the theta events of the next reaction method, which handles them in its own step.
+   */
+  @Test
+  public void testNextReactionMethod() {
+    assertThetaEvents(GibsonBruckSimulator::new);
+  }
+
+}
@@ -0,0 +1,126 @@
+package org.simulator.stochastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import fern.simulation.WeightedEnsemble;
+import fern.simulation.algorithm.GillespieEnhanced;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link WeightedEnsemble} on the birth-death network {@code ->X}, {@code X->}, whose
+ * probability to reach a given amount of X within a given time is computed from the master
+ * equation.
+ */
+public class WeightedEnsembleTest {
+
+  private static final long SEED = 1595487468503L;
+
+  private static final double BIRTH = 1d;
+  private static final double DEATH = 0.1d;
+  private static final long X0 = 10;
+  private static final int TARGET = 20;
+  private static final double SEGMENT_TIME = 0.5d;
+  private static final int ITERATIONS = 20;
+  private static final int WALKERS_PER_BIN = 16;
+  private static final double[] BIN_BOUNDARIES = {12, 14, 16, 18};
+
+  private static WeightedEnsemble createEnsemble(long seed) {
+    WeightedEnsemble ensemble = new WeightedEnsemble(
+        MassActionNetwork.birthDeath(BIRTH, DEATH, X0), GillespieEnhanced::new,
+        sim -> sim.getAmount(0), BIN_BOUNDARIES, TARGET, SEGMENT_TIME);
+    ensemble.setRootSeed(seed);
+    ensemble.setWalkersPerBin(WALKERS_PER_BIN);
+    return ensemble;
+  }
+
+  /**
+   * Computes the probability that X reaches {@link #TARGET} within the given time by integrating
+   * the master equation with an absorbing target state.
+   */
+  private static double getExactProbability(double time) {
+    int steps = 100000;
+    double h = time / steps;
+    double[] p = new double[TARGET + 1];
+    p[(int) X0] = 1;
+    double[][] k = new double[4][p.length];
+    double[] y = new double[p.length];
+    for (int i = 0; i < steps; i++) {
+      derivative(p, k[0]);
+      for (int n = 0; n < p.length; n++) {
+        y[n] = p[n] + h / 2 * k[0][n];
+      }
+      derivative(y, k[1]);
+      for (int n = 0; n < p.length; n++) {
+        y[n] = p[n] + h / 2 * k[1][n];
+      }
+      derivative(y, k[2]);
+      for (int n = 0; n < p.length; n++) {
+        y[n] = p[n] + h * k[2][n];
+      }
+      derivative(y, k[3]);
+      for (int n = 0; n < p.length; n++) {
+        p[n] += h / 6 * (k[0][n] + 2 * k[1][n] + 2 * k[2][n] + k[3][n]);
+      }
+    }
+    return p[TARGET];
+  }
+
+  private static void derivative(double[] p, double[] dp) {
+    Arrays.fill(dp, 0);
+    for (int n = 0; n < TARGET; n++) {
+      dp[n] -= (BIRTH + DEATH * n) * p[n];
+      dp[n + 1] += BIRTH * p[n];
+      if (n > 0) {
+        dp[n - 1] += DEATH * n * p[n];
+      }
+    }
+  }
+
+  private static double sum(double[] x) {
+    double re = 0;
+    for (double v : x) {
+      re += v;
+    }
+    return re;
+  }
+
+  /**
+   * Testing that splitting and merging preserve the total weight of the walkers.
+   */
+  @Test
+  public void testWeightPreserved() {
+    WeightedEnsemble ensemble = createEnsemble(SEED);
+    double probability = ensemble.run(ITERATIONS);
+    assertTrue(probability > 0);
+    assertEquals(probability, sum(ensemble.getFluxes()), 1E-15);
+    assertEquals(1d, sum(ensemble.getBinWeights()) + probability, 1E-12);
+
+    ensemble.setRecycling(true);
+    ensemble.run(ITERATIONS);
+    assertEquals(1d, sum(ensemble.getBinWeights()), 1E-12);
+  }
+
+  /**
+   * Testing that the mean of independent estimates agrees with the probability computed from the
+   * master equation (about 0.006, which would need about 40000 runs of the direct method for
+   * the same accuracy).
+   */
+  @Test
+  public void testRareEventProbability() {
+    double exact = getExactProbability(ITERATIONS * SEGMENT_TIME);
+    int runs = 200;
+    double[] estimates = new double[runs];
+    for (int r = 0; r < runs; r++) {
+      estimates[r] = createEnsemble(SEED + r).run(ITERATIONS);
+    }
+    double mean = sum(estimates) / runs;
+    double variance = 0;
+    for (double e : estimates) {
+      variance += (e - mean) * (e - mean) / (runs - 1);
+    }
+    assertEquals(exact, mean, 4 * Math.sqrt(variance / runs));
+  }
+
+}